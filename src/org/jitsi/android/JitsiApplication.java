@@ -81,6 +81,12 @@ public class JitsiApplication
      */
     private final DrawableCache drawableCache = new DrawableCache();
 
+    /**
+     * Trims registered caches on memory pressure.
+     */
+    private final MemoryCoordinator memoryCoordinator
+        = new MemoryCoordinator();
+
     /**
      * Used to keep the track of GUI activity.
      */
@@ -101,6 +107,31 @@ public class JitsiApplication
         super.onCreate();
 
         instance = this;
+
+        memoryCoordinator.register(
+            drawableCache, MemoryCoordinator.PRIORITY_NORMAL);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onTrimMemory(int level)
+    {
+        super.onTrimMemory(level);
+
+        memoryCoordinator.onTrimMemory(level);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onLowMemory()
+    {
+        super.onLowMemory();
+
+        memoryCoordinator.onLowMemory();
     }
 
     /**
@@ -147,6 +178,16 @@ public class JitsiApplication
         return instance.drawableCache;
     }
 
+    /**
+     * Returns the <tt>MemoryCoordinator</tt> that trims application caches
+     * on memory pressure.
+     * @return the <tt>MemoryCoordinator</tt> of the application.
+     */
+    public static MemoryCoordinator getMemoryCoordinator()
+    {
+        return instance.memoryCoordinator;
+    }
+
     /**
      * Retrieves <tt>AudioManager</tt> instance using application context.
      *
@@ -38,6 +38,7 @@ import net.java.sip.communicator.util.account.*;
 import org.jitsi.android.*;
 import org.jitsi.android.gui.account.*;
 import org.jitsi.android.gui.chat.*;
+import org.jitsi.android.gui.contactlist.model.*;
 import org.jitsi.android.gui.login.*;
 import org.jitsi.android.gui.util.*;
 import org.jitsi.android.plugin.otr.*;
@@ -97,6 +98,48 @@ public class AndroidGUIActivator
 
     private static MessageHistoryService messageHistoryService;
 
+    /**
+     * Contact search index, created on first use.
+     */
+    private static volatile ContactSearchIndex contactSearchIndex;
+
+    /**
+     * Guards the creation of {@link #contactSearchIndex}. Separate locks are
+     * used for each of lazily created objects, as building the contact index
+     * takes long and the other objects are obtained on the UI thread.
+     */
+    private static final Object contactSearchIndexLock = new Object();
+
+    /**
+     * Smiley replacer shared by all chat messages, created on first use.
+     */
+    private static volatile SmileyReplacer smileyReplacer;
+
+    /**
+     * Guards the creation of {@link #smileyReplacer}.
+     */
+    private static final Object smileyReplacerLock = new Object();
+
+    /**
+     * Full-text index over chat history, started with the bundle.
+     */
+    private static volatile ChatHistoryIndex chatHistoryIndex;
+
+    /**
+     * Guards the creation of {@link #chatHistoryIndex}.
+     */
+    private static final Object chatHistoryIndexLock = new Object();
+
+    /**
+     * Persisted summaries of conversations, created on first use.
+     */
+    private static volatile ConversationSummaryStore conversationSummaries;
+
+    /**
+     * Guards the creation of {@link #conversationSummaries}.
+     */
+    private static final Object conversationSummariesLock = new Object();
+
     /**
      * Replacement services observer.
      */
@@ -155,6 +198,10 @@ public class AndroidGUIActivator
 
         AndroidGUIActivator.bundleContext = bundleContext;
 
+        // Starts indexing sent and received messages, the history is indexed
+        // on first search
+        getChatHistoryIndex();
+
         // Registers UIService stub
         AndroidUIServiceImpl uiService
             = new AndroidUIServiceImpl( secuirtyAuthority);
@@ -175,6 +222,39 @@ public class AndroidGUIActivator
         // Clears chat sessions
         ChatSessionManager.dispose();
 
+        synchronized (contactSearchIndexLock)
+        {
+            if(contactSearchIndex != null)
+            {
+                contactSearchIndex.stop();
+                contactSearchIndex = null;
+            }
+        }
+        synchronized (smileyReplacerLock)
+        {
+            if(smileyReplacer != null)
+            {
+                smileyReplacer.stop();
+                smileyReplacer = null;
+            }
+        }
+        synchronized (chatHistoryIndexLock)
+        {
+            if(chatHistoryIndex != null)
+            {
+                chatHistoryIndex.stop();
+                chatHistoryIndex = null;
+            }
+        }
+        synchronized (conversationSummariesLock)
+        {
+            if(conversationSummaries != null)
+            {
+                conversationSummaries.stop();
+                conversationSummaries = null;
+            }
+        }
+
         loginRenderer = null;
         loginManager = null;
         configService = null;
@@ -209,6 +289,121 @@ public class AndroidGUIActivator
         return metaContactList;
     }
 
+    /**
+     * Returns the <tt>ContactSearchIndex</tt> over the contacts of
+     * <tt>MetaContactListService</tt>. The index is built on first call, which
+     * should not be done on the UI thread.
+     *
+     * @return the <tt>ContactSearchIndex</tt> or <tt>null</tt> if
+     *         <tt>MetaContactListService</tt> is not available.
+     */
+    public static ContactSearchIndex getContactSearchIndex()
+    {
+        ContactSearchIndex index = contactSearchIndex;
+        if(index != null)
+            return index;
+
+        synchronized (contactSearchIndexLock)
+        {
+            if(contactSearchIndex == null)
+            {
+                MetaContactListService contactList = getContactListService();
+                if(contactList == null)
+                    return null;
+
+                // Published only when built
+                index = new ContactSearchIndex();
+                index.start(contactList);
+                contactSearchIndex = index;
+            }
+            return contactSearchIndex;
+        }
+    }
+
+    /**
+     * Returns the <tt>SmileyReplacer</tt> shared by all chat messages.
+     *
+     * @return the <tt>SmileyReplacer</tt> or <tt>null</tt> if the bundle has
+     *         not been started.
+     */
+    public static SmileyReplacer getSmileyReplacer()
+    {
+        SmileyReplacer replacer = smileyReplacer;
+        if(replacer != null)
+            return replacer;
+
+        synchronized (smileyReplacerLock)
+        {
+            if(smileyReplacer == null)
+            {
+                if(bundleContext == null)
+                    return null;
+
+                replacer = new SmileyReplacer();
+                replacer.start(bundleContext);
+                smileyReplacer = replacer;
+            }
+            return smileyReplacer;
+        }
+    }
+
+    /**
+     * Returns the <tt>ChatHistoryIndex</tt> over the messages of all chats.
+     * The index is started together with the bundle. It tracks sent and
+     * received messages and indexes the history in the background on first
+     * search, until then search results are incomplete.
+     *
+     * @return the <tt>ChatHistoryIndex</tt> or <tt>null</tt> if the bundle
+     *         has not been started.
+     */
+    public static ChatHistoryIndex getChatHistoryIndex()
+    {
+        ChatHistoryIndex index = chatHistoryIndex;
+        if(index != null)
+            return index;
+
+        synchronized (chatHistoryIndexLock)
+        {
+            if(chatHistoryIndex == null)
+            {
+                if(bundleContext == null)
+                    return null;
+
+                index = new ChatHistoryIndex();
+                index.start(bundleContext);
+                chatHistoryIndex = index;
+            }
+            return chatHistoryIndex;
+        }
+    }
+
+    /**
+     * Returns the <tt>ConversationSummaryStore</tt> which keeps the last
+     * message and unread count of each conversation.
+     *
+     * @return the <tt>ConversationSummaryStore</tt> or <tt>null</tt> if
+     *         the bundle has not been started.
+     */
+    public static ConversationSummaryStore getConversationSummaryStore()
+    {
+        ConversationSummaryStore store = conversationSummaries;
+        if(store != null)
+            return store;
+
+        synchronized (conversationSummariesLock)
+        {
+            if(conversationSummaries == null)
+            {
+                if(bundleContext == null)
+                    return null;
+
+                conversationSummaries = new ConversationSummaryStore(
+                    JitsiApplication.getGlobalContext());
+            }
+            return conversationSummaries;
+        }
+    }
+
     /**
      * Returns the <tt>GlobalStatusService</tt> obtained from the bundle
      * context.
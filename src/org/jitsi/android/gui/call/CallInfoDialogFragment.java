@@ -28,6 +28,7 @@ import net.java.sip.communicator.util.call.*;
 import org.jitsi.*;
 import org.jitsi.android.gui.util.*;
 import org.jitsi.android.util.java.awt.*;
+import org.jitsi.impl.neomedia.jmfext.media.renderer.audio.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.osgi.*;
 
@@ -782,6 +783,21 @@ public class CallInfoDialogFragment
                         + " ms "
                         + UP_ARROW
                         + (int) mediaStreamStats.getUploadJitterMs() + " ms");
+
+        // Playout latency of call audio.
+        int playoutLatency = AudioTrackRenderer.getCallPlayoutLatency();
+        boolean hasPlayoutLatency
+                = mediaType == MediaType.AUDIO && playoutLatency >= 0;
+
+        ensureVisible(container, R.id.playoutLatency, hasPlayoutLatency);
+        ensureVisible(container, R.id.playoutLatencyLabel, hasPlayoutLatency);
+        if(hasPlayoutLatency)
+        {
+            setTextViewValue(
+                    container,
+                    R.id.playoutLatency,
+                    "~" + playoutLatency + " ms");
+        }
     }
 
     /**
@@ -318,6 +318,12 @@ public class ChatActivity
                 contact.getProtocolProvider());
             return true;
 
+        case R.id.search_history:
+            ChatHistorySearchDialog.create(
+                this, selectedChat, chatPagerAdapter.getCurrentChatFragment())
+                .show();
+            return true;
+
         case R.id.close_chat:
 
             ChatSessionManager.removeActiveChat(selectedSession);
@@ -30,6 +30,8 @@ import net.java.sip.communicator.util.*;
 import org.jitsi.*;
 import org.jitsi.util.Logger;
 
+import java.util.concurrent.*;
+
 /**
  * Class is used to separate the logic of message editing process from
  * <tt>ChatFragment</tt>. It handles last messages correction, editing,
@@ -86,13 +88,14 @@ public class ChatController
      */
     private ChatSession session;
     /**
-     * Typing state control thread that goes down from typing to stopped state.
+     * Typing state control that goes down from typing to stopped state.
      */
-    private TypingControl typingCtrlThread;
+    private final TypingControl typingCtrl = new TypingControl();
     /**
      * Current typing state.
      */
-    private int typingState = OperationSetTypingNotifications.STATE_STOPPED;
+    private volatile int typingState
+        = OperationSetTypingNotifications.STATE_STOPPED;
     /**
      * The time when for the last time STATE_TYPING has been sent.
      */
@@ -172,12 +175,8 @@ public class ChatController
 
         // Remove text listener
         msgEdit.removeTextChangedListener(this);
-        // Finish typing state ctrl thread
-        if(typingCtrlThread != null)
-        {
-            typingCtrlThread.cancel();
-            typingCtrlThread = null;
-        }
+        // Go down to stopped typing state
+        typingCtrl.stopTyping();
         // Store edited text in session
         session.setEditedText(msgEdit.getText().toString());
     }
@@ -359,21 +358,7 @@ public class ChatController
                 return;
             }
 
-            if (typingState != OperationSetTypingNotifications.STATE_TYPING)
-            {
-                setNewTypingState(OperationSetTypingNotifications.STATE_TYPING);
-            }
-
-            // Start or restart typing state control thread
-            if(typingCtrlThread == null)
-            {
-                typingCtrlThread = new TypingControl();
-                typingCtrlThread.start();
-            }
-            else
-            {
-                typingCtrlThread.refreshTyping();
-            }
+            typingCtrl.refreshTyping();
         }
     }
 
@@ -395,103 +380,129 @@ public class ChatController
     }
 
     /**
-     * The thread lowers typing state from typing to stopped state. When
-     * <tt>refreshTyping</tt> is called checks for eventual typing state
-     * refresh.
+     * Lowers typing state from typing to stopped state on the scheduler shared
+     * by typing notifications of all chats. Keystrokes only refresh the time
+     * of last typing, while the state is updated when the deadline of current
+     * state elapses, so that notifications are not sent on every keystroke.
      */
     class TypingControl
-        extends Thread
+        implements Runnable
     {
-        boolean restart;
+        /**
+         * The time after which typing goes down to paused state.
+         */
+        private static final long PAUSED_DELAY = 2000;
 
-        boolean cancel;
+        /**
+         * The time after which typing goes down to stopped state.
+         */
+        private static final long STOPPED_DELAY = 5000;
 
-        @Override
-        public void run()
+        /**
+         * The interval at which typing state is sent again while the user
+         * keeps typing.
+         */
+        private static final long TYPING_REFRESH_INTERVAL = 5000;
+
+        /**
+         * The time of last keystroke.
+         */
+        private long lastTyping;
+
+        /**
+         * Pending run of this control or <tt>null</tt> if there's none.
+         */
+        private ScheduledFuture<?> pendingCheck;
+
+        /**
+         * Refreshes the time of last typing. Typing state is sent right away
+         * if it has not been set yet.
+         */
+        synchronized void refreshTyping()
         {
-            while(typingState != OperationSetTypingNotifications.STATE_STOPPED)
+            lastTyping = System.currentTimeMillis();
+
+            if(typingState != OperationSetTypingNotifications.STATE_TYPING)
             {
-                restart = false;
-                int newState;
-                long delay;
+                // Keystrokes before immediate run are handled by that run
+                if(pendingCheck == null
+                    || pendingCheck.getDelay(TimeUnit.MILLISECONDS) > 0)
+                    checkNow();
+            }
+            else if(pendingCheck == null)
+                checkLater(PAUSED_DELAY);
+        }
 
-                switch (typingState)
-                {
-                    case OperationSetTypingNotifications.STATE_TYPING:
-                        newState = OperationSetTypingNotifications.STATE_PAUSED;
-                        delay = 2000;
-                        break;
-                    default:
-                        newState = OperationSetTypingNotifications.STATE_STOPPED;
-                        delay = 3000;
-                        break;
-                }
+        /**
+         * Sets stopped typing state without waiting for the deadline.
+         */
+        synchronized void stopTyping()
+        {
+            lastTyping = 0;
 
-                synchronized (this)
-                {
-                    try
-                    {
-                        // Waits the delay
-                        this.wait(delay);
-                    }
-                    catch (InterruptedException e)
-                    {
-                        throw new RuntimeException(e);
-                    }
-                }
-                if(cancel)
-                {
-                    setNewTypingState(
-                            OperationSetTypingNotifications.STATE_STOPPED);
-                    break;
-                }
-                else if(restart)
-                {
-                    if((System.currentTimeMillis()- lastTypingSent) > 5000)
-                    {
-                        // Refresh typing notification every 5 sec of typing
-                        newState = OperationSetTypingNotifications.STATE_TYPING;
-                    }
-                    else
-                    {
-                        continue;
-                    }
-                }
-                // Post new state
-                setNewTypingState(newState);
-            }
-            typingCtrlThread = null;
+            checkNow();
         }
 
         /**
-         * Restarts thread's control loop.
+         * Schedules immediate run, cancelling the pending one.
          */
-        void refreshTyping()
+        private void checkNow()
         {
-            synchronized (this)
-            {
-                restart = true;
-                this.notify();
-            }
+            if(pendingCheck != null)
+                pendingCheck.cancel(false);
+
+            pendingCheck = TypingNotificationHandler.getScheduler()
+                .schedule(this, 0, TimeUnit.MILLISECONDS);
         }
 
         /**
-         * Cancels and joins the thread.
+         * Schedules the run after given delay.
+         *
+         * @param delay the delay in milliseconds.
          */
-        void cancel()
+        private void checkLater(long delay)
+        {
+            pendingCheck = TypingNotificationHandler.getScheduler()
+                .schedule(this, delay, TimeUnit.MILLISECONDS);
+        }
+
+        @Override
+        public void run()
         {
+            long now = System.currentTimeMillis();
+            int newState;
             synchronized (this)
             {
-                cancel = true;
-                this.notify();
+                pendingCheck = null;
+
+                long idle = now - lastTyping;
+                if(idle < PAUSED_DELAY)
+                    newState = OperationSetTypingNotifications.STATE_TYPING;
+                else if(idle < STOPPED_DELAY)
+                    newState = OperationSetTypingNotifications.STATE_PAUSED;
+                else
+                    newState = OperationSetTypingNotifications.STATE_STOPPED;
             }
-            try
+
+            if(newState != typingState
+                || (newState == OperationSetTypingNotifications.STATE_TYPING
+                    && now - lastTypingSent >= TYPING_REFRESH_INTERVAL))
             {
-                this.join();
+                // Post new state
+                setNewTypingState(newState);
             }
-            catch (InterruptedException e)
+
+            synchronized (this)
             {
-                throw new RuntimeException(e);
+                // Keystrokes in the meantime may have scheduled the run
+                if(pendingCheck != null)
+                    return;
+
+                long idle = System.currentTimeMillis() - lastTyping;
+                if(idle < PAUSED_DELAY)
+                    checkLater(PAUSED_DELAY - idle);
+                else if(idle < STOPPED_DELAY)
+                    checkLater(STOPPED_DELAY - idle);
             }
         }
     }
@@ -25,9 +25,7 @@ import android.graphics.drawable.*;
 import android.os.*;
 import android.text.*;
 import android.text.ClipboardManager;
-import android.text.Html;
 import android.text.method.*;
-import android.text.util.*;
 import android.view.*;
 import android.widget.*;
 import android.widget.LinearLayout.*;
@@ -82,6 +80,12 @@ public class ChatFragment
      */
     private View header;
 
+    /**
+     * Displays the last message of the conversation until the history has
+     * been loaded.
+     */
+    private TextView summaryView;
+
     /**
      * Remembers first visible view to scroll the list after new portion of
      * history messages is added.
@@ -104,6 +108,35 @@ public class ChatFragment
      */
     private LoadHistoryTask loadHistoryTask;
 
+    /**
+     * Decides when and how much history should be prefetched while the user
+     * scrolls towards older messages.
+     */
+    private final HistoryPrefetchPolicy prefetchPolicy
+        = new HistoryPrefetchPolicy();
+
+    /**
+     * Prefetched history chunk waiting to be inserted at the top of the list.
+     * Insertion is deferred while the list is being flung, as changing
+     * selection stops the fling.
+     */
+    private List<MessageRenderer.RenderedMessage> pendingHistory;
+
+    /**
+     * Indicates that all history messages have been loaded.
+     */
+    private boolean historyExhausted = false;
+
+    /**
+     * Current scroll state of the chat list.
+     */
+    private int scrollState = AbsListView.OnScrollListener.SCROLL_STATE_IDLE;
+
+    /**
+     * The number of currently visible rows of the chat list.
+     */
+    private int visibleRowCount;
+
     /**
      * Indicates that this fragment is visible to the user.
      * This is important, because of PagerAdapter being used on phone layouts,
@@ -167,6 +200,52 @@ public class ChatFragment
      */
     private boolean historyLoaded = false;
 
+    /**
+     * Flag indicates that displayed messages have been released on memory
+     * pressure and have to be loaded again when the chat is displayed.
+     */
+    private boolean historyTrimmed = false;
+
+    /**
+     * The UID of the message to scroll to once it has been loaded or
+     * <tt>null</tt> if there is none.
+     */
+    private String scrollTargetUID;
+
+    /**
+     * The time of the message to scroll to.
+     */
+    private long scrollTargetTime;
+
+    /**
+     * Releases displayed messages on memory pressure when this fragment is
+     * not visible to the user.
+     */
+    private final MemoryCoordinator.Trimmable trimmable
+        = new MemoryCoordinator.Trimmable()
+    {
+        @Override
+        public long trimMemory(int level)
+        {
+            if(visibleToUser || chatListAdapter == null
+                || loadHistoryTask != null)
+            {
+                return 0;
+            }
+
+            long reclaimed = chatListAdapter.clear();
+            if(reclaimed > 0)
+            {
+                historyLoaded = false;
+                historyTrimmed = true;
+                pendingHistory = null;
+                historyExhausted = false;
+                scrollTargetUID = null;
+            }
+            return reclaimed;
+        }
+    };
+
     /**
      * {@inheritDoc}
      */
@@ -188,6 +267,8 @@ public class ChatFragment
         header.setVisibility(View.GONE);
         chatListView.addHeaderView(header);
 
+        summaryView = (TextView) content.findViewById(R.id.chatSummaryView);
+
         // Registers for chat message context menu
         registerForContextMenu(chatListView);
 
@@ -202,20 +283,14 @@ public class ChatFragment
             @Override
             public void onScrollStateChanged(AbsListView view, int scrollState)
             {
-                // Detects event when user scrolls to the top of the list
-                if(scrollState == 0)
+                ChatFragment.this.scrollState = scrollState;
+
+                if(scrollState == SCROLL_STATE_IDLE)
                 {
-                    if(chatListView.getChildAt(0).getTop()==0)
-                    {
-                        // Loads some more history
-                        // if there's no loading task in progress
-                        if(loadHistoryTask == null)
-                        {
-                            loadHistoryTask = new LoadHistoryTask(false);
-                            loadHistoryTask.execute();
-                        }
-                    }
+                    prefetchPolicy.onScrollIdle();
                 }
+
+                checkHistoryPrefetch();
             }
 
             @Override
@@ -228,6 +303,12 @@ public class ChatFragment
                 View firstVisible = view.getChildAt(0);
                 scrollTopOffset
                         = firstVisible != null ? firstVisible.getTop() : 0;
+                visibleRowCount = visibleItemCount;
+
+                prefetchPolicy.onScroll(
+                    firstVisibleItem, SystemClock.uptimeMillis());
+
+                checkHistoryPrefetch();
             }
         });
 
@@ -248,6 +329,9 @@ public class ChatFragment
 
         chatSession.addMessageListener(chatListAdapter);
 
+        JitsiApplication.getMemoryCoordinator()
+            .register(trimmable, MemoryCoordinator.PRIORITY_HIGH);
+
         return content;
     }
 
@@ -321,8 +405,20 @@ public class ChatFragment
          */
         if(!historyLoaded)
         {
+            if(historyTrimmed)
+            {
+                // Messages received in the meantime are cached by the session
+                chatListAdapter.clear();
+                historyTrimmed = false;
+            }
+
+            if(chatListAdapter.isEmpty())
+                showSummary();
+
             loadHistoryTask
-                = new LoadHistoryTask(chatListAdapter.isEmpty());
+                = new LoadHistoryTask(
+                    chatListAdapter.isEmpty(),
+                    HistoryPrefetchPolicy.MIN_CHUNK_SIZE);
 
             loadHistoryTask.execute();
 
@@ -428,6 +524,8 @@ public class ChatFragment
 
         super.onDetach();
 
+        JitsiApplication.getMemoryCoordinator().unregister(trimmable);
+
         if(chatSession != null)
         {
             chatSession.removeMessageListener(chatListAdapter);
@@ -440,6 +538,158 @@ public class ChatFragment
             loadHistoryTask.cancel(true);
             loadHistoryTask = null;
         }
+        pendingHistory = null;
+        scrollTargetUID = null;
+    }
+
+    /**
+     * Scrolls to the message identified by <tt>messageUID</tt>. The history is
+     * loaded in chunks until the message is found or messages older than
+     * <tt>timestamp</tt> are displayed. Must be called on the UI thread.
+     *
+     * @param messageUID the UID of the message to scroll to.
+     * @param timestamp the time of the message.
+     */
+    public void scrollToMessage(String messageUID, long timestamp)
+    {
+        if(chatListAdapter == null)
+            return;
+
+        scrollTargetUID = messageUID;
+        scrollTargetTime = timestamp;
+
+        checkScrollTarget();
+    }
+
+    /**
+     * Scrolls to the message set by {@link #scrollToMessage(String, long)}
+     * if it's displayed, otherwise starts loading the next history chunk.
+     * Must be called on the UI thread.
+     */
+    private void checkScrollTarget()
+    {
+        if(scrollTargetUID == null || chatListAdapter == null
+            || !historyLoaded || loadHistoryTask != null)
+        {
+            return;
+        }
+
+        if(pendingHistory != null)
+        {
+            insertHistory(pendingHistory);
+            pendingHistory = null;
+        }
+
+        int msgIdx = chatListAdapter.messages.indexOf(scrollTargetUID);
+        if(msgIdx != -1)
+        {
+            scrollTargetUID = null;
+            chatListView.setSelection(
+                msgIdx + chatListView.getHeaderViewsCount());
+            return;
+        }
+
+        Date oldest = chatListAdapter.isEmpty()
+            ? null : chatListAdapter.messages.get(0).msg.getDate();
+        if(historyExhausted
+            || (oldest != null && oldest.getTime() < scrollTargetTime))
+        {
+            // The message is not in the history anymore
+            scrollTargetUID = null;
+            return;
+        }
+
+        loadHistoryTask = new LoadHistoryTask(
+            false, prefetchPolicy.getChunkSize());
+        loadHistoryTask.execute();
+    }
+
+    /**
+     * Displays the last message of the conversation stored in
+     * <tt>ConversationSummaryStore</tt> while the history is being loaded.
+     */
+    private void showSummary()
+    {
+        ConversationSummaryStore summaries
+            = AndroidGUIActivator.getConversationSummaryStore();
+        ConversationSummaryStore.Summary summary = summaries != null
+            ? summaries.getSummary(chatSession.getChatId()) : null;
+
+        if(summary == null || summary.getSnippet().length() == 0)
+            return;
+
+        Date date = new Date(summary.getTimestamp());
+        summaryView.setText(
+            GuiUtils.formatDate(date) + " " + GuiUtils.formatTime(date)
+                + ": " + summary.getSnippet());
+        summaryView.setVisibility(View.VISIBLE);
+    }
+
+    /**
+     * Inserts prefetched history and starts loading the next chunk when
+     * the user gets close enough to the top of the list. Must be called on
+     * the UI thread.
+     */
+    private void checkHistoryPrefetch()
+    {
+        if(chatListAdapter == null || !historyLoaded)
+            return;
+
+        // Distance from the oldest displayed message
+        int distance
+            = scrollFirstVisible - chatListView.getHeaderViewsCount();
+
+        if(pendingHistory != null)
+        {
+            // Inserting history during a fling would stop it, so it's
+            // delayed unless the top of the list is about to be reached
+            if(scrollState != AbsListView.OnScrollListener.SCROLL_STATE_FLING
+                || distance <= visibleRowCount)
+            {
+                insertHistory(pendingHistory);
+                pendingHistory = null;
+            }
+            return;
+        }
+
+        if(loadHistoryTask != null)
+        {
+            // Indicates that the user is waiting for the history
+            if(distance < 0)
+                header.setVisibility(View.VISIBLE);
+            return;
+        }
+
+        if(historyExhausted || chatListAdapter.isEmpty()
+            || distance > prefetchPolicy.getPrefetchDistance())
+        {
+            return;
+        }
+
+        loadHistoryTask = new LoadHistoryTask(
+            false, prefetchPolicy.getChunkSize());
+        loadHistoryTask.execute();
+    }
+
+    /**
+     * Inserts given history messages at the top of the list without changing
+     * currently visible messages. Must be called on the UI thread.
+     *
+     * @param history the history messages to insert.
+     */
+    private void insertHistory(List<MessageRenderer.RenderedMessage> history)
+    {
+        int preSize = chatListAdapter.getCount();
+
+        chatListAdapter.prependMessages(history);
+
+        header.setVisibility(View.GONE);
+        chatListAdapter.notifyDataSetChanged();
+
+        int loaded = chatListAdapter.getCount() - preSize;
+        prefetchPolicy.onRowsInserted(loaded);
+        scrollFirstVisible += loaded;
+        chatListView.setSelectionFromTop(scrollFirstVisible, scrollTopOffset);
     }
 
     class ChatListAdapter
@@ -452,8 +702,29 @@ public class ChatFragment
          * The list of chat message displays. All access and modification of
          * this list must be done on the UI thread.
          */
-        private final List<MessageDisplay> messages
-                = new ArrayList<MessageDisplay>();
+        private final MessageRowList<MessageDisplay, Spanned> messages
+                = new MessageRowList<MessageDisplay, Spanned>()
+        {
+            @Override
+            protected MessageDisplay createRow(ChatMessage msg, Spanned body)
+            {
+                return new MessageDisplay(
+                    msg, new MessageRenderer.MessageBody(body));
+            }
+
+            @Override
+            protected ChatMessage getMessage(MessageDisplay row)
+            {
+                return row.msg;
+            }
+
+            @Override
+            protected void merge(MessageDisplay row, ChatMessage next,
+                                 Spanned nextBody)
+            {
+                row.merge(next, nextBody);
+            }
+        };
 
         /**
          * The type of the incoming message view.
@@ -485,14 +756,10 @@ public class ChatFragment
          */
         private long idGenerator=0;
 
-        /**
-         * HTML image getter.
-         */
-        private final Html.ImageGetter imageGetter = new HtmlImageGetter();
-
         /**
          * Passes the message to the <tt>ChatListAdapter</tt>
-         * for processing and appends it at the end.
+         * for processing and appends it at the end. The message is rendered
+         * on the render thread before it's added to the list.
          *
          * @param newMessage the message to add.
          * @param update if set to <tt>true</tt> will notify the UI about update
@@ -501,19 +768,28 @@ public class ChatFragment
         public void addMessage( final ChatMessage newMessage,
                                 final boolean update )
         {
-            runOnUiThread(new Runnable()
+            MessageRenderer.getHandler().post(new Runnable()
             {
                 @Override
                 public void run()
                 {
-                    if(chatListAdapter == null)
+                    final Spanned body = MessageRenderer.render(newMessage);
+
+                    runOnUiThread(new Runnable()
                     {
-                        logger.warn(
-                            "Add message handled, when there's no adapter" +
-                                "-possibly after onDetach()");
-                        return;
-                    }
-                    addMessageImpl(newMessage, update);
+                        @Override
+                        public void run()
+                        {
+                            if(chatListAdapter == null)
+                            {
+                                logger.warn(
+                                    "Add message handled, when there's no"
+                                        + " adapter-possibly after onDetach()");
+                                return;
+                            }
+                            addMessageImpl(newMessage, body, update);
+                        }
+                    });
                 }
             });
         }
@@ -522,95 +798,76 @@ public class ChatFragment
          * This method must be called on the UI thread(as well as any other that
          * access the {@link #messages} list).
          *
+         * @param newMessage the message to add.
+         * @param body rendered body of <tt>newMessage</tt>.
+         * @param update if set to <tt>true</tt> will notify the UI about update
+         *               immediately.
          */
-        private void addMessageImpl( ChatMessage newMessage, boolean update)
+        private void addMessageImpl( ChatMessage newMessage, Spanned body,
+                                     boolean update)
         {
-            int msgIdx;
-            int lastMsgIdx = getLastMessageIdx(newMessage);
-            ChatMessage lastMsg = lastMsgIdx != -1
-                        ? chatListAdapter.getMessage(lastMsgIdx)
-                        : null;
-
-            if(lastMsg == null || !lastMsg.isConsecutiveMessage(newMessage))
-            {
-                messages.add(new MessageDisplay(newMessage));
-                msgIdx = messages.size()-1;
-            }
-            else
-            {
-                // Merge the message and update the object in the list
-                messages.get(lastMsgIdx)
-                        .update(lastMsg.mergeMessage(newMessage));
-                msgIdx = lastMsgIdx;
-            }
+            int count = messages.size();
+            int msgIdx = messages.addMessage(newMessage, body);
+            boolean added = messages.size() > count;
 
             if(update)
             {
-                chatListAdapter.notifyDataSetChanged();
+                // Only the changed row is refreshed, unless the row has been
+                // added
+                if(added || !ViewUtil.refreshRow(chatListView, msgIdx))
+                    chatListAdapter.notifyDataSetChanged();
+
                 // List must be scrolled manually, when
-                // android:transcriptMode="normal" is set
-                chatListView.setSelection(
+                // android:transcriptMode="normal" is set. Corrected rows
+                // above the last one are updated in place.
+                if(msgIdx == messages.size() - 1)
+                {
+                    chatListView.setSelection(
                         msgIdx + chatListView.getHeaderViewsCount());
+                }
             }
         }
 
         /**
-         * Inserts given <tt>Collection</tt> of <tt>ChatMessage</tt> at
-         * the beginning of the list.
+         * Inserts given rendered messages at the beginning of the list.
          *
-         * @param collection the collection of <tt>ChatMessage</tt> to prepend.
+         * @param rendered merged and rendered messages to prepend, as returned
+         *                 by {@link MessageRenderer#renderHistory(Collection)}.
          */
-        public void prependMessages(Collection<ChatMessage> collection)
+        public void prependMessages(
+            List<MessageRenderer.RenderedMessage> rendered)
         {
-            List<MessageDisplay> newMsgs = new ArrayList<MessageDisplay>();
-            Iterator<ChatMessage> iterator = collection.iterator();
-            MessageDisplay previous = null;
-            while(iterator.hasNext())
+            List<MessageDisplay> newMsgs
+                = new ArrayList<MessageDisplay>(rendered.size());
+            for(MessageRenderer.RenderedMessage next : rendered)
             {
-                ChatMessage next = iterator.next();
-                if(previous == null || !previous.msg.isConsecutiveMessage(next))
-                {
-                    previous = new MessageDisplay(next);
-                    newMsgs.add(previous);
-                }
-                else
-                {
-                    // Merge the message and update the object in the list
-                    previous.update(previous.msg.mergeMessage(next));
-                }
+                newMsgs.add(new MessageDisplay(next.msg, next.body));
             }
-            messages.addAll(0, newMsgs);
+            messages.prepend(newMsgs);
         }
 
         /**
-         * Finds index of the message that will handle <tt>newMessage</tt>
-         * merging process(usually just the last one). If the
-         * <tt>newMessage</tt> is a correction message, then the last message
-         * of the same type will be returned.
+         * Removes all messages from this adapter. Must be called on the UI
+         * thread.
          *
-         * @param newMessage the next message to be merged into the adapter.
-         *
-         * @return index of the message that will handle <tt>newMessage</tt>
-         * merging process. If <tt>newMessage</tt> is a correction message,
-         * then the last message of the same type will be returned.
+         * @return estimated number of bytes released.
          */
-        private int getLastMessageIdx(ChatMessage newMessage)
+        long clear()
         {
-            // If it's not a correction message then jus return the last one
-            if(newMessage.getCorrectedMessageUID() == null)
-                return chatListAdapter.getCount()-1;
-
-            // Search for the same type
-            int msgType = newMessage.getMessageType();
-            for(int i=getCount()-1; i>= 0; i--)
+            long released = 0;
+            for(int i = 0; i < messages.size(); i++)
             {
-                ChatMessage candidate = getMessage(i);
-                if(candidate.getMessageType() == msgType)
+                String content = messages.get(i).msg.getMessage();
+                if(content != null)
                 {
-                    return i;
+                    // Raw text and it's Spanned version
+                    released += content.length() * 4;
                 }
             }
-            return -1;
+            messages.clear();
+            notifyDataSetChanged();
+
+            return released;
         }
 
         /**
@@ -1063,7 +1320,7 @@ public class ChatFragment
             /**
              * Message body cache
              */
-            private Spanned body;
+            private MessageRenderer.MessageBody body;
 
             /**
              * Creates new instance of <tt>MessageDisplay</tt> that will be used
@@ -1071,10 +1328,12 @@ public class ChatFragment
              *
              * @param msg the <tt>ChatMessage</tt> that will be displayed by
              *            this instance.
+             * @param body rendered body of <tt>msg</tt>.
              */
-            MessageDisplay(ChatMessage msg)
+            MessageDisplay(ChatMessage msg, MessageRenderer.MessageBody body)
             {
                 this.msg = msg;
+                this.body = body;
                 this.id = idGenerator++;
             }
 
@@ -1096,35 +1355,28 @@ public class ChatFragment
 
             /**
              * Returns <tt>Spanned</tt> message body processed for HTML tags.
+             * The body is rendered in the background before the message is
+             * added to the list.
+             *
              * @return <tt>Spanned</tt> message body.
              */
             public Spanned getBody()
             {
-                if(body == null)
-                {
-                    body = Html.fromHtml(msg.getMessage(), imageGetter, null);
-
-                    //TODO: adding links will destroy our links in system msgs
-                    final int msgType = msg.getMessageType();
-                    if(msgType == ChatMessage.OUTGOING_MESSAGE
-                        || msgType == ChatMessage.INCOMING_MESSAGE)
-                    {
-                        Linkify.addLinks((Spannable) body, Linkify.ALL);
-                    }
-                }
-                return body;
+                return body.getSpanned();
             }
 
             /**
-             * Updates this display instance with new message causing display
-             * contents to be invalidated.
-             * @param chatMessage new message content
+             * Merges consecutive message into displayed message. Only
+             * the body of consecutive message is added to the displayed body
+             * or replaces the body of the message it corrects.
+             *
+             * @param next the consecutive message.
+             * @param nextBody rendered body of <tt>next</tt>.
              */
-            public void update(ChatMessage chatMessage)
+            void merge(ChatMessage next, Spanned nextBody)
             {
                 dateStr = null;
-                body = null;
-                msg = chatMessage;
+                msg = body.merge(msg, next, nextBody);
             }
         }
     }
@@ -1144,23 +1396,36 @@ public class ChatFragment
 
     /**
      * Loads the history in an asynchronous thread and then adds the history
-     * messages to the user interface.
+     * messages to the user interface. History chunks loaded ahead of
+     * scrolling are inserted through {@link #checkHistoryPrefetch()}.
      */
     private class LoadHistoryTask
-        extends AsyncTask<Void, Void, Collection<ChatMessage>>
+        extends AsyncTask<Void, Void, List<MessageRenderer.RenderedMessage>>
     {
         /**
          * Indicates that history is being loaded for the first time.
          */
         private final boolean init;
+
+        /**
+         * The number of history messages to load.
+         */
+        private final int chunkSize;
+
+        /**
+         * The time it took to load the history in milliseconds.
+         */
+        private long loadTime;
+
         /**
-         * Remembers adapter size before new messages were added.
+         * The number of loaded history messages.
          */
-        private int preSize;
+        private int loadedCount;
 
-        LoadHistoryTask(boolean init)
+        LoadHistoryTask(boolean init, int chunkSize)
         {
             this.init = init;
+            this.chunkSize = chunkSize;
         }
 
         @Override
@@ -1168,31 +1433,63 @@ public class ChatFragment
         {
             super.onPreExecute();
 
-            header.setVisibility(View.VISIBLE);
-
-            this.preSize = chatListAdapter.getCount();
+            // Prefetch is not shown unless the user reaches the top
+            if(init || scrollFirstVisible < chatListView.getHeaderViewsCount())
+                header.setVisibility(View.VISIBLE);
         }
 
         @Override
-        protected Collection<ChatMessage> doInBackground(Void... params)
+        protected List<MessageRenderer.RenderedMessage> doInBackground(
+            Void... params)
         {
-            return chatSession.getHistory(init);
+            long start = SystemClock.uptimeMillis();
+
+            Collection<ChatMessage> history
+                = chatSession.getHistory(init, chunkSize);
+            loadedCount = history.size();
+
+            // The chunk is rendered here, so that only finished bodies are
+            // inserted into the list
+            List<MessageRenderer.RenderedMessage> rendered
+                = MessageRenderer.renderHistory(history);
+
+            loadTime = SystemClock.uptimeMillis() - start;
+
+            return rendered;
         }
 
         @Override
-        protected void onPostExecute(Collection<ChatMessage> result)
+        protected void onPostExecute(
+            List<MessageRenderer.RenderedMessage> result)
         {
             super.onPostExecute(result);
 
-            chatListAdapter.prependMessages(result);
+            loadHistoryTask = null;
 
-            header.setVisibility(View.GONE);
-            chatListAdapter.notifyDataSetChanged();
-            int loaded = chatListAdapter.getCount() - preSize;
-            int scrollTo = loaded + scrollFirstVisible;
-            chatListView.setSelectionFromTop(scrollTo, scrollTopOffset);
+            prefetchPolicy.onChunkLoaded(loadTime);
+            if (logger.isDebugEnabled())
+                logger.debug("Loaded and rendered " + loadedCount
+                                 + " history messages in " + loadTime + " ms, "
+                                 + prefetchPolicy);
 
-            loadHistoryTask = null;
+            if(init)
+            {
+                summaryView.setVisibility(View.GONE);
+                insertHistory(result);
+            }
+            else
+            {
+                if(loadedCount < chunkSize)
+                    historyExhausted = true;
+
+                if(!result.isEmpty())
+                    pendingHistory = result;
+                else
+                    header.setVisibility(View.GONE);
+            }
+
+            checkScrollTarget();
+            checkHistoryPrefetch();
         }
     }
 
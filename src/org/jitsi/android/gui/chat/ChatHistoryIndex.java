@@ -0,0 +1,1014 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.gui.chat;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.metahistory.*;
+import net.java.sip.communicator.service.msghistory.*;
+import net.java.sip.communicator.service.protocol.*;
+import net.java.sip.communicator.service.protocol.event.*;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.android.*;
+import org.jitsi.android.gui.*;
+import org.jitsi.android.gui.util.*;
+
+import org.osgi.framework.*;
+
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Full-text search index over the messages of all chats. Message text is
+ * split into case and diacritics folded tokens by
+ * {@link SearchTextUtil#tokenize(String)}. Tokens are stored in a sorted
+ * map of posting lists, so that both whole tokens and all tokens starting
+ * with a given prefix are found with a single lookup.
+ * <p>
+ * The index is kept in memory. It's updated with the messages sent and
+ * received through all protocol providers. Filling it with the messages from
+ * the history requires reading the whole history of every contact, so it's
+ * done on a background thread only when the index is searched for the first
+ * time. On memory pressure the index is cleared and it's filled again on next
+ * search. Messages which have been corrected are excluded from search results.
+ * <p>
+ * All methods are thread safe.
+ *
+ * @author Pawel Domas
+ */
+public class ChatHistoryIndex
+    implements ServiceListener,
+               MessageListener,
+               MemoryCoordinator.Trimmable
+{
+    /**
+     * The logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(ChatHistoryIndex.class);
+
+    /**
+     * The number of history messages loaded at once when filling the index.
+     */
+    private static final int BACKFILL_CHUNK_SIZE = 500;
+
+    /**
+     * The history filter used to load chat messages.
+     */
+    private static final String[] HISTORY_FILTER
+        = new String[]{ MessageHistoryService.class.getName() };
+
+    /**
+     * Matches HTML tags, which are not indexed.
+     */
+    private static final Pattern HTML_TAGS = Pattern.compile("<[^>]*>");
+
+    /**
+     * Sorted map of tokens to the messages that contain them.
+     */
+    private final TreeMap<String, Postings> tokenIndex
+        = new TreeMap<String, Postings>();
+
+    /**
+     * Message numbers by message UID.
+     */
+    private final Map<String, Integer> uidIndex
+        = new HashMap<String, Integer>();
+
+    /**
+     * The UIDs of corrected messages, including those not indexed yet.
+     */
+    private final Set<String> correctedUids = new HashSet<String>();
+
+    /**
+     * Corrected messages, which are excluded from search results.
+     */
+    private final BitSet correctedMessages = new BitSet();
+
+    /**
+     * Chat identifiers of indexed messages.
+     */
+    private final List<String> chatIds = new ArrayList<String>();
+
+    /**
+     * Chat numbers by chat identifier.
+     */
+    private final Map<String, Integer> chatNumbers
+        = new HashMap<String, Integer>();
+
+    /**
+     * UIDs of indexed messages by message number.
+     */
+    private String[] messageUids = new String[1024];
+
+    /**
+     * Timestamps of indexed messages by message number.
+     */
+    private long[] timestamps = new long[1024];
+
+    /**
+     * Chat numbers of indexed messages by message number.
+     */
+    private int[] messageChats = new int[1024];
+
+    /**
+     * The number of indexed messages.
+     */
+    private int messageCount;
+
+    /**
+     * The context used to track protocol providers, <tt>null</tt> if
+     * the index has not been started or has been stopped.
+     */
+    private BundleContext bundleContext;
+
+    /**
+     * The thread which fills the index from the history.
+     */
+    private Thread backfillThread;
+
+    /**
+     * Indicates that the history has been indexed.
+     */
+    private boolean backfillComplete;
+
+    /**
+     * Starts indexing the messages of all protocol providers. The history is
+     * indexed on first search.
+     *
+     * @param bundleContext the OSGi context.
+     */
+    public void start(BundleContext bundleContext)
+    {
+        synchronized (this)
+        {
+            this.bundleContext = bundleContext;
+        }
+
+        // Register first, so that no message is missed while backfilling
+        try
+        {
+            bundleContext.addServiceListener(
+                this,
+                "(objectclass=" + ProtocolProviderService.class.getName()
+                    + ")");
+        }
+        catch (InvalidSyntaxException e)
+        {
+            // The filter is constant
+            throw new RuntimeException(e);
+        }
+
+        ServiceReference<ProtocolProviderService>[] providers
+            = ServiceUtils.getServiceReferences(
+                    bundleContext, ProtocolProviderService.class);
+        for(ServiceReference<ProtocolProviderService> ref : providers)
+        {
+            handleProvider(bundleContext, ref, true);
+        }
+
+        JitsiApplication.getMemoryCoordinator()
+            .register(this, MemoryCoordinator.PRIORITY_HIGH);
+    }
+
+    /**
+     * Starts filling the index with the history on a background thread,
+     * unless it's running or has completed already, or the index has not
+     * been started.
+     */
+    private synchronized void startBackfill()
+    {
+        if(bundleContext == null
+            || backfillComplete
+            || backfillThread != null)
+            return;
+
+        Thread thread = new Thread("ChatHistoryIndexer")
+        {
+            @Override
+            public void run()
+            {
+                android.os.Process.setThreadPriority(
+                    android.os.Process.THREAD_PRIORITY_BACKGROUND);
+
+                backfill(this);
+            }
+        };
+        backfillThread = thread;
+        thread.start();
+    }
+
+    /**
+     * Starts filling the index with the history, if needed, and waits until
+     * it's done. Must not be called on the UI thread.
+     *
+     * @param timeout the maximal time to wait in milliseconds.
+     *
+     * @return <tt>true</tt> if the history has been indexed and search results
+     *         cover all messages.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    public synchronized boolean awaitBackfill(long timeout)
+        throws InterruptedException
+    {
+        startBackfill();
+
+        long deadline = System.currentTimeMillis() + timeout;
+        while(!backfillComplete && backfillThread != null)
+        {
+            long left = deadline - System.currentTimeMillis();
+            if(left <= 0)
+                break;
+
+            wait(left);
+        }
+        return backfillComplete;
+    }
+
+    /**
+     * Clears the index, which will be filled with the history again on next
+     * search. Messages are indexed again from the history, as it's the only
+     * way to get back those sent and received since the index was started.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long trimMemory(int level)
+    {
+        if(messageCount == 0)
+            return 0;
+
+        long reclaimed = (long) messageUids.length * (4 + 8 + 4);
+        for(int i = 0; i < messageCount; i++)
+        {
+            reclaimed += messageUids[i].length() * 2;
+        }
+        for(Map.Entry<String, Postings> e : tokenIndex.entrySet())
+        {
+            reclaimed += e.getKey().length() * 2
+                + e.getValue().messages.length * 4;
+        }
+
+        // Stops the backfill, if it's running
+        backfillThread = null;
+        clear();
+        notifyAll();
+
+        return reclaimed;
+    }
+
+    /**
+     * Stops indexing the messages and clears the index.
+     */
+    public void stop()
+    {
+        BundleContext context;
+        synchronized (this)
+        {
+            context = bundleContext;
+            bundleContext = null;
+            backfillThread = null;
+
+            clear();
+            notifyAll();
+        }
+
+        if(context == null)
+            return;
+
+        JitsiApplication.getMemoryCoordinator().unregister(this);
+
+        context.removeServiceListener(this);
+
+        ServiceReference<ProtocolProviderService>[] providers
+            = ServiceUtils.getServiceReferences(
+                    context, ProtocolProviderService.class);
+        for(ServiceReference<ProtocolProviderService> ref : providers)
+        {
+            handleProvider(context, ref, false);
+        }
+    }
+
+    /**
+     * Starts or stops indexing the messages of the protocol provider
+     * referenced by <tt>ref</tt>. The service is released once the listeners
+     * have been added or removed.
+     *
+     * @param context the OSGi context.
+     * @param ref the reference to the protocol provider.
+     * @param add <tt>true</tt> to start indexing the messages of the provider,
+     *        <tt>false</tt> to stop.
+     */
+    private void handleProvider(BundleContext context,
+                                ServiceReference<?> ref,
+                                boolean add)
+    {
+        Object service = context.getService(ref);
+        if(service == null)
+            return;
+
+        try
+        {
+            if(!(service instanceof ProtocolProviderService))
+                return;
+
+            if(add)
+                addProvider((ProtocolProviderService) service);
+            else
+                removeProvider((ProtocolProviderService) service);
+        }
+        finally
+        {
+            context.ungetService(ref);
+        }
+    }
+
+    /**
+     * Returns <tt>true</tt> if the history has been indexed and search results
+     * cover all messages.
+     *
+     * @return <tt>true</tt> if the history has been indexed.
+     */
+    public synchronized boolean isBackfillComplete()
+    {
+        return backfillComplete;
+    }
+
+    /**
+     * Returns the number of indexed messages.
+     *
+     * @return the number of indexed messages.
+     */
+    public synchronized int getMessageCount()
+    {
+        return messageCount;
+    }
+
+    /**
+     * Adds message to the index. Messages without UID and messages which are
+     * already indexed are ignored.
+     *
+     * @param messageUID the UID of the message.
+     * @param chatId the identifier of the chat, which is the UID of
+     *               the <tt>MetaContact</tt> that the message was exchanged
+     *               with.
+     * @param timestamp the time of the message.
+     * @param content the text of the message.
+     * @param correctedMessageUID the UID of the message corrected by this one
+     *                            or <tt>null</tt>.
+     */
+    public void addMessage(String messageUID, String chatId, long timestamp,
+                           String content, String correctedMessageUID)
+    {
+        if(messageUID == null)
+            return;
+
+        // Tokenized outside of the lock
+        String[] tokens = SearchTextUtil.tokenize(content);
+
+        synchronized (this)
+        {
+            if(uidIndex.containsKey(messageUID))
+                return;
+
+            int msgNo = messageCount++;
+            ensureCapacity(messageCount);
+
+            messageUids[msgNo] = messageUID;
+            timestamps[msgNo] = timestamp;
+            messageChats[msgNo] = getChatNumber(chatId);
+            uidIndex.put(messageUID, msgNo);
+
+            for(String token : tokens)
+            {
+                Postings postings = tokenIndex.get(token);
+                if(postings == null)
+                {
+                    postings = new Postings();
+                    tokenIndex.put(token, postings);
+                }
+                postings.add(msgNo);
+            }
+
+            // The correction may have been indexed first
+            if(correctedUids.contains(messageUID))
+                correctedMessages.set(msgNo);
+
+            if(correctedMessageUID != null)
+            {
+                correctedUids.add(correctedMessageUID);
+
+                Integer corrected = uidIndex.get(correctedMessageUID);
+                if(corrected != null)
+                    correctedMessages.set(corrected);
+            }
+        }
+    }
+
+    /**
+     * Finds the messages matching given <tt>query</tt>. A message is matching
+     * if it contains each of the query tokens or, if <tt>prefix</tt> is set,
+     * a token starting with each of the query tokens.
+     *
+     * @param query the query string.
+     * @param prefix <tt>true</tt> to match query tokens as prefixes.
+     * @param maxResults the maximal number of returned hits.
+     *
+     * @return matching messages, the most recent first.
+     */
+    public List<Hit> search(String query, boolean prefix, int maxResults)
+    {
+        return search(query, prefix, null, maxResults);
+    }
+
+    /**
+     * Finds the messages matching given <tt>query</tt> in the chat identified
+     * by <tt>chatId</tt>. First search starts filling the index with
+     * the history, until then results are incomplete.
+     *
+     * @param query the query string.
+     * @param prefix <tt>true</tt> to match query tokens as prefixes.
+     * @param chatId the identifier of the chat to search or <tt>null</tt> to
+     *        search all chats.
+     * @param maxResults the maximal number of returned hits.
+     *
+     * @return matching messages, the most recent first.
+     * @see #search(String, boolean, int)
+     */
+    public synchronized List<Hit> search(String query, boolean prefix,
+                                         String chatId, int maxResults)
+    {
+        startBackfill();
+
+        int chatNo = -1;
+        if(chatId != null)
+        {
+            Integer no = chatNumbers.get(chatId);
+            if(no == null)
+                return Collections.emptyList();
+            chatNo = no;
+        }
+
+        String[] queryTokens = SearchTextUtil.tokenize(query);
+        if(queryTokens.length == 0 || maxResults <= 0)
+            return Collections.emptyList();
+
+        // Longer tokens are likely to be more selective
+        Arrays.sort(queryTokens, new Comparator<String>()
+        {
+            @Override
+            public int compare(String t1, String t2)
+            {
+                return t2.length() - t1.length();
+            }
+        });
+
+        BitSet result = null;
+        for(String queryToken : queryTokens)
+        {
+            BitSet matching = new BitSet(messageCount);
+            if(prefix)
+            {
+                for(Postings postings : tokenIndex.subMap(
+                        queryToken, queryToken + Character.MAX_VALUE).values())
+                {
+                    postings.addTo(matching);
+                }
+            }
+            else
+            {
+                Postings postings = tokenIndex.get(queryToken);
+                if(postings != null)
+                    postings.addTo(matching);
+            }
+
+            if(result == null)
+                result = matching;
+            else
+                result.and(matching);
+
+            if(result.isEmpty())
+                return Collections.emptyList();
+        }
+        result.andNot(correctedMessages);
+
+        // Keep the most recent hits
+        PriorityQueue<Integer> recent = new PriorityQueue<Integer>(
+            Math.min(maxResults, 1024),
+            new Comparator<Integer>()
+            {
+                @Override
+                public int compare(Integer m1, Integer m2)
+                {
+                    long t1 = timestamps[m1];
+                    long t2 = timestamps[m2];
+                    return t1 < t2 ? -1 : (t1 == t2 ? 0 : 1);
+                }
+            });
+        for(int msgNo = result.nextSetBit(0); msgNo >= 0;
+            msgNo = result.nextSetBit(msgNo + 1))
+        {
+            if(chatNo != -1 && messageChats[msgNo] != chatNo)
+                continue;
+
+            if(recent.size() < maxResults)
+            {
+                recent.add(msgNo);
+            }
+            else if(timestamps[recent.peek()] < timestamps[msgNo])
+            {
+                recent.poll();
+                recent.add(msgNo);
+            }
+        }
+
+        Hit[] hits = new Hit[recent.size()];
+        for(int i = hits.length - 1; i >= 0; i--)
+        {
+            int msgNo = recent.poll();
+            hits[i] = new Hit(messageUids[msgNo],
+                              chatIds.get(messageChats[msgNo]),
+                              timestamps[msgNo]);
+        }
+        return Arrays.asList(hits);
+    }
+
+    /**
+     * Removes all messages from the index.
+     */
+    public synchronized void clear()
+    {
+        tokenIndex.clear();
+        uidIndex.clear();
+        correctedUids.clear();
+        correctedMessages.clear();
+        chatIds.clear();
+        chatNumbers.clear();
+        messageUids = new String[1024];
+        timestamps = new long[1024];
+        messageChats = new int[1024];
+        messageCount = 0;
+        backfillComplete = false;
+    }
+
+    /**
+     * Makes room for given number of messages.
+     *
+     * @param capacity the number of messages.
+     */
+    private void ensureCapacity(int capacity)
+    {
+        if(capacity <= messageUids.length)
+            return;
+
+        int newCapacity = Math.max(capacity, messageUids.length * 2);
+        messageUids = Arrays.copyOf(messageUids, newCapacity);
+        timestamps = Arrays.copyOf(timestamps, newCapacity);
+        messageChats = Arrays.copyOf(messageChats, newCapacity);
+    }
+
+    /**
+     * Returns the number of given chat, assigning new one if necessary.
+     *
+     * @param chatId the chat identifier.
+     *
+     * @return the number of given chat.
+     */
+    private int getChatNumber(String chatId)
+    {
+        Integer chatNo = chatNumbers.get(chatId);
+        if(chatNo == null)
+        {
+            chatNo = chatIds.size();
+            chatIds.add(chatId);
+            chatNumbers.put(chatId, chatNo);
+        }
+        return chatNo;
+    }
+
+    /**
+     * Indexes the history of all meta contacts, from the most recent
+     * messages, until all messages are indexed or the index is stopped.
+     *
+     * @param thread the backfill thread.
+     */
+    private void backfill(Thread thread)
+    {
+        MetaHistoryService history
+            = AndroidGUIActivator.getMetaHistoryService();
+        MetaContactListService contactList
+            = AndroidGUIActivator.getContactListService();
+        if(history == null || contactList == null)
+        {
+            logger.warn("History is not available, messages will be indexed"
+                            + " as they are sent and received");
+            synchronized (this)
+            {
+                if(backfillThread == thread)
+                    backfillThread = null;
+                notifyAll();
+            }
+            return;
+        }
+
+        long start = System.currentTimeMillis();
+
+        List<MetaContact> contacts = new ArrayList<MetaContact>();
+        collectContacts(contactList.getRoot(), contacts);
+
+        for(MetaContact contact : contacts)
+        {
+            if(!isBackfilling(thread))
+                return;
+
+            try
+            {
+                backfillContact(thread, history, contact);
+            }
+            catch (RuntimeException e)
+            {
+                logger.error(
+                    "Failed to index the history of " + contact, e);
+            }
+        }
+
+        synchronized (this)
+        {
+            if(backfillThread != thread)
+                return;
+
+            backfillThread = null;
+            backfillComplete = true;
+            notifyAll();
+        }
+
+        if(logger.isDebugEnabled())
+            logger.debug("Indexed " + getMessageCount() + " messages of "
+                + contacts.size() + " contacts in "
+                + (System.currentTimeMillis() - start) + " ms");
+    }
+
+    /**
+     * Indexes the history of given <tt>contact</tt> in chunks, from the most
+     * recent messages.
+     *
+     * @param thread the backfill thread.
+     * @param history the history service.
+     * @param contact the contact to index.
+     */
+    private void backfillContact(Thread thread, MetaHistoryService history,
+                                 MetaContact contact)
+    {
+        Collection<Object> chunk
+            = history.findLast(HISTORY_FILTER, contact, BACKFILL_CHUNK_SIZE);
+
+        while(!chunk.isEmpty() && isBackfilling(thread))
+        {
+            int indexedBefore = getMessageCount();
+            Date oldest = null;
+
+            for(Object o : chunk)
+            {
+                Date date = addHistoryEvent(contact, o);
+                if(date != null && (oldest == null || date.before(oldest)))
+                    oldest = date;
+            }
+
+            // Stops also when the whole chunk has been indexed already, which
+            // happens only if more than a chunk of messages share the oldest
+            // time. The rest of those messages is not indexed.
+            if(oldest == null
+                || chunk.size() < BACKFILL_CHUNK_SIZE
+                || getMessageCount() == indexedBefore)
+                break;
+
+            // The bound is exclusive, so the next chunk starts one millisecond
+            // after the oldest message in order to include the messages with
+            // the same time. The messages indexed already are skipped by UID.
+            chunk = history.findLastMessagesBefore(
+                HISTORY_FILTER, contact, new Date(oldest.getTime() + 1),
+                BACKFILL_CHUNK_SIZE);
+        }
+    }
+
+    /**
+     * Adds the message of given history event to the index.
+     *
+     * @param contact the contact that the message was exchanged with.
+     * @param event the history event.
+     *
+     * @return the time of the message or <tt>null</tt> if the event is not
+     *         a message event.
+     */
+    private Date addHistoryEvent(MetaContact contact, Object event)
+    {
+        if(event instanceof MessageDeliveredEvent)
+        {
+            MessageDeliveredEvent evt = (MessageDeliveredEvent) event;
+
+            addMessage(contact, evt.getSourceMessage(), evt.getTimestamp(),
+                       evt.getCorrectedMessageUID());
+            return evt.getTimestamp();
+        }
+        else if(event instanceof MessageReceivedEvent)
+        {
+            MessageReceivedEvent evt = (MessageReceivedEvent) event;
+
+            addMessage(contact, evt.getSourceMessage(), evt.getTimestamp(),
+                       evt.getCorrectedMessageUID());
+            return evt.getTimestamp();
+        }
+        return null;
+    }
+
+    /**
+     * Adds given protocol message to the index.
+     *
+     * @param contact the contact that the message was exchanged with.
+     * @param message the message.
+     * @param timestamp the time of the message.
+     * @param correctedMessageUID the UID of the message corrected by this one
+     *                            or <tt>null</tt>.
+     */
+    private void addMessage(MetaContact contact, Message message,
+                            Date timestamp, String correctedMessageUID)
+    {
+        String content = message.getContent();
+        if(content == null)
+            return;
+
+        if(OperationSetBasicInstantMessaging.HTML_MIME_TYPE.equals(
+                message.getContentType()))
+            content = HTML_TAGS.matcher(content).replaceAll(" ");
+
+        addMessage(message.getMessageUID(), contact.getMetaUID(),
+                   timestamp != null ? timestamp.getTime() : 0, content,
+                   correctedMessageUID);
+    }
+
+    /**
+     * Adds the message exchanged with given protocol contact to the index.
+     *
+     * @param contact the protocol contact.
+     * @param message the message.
+     * @param timestamp the time of the message.
+     * @param correctedMessageUID the UID of the message corrected by this one
+     *                            or <tt>null</tt>.
+     */
+    private void addMessage(Contact contact, Message message, Date timestamp,
+                            String correctedMessageUID)
+    {
+        MetaContactListService contactList
+            = AndroidGUIActivator.getContactListService();
+        if(contactList == null)
+            return;
+
+        MetaContact metaContact = contactList.findMetaContactByContact(contact);
+        if(metaContact != null)
+            addMessage(metaContact, message, timestamp, correctedMessageUID);
+    }
+
+    /**
+     * Checks if given thread should continue filling the index.
+     *
+     * @param thread the backfill thread.
+     *
+     * @return <tt>true</tt> if given thread should continue.
+     */
+    private synchronized boolean isBackfilling(Thread thread)
+    {
+        return backfillThread == thread;
+    }
+
+    /**
+     * Collects all contacts contained in given <tt>group</tt> and it's
+     * subgroups.
+     *
+     * @param group the <tt>MetaContactGroup</tt>.
+     * @param contacts the list to which contacts are added.
+     */
+    private static void collectContacts(MetaContactGroup group,
+                                        List<MetaContact> contacts)
+    {
+        Iterator<MetaContact> children = group.getChildContacts();
+        while(children.hasNext())
+        {
+            contacts.add(children.next());
+        }
+
+        Iterator<MetaContactGroup> subGroups = group.getSubgroups();
+        while(subGroups.hasNext())
+        {
+            collectContacts(subGroups.next(), contacts);
+        }
+    }
+
+    /**
+     * Starts listening for the messages of given provider.
+     *
+     * @param provider the protocol provider.
+     */
+    private void addProvider(ProtocolProviderService provider)
+    {
+        OperationSetBasicInstantMessaging imOpSet
+            = provider.getOperationSet(OperationSetBasicInstantMessaging.class);
+        if(imOpSet != null)
+            imOpSet.addMessageListener(this);
+    }
+
+    /**
+     * Stops listening for the messages of given provider.
+     *
+     * @param provider the protocol provider.
+     */
+    private void removeProvider(ProtocolProviderService provider)
+    {
+        OperationSetBasicInstantMessaging imOpSet
+            = provider.getOperationSet(OperationSetBasicInstantMessaging.class);
+        if(imOpSet != null)
+            imOpSet.removeMessageListener(this);
+    }
+
+    /**
+     * Tracks protocol providers being registered and unregistered.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void serviceChanged(ServiceEvent event)
+    {
+        BundleContext context;
+        synchronized (this)
+        {
+            context = bundleContext;
+        }
+        if(context == null)
+            return;
+
+        // The listener is registered only for protocol providers
+        switch (event.getType())
+        {
+            case ServiceEvent.REGISTERED:
+                handleProvider(context, event.getServiceReference(), true);
+                break;
+            case ServiceEvent.UNREGISTERING:
+                handleProvider(context, event.getServiceReference(), false);
+                break;
+        }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageReceived(MessageReceivedEvent evt)
+    {
+        addMessage(evt.getSourceContact(), evt.getSourceMessage(),
+                   evt.getTimestamp(), evt.getCorrectedMessageUID());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageDelivered(MessageDeliveredEvent evt)
+    {
+        addMessage(evt.getDestinationContact(), evt.getSourceMessage(),
+                   evt.getTimestamp(), evt.getCorrectedMessageUID());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void messageDeliveryFailed(MessageDeliveryFailedEvent evt) { }
+
+    /**
+     * The message matching the query.
+     */
+    public static class Hit
+    {
+        /**
+         * The UID of the message.
+         */
+        private final String messageUID;
+
+        /**
+         * The identifier of the chat.
+         */
+        private final String chatId;
+
+        /**
+         * The time of the message.
+         */
+        private final long timestamp;
+
+        /**
+         * Creates new instance of <tt>Hit</tt>.
+         *
+         * @param messageUID the UID of the message.
+         * @param chatId the identifier of the chat.
+         * @param timestamp the time of the message.
+         */
+        Hit(String messageUID, String chatId, long timestamp)
+        {
+            this.messageUID = messageUID;
+            this.chatId = chatId;
+            this.timestamp = timestamp;
+        }
+
+        /**
+         * Returns the UID of the message.
+         *
+         * @return the UID of the message.
+         */
+        public String getMessageUID()
+        {
+            return messageUID;
+        }
+
+        /**
+         * Returns the identifier of the chat, which is the UID of
+         * the <tt>MetaContact</tt> that the message was exchanged with.
+         *
+         * @return the identifier of the chat.
+         */
+        public String getChatId()
+        {
+            return chatId;
+        }
+
+        /**
+         * Returns the time of the message.
+         *
+         * @return the time of the message in milliseconds.
+         */
+        public long getTimestamp()
+        {
+            return timestamp;
+        }
+    }
+
+    /**
+     * Growable list of the numbers of messages containing a token, in
+     * the order in which they were indexed. Each message is added once.
+     */
+    private static class Postings
+    {
+        /**
+         * Message numbers.
+         */
+        private int[] messages = new int[2];
+
+        /**
+         * The number of messages.
+         */
+        private int size;
+
+        /**
+         * Adds message to the list.
+         *
+         * @param msgNo the message number.
+         */
+        void add(int msgNo)
+        {
+            // Token repeated in the same message
+            if(size > 0 && messages[size - 1] == msgNo)
+                return;
+
+            if(size == messages.length)
+                messages = Arrays.copyOf(messages, size * 2);
+
+            messages[size++] = msgNo;
+        }
+
+        /**
+         * Sets the bits of all messages in given set.
+         *
+         * @param set the set of messages.
+         */
+        void addTo(BitSet set)
+        {
+            for(int i = 0; i < size; i++)
+            {
+                set.set(messages[i]);
+            }
+        }
+    }
+}
@@ -0,0 +1,226 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.gui.chat;
+
+import android.app.*;
+import android.content.*;
+import android.os.*;
+import android.widget.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.*;
+import org.jitsi.android.gui.*;
+
+import java.util.*;
+
+/**
+ * Helper class that produces "search history dialog". It asks the user for
+ * the words to search for in the history of the chat, lists the times of
+ * matching messages and scrolls the chat to the message selected by the user.
+ *
+ * @author Pawel Domas
+ */
+public class ChatHistorySearchDialog
+{
+    /**
+     * The maximal number of listed messages.
+     */
+    private static final int MAX_RESULTS = 100;
+
+    /**
+     * How long to wait for the history to be indexed on first search in
+     * milliseconds. Results found until then are listed, if it takes longer.
+     */
+    private static final long BACKFILL_TIMEOUT = 10000;
+
+    /**
+     * Creates the dialog which searches the history of the chat identified by
+     * <tt>chatId</tt>.
+     *
+     * @param ctx the Android context.
+     * @param chatId the identifier of the chat.
+     * @param chatFragment the fragment displaying the chat, which is scrolled
+     *        to the selected message.
+     *
+     * @return the search history dialog.
+     */
+    public static AlertDialog create(final Context ctx,
+                                     final String chatId,
+                                     final ChatFragment chatFragment)
+    {
+        final EditText queryEdit = new EditText(ctx);
+        queryEdit.setSingleLine(true);
+
+        AlertDialog.Builder alert = new AlertDialog.Builder(ctx);
+        return alert
+                .setTitle(R.string.service_gui_SEARCH_HISTORY)
+                .setView(queryEdit)
+                .setPositiveButton(R.string.service_gui_SEARCH,
+                                   new DialogInterface.OnClickListener()
+                   {
+                       @Override
+                       public void onClick(DialogInterface dialog, int which)
+                       {
+                           dialog.dismiss();
+                           new SearchTask(ctx,
+                                          queryEdit.getText().toString(),
+                                          chatId,
+                                          chatFragment).execute();
+                       }
+                   })
+                .setNegativeButton(R.string.service_gui_CANCEL,
+                                   new DialogInterface.OnClickListener()
+                   {
+                       @Override
+                       public void onClick(DialogInterface dialog, int which)
+                       {
+                           dialog.dismiss();
+                       }
+                   }).create();
+    }
+
+    /**
+     * Lists the times of matching messages.
+     *
+     * @param ctx the Android context.
+     * @param hits the matching messages.
+     * @param chatFragment the fragment displaying the chat.
+     */
+    private static void showResults(Context ctx,
+                                    final List<ChatHistoryIndex.Hit> hits,
+                                    final ChatFragment chatFragment)
+    {
+        AlertDialog.Builder alert = new AlertDialog.Builder(ctx);
+        alert.setTitle(R.string.service_gui_SEARCH_HISTORY);
+
+        if(hits.isEmpty())
+        {
+            alert.setMessage(R.string.service_gui_NO_MESSAGES_FOUND);
+        }
+        else
+        {
+            String[] times = new String[hits.size()];
+            for(int i = 0; i < times.length; i++)
+            {
+                Date date = new Date(hits.get(i).getTimestamp());
+                times[i] = GuiUtils.formatDate(date)
+                    + " " + GuiUtils.formatTime(date);
+            }
+
+            alert.setItems(times, new DialogInterface.OnClickListener()
+            {
+                @Override
+                public void onClick(DialogInterface dialog, int which)
+                {
+                    ChatHistoryIndex.Hit hit = hits.get(which);
+
+                    if(chatFragment != null)
+                    {
+                        chatFragment.scrollToMessage(
+                            hit.getMessageUID(), hit.getTimestamp());
+                    }
+                }
+            });
+        }
+
+        alert.setNegativeButton(R.string.service_gui_CLOSE,
+                                new DialogInterface.OnClickListener()
+        {
+            @Override
+            public void onClick(DialogInterface dialog, int which)
+            {
+                dialog.dismiss();
+            }
+        }).create().show();
+    }
+
+    /**
+     * Searches the history in the background, as the index may have to be
+     * filled with the history first and scan many posting lists, and lists
+     * the results on the UI thread.
+     */
+    private static class SearchTask
+        extends AsyncTask<Void, Void, List<ChatHistoryIndex.Hit>>
+    {
+        /**
+         * The Android context.
+         */
+        private final Context ctx;
+
+        /**
+         * The words to search for.
+         */
+        private final String query;
+
+        /**
+         * The identifier of the chat.
+         */
+        private final String chatId;
+
+        /**
+         * The fragment displaying the chat.
+         */
+        private final ChatFragment chatFragment;
+
+        /**
+         * Creates new instance of <tt>SearchTask</tt>.
+         *
+         * @param ctx the Android context.
+         * @param query the words to search for.
+         * @param chatId the identifier of the chat.
+         * @param chatFragment the fragment displaying the chat.
+         */
+        SearchTask(Context ctx, String query, String chatId,
+                   ChatFragment chatFragment)
+        {
+            this.ctx = ctx;
+            this.query = query;
+            this.chatId = chatId;
+            this.chatFragment = chatFragment;
+        }
+
+        @Override
+        protected List<ChatHistoryIndex.Hit> doInBackground(Void... params)
+        {
+            ChatHistoryIndex index = AndroidGUIActivator.getChatHistoryIndex();
+            if(index == null)
+                return Collections.<ChatHistoryIndex.Hit>emptyList();
+
+            try
+            {
+                index.awaitBackfill(BACKFILL_TIMEOUT);
+            }
+            catch (InterruptedException e)
+            {
+                Thread.currentThread().interrupt();
+            }
+            return index.search(query, true, chatId, MAX_RESULTS);
+        }
+
+        @Override
+        protected void onPostExecute(List<ChatHistoryIndex.Hit> hits)
+        {
+            // The chat may have been closed in the meantime
+            if(ctx instanceof Activity && ((Activity) ctx).isFinishing())
+                return;
+
+            showResults(ctx, hits, chatFragment);
+        }
+    }
+}
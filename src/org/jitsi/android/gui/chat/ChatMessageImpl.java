@@ -18,20 +18,16 @@
 package org.jitsi.android.gui.chat;
 
 import java.util.*;
-import java.util.regex.*;
 
 import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.service.protocol.event.*;
-import net.java.sip.communicator.service.replacement.*;
-import net.java.sip.communicator.service.replacement.smilies.*;
 import net.java.sip.communicator.util.*;
 
 import org.jitsi.*;
 import org.jitsi.android.*;
 import org.jitsi.android.gui.*;
 import org.jitsi.android.gui.util.*;
-import org.jitsi.service.configuration.*;
 
 /**
  * The <tt>ChatMessageImpl</tt> class encapsulates message information in order
@@ -283,69 +279,10 @@ public class ChatMessageImpl
      */
     private String processReplacements(String content)
     {
-        ConfigurationService cfg
-                = AndroidGUIActivator.getConfigurationService();
+        SmileyReplacer smileyReplacer = AndroidGUIActivator.getSmileyReplacer();
 
-        if(!cfg.getBoolean(
-                ReplacementProperty.getPropertyName("SMILEY"), true))
-            return content;
-
-        //boolean isEnabled
-        //= cfg.getBoolean(ReplacementProperty.REPLACEMENT_ENABLE, true);
-
-        for (ReplacementService source
-                : AndroidGUIActivator.getReplacementSources())
-        {
-            boolean isSmiley = source instanceof SmiliesReplacementService;
-
-            if(!isSmiley)
-                continue;
-
-            String sourcePattern = source.getPattern();
-            Pattern p = Pattern.compile(
-                    sourcePattern,
-                    Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
-            Matcher m = p.matcher(content);
-
-            StringBuilder msgBuff = new StringBuilder();
-            int startPos = 0;
-
-            while (m.find())
-            {
-                msgBuff.append(content.substring(startPos, m.start()));
-                startPos = m.end();
-
-                String group = m.group();
-                String temp = source.getReplacement(group);
-                String group0 = m.group(0);
-
-                if(!temp.equals(group0))
-                {
-                    msgBuff.append("<IMG SRC=\"");
-                    msgBuff.append(temp);
-                    msgBuff.append("\" BORDER=\"0\" ALT=\"");
-                    msgBuff.append(group0);
-                    msgBuff.append("\"></IMG>");
-                }
-                else
-                {
-                    msgBuff.append(group);
-                }
-            }
-
-            msgBuff.append(content.substring(startPos));
-
-            /*
-             * replace the content variable with the current replaced
-             * message before next iteration
-             */
-            String msgBuffString = msgBuff.toString();
-
-            if (!msgBuffString.equals(content))
-                content = msgBuffString;
-        }
-
-        return content;
+        return smileyReplacer != null
+            ? smileyReplacer.replace(content) : content;
     }
 
     /**
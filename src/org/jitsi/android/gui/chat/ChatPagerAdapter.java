@@ -75,6 +75,17 @@ public class ChatPagerAdapter
         ChatSessionManager.removeChatListener(this);
     }
 
+    /**
+     * Returns currently displayed <tt>ChatFragment</tt>.
+     *
+     * @return currently displayed <tt>ChatFragment</tt> or <tt>null</tt> if
+     *         there isn't any.
+     */
+    public ChatFragment getCurrentChatFragment()
+    {
+        return primaryItem;
+    }
+
     /**
      * Returns chat id corresponding to the given position.
      *
@@ -26,11 +26,14 @@ import net.java.sip.communicator.service.msghistory.*;
 import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.service.protocol.event.*;
 
+import org.jitsi.android.*;
 import org.jitsi.android.gui.*;
+import org.jitsi.android.gui.util.*;
 
 import org.jitsi.android.util.java.awt.event.*;
 import org.jitsi.android.util.javax.swing.event.*;
 import org.jitsi.android.util.javax.swing.text.*;
+import org.jitsi.service.configuration.*;
 import org.jitsi.service.resources.*;
 import org.jitsi.util.*;
 
@@ -42,7 +45,9 @@ import java.util.*;
  * @author Pawel Domas
  */
 public class ChatSession
-    implements Chat, MessageListener
+    implements Chat,
+               MessageListener,
+               MemoryCoordinator.Trimmable
 {
     /**
      * The logger
@@ -53,7 +58,20 @@ public class ChatSession
      * Number of history messages to be returned from loadHistory call.
      * Limits the amount of messages being loaded at one time.
      */
-    private static final int HISTORY_CHUNK_SIZE = 30;
+    static final int HISTORY_CHUNK_SIZE = 30;
+
+    /**
+     * The name of configuration property which limits the number of messages
+     * cached by each chat session.
+     */
+    public static final String MAX_CACHED_MESSAGES_PROPERTY
+        = "org.jitsi.android.chat.MAX_CACHED_MESSAGES";
+
+    /**
+     * Default maximal number of messages cached by each chat session.
+     */
+    private static final int DEFAULT_MAX_CACHED_MESSAGES
+        = 10 * HISTORY_CHUNK_SIZE;
 
     /**
      * The underlying <tt>MetaContact</tt>, we're chatting with.
@@ -65,6 +83,11 @@ public class ChatSession
      */
     private final Contact currentChatTransport;
 
+    /**
+     * Messages sent by the user waiting to be passed to the transport.
+     */
+    private final OutgoingMessageQueue outgoingQueue;
+
     /**
      * The chat history filter.
      */
@@ -73,9 +96,17 @@ public class ChatSession
                         FileHistoryService.class.getName()};
 
     /**
-     * Messages cache used by this session.
+     * Messages cache used by this session. Holds the most recent messages up
+     * to the configured limit, older messages are evicted as new ones arrive.
+     */
+    private final BoundedArrayDeque<ChatMessage> msgCache;
+
+    /**
+     * The date of the oldest message handed to the UI. Next history chunk is
+     * loaded relatively to this date, so that the messages that have been
+     * evicted from the cache are fetched again from the history.
      */
-    private List<ChatMessage> msgCache = new LinkedList<ChatMessage>();
+    private Date historyCursor;
 
     /**
      * Synchronization root for messages cache.
@@ -110,6 +141,8 @@ public class ChatSession
     public ChatSession(MetaContact metaContact)
     {
         this.metaContact = metaContact;
+        this.msgCache = new BoundedArrayDeque<ChatMessage>(
+            getMaxCachedMessages());
         currentChatTransport = metaContact.getDefaultContact(
             OperationSetBasicInstantMessaging.class);
 
@@ -119,6 +152,8 @@ public class ChatSession
             throw new NullPointerException();
         }
 
+        outgoingQueue = new OutgoingMessageQueue(currentChatTransport, this);
+
         Iterator<Contact> protoContacts = metaContact.getContacts();
 
         while (protoContacts.hasNext())
@@ -134,6 +169,9 @@ public class ChatSession
                 imOpSet.addMessageListener(this);
             }
         }
+
+        JitsiApplication.getMemoryCoordinator()
+            .register(this, MemoryCoordinator.PRIORITY_HIGH);
     }
 
     /**
@@ -157,7 +195,8 @@ public class ChatSession
     }
 
     /**
-     * Sens the given message through the current chat transport.
+     * Sens the given message through the current chat transport. The message
+     * is queued and sent in the background, after previously sent messages.
      *
      * @param message the message to send
      */
@@ -166,31 +205,28 @@ public class ChatSession
         if (StringUtils.isNullOrEmpty(message))
             return;
 
-        ProtocolProviderService pps
-                = currentChatTransport.getProtocolProvider();
-
-        if(pps == null)
-        {
-            logger.error("No protocol provider returned by "
-                                 + currentChatTransport);
-            return;
-        }
-
-        final OperationSetBasicInstantMessaging imOpSet
-            = pps.getOperationSet(OperationSetBasicInstantMessaging.class);
+        outgoingQueue.send(message);
+    }
 
-        new Thread()
-        {
-            @Override
-            public void run()
-            {
-                Message msg = imOpSet.createMessage(message);
+    /**
+     * Returns the number of sent messages waiting for the transport.
+     *
+     * @return the number of sent messages waiting for the transport.
+     */
+    public int getOutgoingQueueDepth()
+    {
+        return outgoingQueue.getQueueDepth();
+    }
 
-                imOpSet.sendInstantMessage( currentChatTransport,
-                                            ContactResource.BASE_RESOURCE,
-                                            msg);
-            }
-        }.start();
+    /**
+     * Returns average time from sending a message by the user to passing it to
+     * the transport.
+     *
+     * @return average send latency in milliseconds.
+     */
+    public long getAverageSendLatency()
+    {
+        return outgoingQueue.getAverageLatency();
     }
 
     /**
@@ -231,6 +267,10 @@ public class ChatSession
 
     public void dispose()
     {
+        JitsiApplication.getMemoryCoordinator().unregister(this);
+
+        outgoingQueue.dispose();
+
         Iterator<Contact> protoContacts = metaContact.getContacts();
 
         while (protoContacts.hasNext())
@@ -256,8 +296,11 @@ public class ChatSession
      */
     public void addMessageListener(ChatSessionListener l)
     {
-        if(!msgListeners.contains(l))
-            msgListeners.add(l);
+        synchronized (cacheLock)
+        {
+            if(!msgListeners.contains(l))
+                msgListeners.add(l);
+        }
     }
 
     /**
@@ -267,7 +310,10 @@ public class ChatSession
      */
     public void removeMessageListener(ChatSessionListener l)
     {
-        msgListeners.remove(l);
+        synchronized (cacheLock)
+        {
+            msgListeners.remove(l);
+        }
     }
 
     /**
@@ -369,17 +415,65 @@ public class ChatSession
     }
 
     /**
-     * Returns a collection of last messages.
+     * Returns the maximal number of messages cached by the chat session.
+     *
+     * @return the maximal number of messages cached by the chat session.
+     */
+    private static int getMaxCachedMessages()
+    {
+        ConfigurationService cfg
+            = AndroidGUIActivator.getConfigurationService();
+
+        int maxMessages = cfg != null
+            ? cfg.getInt(MAX_CACHED_MESSAGES_PROPERTY,
+                         DEFAULT_MAX_CACHED_MESSAGES)
+            : DEFAULT_MAX_CACHED_MESSAGES;
+
+        return Math.max(maxMessages, HISTORY_CHUNK_SIZE);
+    }
+
+    /**
+     * Returns a collection of last messages. When <tt>init</tt> is
+     * <tt>true</tt> cached messages are returned, otherwise the next chunk of
+     * history messages older than the ones already returned. Messages that
+     * have been evicted from the cache are loaded from the history again.
+     *
+     * @param init <tt>true</tt> if the chat is being displayed.
      *
      * @return a collection of last messages.
      */
     public Collection<ChatMessage> getHistory(boolean init)
     {
-        // If chat is initializing and we have cached messages including history
-        // then just return the cache
-        if(init && historyLoaded)
+        return getHistory(init, HISTORY_CHUNK_SIZE);
+    }
+
+    /**
+     * Returns a collection of last messages. When <tt>init</tt> is
+     * <tt>true</tt> cached messages are returned, otherwise the next chunk of
+     * history messages older than the ones already returned.
+     *
+     * @param init <tt>true</tt> if the chat is being displayed.
+     * @param chunkSize the maximal number of messages loaded from the history.
+     *
+     * @return a collection of last messages.
+     */
+    public Collection<ChatMessage> getHistory(boolean init, int chunkSize)
+    {
+        Date before;
+        synchronized (cacheLock)
         {
-            return msgCache;
+            // If chat is initializing and we have cached messages including
+            // history then just return the cache
+            if(init && historyLoaded)
+            {
+                return getCachedMessages();
+            }
+
+            if(!init && historyCursor != null)
+                before = historyCursor;
+            else
+                before = msgCache.isEmpty()
+                    ? null : msgCache.getFirst().getDate();
         }
 
         final MetaHistoryService metaHistory
@@ -389,25 +483,28 @@ public class ChatSession
         // here. The history could be "disabled" from the user
         // through one of the configuration forms.
         if (metaHistory == null)
-            return msgCache;
+        {
+            if(!init)
+                return new ArrayList<ChatMessage>();
+
+            synchronized (cacheLock)
+            {
+                return getCachedMessages();
+            }
+        }
 
         Collection<Object> history;
-        if(msgCache.size() == 0)
+        if(before == null)
         {
             history = metaHistory.findLast(chatHistoryFilter,
                                            metaContact,
-                                           HISTORY_CHUNK_SIZE);
+                                           chunkSize);
         }
         else
         {
-            ChatMessage oldest;
-            synchronized (cacheLock)
-            {
-                 oldest = msgCache.get(0);
-            }
             history = metaHistory.findLastMessagesBefore(
                     chatHistoryFilter, metaContact,
-                    oldest.getDate(), HISTORY_CHUNK_SIZE);
+                    before, chunkSize);
         }
 
         // Convert events into messages
@@ -436,6 +533,18 @@ public class ChatSession
             }
         }
 
+        // Conversations that started before summaries were kept
+        if(init && before == null && !historyMsgs.isEmpty())
+        {
+            ConversationSummaryStore summaries
+                = AndroidGUIActivator.getConversationSummaryStore();
+            if(summaries != null)
+            {
+                summaries.historyLoaded(
+                    getChatId(), historyMsgs.get(historyMsgs.size() - 1));
+            }
+        }
+
         synchronized (cacheLock)
         {
             if(!historyLoaded)
@@ -443,22 +552,58 @@ public class ChatSession
                 // We have something cached and we want
                 // to merge it with the history.
                 // Do it only when we haven't merged it yet(ever).
-                msgCache = mergeMsgLists(historyMsgs, msgCache, -1);
+                List<ChatMessage> merged
+                    = mergeMsgLists(historyMsgs, msgCache, -1);
+
+                msgCache.clear();
+                for(ChatMessage msg : merged)
+                {
+                    msgCache.addLast(msg);
+                }
                 historyLoaded = true;
             }
-            else
+            else if(!msgCache.isEmpty()
+                && (historyCursor == null
+                    || !msgCache.getFirst().getDate().after(historyCursor)))
             {
-                // Otherwise just append the history
-                msgCache.addAll(0, historyMsgs);
+                // Cache reaches the cursor, so the history can be prepended
+                // for as long as there's room in the window
+                for(int i = historyMsgs.size() - 1; i >= 0; i--)
+                {
+                    if(!msgCache.offerFirst(historyMsgs.get(i)))
+                        break;
+                }
             }
 
             if(init)
-                return msgCache;
+            {
+                return getCachedMessages();
+            }
             else
+            {
+                if(!historyMsgs.isEmpty())
+                    historyCursor = historyMsgs.get(0).getDate();
+
                 return historyMsgs;
+            }
         }
     }
 
+    /**
+     * Returns the copy of currently cached messages and remembers the oldest
+     * one as the point where history loading continues from. Must be called
+     * while holding {@link #cacheLock}.
+     *
+     * @return the copy of currently cached messages.
+     */
+    private List<ChatMessage> getCachedMessages()
+    {
+        historyCursor = msgCache.isEmpty()
+            ? null : msgCache.getFirst().getDate();
+
+        return new ArrayList<ChatMessage>(msgCache);
+    }
+
     /**
      * Merges given lists of messages. Output list is ordered by received date.
      * @param list1 first list to merge.
@@ -474,7 +619,9 @@ public class ChatSession
         if(msgLimit == -1)
             msgLimit = Integer.MAX_VALUE;
 
-        List<ChatMessage> output = new LinkedList<ChatMessage>();
+        // Messages are merged from the newest ones and reversed at the end
+        List<ChatMessage> output = new ArrayList<ChatMessage>(
+            Math.min(list1.size() + list2.size(), msgLimit));
         int list1Idx = list1.size()-1;
         int list2Idx = list2.size()-1;
 
@@ -485,27 +632,70 @@ public class ChatSession
 
             if(list1Msg.getDate().after(list2Msg.getDate()))
             {
-                output.add(0, list1Msg);
+                output.add(list1Msg);
                 list1Idx--;
             }
             else
             {
-                output.add(0, list2Msg);
+                output.add(list2Msg);
                 list2Idx--;
             }
         }
 
         // Input remaining list 1 messages
         while(list1Idx >= 0 && output.size() < msgLimit)
-            output.add(0, list1.get(list1Idx--));
+            output.add(list1.get(list1Idx--));
 
         // Input remaining list 2 messages
         while(list2Idx >= 0 && output.size() < msgLimit)
-            output.add(0, list2.get(list2Idx--));
+            output.add(list2.get(list2Idx--));
+
+        Collections.reverse(output);
 
         return output;
     }
 
+    /**
+     * Drops older cached messages. Messages are not trimmed while the chat is
+     * being displayed, as the UI loads next history chunks relatively to
+     * the oldest cached message. If the memory pressure is severe, the whole
+     * cache is dropped and the history will be loaded again on next display.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public long trimMemory(int level)
+    {
+        synchronized (cacheLock)
+        {
+            if(!msgListeners.isEmpty())
+                return 0;
+
+            int toRemove = MemoryCoordinator.isSevere(level)
+                ? msgCache.size()
+                : msgCache.size() - HISTORY_CHUNK_SIZE;
+            if(toRemove <= 0)
+                return 0;
+
+            long reclaimed = 0;
+            for(int i = 0; i < toRemove; i++)
+            {
+                String content = msgCache.get(i).getMessage();
+                if(content != null)
+                    reclaimed += content.length() * 2;
+            }
+            msgCache.removeFirst(toRemove);
+
+            if(msgCache.isEmpty())
+            {
+                // Merge with the history again when displayed
+                historyLoaded = false;
+                historyCursor = null;
+            }
+            return reclaimed;
+        }
+    }
+
     @Override
     public boolean isChatFocused()
     {
@@ -728,23 +918,47 @@ public class ChatSession
         {
             return;
         }
+        ChatMessage msg = ChatMessageImpl.getMsgForEvent(messageReceivedEvent);
         synchronized (cacheLock)
         {
             for(MessageListener l : msgListeners)
             {
                 l.messageReceived(messageReceivedEvent);
             }
-            cacheNextMsg(ChatMessageImpl.getMsgForEvent(messageReceivedEvent));
+            cacheNextMsg(msg);
         }
+        updateSummary(msg);
+    }
+
+    /**
+     * Updates the summary of this conversation with new message. Incoming
+     * messages received while the chat is not displayed are counted as
+     * unread, unless they are corrections of previous messages.
+     *
+     * @param msg the new message.
+     */
+    private void updateSummary(ChatMessage msg)
+    {
+        ConversationSummaryStore summaries
+            = AndroidGUIActivator.getConversationSummaryStore();
+        if(summaries == null)
+            return;
+
+        boolean unread = msg.getMessageType() == ChatMessage.INCOMING_MESSAGE
+            && msg.getCorrectedMessageUID() == null
+            && !isChatFocused();
+
+        summaries.messageAdded(getChatId(), msg, unread);
     }
 
     /**
-     * Caches next message.
+     * Caches next message. The oldest cached message is evicted if the cache
+     * is full, it will be loaded from the history when needed.
      * @param newMsg the next message to cache.
      */
-    private void cacheNextMsg(ChatMessageImpl newMsg)
+    private void cacheNextMsg(ChatMessage newMsg)
     {
-        msgCache.add(newMsg);
+        msgCache.addLast(newMsg);
     }
 
     @Override
@@ -756,14 +970,17 @@ public class ChatSession
             return;
         }
 
+        ChatMessage msg
+            = ChatMessageImpl.getMsgForEvent(messageDeliveredEvent);
         synchronized (cacheLock)
         {
             for(MessageListener l : msgListeners)
             {
                 l.messageDelivered(messageDeliveredEvent);
             }
-            cacheNextMsg(ChatMessageImpl.getMsgForEvent(messageDeliveredEvent));
+            cacheNextMsg(msg);
         }
+        updateSummary(msg);
     }
 
     @Override
@@ -19,6 +19,7 @@ package org.jitsi.android.gui.chat;
 
 import java.net.*;
 import java.util.*;
+import java.util.concurrent.*;
 
 import android.content.*;
 import net.java.sip.communicator.service.contactlist.*;
@@ -32,7 +33,10 @@ import org.jitsi.android.gui.*;
 import org.jitsi.android.gui.util.*;
 
 /**
- * The <tt>ChatSessionManager</tt> managing active chat sessions.
+ * The <tt>ChatSessionManager</tt> managing active chat sessions.<br/>
+ * Active chats are looked up without locking, so that contact list rendering
+ * doesn't wait for incoming messages being handled. Only operations which
+ * modify the set of active chats or the current chat are serialized.
  *
  * @author Yana Stamcheva
  */
@@ -50,39 +54,63 @@ public class ChatSessionManager
     public static final String CHAT_IDENTIFIER = "ChatIdentifier";
 
     /**
-     * A map of all active chats.
+     * A map of all active chats by chat identifier, which is equal to chat's
+     * <tt>MetaContact</tt> UID.
      */
-    private static final Map<String, ChatSession> activeChats
-        = new LinkedHashMap<String, ChatSession>();
+    private static final ConcurrentMap<String, ChatSession> activeChats
+        = new ConcurrentHashMap<String, ChatSession>();
+
+    /**
+     * Active chats in the order in which they have been started.
+     */
+    private static final List<ChatSession> chatOrder
+        = new CopyOnWriteArrayList<ChatSession>();
+
+    /**
+     * Active chats by the addresses of protocol contacts. Entries may become
+     * stale when contacts are moved between meta contacts, so the chat found
+     * by address must be checked to contain the contact.
+     */
+    private static final ConcurrentMap<String, ChatSession> contactChats
+        = new ConcurrentHashMap<String, ChatSession>();
+
+    /**
+     * The lock which serializes modifications of active chats and
+     * the current chat.
+     */
+    private static final Object chatsLock = new Object();
 
     /**
      * The list of chat listeners.
      */
-    private static final List<ChatListener> chatListeners
-        = new ArrayList<ChatListener>();
+    private static final CopyOnWriteArrayList<ChatListener>
+        chatListeners
+        = new CopyOnWriteArrayList<ChatListener>();
 
     /**
      * The list of active chats.
      */
-    private static final List<CurrentChatListener> currentChatListeners
-            = new ArrayList<CurrentChatListener>();
+    private static final CopyOnWriteArrayList<CurrentChatListener>
+        currentChatListeners
+            = new CopyOnWriteArrayList<CurrentChatListener>();
 
     /**
      * The list of chat link listeners.
      */
-    private static final List<ChatLinkClickedListener> chatLinkListeners
-        = new ArrayList<ChatLinkClickedListener>();
+    private static final CopyOnWriteArrayList<ChatLinkClickedListener>
+        chatLinkListeners
+        = new CopyOnWriteArrayList<ChatLinkClickedListener>();
 
     /**
      * The currently selected chat identifier.
      * It's equal to chat's <tt>MetaContact</tt> UID.
      */
-    private static String currentChatId;
+    private static volatile String currentChatId;
 
     /**
      * ID of the last chat contact uid
      */
-    private static MetaContact lastChatContact;
+    private static volatile MetaContact lastChatContact;
 
     /**
      * Adds an active chat.
@@ -91,13 +119,24 @@ public class ChatSessionManager
      * chat
      * @return the active chat identifier
      */
-    private synchronized static String addActiveChat(ChatSession chatSession)
+    private static String addActiveChat(ChatSession chatSession)
     {
         String key = chatSession.getChatId();
 
-        activeChats.put(key, chatSession);
+        synchronized (chatsLock)
+        {
+            activeChats.put(key, chatSession);
+            chatOrder.add(chatSession);
 
-        notifyChatStarted(chatSession);
+            Iterator<Contact> contacts
+                = chatSession.getMetaContact().getContacts();
+            while(contacts.hasNext())
+            {
+                contactChats.put(contacts.next().getAddress(), chatSession);
+            }
+
+            notifyChatStarted(chatSession);
+        }
 
         return key;
     }
@@ -108,25 +147,33 @@ public class ChatSessionManager
      * @param chatSession the <tt>ChatSession</tt> corresponding to the active
      * chat to remove
      */
-    public synchronized static void removeActiveChat(ChatSession chatSession)
+    public static void removeActiveChat(ChatSession chatSession)
     {
-        chatSession.dispose();
+        synchronized (chatsLock)
+        {
+            chatSession.dispose();
 
-        activeChats.remove(chatSession.getChatId());
+            activeChats.remove(chatSession.getChatId());
+            chatOrder.remove(chatSession);
+            // Contacts might have been moved, so remove all entries
+            contactChats.values().removeAll(
+                Collections.singleton(chatSession));
 
-        notifyChatEnded(chatSession);
+            notifyChatEnded(chatSession);
+        }
     }
 
     /**
      * Removes all active chats.
      */
-    public synchronized static void removeAllActiveChats()
+    public static void removeAllActiveChats()
     {
-        ArrayList<ChatSession> sessions
-            = new ArrayList<ChatSession>(activeChats.values());
-        for(ChatSession chat : sessions)
+        synchronized (chatsLock)
         {
-            removeActiveChat(chat);
+            for(ChatSession chat : chatOrder)
+            {
+                removeActiveChat(chat);
+            }
         }
     }
 
@@ -138,9 +185,9 @@ public class ChatSessionManager
      * @return the <tt>ChatSession</tt> corresponding to the given chat
      * identifier
      */
-    public synchronized static ChatSession getActiveChat(String chatKey)
+    public static ChatSession getActiveChat(String chatKey)
     {
-        return activeChats.get(chatKey);
+        return chatKey != null ? activeChats.get(chatKey) : null;
     }
 
     /**
@@ -152,7 +199,7 @@ public class ChatSessionManager
      * @return the <tt>ChatSession</tt> corresponding to the given chat
      * identifier
      */
-    public synchronized static ChatSession getActiveChat(
+    public static ChatSession getActiveChat(
             MetaContact metaContact)
     {
         return metaContact != null
@@ -165,9 +212,14 @@ public class ChatSessionManager
      *
      * @return the list of active chats' identifiers
      */
-    public synchronized static List<String> getActiveChatsIDs()
+    public static List<String> getActiveChatsIDs()
     {
-        return new LinkedList<String>(activeChats.keySet());
+        List<String> chatIds = new LinkedList<String>();
+        for(ChatSession chat : chatOrder)
+        {
+            chatIds.add(chat.getChatId());
+        }
+        return chatIds;
     }
 
     /**
@@ -175,9 +227,9 @@ public class ChatSessionManager
      *
      * @return the list of active chats.
      */
-    public synchronized static List<Chat> getActiveChats()
+    public static List<Chat> getActiveChats()
     {
-        return new LinkedList<Chat>(activeChats.values());
+        return new LinkedList<Chat>(chatOrder);
     }
 
     /**
@@ -185,31 +237,39 @@ public class ChatSessionManager
      *
      * @param chatId the identifier of the current chat session
      */
-    public synchronized static void setCurrentChatId(String chatId)
+    public static void setCurrentChatId(String chatId)
     {
-        currentChatId = chatId;
-
-        logger.debug("Current chat id: " + chatId);
-        ChatSession currChat = getActiveChat(currentChatId);
-        if(currChat != null)
+        synchronized (chatsLock)
         {
-            logger.debug("Current chat with: "
-                                 + currChat.getMetaContact().getDisplayName());
-            // Remember last chat contact
-            lastChatContact = currChat.getMetaContact();
-        }
-        else
-        {
-            logger.debug("Chat for id: "+chatId+" no longer exists");
-            currentChatId = null;
-            // Forget last chat contact
-            lastChatContact = null;
-        }
+            currentChatId = chatId;
 
-        // Notifies about new current chat session
-        for(CurrentChatListener l : currentChatListeners)
-        {
-            l.onCurrentChatChanged(currentChatId);
+            logger.debug("Current chat id: " + chatId);
+            ChatSession currChat = getActiveChat(currentChatId);
+            if(currChat != null)
+            {
+                logger.debug("Current chat with: "
+                    + currChat.getMetaContact().getDisplayName());
+                // Remember last chat contact
+                lastChatContact = currChat.getMetaContact();
+
+                ConversationSummaryStore summaries
+                    = AndroidGUIActivator.getConversationSummaryStore();
+                if(summaries != null)
+                    summaries.markRead(chatId);
+            }
+            else
+            {
+                logger.debug("Chat for id: "+chatId+" no longer exists");
+                currentChatId = null;
+                // Forget last chat contact
+                lastChatContact = null;
+            }
+
+            // Notifies about new current chat session
+            for(CurrentChatListener l : currentChatListeners)
+            {
+                l.onCurrentChatChanged(currentChatId);
+            }
         }
     }
 
@@ -218,7 +278,7 @@ public class ChatSessionManager
      *
      * @return the identifier of the current chat session
      */
-    public synchronized static String getCurrentChatId()
+    public static String getCurrentChatId()
     {
         return currentChatId;
     }
@@ -227,7 +287,7 @@ public class ChatSessionManager
      * Returns currently active <tt>ChatSession</tt>.
      * @return currently active <tt>ChatSession</tt>.
      */
-    public synchronized static ChatSession getCurrentChatSession()
+    public static ChatSession getCurrentChatSession()
     {
         return getActiveChat(currentChatId);
     }
@@ -236,17 +296,16 @@ public class ChatSessionManager
      * Registers new chat listener.
      * @param listener the chat listener to add.
      */
-    public synchronized static void addChatListener(ChatListener listener)
+    public static void addChatListener(ChatListener listener)
     {
-        if(!chatListeners.contains(listener))
-            chatListeners.add(listener);
+        chatListeners.addIfAbsent(listener);
     }
 
     /**
      * Unregisters chat listener.
      * @param listener the chat listener to remove.
      */
-    public synchronized static void removeChatListener(ChatListener listener)
+    public static void removeChatListener(ChatListener listener)
     {
         chatListeners.remove(listener);
     }
@@ -279,18 +338,17 @@ public class ChatSessionManager
      * Adds given listener to current chat listeners list.
      * @param l the listener to add to current chat listeners list.
      */
-    public synchronized static void addCurrentChatListener(
+    public static void addCurrentChatListener(
         CurrentChatListener l)
     {
-        if(!currentChatListeners.contains(l))
-            currentChatListeners.add(l);
+        currentChatListeners.addIfAbsent(l);
     }
 
     /**
      * Removes given listener form current chat listeners list.
      * @param l the listener to remove from current chat listeners list.
      */
-    public synchronized static void removeCurrentChatListener(
+    public static void removeCurrentChatListener(
         CurrentChatListener l)
     {
         currentChatListeners.remove(l);
@@ -304,8 +362,8 @@ public class ChatSessionManager
      *                         in case it doesn't exists yet.
      * @return active chat for given contact.
      */
-    public synchronized static Chat findChatForContact(Contact contact,
-                                                       boolean startIfNotExists)
+    public static Chat findChatForContact(Contact contact,
+                                          boolean startIfNotExists)
     {
         if(contact == null)
         {
@@ -313,35 +371,42 @@ public class ChatSessionManager
             return null;
         }
 
-        for(ChatSession chat : activeChats.values())
+        ChatSession chat = contactChats.get(contact.getAddress());
+        if(chat != null && chat.getMetaContact().containsContact(contact))
         {
-            Iterator<Contact> inner = chat.getMetaContact().getContacts();
-            while(inner.hasNext())
-            {
-                Contact candidate = inner.next();
-                if(candidate.equals(contact))
-                {
-                    return chat;
-                }
-            }
+            return chat;
         }
-        if(!startIfNotExists)
-            return null;
 
-        MetaContact metaContact
-            = AndroidGUIActivator.getContactListService()
-                .findMetaContactByContact(contact);
+        // Contact might have been added to the meta contact after the chat
+        // was started or there's no chat yet
+        MetaContactListService contactList
+            = AndroidGUIActivator.getContactListService();
+        MetaContact metaContact = contactList != null
+            ? contactList.findMetaContactByContact(contact) : null;
 
         if(metaContact == null)
         {
-            logger.warn("No meta contact found for "+contact);
+            if(startIfNotExists)
+                logger.warn("No meta contact found for "+contact);
             return null;
         }
 
-        ChatSession newChat = new ChatSession(metaContact);
-        addActiveChat(newChat);
+        synchronized (chatsLock)
+        {
+            chat = activeChats.get(metaContact.getMetaUID());
+            if(chat != null)
+            {
+                contactChats.put(contact.getAddress(), chat);
+                return chat;
+            }
+            if(!startIfNotExists)
+                return null;
 
-        return newChat;
+            ChatSession newChat = new ChatSession(metaContact);
+            addActiveChat(newChat);
+
+            return newChat;
+        }
     }
 
     /**
@@ -351,7 +416,7 @@ public class ChatSessionManager
      * @return <tt>true</tt> if the chat was successfully started or
      * <tt>false</tt> if no <tt>MetaContact</tt> has been found for given UID.
      */
-    public synchronized static ChatSession createChatForMetaUID(
+    public static ChatSession createChatForMetaUID(
         String metaContactUid)
     {
         if(metaContactUid == null)
@@ -366,15 +431,19 @@ public class ChatSessionManager
             return null;
         }
 
-        if(activeChats.containsKey(metaContactUid))
-        {
-            return activeChats.get(metaContactUid);
-        }
-        else
+        synchronized (chatsLock)
         {
-            ChatSession newChat = new ChatSession(metaContact);
-            addActiveChat(newChat);
-            return newChat;
+            ChatSession chat = activeChats.get(metaContactUid);
+            if(chat != null)
+            {
+                return chat;
+            }
+            else
+            {
+                ChatSession newChat = new ChatSession(metaContact);
+                addActiveChat(newChat);
+                return newChat;
+            }
         }
     }
 
@@ -383,11 +452,10 @@ public class ChatSessionManager
      * @param chatLinkClickedListener the <tt>ChatLinkClickedListener</tt>
      *                                to add.
      */
-    public synchronized static void addChatLinkListener(
+    public static void addChatLinkListener(
             ChatLinkClickedListener chatLinkClickedListener)
     {
-        if(!chatLinkListeners.contains(chatLinkClickedListener))
-            chatLinkListeners.add(chatLinkClickedListener);
+        chatLinkListeners.addIfAbsent(chatLinkClickedListener);
     }
 
     /**
@@ -395,7 +463,7 @@ public class ChatSessionManager
      * @param chatLinkClickedListener the <tt>ChatLinkClickedListener</tt>
      *                                to remove.
      */
-    public synchronized static void removeChatLinkListener(
+    public static void removeChatLinkListener(
             ChatLinkClickedListener chatLinkClickedListener)
     {
         chatLinkListeners.remove(chatLinkClickedListener);
@@ -406,7 +474,7 @@ public class ChatSessionManager
      * the link is licked.
      * @param uri clicked link <tt>URI</tt>
      */
-    public synchronized static void notifyChatLinkClicked(URI uri)
+    public static void notifyChatLinkClicked(URI uri)
     {
         for(ChatLinkClickedListener l : chatLinkListeners)
         {
@@ -459,12 +527,17 @@ public class ChatSessionManager
     /**
      * Disposes of static resources held by this instance.
      */
-    public synchronized static void dispose()
+    public static void dispose()
     {
-        chatLinkListeners.clear();
-        chatListeners.clear();
-        currentChatListeners.clear();
-        activeChats.clear();
+        synchronized (chatsLock)
+        {
+            chatLinkListeners.clear();
+            chatListeners.clear();
+            currentChatListeners.clear();
+            activeChats.clear();
+            chatOrder.clear();
+            contactChats.clear();
+        }
     }
 
     /**
@@ -472,20 +545,20 @@ public class ChatSessionManager
      * @param protocolProvider protocol provider for which all chat sessions
      *                         will be removed.
      */
-    public synchronized static void removeAllChatsForProvider(
+    public static void removeAllChatsForProvider(
             ProtocolProviderService protocolProvider)
     {
-        ArrayList<ChatSession> toBeRemoved = new ArrayList<ChatSession>();
-        for(ChatSession chat : activeChats.values())
+        synchronized (chatsLock)
         {
-            if(chat.getMetaContact()
-                    .getContactsForProvider(protocolProvider) != null)
+            for(ChatSession chat : chatOrder)
             {
-                toBeRemoved.add(chat);
+                if(chat.getMetaContact()
+                        .getContactsForProvider(protocolProvider) != null)
+                {
+                    removeActiveChat(chat);
+                }
             }
         }
-        for(ChatSession chat : toBeRemoved)
-            removeActiveChat(chat);
     }
 
     /**
@@ -0,0 +1,595 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.gui.chat;
+
+import android.content.*;
+import android.database.*;
+import android.database.sqlite.*;
+import android.os.*;
+
+import net.java.sip.communicator.util.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+import java.util.regex.*;
+
+/**
+ * Keeps the summary of each conversation: the snippet of the last message,
+ * it's time and the number of unread messages. Summaries are persisted in
+ * a small SQLite table, which is read on a background thread when the store
+ * is created and then kept in memory, so that they can be read on the UI
+ * thread without querying the history.<br/>
+ * Changes are written in batches on the same thread, at most once per
+ * {@link #WRITE_DELAY} milliseconds. <tt>SummaryListener</tt>s are notified
+ * about changed summaries.
+ *
+ * @author Pawel Domas
+ */
+public class ConversationSummaryStore
+{
+    /**
+     * The logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(ConversationSummaryStore.class);
+
+    /**
+     * The delay after which changed summaries are written to the database.
+     */
+    private static final long WRITE_DELAY = 2000;
+
+    /**
+     * The maximal length of stored message snippets.
+     */
+    private static final int MAX_SNIPPET_LENGTH = 100;
+
+    /**
+     * Matches HTML tags, which are removed from message snippets.
+     */
+    private static final Pattern HTML_TAGS = Pattern.compile("<[^>]*>");
+
+    private static final String TABLE_NAME = "ConversationSummaries";
+
+    private static final String CHAT_ID_COLUMN_NAME = "ChatId";
+
+    private static final String SNIPPET_COLUMN_NAME = "Snippet";
+
+    private static final String TIMESTAMP_COLUMN_NAME = "Timestamp";
+
+    private static final String UNREAD_COLUMN_NAME = "Unread";
+
+    /**
+     * The database helper.
+     */
+    private final SQLiteOpenHelper openHelper;
+
+    /**
+     * Summaries by chat identifier.
+     */
+    private final Map<String, Summary> summaries
+        = new HashMap<String, Summary>();
+
+    /**
+     * The identifiers of chats which summaries have to be written.
+     */
+    private final Set<String> dirtyChats = new HashSet<String>();
+
+    /**
+     * The handler of the thread on which summaries are written.
+     */
+    private final Handler writeHandler;
+
+    /**
+     * Writes changed summaries.
+     */
+    private final Runnable writeTask = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            writeChanges();
+        }
+    };
+
+    /**
+     * Listeners notified about summary changes.
+     */
+    private final List<SummaryListener> listeners
+        = new CopyOnWriteArrayList<SummaryListener>();
+
+    /**
+     * Indicates that summaries have been loaded from the database.
+     */
+    private boolean loaded;
+
+    /**
+     * Indicates that changes are scheduled to be written.
+     */
+    private boolean writeScheduled;
+
+    /**
+     * Creates new instance of <tt>ConversationSummaryStore</tt>.
+     *
+     * @param context Android context.
+     */
+    public ConversationSummaryStore(Context context)
+    {
+        openHelper
+            = new SQLiteOpenHelper(
+                    context,
+                    ConversationSummaryStore.class.getName() + ".db",
+                    null /* factory */,
+                    1 /* version */)
+            {
+                public void onCreate(SQLiteDatabase db)
+                {
+                    db.execSQL(
+                            "CREATE TABLE " + TABLE_NAME + " ("
+                                + CHAT_ID_COLUMN_NAME + " TEXT PRIMARY KEY,"
+                                + SNIPPET_COLUMN_NAME + " TEXT,"
+                                + TIMESTAMP_COLUMN_NAME + " INTEGER,"
+                                + UNREAD_COLUMN_NAME + " INTEGER"
+                                + ");");
+                }
+
+                public void onUpgrade(
+                        SQLiteDatabase db,
+                        int oldVersion, int newVersion)
+                {
+                }
+            };
+
+        HandlerThread thread = new HandlerThread(
+            "ConversationSummaryWriter",
+            android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+
+        writeHandler = new Handler(thread.getLooper());
+
+        // Changes made before the summaries are loaded are posted after this
+        // task, so that they're applied to the loaded summaries
+        writeHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                load();
+            }
+        });
+    }
+
+    /**
+     * Adds the listener notified about summary changes.
+     *
+     * @param l the <tt>SummaryListener</tt> to add.
+     */
+    public void addSummaryListener(SummaryListener l)
+    {
+        listeners.add(l);
+    }
+
+    /**
+     * Removes the listener notified about summary changes.
+     *
+     * @param l the <tt>SummaryListener</tt> to remove.
+     */
+    public void removeSummaryListener(SummaryListener l)
+    {
+        listeners.remove(l);
+    }
+
+    /**
+     * Returns the summary of given chat. Never blocks on the database.
+     *
+     * @param chatId the chat identifier.
+     *
+     * @return the summary of given chat or <tt>null</tt> if there's none or
+     *         the summaries have not been loaded yet.
+     */
+    public synchronized Summary getSummary(String chatId)
+    {
+        return summaries.get(chatId);
+    }
+
+    /**
+     * Returns the summaries of all conversations, the most recent first. Never
+     * blocks on the database.
+     *
+     * @return the summaries of all conversations, empty until the summaries
+     *         have been loaded.
+     */
+    public synchronized List<Summary> getSummaries()
+    {
+        List<Summary> result = new ArrayList<Summary>(summaries.values());
+        Collections.sort(result, new Comparator<Summary>()
+        {
+            @Override
+            public int compare(Summary s1, Summary s2)
+            {
+                return s1.timestamp > s2.timestamp
+                    ? -1 : (s1.timestamp == s2.timestamp ? 0 : 1);
+            }
+        });
+        return result;
+    }
+
+    /**
+     * Updates the summary of given chat with new message. Messages older than
+     * the last one are ignored.
+     *
+     * @param chatId the chat identifier.
+     * @param msg the message.
+     * @param unread <tt>true</tt> if the message has not been seen by
+     *               the user.
+     */
+    public void messageAdded(final String chatId, final ChatMessage msg,
+                             final boolean unread)
+    {
+        String snippet = getSnippet(msg.getMessage());
+        long timestamp = msg.getDate().getTime();
+
+        synchronized (this)
+        {
+            if(!loaded)
+            {
+                writeHandler.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        messageAdded(chatId, msg, unread);
+                    }
+                });
+                return;
+            }
+
+            Summary summary = summaries.get(chatId);
+            if(summary != null && summary.timestamp > timestamp)
+                return;
+
+            int unreadCount = summary != null ? summary.unreadCount : 0;
+            if(unread)
+                unreadCount++;
+
+            putSummary(new Summary(chatId, snippet, timestamp, unreadCount));
+        }
+        fireSummaryChanged(chatId);
+    }
+
+    /**
+     * Creates the summary of given chat from the last message loaded from
+     * the history, unless the chat already has one.
+     *
+     * @param chatId the chat identifier.
+     * @param lastMsg the most recent history message.
+     */
+    public void historyLoaded(final String chatId, final ChatMessage lastMsg)
+    {
+        synchronized (this)
+        {
+            if(!loaded)
+            {
+                writeHandler.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        historyLoaded(chatId, lastMsg);
+                    }
+                });
+                return;
+            }
+
+            if(summaries.containsKey(chatId))
+                return;
+        }
+
+        messageAdded(chatId, lastMsg, false);
+    }
+
+    /**
+     * Sets the number of unread messages of given chat to zero.
+     *
+     * @param chatId the chat identifier.
+     */
+    public void markRead(final String chatId)
+    {
+        synchronized (this)
+        {
+            if(!loaded)
+            {
+                writeHandler.post(new Runnable()
+                {
+                    @Override
+                    public void run()
+                    {
+                        markRead(chatId);
+                    }
+                });
+                return;
+            }
+
+            Summary summary = summaries.get(chatId);
+            if(summary == null || summary.unreadCount == 0)
+                return;
+
+            putSummary(new Summary(
+                chatId, summary.snippet, summary.timestamp, 0));
+        }
+        fireSummaryChanged(chatId);
+    }
+
+    /**
+     * Writes pending changes and stops the writer thread.
+     */
+    public void stop()
+    {
+        writeHandler.removeCallbacks(writeTask);
+        writeHandler.post(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                writeChanges();
+                writeHandler.getLooper().quit();
+            }
+        });
+    }
+
+    /**
+     * Stores the summary and schedules it to be written. Must be called while
+     * holding this instance's lock.
+     *
+     * @param summary the summary.
+     */
+    private void putSummary(Summary summary)
+    {
+        summaries.put(summary.chatId, summary);
+        dirtyChats.add(summary.chatId);
+
+        if(!writeScheduled)
+        {
+            writeScheduled = true;
+            writeHandler.postDelayed(writeTask, WRITE_DELAY);
+        }
+    }
+
+    /**
+     * Notifies the listeners that the summary of given chat has changed. Must
+     * not be called while holding this instance's lock.
+     *
+     * @param chatId the chat identifier or <tt>null</tt> if all summaries
+     *        have changed.
+     */
+    private void fireSummaryChanged(String chatId)
+    {
+        for(SummaryListener l : listeners)
+        {
+            l.summaryChanged(chatId);
+        }
+    }
+
+    /**
+     * Reads all summaries from the database. Called on the writer thread
+     * before any change is applied.
+     */
+    private void load()
+    {
+        Map<String, Summary> loadedSummaries = new HashMap<String, Summary>();
+
+        long start = System.currentTimeMillis();
+        try
+        {
+            Cursor cursor = openHelper.getReadableDatabase().query(
+                TABLE_NAME,
+                new String[] { CHAT_ID_COLUMN_NAME, SNIPPET_COLUMN_NAME,
+                    TIMESTAMP_COLUMN_NAME, UNREAD_COLUMN_NAME },
+                null, null, null, null, null);
+            try
+            {
+                while(cursor.moveToNext())
+                {
+                    Summary summary = new Summary(
+                        cursor.getString(0), cursor.getString(1),
+                        cursor.getLong(2), cursor.getInt(3));
+
+                    loadedSummaries.put(summary.chatId, summary);
+                }
+            }
+            finally
+            {
+                cursor.close();
+            }
+        }
+        catch (SQLiteException e)
+        {
+            logger.error("Failed to read conversation summaries", e);
+        }
+
+        if(logger.isDebugEnabled())
+            logger.debug("Loaded " + loadedSummaries.size() + " summaries in "
+                + (System.currentTimeMillis() - start) + " ms");
+
+        synchronized (this)
+        {
+            summaries.putAll(loadedSummaries);
+            loaded = true;
+        }
+        fireSummaryChanged(null);
+    }
+
+    /**
+     * Writes changed summaries in a single transaction.
+     */
+    private void writeChanges()
+    {
+        List<Summary> changed;
+        synchronized (this)
+        {
+            writeScheduled = false;
+            if(dirtyChats.isEmpty())
+                return;
+
+            changed = new ArrayList<Summary>(dirtyChats.size());
+            for(String chatId : dirtyChats)
+            {
+                changed.add(summaries.get(chatId));
+            }
+            dirtyChats.clear();
+        }
+
+        try
+        {
+            SQLiteDatabase db = openHelper.getWritableDatabase();
+            db.beginTransaction();
+            try
+            {
+                ContentValues values = new ContentValues();
+                for(Summary summary : changed)
+                {
+                    values.put(CHAT_ID_COLUMN_NAME, summary.chatId);
+                    values.put(SNIPPET_COLUMN_NAME, summary.snippet);
+                    values.put(TIMESTAMP_COLUMN_NAME, summary.timestamp);
+                    values.put(UNREAD_COLUMN_NAME, summary.unreadCount);
+
+                    db.insertWithOnConflict(
+                        TABLE_NAME, null, values,
+                        SQLiteDatabase.CONFLICT_REPLACE);
+                }
+                db.setTransactionSuccessful();
+            }
+            finally
+            {
+                db.endTransaction();
+            }
+        }
+        catch (SQLiteException e)
+        {
+            logger.error("Failed to write conversation summaries", e);
+        }
+    }
+
+    /**
+     * Returns the snippet of given message content.
+     *
+     * @param content HTML message content.
+     *
+     * @return plain text snippet of the message.
+     */
+    private static String getSnippet(String content)
+    {
+        if(content == null)
+            return "";
+
+        String snippet = HTML_TAGS.matcher(content).replaceAll(" ").trim();
+        if(snippet.length() > MAX_SNIPPET_LENGTH)
+            snippet = snippet.substring(0, MAX_SNIPPET_LENGTH);
+
+        return snippet;
+    }
+
+    /**
+     * Interface used to notify about changed conversation summaries.
+     */
+    public interface SummaryListener
+    {
+        /**
+         * Indicates that the summary of given chat has changed. Called on
+         * the thread that has changed the summary.
+         *
+         * @param chatId the chat identifier or <tt>null</tt> if all summaries
+         *        have changed, which happens when they have been loaded.
+         */
+        void summaryChanged(String chatId);
+    }
+
+    /**
+     * The summary of a conversation.
+     */
+    public static class Summary
+    {
+        /**
+         * The chat identifier.
+         */
+        private final String chatId;
+
+        /**
+         * The snippet of the last message.
+         */
+        private final String snippet;
+
+        /**
+         * The time of the last message.
+         */
+        private final long timestamp;
+
+        /**
+         * The number of unread messages.
+         */
+        private final int unreadCount;
+
+        Summary(String chatId, String snippet, long timestamp, int unreadCount)
+        {
+            this.chatId = chatId;
+            this.snippet = snippet;
+            this.timestamp = timestamp;
+            this.unreadCount = unreadCount;
+        }
+
+        /**
+         * Returns the chat identifier, which is the UID of
+         * the <tt>MetaContact</tt>.
+         *
+         * @return the chat identifier.
+         */
+        public String getChatId()
+        {
+            return chatId;
+        }
+
+        /**
+         * Returns plain text snippet of the last message.
+         *
+         * @return the snippet of the last message.
+         */
+        public String getSnippet()
+        {
+            return snippet;
+        }
+
+        /**
+         * Returns the time of the last message.
+         *
+         * @return the time of the last message in milliseconds.
+         */
+        public long getTimestamp()
+        {
+            return timestamp;
+        }
+
+        /**
+         * Returns the number of messages that have not been seen by the user.
+         *
+         * @return the number of unread messages.
+         */
+        public int getUnreadCount()
+        {
+            return unreadCount;
+        }
+    }
+}
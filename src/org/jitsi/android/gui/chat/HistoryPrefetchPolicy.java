@@ -0,0 +1,177 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.gui.chat;
+
+/**
+ * Decides when the next chunk of chat history should be prefetched and how
+ * big it should be. Tracks the speed at which the user scrolls towards older
+ * messages and the time it takes to query the history. The next chunk is
+ * requested early enough to arrive before the user reaches the top of
+ * the list and is big enough to cover the rows scrolled through while
+ * the following chunk is being loaded.<br/>
+ * Times are passed as arguments, so that the policy doesn't depend on
+ * the clock. This class is not thread safe and is meant to be used on the UI
+ * thread.
+ *
+ * @author Pawel Domas
+ */
+class HistoryPrefetchPolicy
+{
+    /**
+     * The minimal number of messages requested at once.
+     */
+    static final int MIN_CHUNK_SIZE = ChatSession.HISTORY_CHUNK_SIZE;
+
+    /**
+     * The maximal number of messages requested at once.
+     */
+    static final int MAX_CHUNK_SIZE = 10 * ChatSession.HISTORY_CHUNK_SIZE;
+
+    /**
+     * The minimal distance in rows from the top of the list at which
+     * the prefetch starts.
+     */
+    static final int MIN_PREFETCH_DISTANCE = 15;
+
+    /**
+     * How long the scrolling should be covered by single chunk, in addition to
+     * the time it takes to load the next one, in milliseconds.
+     */
+    private static final long LOOKAHEAD_TIME = 1000;
+
+    /**
+     * Weight of the new sample in velocity and latency averages.
+     */
+    private static final double SMOOTHING = 0.3;
+
+    /**
+     * Latency assumed before the first chunk is loaded in milliseconds.
+     */
+    private static final double INITIAL_LATENCY = 200;
+
+    /**
+     * Average speed of scrolling towards the top in rows per millisecond.
+     */
+    private double velocity;
+
+    /**
+     * Average time of loading single chunk in milliseconds.
+     */
+    private double latency = INITIAL_LATENCY;
+
+    /**
+     * The first visible row at the time of last position change or
+     * <tt>-1</tt> if the list is not being scrolled.
+     */
+    private int lastPosition = -1;
+
+    /**
+     * The time of last position change.
+     */
+    private long lastTime;
+
+    /**
+     * Notifies about the list being scrolled. Velocity is updated each time
+     * the first visible row changes.
+     *
+     * @param firstVisible the first visible row.
+     * @param now current time in milliseconds.
+     */
+    void onScroll(int firstVisible, long now)
+    {
+        if(firstVisible == lastPosition)
+            return;
+
+        if(lastPosition >= 0 && now > lastTime)
+        {
+            // Only scrolling towards older messages is relevant
+            int rows = Math.max(0, lastPosition - firstVisible);
+            double sample = rows / (double) (now - lastTime);
+
+            velocity += SMOOTHING * (sample - velocity);
+        }
+
+        lastPosition = firstVisible;
+        lastTime = now;
+    }
+
+    /**
+     * Notifies that rows have been inserted at the top of the list, so that
+     * the shift of positions is not taken for scrolling.
+     *
+     * @param count the number of inserted rows.
+     */
+    void onRowsInserted(int count)
+    {
+        if(lastPosition >= 0)
+            lastPosition += count;
+    }
+
+    /**
+     * Notifies that the list has stopped scrolling.
+     */
+    void onScrollIdle()
+    {
+        velocity = 0;
+        lastPosition = -1;
+    }
+
+    /**
+     * Notifies that a history chunk has been loaded.
+     *
+     * @param loadTime the time it took to load the chunk in milliseconds.
+     */
+    void onChunkLoaded(long loadTime)
+    {
+        latency += SMOOTHING * (loadTime - latency);
+    }
+
+    /**
+     * Returns the distance in rows from the top of the list at which the next
+     * chunk should be requested. The distance covers the rows that will be
+     * scrolled through before the chunk arrives.
+     *
+     * @return the distance in rows from the top of the list at which the next
+     *         chunk should be requested.
+     */
+    int getPrefetchDistance()
+    {
+        int rows = (int) Math.ceil(2 * velocity * latency);
+
+        return Math.max(MIN_PREFETCH_DISTANCE, rows);
+    }
+
+    /**
+     * Returns the number of messages to request in the next chunk.
+     *
+     * @return the number of messages to request in the next chunk.
+     */
+    int getChunkSize()
+    {
+        int rows = (int) Math.ceil(velocity * (latency + LOOKAHEAD_TIME));
+
+        return Math.min(MAX_CHUNK_SIZE, Math.max(MIN_CHUNK_SIZE, rows));
+    }
+
+    @Override
+    public String toString()
+    {
+        return "HistoryPrefetchPolicy(velocity: " + (int) (velocity * 1000)
+            + " rows/s, latency: " + (int) latency + " ms)";
+    }
+}
@@ -20,7 +20,10 @@ package org.jitsi.android.gui.chat;
 import java.util.*;
 
 /**
- * Class merges consecutive <tt>ChatMessage</tt> instances.
+ * Class merges consecutive <tt>ChatMessage</tt> instances. Merged text is
+ * assembled incrementally, consecutive messages are appended and corrected
+ * messages replace only their own segment of the text. Children are indexed
+ * by message UID, so that corrected messages are found in constant time.
  *
  * @author Pawel Domas
  */
@@ -37,11 +40,33 @@ public class MergedMessage
      */
     private final List<ChatMessage> children = new ArrayList<ChatMessage>();
 
+    /**
+     * Separator inserted between the texts of merged messages.
+     */
+    private static final String SEPARATOR = " <br/>";
+
+    /**
+     * Child indexes by message UID.
+     */
+    private final Map<String, Integer> childIndexes
+        = new HashMap<String, Integer>();
+
     /**
      * The message date(updated with each merge).
      */
     private Date date;
 
+    /**
+     * Merged message text or <tt>null</tt> if it has not been requested yet.
+     */
+    private StringBuilder text;
+
+    /**
+     * Start offsets in {@link #text} of the root message text and the text of
+     * each child.
+     */
+    private int[] segmentStarts;
+
     /**
      * Variable used to cache merged message content.
      */
@@ -103,25 +128,62 @@ public class MergedMessage
     {
         if(message == null)
         {
-            message = root.getMessage();
-            // Merge the text
-            for(ChatMessage ch : children)
+            if(text == null)
             {
-                message = mergeText(message, ch.getMessage());
+                // Merge the text
+                text = new StringBuilder(root.getMessage());
+                segmentStarts = new int[children.size() + 1];
+                for(int i = 0; i < children.size(); i++)
+                {
+                    appendText(i, children.get(i).getMessage());
+                }
             }
+            message = text.toString();
         }
         return message;
     }
 
     /**
-     * Utility method used for merging message contents.
-     * @param msg current message text
-     * @param nextMsg next message text to merge
-     * @return merged message text
+     * Appends the text of the child at given index to merged text.
+     *
+     * @param childIdx the index of the child.
+     * @param childText the text of the child.
+     */
+    private void appendText(int childIdx, String childText)
+    {
+        int segment = childIdx + 1;
+        if(segment >= segmentStarts.length)
+        {
+            segmentStarts = Arrays.copyOf(
+                segmentStarts, Math.max(segment + 1, segmentStarts.length * 2));
+        }
+
+        text.append(SEPARATOR);
+        segmentStarts[segment] = text.length();
+        text.append(childText);
+    }
+
+    /**
+     * Replaces the text of the child at given index in merged text.
+     *
+     * @param childIdx the index of the child.
+     * @param childText new text of the child.
      */
-    private static String mergeText(String msg, String nextMsg)
+    private void replaceText(int childIdx, String childText)
     {
-        return msg + " <br/>" + nextMsg;
+        int segment = childIdx + 1;
+        int start = segmentStarts[segment];
+        int end = segment < children.size()
+            ? segmentStarts[segment + 1] - SEPARATOR.length()
+            : text.length();
+
+        text.replace(start, end, childText);
+
+        int shift = childText.length() - (end - start);
+        for(int i = segment + 1; i <= children.size(); i++)
+        {
+            segmentStarts[i] += shift;
+        }
     }
 
     /**
@@ -143,6 +205,24 @@ public class MergedMessage
         return root.getMessageUID();
     }
 
+    /**
+     * Returns the UIDs of the root message and all merged messages.
+     *
+     * @return the UIDs of the root message and all merged messages.
+     */
+    public List<String> getMessageUIDs()
+    {
+        List<String> uids = new ArrayList<String>(childIndexes.size() + 1);
+
+        String rootUID = root.getMessageUID();
+        if(rootUID != null)
+            uids.add(rootUID);
+
+        uids.addAll(childIndexes.keySet());
+
+        return uids;
+    }
+
     /**
      * Returns the UID of the message that this message replaces, or
      * <tt>null</tt> if this is a new message.
@@ -161,33 +241,60 @@ public class MergedMessage
     @Override
     public ChatMessage mergeMessage(ChatMessage consecutiveMessage)
     {
-        ChatMessage corrected = findCorrectedMessage(consecutiveMessage);
+        int correctedIdx = indexOfCorrected(consecutiveMessage);
 
-        if(corrected == null)
+        if(correctedIdx == -1)
         {
+            int childIdx = children.size();
             children.add(consecutiveMessage);
+            indexChild(childIdx, consecutiveMessage);
             // Use the most recent date, as main date
             date = consecutiveMessage.getDate();
-            // Append the text only if we have cached content, otherwise it
-            // will be lazily generated on content request
-            if(message != null)
+            // Append the text only if it has been requested already,
+            // otherwise it will be lazily generated on content request
+            if(text != null)
             {
-                message = mergeText(message, consecutiveMessage.getMessage());
+                appendText(childIdx, consecutiveMessage.getMessage());
             }
         }
         else
         {
             // Merge chat message
+            ChatMessage corrected = children.get(correctedIdx);
             ChatMessage correctionResult
                     = corrected.mergeMessage(consecutiveMessage);
-            int correctedIdx = children.indexOf(corrected);
             children.set(correctedIdx, correctionResult);
-            // Clear content cache
-            message = null;
+
+            childIndexes.remove(corrected.getMessageUID());
+            indexChild(correctedIdx, correctionResult);
+
+            if(text != null)
+            {
+                replaceText(correctedIdx, correctionResult.getMessage());
+            }
         }
+        // Clear content cache
+        message = null;
+
         return this;
     }
 
+    /**
+     * Adds the child at given index to UID index.
+     *
+     * @param childIdx the index of the child.
+     * @param child the child message.
+     */
+    private void indexChild(int childIdx, ChatMessage child)
+    {
+        String uid = child.getMessageUID();
+        // The first message with given UID is the one that gets corrected
+        if(uid != null && !childIndexes.containsKey(uid))
+        {
+            childIndexes.put(uid, childIdx);
+        }
+    }
+
     /**
      * Returns the last child message if it has valid UID and content or
      * the root message.
@@ -239,28 +346,22 @@ public class MergedMessage
     }
 
     /**
-     * Finds the message that should be corrected by given message instance.
+     * Finds the index of the child that should be corrected by given message
+     * instance.
      * @param newMsg new message to check if it is a correction for any of
      *               merged messages.
-     * @return message that is corrected by given <tt>newMsg</tt> or
-     *         <tt>null</tt> if there isn't any.
+     * @return the index of the child that is corrected by given
+     *         <tt>newMsg</tt> or <tt>-1</tt> if there isn't any.
      */
-    private ChatMessage findCorrectedMessage(ChatMessage newMsg)
+    int indexOfCorrected(ChatMessage newMsg)
     {
-        for(ChatMessage msg : children)
-        {
-            String msgUID = msg.getMessageUID();
-            if(msgUID == null)
-            {
-                continue;
-            }
-            if(msgUID.equals(
-                    newMsg.getCorrectedMessageUID()))
-            {
-                return msg;
-            }
-        }
-        return null;
+        String correctedUID = newMsg.getCorrectedMessageUID();
+        if(correctedUID == null)
+            return -1;
+
+        Integer childIdx = childIndexes.get(correctedUID);
+
+        return childIdx != null ? childIdx : -1;
     }
 
     /**
@@ -269,7 +370,7 @@ public class MergedMessage
     @Override
     public boolean isConsecutiveMessage(ChatMessage nextMsg)
     {
-        return findCorrectedMessage(nextMsg) != null
+        return indexOfCorrected(nextMsg) != -1
                     || root.isConsecutiveMessage(nextMsg);
     }
 }
@@ -0,0 +1,349 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.gui.chat;
+
+import android.graphics.drawable.*;
+import android.os.*;
+import android.text.*;
+import android.text.Html;
+import android.text.util.*;
+
+import net.java.sip.communicator.service.replacement.*;
+import net.java.sip.communicator.service.replacement.smilies.*;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.android.gui.*;
+import org.jitsi.android.gui.util.*;
+
+import java.util.*;
+
+/**
+ * Renders chat message bodies into <tt>Spanned</tt> text outside of the UI
+ * thread, so that the UI thread only binds finished spans to the views.
+ * Rendering of messages as they arrive is serialized on single background
+ * thread shared by all chats, while history chunks are rendered on the thread
+ * that loads them.<br/>
+ * Smiley images are resolved from drawables which are loaded once, when
+ * the first message is rendered, and kept for the lifetime of the process.
+ *
+ * @author Pawel Domas
+ */
+class MessageRenderer
+{
+    /**
+     * The logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(MessageRenderer.class);
+
+    /**
+     * Image getter used to render all messages.
+     */
+    private static final SmileyImageGetter imageGetter
+        = new SmileyImageGetter();
+
+    /**
+     * The handler of the thread on which arriving messages are rendered.
+     */
+    private static Handler renderHandler;
+
+    /**
+     * Returns the handler of the thread on which arriving messages are
+     * rendered. The thread is started on first use.
+     *
+     * @return the handler of the render thread.
+     */
+    static synchronized Handler getHandler()
+    {
+        if(renderHandler == null)
+        {
+            HandlerThread thread = new HandlerThread(
+                "MessageRenderer",
+                android.os.Process.THREAD_PRIORITY_BACKGROUND);
+            thread.start();
+
+            renderHandler = new Handler(thread.getLooper());
+        }
+        return renderHandler;
+    }
+
+    /**
+     * Renders the body of given message.
+     *
+     * @param msg the message to render.
+     *
+     * @return <tt>Spanned</tt> message body.
+     */
+    static Spanned render(ChatMessage msg)
+    {
+        return render(msg.getMessage(), msg.getMessageType());
+    }
+
+    /**
+     * Renders given HTML message content.
+     *
+     * @param content HTML message content.
+     * @param msgType the type of the message.
+     *
+     * @return <tt>Spanned</tt> message body.
+     */
+    static Spanned render(String content, int msgType)
+    {
+        imageGetter.preload();
+
+        Spanned body = Html.fromHtml(content, imageGetter, null);
+
+        //TODO: adding links will destroy our links in system msgs
+        if(msgType == ChatMessage.OUTGOING_MESSAGE
+            || msgType == ChatMessage.INCOMING_MESSAGE)
+        {
+            Linkify.addLinks((Spannable) body, Linkify.ALL);
+        }
+        return body;
+    }
+
+    /**
+     * Merges consecutive messages of given history chunk and renders
+     * the bodies of merged messages. Messages must not be shared with other
+     * threads.
+     *
+     * @param history history messages ordered by date.
+     *
+     * @return merged messages with rendered bodies.
+     */
+    static List<RenderedMessage> renderHistory(Collection<ChatMessage> history)
+    {
+        List<RenderedMessage> rendered = new ArrayList<RenderedMessage>();
+        RenderedMessage previous = null;
+        for(ChatMessage next : history)
+        {
+            if(previous == null || !previous.msg.isConsecutiveMessage(next))
+            {
+                previous = new RenderedMessage(
+                    next, new MessageBody(render(next)));
+                rendered.add(previous);
+            }
+            else
+            {
+                ChatMessage merged
+                    = previous.body.merge(previous.msg, next, render(next));
+                previous = new RenderedMessage(merged, previous.body);
+                rendered.set(rendered.size() - 1, previous);
+            }
+        }
+        return rendered;
+    }
+
+    /**
+     * Chat message together with it's rendered body.
+     */
+    static class RenderedMessage
+    {
+        /**
+         * The message.
+         */
+        final ChatMessage msg;
+
+        /**
+         * Rendered message body.
+         */
+        final MessageBody body;
+
+        RenderedMessage(ChatMessage msg, MessageBody body)
+        {
+            this.msg = msg;
+            this.body = body;
+        }
+    }
+
+    /**
+     * Rendered body of a message, which consists of the rendered segments of
+     * merged messages. Consecutive messages are appended to the body, while
+     * corrections replace the segment of corrected message, so that merged
+     * messages don't have to be rendered again.<br/>
+     * This class is not thread safe.
+     */
+    static class MessageBody
+    {
+        /**
+         * Separator inserted between the segments, the result of rendering
+         * the separator of <tt>MergedMessage</tt>.
+         */
+        private static final String SEPARATOR = " \n";
+
+        /**
+         * Rendered segments of the root message and merged messages.
+         */
+        private final List<Spanned> segments = new ArrayList<Spanned>();
+
+        /**
+         * Joined segments or <tt>null</tt> if they have to be joined again.
+         */
+        private SpannableStringBuilder joined;
+
+        /**
+         * Creates new instance of <tt>MessageBody</tt>.
+         *
+         * @param root rendered body of the root message.
+         */
+        MessageBody(Spanned root)
+        {
+            segments.add(root);
+        }
+
+        /**
+         * Merges given consecutive message into <tt>target</tt> message and
+         * updates the body accordingly.
+         *
+         * @param target the message displayed with this body.
+         * @param next the consecutive message.
+         * @param nextBody rendered body of <tt>next</tt>.
+         *
+         * @return the merged message, as returned by
+         *         <tt>target.mergeMessage(next)</tt>.
+         */
+        ChatMessage merge(ChatMessage target, ChatMessage next,
+                          Spanned nextBody)
+        {
+            int correctedIdx = target instanceof MergedMessage
+                ? ((MergedMessage) target).indexOfCorrected(next) : -1;
+
+            ChatMessage merged = target.mergeMessage(next);
+
+            if(merged == next)
+            {
+                // Message has been replaced by it's correction
+                segments.clear();
+                segments.add(nextBody);
+                joined = null;
+            }
+            else if(correctedIdx != -1)
+            {
+                // One of merged messages has been corrected
+                segments.set(correctedIdx + 1, nextBody);
+                joined = null;
+            }
+            else
+            {
+                segments.add(nextBody);
+                if(joined != null)
+                {
+                    joined.append(SEPARATOR);
+                    joined.append(nextBody);
+                }
+            }
+            return merged;
+        }
+
+        /**
+         * Returns the <tt>Spanned</tt> body. The returned instance must not be
+         * modified and may change on next merge.
+         *
+         * @return the <tt>Spanned</tt> body.
+         */
+        Spanned getSpanned()
+        {
+            if(segments.size() == 1)
+                return segments.get(0);
+
+            if(joined == null)
+            {
+                joined = new SpannableStringBuilder(segments.get(0));
+                for(int i = 1; i < segments.size(); i++)
+                {
+                    joined.append(SEPARATOR);
+                    joined.append(segments.get(i));
+                }
+            }
+            return joined;
+        }
+    }
+
+    /**
+     * Image getter which keeps smiley drawables in memory, so that they are
+     * not decoded again after the drawable cache has been trimmed. Other
+     * images are obtained from <tt>HtmlImageGetter</tt>.
+     */
+    private static class SmileyImageGetter
+        implements Html.ImageGetter
+    {
+        /**
+         * Image getter used to load the drawables.
+         */
+        private final HtmlImageGetter loader = new HtmlImageGetter();
+
+        /**
+         * Smiley drawables by image source.
+         */
+        private final Map<String, Drawable> smileys
+            = new HashMap<String, Drawable>();
+
+        /**
+         * Indicates that smiley drawables have been loaded.
+         */
+        private boolean preloaded;
+
+        /**
+         * Loads drawables of all smileys, unless already done.
+         */
+        synchronized void preload()
+        {
+            if(preloaded || AndroidGUIActivator.bundleContext == null)
+                return;
+
+            long start = System.currentTimeMillis();
+
+            for(ReplacementService source
+                : AndroidGUIActivator.getReplacementSources())
+            {
+                if(!(source instanceof SmiliesReplacementService))
+                    continue;
+
+                for(Smiley smiley
+                    : ((SmiliesReplacementService) source).getSmiliesPack())
+                {
+                    String smileyStr = smiley.getDefaultString();
+                    String imageSrc = source.getReplacement(smileyStr);
+                    if(imageSrc.equals(smileyStr)
+                        || smileys.containsKey(imageSrc))
+                        continue;
+
+                    Drawable drawable = loader.getDrawable(imageSrc);
+                    if(drawable != null)
+                        smileys.put(imageSrc, drawable);
+                }
+            }
+            preloaded = true;
+
+            if(logger.isDebugEnabled())
+                logger.debug("Loaded " + smileys.size() + " smileys in "
+                    + (System.currentTimeMillis() - start) + " ms");
+        }
+
+        /**
+         * {@inheritDoc}
+         */
+        @Override
+        public synchronized Drawable getDrawable(String source)
+        {
+            Drawable drawable = smileys.get(source);
+
+            return drawable != null ? drawable : loader.getDrawable(source);
+        }
+    }
+}
@@ -0,0 +1,195 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.gui.chat;
+
+import java.util.*;
+
+/**
+ * The rows of the chat list. Consecutive messages are merged into the last
+ * row and corrections (XEP-0308) into the row which displays the corrected
+ * message, which is found through <tt>MessageUidIndex</tt>. Older messages
+ * loaded from the history are prepended as rows already merged.<br/>
+ * This class is not thread safe, the chat list adapter accesses it on the UI
+ * thread only.
+ *
+ * @param <R> the type of rows.
+ * @param <B> the type of rendered message bodies.
+ *
+ * @author Pawel Domas
+ */
+public abstract class MessageRowList<R, B>
+{
+    /**
+     * The rows in list order.
+     */
+    private final List<R> rows = new ArrayList<R>();
+
+    /**
+     * Positions of {@link #rows} by the UIDs of displayed messages.
+     */
+    private final MessageUidIndex<R> uidIndex = new MessageUidIndex<R>();
+
+    /**
+     * Creates the row which displays given message.
+     *
+     * @param msg the message.
+     * @param body rendered body of <tt>msg</tt>.
+     *
+     * @return new row which displays <tt>msg</tt>.
+     */
+    protected abstract R createRow(ChatMessage msg, B body);
+
+    /**
+     * Returns the message displayed in given row.
+     *
+     * @param row the row.
+     *
+     * @return the message displayed in <tt>row</tt>.
+     */
+    protected abstract ChatMessage getMessage(R row);
+
+    /**
+     * Merges consecutive message or correction into given row.
+     *
+     * @param row the row to update.
+     * @param next the consecutive message or correction.
+     * @param nextBody rendered body of <tt>next</tt>.
+     */
+    protected abstract void merge(R row, ChatMessage next, B nextBody);
+
+    /**
+     * Adds given message to the row which handles merging it or appends new
+     * row, if the message isn't consecutive.
+     *
+     * @param newMessage the message to add.
+     * @param body rendered body of <tt>newMessage</tt>.
+     *
+     * @return the position of the row which displays <tt>newMessage</tt>.
+     *         The row has been appended, if it's the last one and the size of
+     *         the list has grown.
+     */
+    public int addMessage(ChatMessage newMessage, B body)
+    {
+        int lastMsgIdx = getLastMessageIdx(newMessage);
+        ChatMessage lastMsg = lastMsgIdx != -1
+            ? getMessage(rows.get(lastMsgIdx)) : null;
+
+        if(lastMsg == null || !lastMsg.isConsecutiveMessage(newMessage))
+        {
+            R row = createRow(newMessage, body);
+            rows.add(row);
+            uidIndex.append(row, MessageUidIndex.getUids(newMessage));
+
+            return rows.size() - 1;
+        }
+
+        // Merge the message and update the row
+        R row = rows.get(lastMsgIdx);
+        merge(row, newMessage, body);
+
+        uidIndex.removeUid(newMessage.getCorrectedMessageUID());
+        uidIndex.addUid(newMessage.getMessageUID(), row);
+
+        return lastMsgIdx;
+    }
+
+    /**
+     * Finds index of the row that will handle <tt>newMessage</tt> merging
+     * process (usually just the last one). If the <tt>newMessage</tt> is
+     * a correction message, then the row displaying the corrected one will be
+     * returned.
+     *
+     * @param newMessage the next message to be merged into the list.
+     *
+     * @return index of the row that will handle <tt>newMessage</tt> merging
+     *         process or <tt>-1</tt> if the list is empty.
+     */
+    public int getLastMessageIdx(ChatMessage newMessage)
+    {
+        String correctedUID = newMessage.getCorrectedMessageUID();
+        if(correctedUID != null)
+        {
+            int correctedIdx = uidIndex.indexOf(correctedUID);
+            if(correctedIdx != -1)
+                return correctedIdx;
+        }
+        return rows.size() - 1;
+    }
+
+    /**
+     * Inserts given rows at the beginning of the list.
+     *
+     * @param newRows the rows of merged history messages in list order.
+     */
+    public void prepend(List<R> newRows)
+    {
+        List<Collection<String>> uids
+            = new ArrayList<Collection<String>>(newRows.size());
+        for(R row : newRows)
+        {
+            uids.add(MessageUidIndex.getUids(getMessage(row)));
+        }
+        rows.addAll(0, newRows);
+        uidIndex.prepend(newRows, uids);
+    }
+
+    /**
+     * Returns the position of the row which displays the message with given
+     * UID.
+     *
+     * @param uid the message UID.
+     *
+     * @return the position of the row or <tt>-1</tt> if no row displays
+     *         the message.
+     */
+    public int indexOf(String uid)
+    {
+        return uidIndex.indexOf(uid);
+    }
+
+    /**
+     * Returns the row at given position.
+     *
+     * @param position the position of the row.
+     *
+     * @return the row at given position.
+     */
+    public R get(int position)
+    {
+        return rows.get(position);
+    }
+
+    /**
+     * Returns the number of rows.
+     *
+     * @return the number of rows.
+     */
+    public int size()
+    {
+        return rows.size();
+    }
+
+    /**
+     * Removes all rows.
+     */
+    public void clear()
+    {
+        rows.clear();
+        uidIndex.clear();
+    }
+}
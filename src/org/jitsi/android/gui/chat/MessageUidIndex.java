@@ -0,0 +1,177 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.gui.chat;
+
+import java.util.*;
+
+/**
+ * Finds the positions of chat list rows by the UIDs of displayed messages in
+ * constant time. Rows are appended at the end or prepended at the beginning of
+ * the list, as done by the chat list adapter, so each row gets a sequence
+ * number from which it's position is computed without updating the index when
+ * rows are prepended.<br/>
+ * This class is not thread safe.
+ *
+ * @param <R> the type of rows.
+ *
+ * @author Pawel Domas
+ */
+public class MessageUidIndex<R>
+{
+    /**
+     * Rows by the UIDs of displayed messages.
+     */
+    private final Map<String, R> rowsByUid = new HashMap<String, R>();
+
+    /**
+     * Sequence numbers of the rows.
+     */
+    private final Map<R, Integer> sequences = new IdentityHashMap<R, Integer>();
+
+    /**
+     * The sequence number of the first row.
+     */
+    private int firstSequence;
+
+    /**
+     * Registers given row appended at the end of the list.
+     *
+     * @param row the appended row.
+     * @param uids the UIDs of messages displayed in the row.
+     */
+    public void append(R row, Collection<String> uids)
+    {
+        sequences.put(row, firstSequence + sequences.size());
+        addUids(row, uids);
+    }
+
+    /**
+     * Registers given rows prepended at the beginning of the list.
+     *
+     * @param rows the prepended rows in list order.
+     * @param uids the UIDs of messages displayed in each of the rows.
+     */
+    public void prepend(List<R> rows, List<? extends Collection<String>> uids)
+    {
+        firstSequence -= rows.size();
+        for(int i = 0; i < rows.size(); i++)
+        {
+            R row = rows.get(i);
+
+            sequences.put(row, firstSequence + i);
+            addUids(row, uids.get(i));
+        }
+    }
+
+    /**
+     * Maps given UIDs to the row.
+     *
+     * @param row the row which displays messages with given UIDs.
+     * @param uids the message UIDs.
+     */
+    private void addUids(R row, Collection<String> uids)
+    {
+        for(String uid : uids)
+        {
+            addUid(uid, row);
+        }
+    }
+
+    /**
+     * Maps the UID of a message merged into existing row to that row.
+     *
+     * @param uid the message UID, <tt>null</tt> is ignored.
+     * @param row the row which displays the message.
+     */
+    public void addUid(String uid, R row)
+    {
+        if(uid != null)
+            rowsByUid.put(uid, row);
+    }
+
+    /**
+     * Removes the UID of a message which is no longer displayed, because it
+     * has been corrected.
+     *
+     * @param uid the message UID, <tt>null</tt> is ignored.
+     */
+    public void removeUid(String uid)
+    {
+        if(uid != null)
+            rowsByUid.remove(uid);
+    }
+
+    /**
+     * Returns the position of the row which displays the message with given
+     * UID.
+     *
+     * @param uid the message UID.
+     *
+     * @return the position of the row or <tt>-1</tt> if no row displays
+     *         the message.
+     */
+    public int indexOf(String uid)
+    {
+        R row = rowsByUid.get(uid);
+
+        return row != null ? indexOfRow(row) : -1;
+    }
+
+    /**
+     * Returns the position of given row.
+     *
+     * @param row the row.
+     *
+     * @return the position of given row or <tt>-1</tt> if it's not registered.
+     */
+    public int indexOfRow(R row)
+    {
+        Integer sequence = sequences.get(row);
+
+        return sequence != null ? sequence - firstSequence : -1;
+    }
+
+    /**
+     * Removes all rows.
+     */
+    public void clear()
+    {
+        rowsByUid.clear();
+        sequences.clear();
+        firstSequence = 0;
+    }
+
+    /**
+     * Returns the UIDs of given message and all messages merged into it.
+     *
+     * @param msg the message.
+     *
+     * @return the UIDs of given message and all messages merged into it.
+     */
+    public static Collection<String> getUids(ChatMessage msg)
+    {
+        if(msg instanceof MergedMessage)
+            return ((MergedMessage) msg).getMessageUIDs();
+
+        String uid = msg.getMessageUID();
+
+        return uid != null
+            ? Collections.singletonList(uid)
+            : Collections.<String>emptyList();
+    }
+}
@@ -0,0 +1,523 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.gui.chat;
+
+import net.java.sip.communicator.service.protocol.*;
+import net.java.sip.communicator.service.protocol.event.*;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.android.gui.*;
+import org.jitsi.service.configuration.*;
+
+import java.util.*;
+import java.util.concurrent.*;
+
+/**
+ * Queue of messages sent by the user in single chat session. Queues of all
+ * sessions are drained by the sender executor shared by all chats, one
+ * message at a time per session, so that messages leave in the order they
+ * have been sent. When the transport is not available, sending is retried
+ * with increasing delay until {@link #MAX_RETRY_TIME} elapses and then
+ * the failure is reported as <tt>MessageDeliveryFailedEvent</tt>.<br/>
+ * Each message sent by the user is sent separately. Short messages which
+ * have piled up in the queue, while previous message was being sent or
+ * waiting for the transport, can be sent as single message only if enabled
+ * with {@link #COALESCE_MESSAGES_PROPERTY}. The protocols don't batch
+ * messages, so the contact would receive one merged message instead of
+ * the ones the user has sent.
+ *
+ * @author Pawel Domas
+ */
+class OutgoingMessageQueue
+{
+    /**
+     * The logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(OutgoingMessageQueue.class);
+
+    /**
+     * The name of configuration property which enables coalescing of queued
+     * messages. Disabled by default.
+     */
+    static final String COALESCE_MESSAGES_PROPERTY
+        = "org.jitsi.android.chat.COALESCE_OUTGOING_MESSAGES";
+
+    /**
+     * The number of threads of the sender executor.
+     */
+    private static final int SENDER_THREADS = 2;
+
+    /**
+     * The maximal length of a message that can be coalesced with other ones.
+     */
+    static final int MAX_COALESCED_MESSAGE_LENGTH = 200;
+
+    /**
+     * The maximal length of coalesced message.
+     */
+    static final int MAX_COALESCED_LENGTH = 1000;
+
+    /**
+     * The delay before first retry in milliseconds.
+     */
+    private static final long INITIAL_RETRY_DELAY = 1000;
+
+    /**
+     * The maximal delay between retries in milliseconds.
+     */
+    private static final long MAX_RETRY_DELAY = 10000;
+
+    /**
+     * How long the sending is retried before the failure is reported in
+     * milliseconds.
+     */
+    static final long MAX_RETRY_TIME = 120000;
+
+    /**
+     * Weight of the new sample in the average send latency.
+     */
+    private static final double LATENCY_SMOOTHING = 0.2;
+
+    /**
+     * Message has been sent.
+     */
+    private static final int RESULT_SENT = 0;
+
+    /**
+     * Transport is not available, sending should be retried.
+     */
+    private static final int RESULT_RETRY = 1;
+
+    /**
+     * Message could not be sent.
+     */
+    private static final int RESULT_FAILED = 2;
+
+    /**
+     * The sender executor shared by all queues.
+     */
+    private static ScheduledExecutorService senderExecutor;
+
+    /**
+     * The contact to which the messages are sent.
+     */
+    private final Contact contact;
+
+    /**
+     * The listener notified about messages that could not be sent.
+     */
+    private final MessageListener failureListener;
+
+    /**
+     * Messages waiting to be sent.
+     */
+    private final LinkedList<Outgoing> queue = new LinkedList<Outgoing>();
+
+    /**
+     * Drains the queue on the sender executor.
+     */
+    private final Runnable drainTask = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            drain();
+        }
+    };
+
+    /**
+     * Indicates that the drain task has been scheduled or is running.
+     */
+    private boolean draining;
+
+    /**
+     * The delay of the next retry in milliseconds.
+     */
+    private long retryDelay = INITIAL_RETRY_DELAY;
+
+    /**
+     * The time of the first failed attempt to send the head of the queue or
+     * <tt>-1</tt> if it has not failed.
+     */
+    private long firstFailureTime = -1;
+
+    /**
+     * Average time from queuing a message to sending it in milliseconds.
+     */
+    private double averageLatency;
+
+    /**
+     * The number of sent messages.
+     */
+    private long sentCount;
+
+    /**
+     * Indicates that the queue has been disposed.
+     */
+    private boolean disposed;
+
+    /**
+     * Creates new instance of <tt>OutgoingMessageQueue</tt>.
+     *
+     * @param contact the contact to which the messages will be sent.
+     * @param failureListener the listener notified about messages that could
+     *                        not be sent.
+     */
+    OutgoingMessageQueue(Contact contact, MessageListener failureListener)
+    {
+        this.contact = contact;
+        this.failureListener = failureListener;
+    }
+
+    /**
+     * Returns the sender executor shared by all queues.
+     *
+     * @return the sender executor shared by all queues.
+     */
+    private static synchronized ScheduledExecutorService getSenderExecutor()
+    {
+        if(senderExecutor == null)
+        {
+            senderExecutor = Executors.newScheduledThreadPool(
+                SENDER_THREADS,
+                new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "ChatMessageSender");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return senderExecutor;
+    }
+
+    /**
+     * Queues given message for sending.
+     *
+     * @param message the message text.
+     */
+    synchronized void send(String message)
+    {
+        if(disposed)
+        {
+            logger.warn("Message sent to disposed queue of "
+                            + contact.getAddress());
+            return;
+        }
+
+        queue.add(new Outgoing(message, System.currentTimeMillis()));
+
+        if(!draining)
+        {
+            draining = true;
+            getSenderExecutor().execute(drainTask);
+        }
+    }
+
+    /**
+     * Returns the number of messages waiting to be sent.
+     *
+     * @return the number of messages waiting to be sent.
+     */
+    synchronized int getQueueDepth()
+    {
+        return queue.size();
+    }
+
+    /**
+     * Returns average time from queuing a message to sending it.
+     *
+     * @return average send latency in milliseconds.
+     */
+    synchronized long getAverageLatency()
+    {
+        return (long) averageLatency;
+    }
+
+    /**
+     * Disposes the queue. New messages are no longer accepted, but queued
+     * messages are still sent and failures are only logged.
+     */
+    synchronized void dispose()
+    {
+        disposed = true;
+    }
+
+    /**
+     * Sends queued messages in order. Runs on the sender executor.
+     */
+    private void drain()
+    {
+        while (true)
+        {
+            List<Outgoing> batch;
+            boolean coalesce = isCoalescingEnabled();
+
+            synchronized (this)
+            {
+                if(queue.isEmpty())
+                {
+                    draining = false;
+                    return;
+                }
+                batch = peekBatch(coalesce);
+            }
+
+            String text = joinText(batch);
+            int result = sendText(text);
+
+            boolean report;
+            synchronized (this)
+            {
+                long now = System.currentTimeMillis();
+                if(result == RESULT_RETRY
+                    && (firstFailureTime == -1
+                        || now - firstFailureTime < MAX_RETRY_TIME))
+                {
+                    if(firstFailureTime == -1)
+                        firstFailureTime = now;
+
+                    if(logger.isDebugEnabled())
+                        logger.debug("Transport to " + contact.getAddress()
+                            + " not available, retry in " + retryDelay
+                            + " ms, queued: " + queue.size());
+
+                    getSenderExecutor().schedule(
+                        drainTask, retryDelay, TimeUnit.MILLISECONDS);
+                    retryDelay = Math.min(2 * retryDelay, MAX_RETRY_DELAY);
+                    return;
+                }
+
+                for(int i = 0; i < batch.size(); i++)
+                {
+                    queue.removeFirst();
+                }
+                firstFailureTime = -1;
+                retryDelay = INITIAL_RETRY_DELAY;
+
+                if(result == RESULT_SENT)
+                {
+                    for(Outgoing outgoing : batch)
+                    {
+                        averageLatency += LATENCY_SMOOTHING
+                            * (now - outgoing.queueTime - averageLatency);
+                    }
+                    sentCount += batch.size();
+
+                    if(logger.isDebugEnabled())
+                        logger.debug("Sent " + batch.size() + " message(s) to "
+                            + contact.getAddress() + ", queued: "
+                            + queue.size() + ", average latency: "
+                            + (long) averageLatency + " ms, total sent: "
+                            + sentCount);
+                }
+
+                report = !disposed;
+            }
+
+            if(result != RESULT_SENT)
+            {
+                if(report)
+                {
+                    reportFailure(text, result == RESULT_RETRY
+                        ? MessageDeliveryFailedEvent.PROVIDER_NOT_REGISTERED
+                        : MessageDeliveryFailedEvent.INTERNAL_ERROR);
+                }
+                else
+                {
+                    logger.error("Failed to send message to "
+                                     + contact.getAddress()
+                                     + " after the chat has been closed");
+                }
+            }
+        }
+    }
+
+    /**
+     * Returns messages from the head of the queue which will be sent as
+     * single message. Must be called with the lock held.
+     *
+     * @param coalesce if <tt>true</tt> short messages will be coalesced.
+     *
+     * @return messages from the head of the queue which will be sent as
+     *         single message.
+     */
+    private List<Outgoing> peekBatch(boolean coalesce)
+    {
+        Outgoing first = queue.getFirst();
+        if(!coalesce
+            || queue.size() == 1
+            || first.text.length() > MAX_COALESCED_MESSAGE_LENGTH)
+        {
+            return Collections.singletonList(first);
+        }
+
+        List<Outgoing> batch = new ArrayList<Outgoing>();
+        int length = 0;
+        for(Outgoing next : queue)
+        {
+            int nextLength = next.text.length();
+            if(nextLength > MAX_COALESCED_MESSAGE_LENGTH
+                || length + nextLength > MAX_COALESCED_LENGTH)
+                break;
+
+            batch.add(next);
+            // Line separator
+            length += nextLength + 1;
+        }
+        return batch;
+    }
+
+    /**
+     * Joins the texts of given messages with line separators.
+     *
+     * @param batch the messages to join.
+     *
+     * @return joined texts.
+     */
+    private static String joinText(List<Outgoing> batch)
+    {
+        if(batch.size() == 1)
+            return batch.get(0).text;
+
+        StringBuilder text = new StringBuilder();
+        for(Outgoing outgoing : batch)
+        {
+            if(text.length() > 0)
+                text.append('\n');
+            text.append(outgoing.text);
+        }
+        return text.toString();
+    }
+
+    /**
+     * Returns <tt>true</tt> if queued messages can be coalesced, which has to
+     * be enabled with {@link #COALESCE_MESSAGES_PROPERTY}.
+     *
+     * @return <tt>true</tt> if queued messages can be coalesced.
+     */
+    private boolean isCoalescingEnabled()
+    {
+        ConfigurationService cfg
+            = AndroidGUIActivator.getConfigurationService();
+
+        return cfg != null && cfg.getBoolean(COALESCE_MESSAGES_PROPERTY, false);
+    }
+
+    /**
+     * Returns the instant messaging operation set of the contact's protocol
+     * provider.
+     *
+     * @return the instant messaging operation set or <tt>null</tt> if it's
+     *         not available.
+     */
+    private OperationSetBasicInstantMessaging getImOpSet()
+    {
+        ProtocolProviderService pps = contact.getProtocolProvider();
+
+        return pps != null
+            ? pps.getOperationSet(OperationSetBasicInstantMessaging.class)
+            : null;
+    }
+
+    /**
+     * Sends given text to the contact.
+     *
+     * @param text the message text.
+     *
+     * @return one of <tt>RESULT_</tt> constants.
+     */
+    private int sendText(String text)
+    {
+        ProtocolProviderService pps = contact.getProtocolProvider();
+        OperationSetBasicInstantMessaging imOpSet = getImOpSet();
+
+        if(imOpSet == null || !pps.isRegistered())
+            return RESULT_RETRY;
+
+        try
+        {
+            Message msg = imOpSet.createMessage(text);
+
+            imOpSet.sendInstantMessage(
+                contact, ContactResource.BASE_RESOURCE, msg);
+
+            return RESULT_SENT;
+        }
+        catch (IllegalStateException e)
+        {
+            // Provider has been unregistered in the meantime
+            logger.warn("Failed to send message to " + contact.getAddress()
+                            + ": " + e.getMessage());
+            return RESULT_RETRY;
+        }
+        catch (Exception e)
+        {
+            logger.error("Failed to send message to "
+                             + contact.getAddress(), e);
+            return RESULT_FAILED;
+        }
+    }
+
+    /**
+     * Notifies the failure listener that given message could not be sent.
+     *
+     * @param text the message text.
+     * @param errorCode <tt>MessageDeliveryFailedEvent</tt> error code.
+     */
+    private void reportFailure(String text, int errorCode)
+    {
+        OperationSetBasicInstantMessaging imOpSet = getImOpSet();
+        if(imOpSet == null)
+        {
+            logger.error("No instant messaging operation set for "
+                             + contact.getAddress() + ", message dropped");
+            return;
+        }
+
+        failureListener.messageDeliveryFailed(
+            new MessageDeliveryFailedEvent(
+                imOpSet.createMessage(text), contact, errorCode));
+    }
+
+    /**
+     * Queued message.
+     */
+    private static class Outgoing
+    {
+        /**
+         * The message text.
+         */
+        final String text;
+
+        /**
+         * The time when the message has been queued.
+         */
+        final long queueTime;
+
+        Outgoing(String text, long queueTime)
+        {
+            this.text = text;
+            this.queueTime = queueTime;
+        }
+    }
+}
@@ -0,0 +1,377 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.gui.chat;
+
+import net.java.sip.communicator.service.replacement.*;
+import net.java.sip.communicator.service.replacement.smilies.*;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.android.gui.*;
+import org.jitsi.service.configuration.*;
+
+import org.osgi.framework.*;
+
+import java.beans.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Replaces smileys in chat messages with HTML image tags. Patterns of all
+ * smiley replacement sources are combined into single <tt>Pattern</tt>, which
+ * is compiled once and reused for every message, so that each message is
+ * processed in a single pass. The pattern is rebuilt only when replacement
+ * services are registered or unregistered, or when smiley replacement setting
+ * changes.
+ *
+ * @author Pawel Domas
+ */
+public class SmileyReplacer
+    implements ServiceListener,
+               PropertyChangeListener
+{
+    /**
+     * The logger.
+     */
+    private static final Logger logger = Logger.getLogger(SmileyReplacer.class);
+
+    /**
+     * The name of the property which enables smiley replacement.
+     */
+    static final String SMILEY_PROPERTY
+        = ReplacementProperty.getPropertyName("SMILEY");
+
+    /**
+     * Output buffer is released after processing a message if it has grown
+     * above this capacity.
+     */
+    private static final int MAX_RETAINED_CAPACITY = 8 * 1024;
+
+    /**
+     * Replacement sources used instead of the ones registered in OSGi or
+     * <tt>null</tt> if registered services are used.
+     */
+    private final List<ReplacementService> fixedSources;
+
+    /**
+     * The <tt>BundleContext</tt> this instance has been started with.
+     */
+    private BundleContext bundleContext;
+
+    /**
+     * The <tt>ConfigurationService</tt> which is observed for smiley setting
+     * changes.
+     */
+    private ConfigurationService config;
+
+    /**
+     * Current replacement engine or <tt>null</tt> if it has to be rebuilt.
+     */
+    private Engine engine;
+
+    /**
+     * Output buffer reused for all messages.
+     */
+    private StringBuilder buffer = new StringBuilder();
+
+    /**
+     * Creates new instance of <tt>SmileyReplacer</tt> which uses smiley
+     * replacement services registered in OSGi.
+     */
+    public SmileyReplacer()
+    {
+        this.fixedSources = null;
+    }
+
+    /**
+     * Creates new instance of <tt>SmileyReplacer</tt> which uses given
+     * replacement sources. Smiley replacement is always enabled.
+     *
+     * @param sources the replacement sources to use. Only
+     *                <tt>SmiliesReplacementService</tt>s are taken into
+     *                account.
+     */
+    public SmileyReplacer(Collection<? extends ReplacementService> sources)
+    {
+        this.fixedSources = new ArrayList<ReplacementService>(sources);
+    }
+
+    /**
+     * Starts observing replacement services and smiley replacement setting.
+     *
+     * @param bundleContext the OSGi bundle context.
+     */
+    public void start(BundleContext bundleContext)
+    {
+        ConfigurationService config
+            = ServiceUtils.getService(
+                bundleContext, ConfigurationService.class);
+
+        synchronized (this)
+        {
+            this.bundleContext = bundleContext;
+            this.config = config;
+            this.engine = null;
+        }
+
+        try
+        {
+            bundleContext.addServiceListener(
+                this,
+                "(objectclass=" + ReplacementService.class.getName() + ")");
+        }
+        catch (InvalidSyntaxException e)
+        {
+            // Never happens, the filter is constant
+            throw new RuntimeException(e);
+        }
+
+        if(config != null)
+            config.addPropertyChangeListener(SMILEY_PROPERTY, this);
+    }
+
+    /**
+     * Stops observing replacement services and smiley replacement setting.
+     */
+    public void stop()
+    {
+        BundleContext bundleContext;
+        ConfigurationService config;
+
+        synchronized (this)
+        {
+            bundleContext = this.bundleContext;
+            config = this.config;
+
+            this.bundleContext = null;
+            this.config = null;
+            this.engine = null;
+        }
+
+        if(bundleContext != null)
+            bundleContext.removeServiceListener(this);
+
+        if(config != null)
+            config.removePropertyChangeListener(SMILEY_PROPERTY, this);
+    }
+
+    /**
+     * Drops current replacement engine, so that it will be rebuilt before
+     * processing next message.
+     */
+    public synchronized void invalidate()
+    {
+        engine = null;
+    }
+
+    /**
+     * Replacement services have changed.
+     *
+     * @param serviceEvent the service event.
+     */
+    @Override
+    public void serviceChanged(ServiceEvent serviceEvent)
+    {
+        invalidate();
+    }
+
+    /**
+     * Smiley replacement setting has changed.
+     *
+     * @param evt the property change event.
+     */
+    @Override
+    public void propertyChange(PropertyChangeEvent evt)
+    {
+        invalidate();
+    }
+
+    /**
+     * Replaces smileys found in given <tt>content</tt> with HTML image tags.
+     *
+     * @param content the message content to process.
+     *
+     * @return message content with smileys replaced or <tt>content</tt> if
+     *         nothing has been replaced.
+     */
+    public synchronized String replace(String content)
+    {
+        if(content == null || content.length() == 0)
+            return content;
+
+        if(engine == null)
+            engine = buildEngine();
+
+        Matcher m = engine.matcher;
+        if(m == null)
+            return content;
+
+        m.reset(content);
+        if(!m.find())
+            return content;
+
+        StringBuilder msgBuff = buffer;
+        msgBuff.setLength(0);
+
+        int startPos = 0;
+        do
+        {
+            msgBuff.append(content, startPos, m.start());
+            startPos = m.end();
+
+            String group = m.group();
+            String replacement = engine.getSource(m).getReplacement(group);
+
+            if(!replacement.equals(group))
+            {
+                msgBuff.append("<IMG SRC=\"");
+                msgBuff.append(replacement);
+                msgBuff.append("\" BORDER=\"0\" ALT=\"");
+                msgBuff.append(group);
+                msgBuff.append("\"></IMG>");
+            }
+            else
+            {
+                msgBuff.append(group);
+            }
+        }
+        while (m.find());
+
+        msgBuff.append(content, startPos, content.length());
+
+        String output = msgBuff.toString();
+
+        // Don't hold the memory of exceptionally long message
+        if(msgBuff.capacity() > MAX_RETAINED_CAPACITY)
+            buffer = new StringBuilder();
+        // Nor the content
+        m.reset("");
+
+        return output;
+    }
+
+    /**
+     * Builds the replacement engine from current replacement sources and
+     * settings.
+     *
+     * @return new replacement engine.
+     */
+    private Engine buildEngine()
+    {
+        List<ReplacementService> sources;
+        if(fixedSources != null)
+        {
+            sources = fixedSources;
+        }
+        else
+        {
+            if(config != null
+                && !config.getBoolean(SMILEY_PROPERTY, true))
+            {
+                return new Engine(null, null, null);
+            }
+            sources = AndroidGUIActivator.getReplacementSources();
+        }
+
+        List<ReplacementService> smileySources
+            = new ArrayList<ReplacementService>();
+        for(ReplacementService source : sources)
+        {
+            if(source instanceof SmiliesReplacementService)
+                smileySources.add(source);
+        }
+
+        if(smileySources.isEmpty())
+            return new Engine(null, null, null);
+
+        // Each source pattern is wrapped in a group, so that the source can
+        // be found for each match. Groups of source patterns are counted to
+        // find the index of the group that wraps the next source.
+        int[] groups = new int[smileySources.size()];
+        StringBuilder combined = new StringBuilder();
+        int groupIdx = 1;
+        for(int i = 0; i < smileySources.size(); i++)
+        {
+            String sourcePattern = smileySources.get(i).getPattern();
+            if(i > 0)
+                combined.append('|');
+            combined.append('(').append(sourcePattern).append(')');
+
+            groups[i] = groupIdx;
+            groupIdx += 1 + Pattern.compile(sourcePattern)
+                .matcher("").groupCount();
+        }
+
+        Pattern pattern = Pattern.compile(
+            combined.toString(), Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+
+        if(logger.isDebugEnabled())
+            logger.debug("Compiled smiley pattern of "
+                             + smileySources.size() + " sources");
+
+        return new Engine(
+            pattern.matcher(""),
+            smileySources.toArray(new ReplacementService[groups.length]),
+            groups);
+    }
+
+    /**
+     * Compiled smiley pattern and the sources it has been built from.
+     */
+    private static class Engine
+    {
+        /**
+         * Reusable matcher of the combined pattern or <tt>null</tt> if there
+         * are no smileys to replace.
+         */
+        private final Matcher matcher;
+
+        /**
+         * Smiley replacement sources.
+         */
+        private final ReplacementService[] sources;
+
+        /**
+         * Index of the group that wraps the pattern of each source.
+         */
+        private final int[] groups;
+
+        Engine(Matcher matcher, ReplacementService[] sources, int[] groups)
+        {
+            this.matcher = matcher;
+            this.sources = sources;
+            this.groups = groups;
+        }
+
+        /**
+         * Returns the source which pattern has produced current match.
+         *
+         * @param m the matcher positioned at the match.
+         *
+         * @return the source which pattern has produced current match.
+         */
+        ReplacementService getSource(Matcher m)
+        {
+            for(int i = 0; i < groups.length - 1; i++)
+            {
+                if(m.start(groups[i]) != -1)
+                    return sources[i];
+            }
+            return sources[groups.length - 1];
+        }
+    }
+}
@@ -18,6 +18,7 @@
 package org.jitsi.android.gui.chat;
 
 import java.util.*;
+import java.util.concurrent.*;
 
 import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.protocol.*;
@@ -36,7 +37,48 @@ import android.widget.*;
  */
 public class TypingNotificationHandler
 {
-    private static Timer typingTimer = new Timer();
+    /**
+     * The time after which typing notification is removed from the chat,
+     * unless another typing event is received.
+     */
+    private static final long TYPING_TIMEOUT = 5000;
+
+    /**
+     * The deadlines when typing notifications expire by chat fragment. Each
+     * chat has an entry as long as it has expiry task scheduled.
+     */
+    private static final Map<ChatFragment, Long> typingDeadlines
+        = new HashMap<ChatFragment, Long>();
+
+    /**
+     * The scheduler shared by incoming and outgoing typing notifications.
+     */
+    private static ScheduledExecutorService scheduler;
+
+    /**
+     * Returns the scheduler which runs typing notification tasks of all
+     * chats. The thread is started on first use.
+     *
+     * @return the typing notification scheduler.
+     */
+    static synchronized ScheduledExecutorService getScheduler()
+    {
+        if(scheduler == null)
+        {
+            scheduler = Executors.newSingleThreadScheduledExecutor(
+                new ThreadFactory()
+                {
+                    @Override
+                    public Thread newThread(Runnable r)
+                    {
+                        Thread thread = new Thread(r, "TypingNotifications");
+                        thread.setDaemon(true);
+                        return thread;
+                    }
+                });
+        }
+        return scheduler;
+    }
 
     /**
      * Informs the user what is the typing state of his chat contacts.
@@ -48,9 +90,6 @@ public class TypingNotificationHandler
                                                 TypingNotificationEvent evt,
                                                 ChatFragment chatFragment)
     {
-        typingTimer.cancel();
-        typingTimer = new Timer();
-
         // If the ChatFragment is null we have nothing more to do here.
         if (chatFragment == null)
             return;
@@ -83,22 +122,41 @@ public class TypingNotificationHandler
             new UpdateTypingTask(chatFragment, typingState)
                 .execute();
 
-            typingTimer.schedule(
-                new TypingTimerTask(chatFragment), 5000);
+            synchronized (typingDeadlines)
+            {
+                Long deadline = typingDeadlines.put(
+                    chatFragment, System.currentTimeMillis() + TYPING_TIMEOUT);
+
+                // Pending task will pick up the new deadline
+                if(deadline == null)
+                {
+                    getScheduler().schedule(
+                        new TypingTimerTask(chatFragment),
+                        TYPING_TIMEOUT, TimeUnit.MILLISECONDS);
+                }
+            }
         }
         else
         {
+            synchronized (typingDeadlines)
+            {
+                // Expires on next run of pending task
+                if(typingDeadlines.containsKey(chatFragment))
+                    typingDeadlines.put(chatFragment, 0L);
+            }
+
             new RemoveTypingTask(chatFragment).execute();
         }
     }
 
     /**
-     * The TypingTimer is started after a PAUSED typing notification is
-     * received. It waits 5 seconds and if no other typing event occurs removes
-     * the PAUSED message from the chat status panel.
+     * The TypingTimerTask is scheduled after a TYPING or PAUSED typing
+     * notification is received. If no other typing event occurs until
+     * the deadline of the chat, removes the typing message from the chat
+     * status panel. Otherwise it schedules itself again for the new deadline.
      */
     private static class TypingTimerTask
-        extends TimerTask
+        implements Runnable
     {
         private final ChatFragment chatFragment;
 
@@ -110,6 +168,19 @@ public class TypingNotificationHandler
         @Override
         public void run()
         {
+            synchronized (typingDeadlines)
+            {
+                long remaining = typingDeadlines.get(chatFragment)
+                    - System.currentTimeMillis();
+                if(remaining > 0)
+                {
+                    getScheduler().schedule(
+                        this, remaining, TimeUnit.MILLISECONDS);
+                    return;
+                }
+                typingDeadlines.remove(chatFragment);
+            }
+
             new RemoveTypingTask(chatFragment).execute();
         }
     }
@@ -17,8 +17,6 @@
  */
 package org.jitsi.android.gui.contactlist.model;
 
-import net.java.sip.communicator.service.contactlist.*;
-
 import org.jitsi.*;
 import org.jitsi.android.*;
 import org.jitsi.android.gui.contactlist.*;
@@ -149,21 +147,15 @@ public abstract class BaseContactListAdapter
     protected void updateDisplayName( final int groupIndex,
                                       final int contactIndex )
     {
-        int firstIndex = contactListView.getFirstVisiblePosition();
+        ContactViewHolder viewHolder
+            = getVisibleViewHolder(groupIndex, contactIndex);
 
-        View contactView = contactListView
-            .getChildAt(
-                getListIndex(groupIndex, contactIndex) - firstIndex);
-
-        if (contactView != null)
+        if (viewHolder != null)
         {
-            MetaContact metaContact
-                = (MetaContact) getChild(groupIndex, contactIndex);
+            Object contact = getChild(groupIndex, contactIndex);
 
-            ViewUtil.setTextViewValue(
-                contactView,
-                R.id.displayName,
-                metaContact.getDisplayName());
+            viewHolder.displayName.setText(
+                getContactRenderer(groupIndex).getDisplayName(contact));
         }
     }
 
@@ -178,21 +170,14 @@ public abstract class BaseContactListAdapter
                                  final int contactIndex,
                                  final Object contactImpl )
     {
-        int firstIndex = contactListView.getFirstVisiblePosition();
-
-        View contactView = contactListView
-            .getChildAt(getListIndex(groupIndex, contactIndex) - firstIndex);
+        ContactViewHolder viewHolder
+            = getVisibleViewHolder(groupIndex, contactIndex);
 
-        if (contactView != null)
+        if (viewHolder != null)
         {
-            ImageView avatarView
-                = (ImageView) contactView
-                    .findViewById(R.id.avatarIcon);
-
-            if (avatarView != null)
-                setAvatar( avatarView,
-                           getContactRenderer(groupIndex)
-                               .getAvatarImage(contactImpl) );
+            setAvatar( viewHolder.avatarView,
+                       getContactRenderer(groupIndex)
+                           .getAvatarImage(contactImpl) );
         }
     }
 
@@ -207,28 +192,108 @@ public abstract class BaseContactListAdapter
                                  final int contactIndex,
                                  Object contactImpl )
     {
-        int firstIndex = contactListView.getFirstVisiblePosition();
+        ContactViewHolder viewHolder
+            = getVisibleViewHolder(groupIndex, contactIndex);
 
-        View contactView = contactListView
-            .getChildAt(
-                getListIndex(groupIndex, contactIndex) - firstIndex);
+        if (viewHolder != null)
+        {
+            UIContactRenderer renderer = getContactRenderer(groupIndex);
+
+            viewHolder.statusView.setImageDrawable(
+                renderer.getStatusImage(contactImpl));
+            viewHolder.statusMessage.setText(
+                renderer.getStatusMessage(contactImpl));
+        }
+    }
+
+    /**
+     * Rebinds all views of the contact row, if it's currently visible.
+     *
+     * @param groupIndex the index of the group to update
+     * @param contactIndex the index of the contact to update
+     */
+    protected void updateContactView(final int groupIndex,
+                                     final int contactIndex)
+    {
+        View contactView = getVisibleChildView(groupIndex, contactIndex);
 
         if (contactView != null)
         {
-            ImageView statusView
-                = (ImageView) contactView
-                    .findViewById(R.id.contactStatusIcon);
+            boolean isLastChild
+                = contactIndex == getChildrenCount(groupIndex) - 1;
 
-            if(statusView == null)
-            {
-                logger.warn("No status view found for " + contactImpl);
-                return;
-            }
+            getChildView( groupIndex, contactIndex, isLastChild,
+                          contactView, contactListView );
+        }
+    }
+
+    /**
+     * Returns the view holder of the contact row, if it's currently visible.
+     *
+     * @param groupIndex the index of the group
+     * @param contactIndex the index of the contact
+     * @return the <tt>ContactViewHolder</tt> bound to given position or
+     *         <tt>null</tt> if the row is not visible.
+     */
+    private ContactViewHolder getVisibleViewHolder(int groupIndex,
+                                                   int contactIndex)
+    {
+        View contactView = getVisibleChildView(groupIndex, contactIndex);
+
+        return contactView != null
+            ? (ContactViewHolder) contactView.getTag() : null;
+    }
+
+    /**
+     * Returns the view of the contact row, if it's currently visible.
+     *
+     * @param groupIndex the index of the group
+     * @param contactIndex the index of the contact
+     * @return the view of the contact row bound to given position or
+     *         <tt>null</tt> if the row is not visible.
+     */
+    private View getVisibleChildView(int groupIndex, int contactIndex)
+    {
+        View contactView = getVisibleView(
+            getListIndex(groupIndex, contactIndex));
 
-            statusView.setImageDrawable(
-                getContactRenderer(groupIndex)
-                    .getStatusImage(contactImpl));
+        if (contactView == null
+            || !(contactView.getTag() instanceof ContactViewHolder))
+        {
+            return null;
+        }
+
+        // Checks if the view is bound to the same position
+        ContactViewHolder viewHolder
+            = (ContactViewHolder) contactView.getTag();
+        if (viewHolder.groupPosition != groupIndex
+            || viewHolder.childPosition != contactIndex)
+        {
+            return null;
         }
+
+        return contactView;
+    }
+
+    /**
+     * Returns the list row view for given flat list position, if it's
+     * currently visible.
+     *
+     * @param flatPosition the flat list position.
+     * @return the list row view or <tt>null</tt> if the row is not visible.
+     */
+    private View getVisibleView(int flatPosition)
+    {
+        if (contactListView == null || flatPosition < 0)
+            return null;
+
+        int firstIndex = contactListView.getFirstVisiblePosition();
+        int lastIndex = contactListView.getLastVisiblePosition();
+
+        if (flatPosition < firstIndex || flatPosition > lastIndex)
+            return null;
+
+        return contactListView.getChildAt(flatPosition - firstIndex);
     }
 
     /**
@@ -238,29 +303,14 @@ public abstract class BaseContactListAdapter
      * @param groupIndex the index of the group
      * @param contactIndex the index of the contact
      * @return an int representing the flat list index for the given
-     * <tt>groupIndex</tt> and <tt>contactIndex</tt>
+     * <tt>groupIndex</tt> and <tt>contactIndex</tt> or <tt>-1</tt> if
+     * the group is collapsed
      */
     public int getListIndex(int groupIndex, int contactIndex)
     {
-        int lastIndex = contactListView.getLastVisiblePosition();
-
-        for (int i = 0; i <= lastIndex; i++)
-        {
-            long longposition
-                = contactListView.getExpandableListPosition(i);
-
-            int groupPosition = ExpandableListView
-                    .getPackedPositionGroup(longposition);
-            int childPosition = ExpandableListView
-                    .getPackedPositionChild(longposition);
-
-            if (groupIndex == groupPosition
-                && contactIndex == childPosition)
-            {
-                return i;
-            }
-        }
-        return -1;
+        return contactListView.getFlatListPosition(
+            ExpandableListView.getPackedPositionForChild(
+                groupIndex, contactIndex));
     }
 
     /**
@@ -298,7 +348,7 @@ public abstract class BaseContactListAdapter
         if (convertView == null)
         {
             LayoutInflater inflater
-                = contactListFragment.getActivity().getLayoutInflater();
+                = LayoutInflater.from(parent.getContext());
             convertView = inflater.inflate( R.layout.contact_list_row,
                                             parent,
                                             false);
@@ -469,7 +519,7 @@ public abstract class BaseContactListAdapter
         if (convertView == null)
         {
             LayoutInflater inflater
-                = contactListFragment.getActivity().getLayoutInflater();
+                = LayoutInflater.from(parent.getContext());
             convertView = inflater.inflate( R.layout.contact_list_group_row,
                                             parent,
                                             false);
@@ -0,0 +1,480 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.gui.contactlist.model;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.contactlist.event.*;
+import net.java.sip.communicator.service.protocol.*;
+
+import org.jitsi.android.gui.util.*;
+
+import java.util.*;
+
+/**
+ * Search index over display names and addresses of <tt>MetaContact</tt>s and
+ * their protocol contacts. Names and addresses are case and diacritics folded
+ * by <tt>SearchTextUtil</tt> and every substring of up to
+ * {@link #GRAM_LENGTH} characters is mapped to the contacts that contain it.
+ * Short queries are looked up directly, longer ones are checked against
+ * the contacts that contain their least frequent substring.
+ * <p>
+ * A contact is matching the query if its display name or the display name or
+ * address of one of its protocol contacts contains the query. For example
+ * "ohn" matches "John Doe" and "mull" matches "jörg.müller@example.com".
+ * <p>
+ * The index is kept up to date by listening to
+ * <tt>MetaContactListService</tt> events. All methods are thread safe.
+ *
+ * @author Pawel Domas
+ */
+public class ContactSearchIndex
+    implements MetaContactListListener
+{
+    /**
+     * The maximal length of indexed substrings.
+     */
+    static final int GRAM_LENGTH = 3;
+
+    /**
+     * Folded names and addresses of indexed contacts.
+     */
+    private final Map<MetaContact, String[]> contactTexts
+        = new HashMap<MetaContact, String[]>();
+
+    /**
+     * Map of substrings to contacts that contain them.
+     */
+    private final Map<String, Set<MetaContact>> gramIndex
+        = new HashMap<String, Set<MetaContact>>();
+
+    /**
+     * The <tt>MetaContactListService</tt> which is the source of indexed
+     * contacts.
+     */
+    private MetaContactListService contactListService;
+
+    /**
+     * Indexes all contacts of given <tt>MetaContactListService</tt> and starts
+     * listening for contact list changes.
+     *
+     * @param contactListService the <tt>MetaContactListService</tt> to index.
+     */
+    public void start(MetaContactListService contactListService)
+    {
+        synchronized (this)
+        {
+            this.contactListService = contactListService;
+        }
+
+        // Register first, so that no change is missed while indexing
+        contactListService.addMetaContactListListener(this);
+
+        addGroup(contactListService.getRoot());
+    }
+
+    /**
+     * Stops listening for contact list changes and clears the index.
+     */
+    public void stop()
+    {
+        MetaContactListService service;
+        synchronized (this)
+        {
+            service = contactListService;
+            contactListService = null;
+
+            contactTexts.clear();
+            gramIndex.clear();
+        }
+
+        if(service != null)
+            service.removeMetaContactListListener(this);
+    }
+
+    /**
+     * Finds all contacts matching given <tt>query</tt>.
+     *
+     * @param query the query string.
+     *
+     * @return the set of matching contacts or <tt>null</tt> if the query is
+     *         empty and all contacts are matching.
+     */
+    public synchronized Set<MetaContact> search(String query)
+    {
+        String foldedQuery = query != null ? SearchTextUtil.fold(query) : "";
+        if(foldedQuery.length() == 0)
+            return null;
+
+        if(foldedQuery.length() <= GRAM_LENGTH)
+        {
+            Set<MetaContact> contacts = gramIndex.get(foldedQuery);
+
+            return contacts != null
+                ? new HashSet<MetaContact>(contacts)
+                : new HashSet<MetaContact>();
+        }
+
+        // The least frequent substring gives the fewest candidates
+        Set<MetaContact> candidates = null;
+        for(int i = 0; i + GRAM_LENGTH <= foldedQuery.length(); i++)
+        {
+            Set<MetaContact> contacts
+                = gramIndex.get(foldedQuery.substring(i, i + GRAM_LENGTH));
+            if(contacts == null)
+                return new HashSet<MetaContact>();
+
+            if(candidates == null || contacts.size() < candidates.size())
+                candidates = contacts;
+        }
+
+        Set<MetaContact> result = new HashSet<MetaContact>();
+        for(MetaContact contact : candidates)
+        {
+            // Other parts of the query have not been checked by the lookup
+            if(isMatching(contactTexts.get(contact), foldedQuery))
+                result.add(contact);
+        }
+        return result;
+    }
+
+    /**
+     * Checks if given <tt>metaContact</tt> is matching the query. Contact that
+     * has not been indexed yet is folded on the fly.
+     *
+     * @param metaContact the <tt>MetaContact</tt> to check.
+     * @param foldedQuery the query folded by
+     *                    <tt>SearchTextUtil.fold(String)</tt>.
+     *
+     * @return <tt>true</tt> if given <tt>metaContact</tt> is matching
+     *         the query.
+     */
+    public boolean isMatching(MetaContact metaContact, String foldedQuery)
+    {
+        if(foldedQuery.length() == 0)
+            return true;
+
+        String[] texts;
+        synchronized (this)
+        {
+            texts = contactTexts.get(metaContact);
+        }
+        if(texts == null)
+            texts = getContactTexts(metaContact);
+
+        return isMatching(texts, foldedQuery);
+    }
+
+    /**
+     * Returns the number of indexed contacts.
+     *
+     * @return the number of indexed contacts.
+     */
+    public synchronized int getContactCount()
+    {
+        return contactTexts.size();
+    }
+
+    /**
+     * Adds or updates given <tt>metaContact</tt> in the index.
+     *
+     * @param metaContact the <tt>MetaContact</tt> to be indexed.
+     */
+    public void addContact(MetaContact metaContact)
+    {
+        // Calls to the protocol layer are done outside of the lock
+        String[] texts = getContactTexts(metaContact);
+        Set<String> grams = getGrams(texts);
+
+        synchronized (this)
+        {
+            removeContactImpl(metaContact);
+
+            contactTexts.put(metaContact, texts);
+            for(String gram : grams)
+            {
+                Set<MetaContact> contacts = gramIndex.get(gram);
+                if(contacts == null)
+                {
+                    contacts = new HashSet<MetaContact>(2);
+                    gramIndex.put(gram, contacts);
+                }
+                contacts.add(metaContact);
+            }
+        }
+    }
+
+    /**
+     * Removes given <tt>metaContact</tt> from the index.
+     *
+     * @param metaContact the <tt>MetaContact</tt> to be removed.
+     */
+    public synchronized void removeContact(MetaContact metaContact)
+    {
+        removeContactImpl(metaContact);
+    }
+
+    /**
+     * Removes given <tt>metaContact</tt> from the index. Must be called while
+     * holding this instance's lock.
+     *
+     * @param metaContact the <tt>MetaContact</tt> to be removed.
+     */
+    private void removeContactImpl(MetaContact metaContact)
+    {
+        String[] texts = contactTexts.remove(metaContact);
+        if(texts == null)
+            return;
+
+        for(String gram : getGrams(texts))
+        {
+            Set<MetaContact> contacts = gramIndex.get(gram);
+            if(contacts == null)
+                continue;
+
+            contacts.remove(metaContact);
+            if(contacts.isEmpty())
+                gramIndex.remove(gram);
+        }
+    }
+
+    /**
+     * Adds all contacts contained in given <tt>group</tt> and it's subgroups.
+     *
+     * @param group the <tt>MetaContactGroup</tt> to be indexed.
+     */
+    private void addGroup(MetaContactGroup group)
+    {
+        Iterator<MetaContact> contacts = group.getChildContacts();
+        while(contacts.hasNext())
+        {
+            addContact(contacts.next());
+        }
+
+        Iterator<MetaContactGroup> subGroups = group.getSubgroups();
+        while(subGroups.hasNext())
+        {
+            addGroup(subGroups.next());
+        }
+    }
+
+    /**
+     * Removes all contacts contained in given <tt>group</tt> and it's
+     * subgroups.
+     *
+     * @param group the <tt>MetaContactGroup</tt> to be removed.
+     */
+    private void removeGroup(MetaContactGroup group)
+    {
+        Iterator<MetaContact> contacts = group.getChildContacts();
+        while(contacts.hasNext())
+        {
+            removeContact(contacts.next());
+        }
+
+        Iterator<MetaContactGroup> subGroups = group.getSubgroups();
+        while(subGroups.hasNext())
+        {
+            removeGroup(subGroups.next());
+        }
+    }
+
+    /**
+     * Collects unique substrings of up to {@link #GRAM_LENGTH} characters of
+     * given <tt>texts</tt>.
+     *
+     * @param texts folded names and addresses.
+     *
+     * @return unique substrings of given <tt>texts</tt>.
+     */
+    private static Set<String> getGrams(String[] texts)
+    {
+        Set<String> grams = new HashSet<String>();
+        for(String text : texts)
+        {
+            for(int i = 0; i < text.length(); i++)
+            {
+                int end = Math.min(i + GRAM_LENGTH, text.length());
+                for(int j = i + 1; j <= end; j++)
+                {
+                    grams.add(text.substring(i, j));
+                }
+            }
+        }
+        return grams;
+    }
+
+    /**
+     * Checks if any of <tt>texts</tt> contains <tt>foldedQuery</tt>.
+     *
+     * @param texts folded names and addresses of a contact.
+     * @param foldedQuery the folded query.
+     *
+     * @return <tt>true</tt> if contact described by <tt>texts</tt> is
+     *         matching the query.
+     */
+    private static boolean isMatching(String[] texts, String foldedQuery)
+    {
+        if(texts == null)
+            return false;
+
+        for(String text : texts)
+        {
+            if(text.contains(foldedQuery))
+                return true;
+        }
+        return false;
+    }
+
+    /**
+     * Collects unique folded display names and addresses of given
+     * <tt>metaContact</tt> and it's protocol contacts.
+     *
+     * @param metaContact the <tt>MetaContact</tt> to fold.
+     *
+     * @return unique folded names and addresses of given
+     *         <tt>metaContact</tt>.
+     */
+    static String[] getContactTexts(MetaContact metaContact)
+    {
+        Set<String> texts = new LinkedHashSet<String>();
+
+        addText(texts, metaContact.getDisplayName());
+
+        Iterator<Contact> protoContacts = metaContact.getContacts();
+        while(protoContacts.hasNext())
+        {
+            Contact contact = protoContacts.next();
+
+            addText(texts, contact.getDisplayName());
+            addText(texts, contact.getAddress());
+        }
+
+        return texts.toArray(new String[texts.size()]);
+    }
+
+    /**
+     * Adds folded <tt>text</tt> to <tt>texts</tt> set.
+     *
+     * @param texts the set to which folded <tt>text</tt> will be added.
+     * @param text the text to fold.
+     */
+    private static void addText(Set<String> texts, String text)
+    {
+        if(text != null && text.length() > 0)
+            texts.add(SearchTextUtil.fold(text));
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void metaContactAdded(MetaContactEvent evt)
+    {
+        addContact(evt.getSourceMetaContact());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void metaContactRenamed(MetaContactRenamedEvent evt)
+    {
+        addContact(evt.getSourceMetaContact());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void protoContactAdded(ProtoContactEvent evt)
+    {
+        addContact(evt.getNewParent());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void protoContactModified(ProtoContactEvent evt)
+    {
+        if(evt.getParent() != null)
+            addContact(evt.getParent());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void protoContactRemoved(ProtoContactEvent evt)
+    {
+        addContact(evt.getOldParent());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void protoContactMoved(ProtoContactEvent evt)
+    {
+        addContact(evt.getOldParent());
+        addContact(evt.getNewParent());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void metaContactRemoved(MetaContactEvent evt)
+    {
+        removeContact(evt.getSourceMetaContact());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void metaContactMoved(MetaContactMovedEvent evt) { }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void metaContactGroupAdded(MetaContactGroupEvent evt)
+    {
+        addGroup(evt.getSourceMetaContactGroup());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void metaContactGroupModified(MetaContactGroupEvent evt) { }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void metaContactGroupRemoved(MetaContactGroupEvent evt)
+    {
+        removeGroup(evt.getSourceMetaContactGroup());
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void childContactsReordered(MetaContactGroupEvent evt) { }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void metaContactModified(MetaContactModifiedEvent evt) { }
+
+    /**
+     * {@inheritDoc}
+     */
+    public void metaContactAvatarUpdated(MetaContactAvatarUpdateEvent evt) { }
+}
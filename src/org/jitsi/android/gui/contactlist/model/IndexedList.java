@@ -0,0 +1,268 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.gui.contactlist.model;
+
+import java.util.*;
+
+/**
+ * Array backed list of unique elements, which provides constant time
+ * positional access and hash based index lookups. The list can keep elements
+ * in insertion order or sorted by their natural ordering. In the second case
+ * insert position is found with binary search.
+ * <p>
+ * The element to index map is updated lazily, only the part of the map that
+ * follows modified position is rebuilt on next index lookup. That makes
+ * subsequent modifications cheap as long as no index lookups are done in
+ * between. Membership checks are always done in constant time.
+ * <p>
+ * This class is not thread safe. Contact list adapters access it only from
+ * the UI thread.
+ *
+ * @param <T> the type of elements held by the list. Must implement
+ *            <tt>Comparable</tt> if the list is sorted.
+ *
+ * @author Pawel Domas
+ */
+public class IndexedList<T>
+    extends AbstractList<T>
+    implements RandomAccess
+{
+    /**
+     * List elements.
+     */
+    private final ArrayList<T> items;
+
+    /**
+     * Maps elements to their positions in {@link #items}. Contains all
+     * elements of the list, but stored positions are valid only if they're
+     * lower than {@link #dirtyFrom}.
+     */
+    private final HashMap<T, Integer> positions;
+
+    /**
+     * The position starting from which {@link #positions} map is outdated.
+     */
+    private int dirtyFrom = 0;
+
+    /**
+     * Indicates if elements are kept sorted.
+     */
+    private final boolean sorted;
+
+    /**
+     * Creates new instance of <tt>IndexedList</tt>.
+     *
+     * @param sorted <tt>true</tt> if the list should keep elements sorted by
+     *               their natural ordering or <tt>false</tt> to keep insertion
+     *               order.
+     */
+    public IndexedList(boolean sorted)
+    {
+        this(sorted, 10);
+    }
+
+    /**
+     * Creates new instance of <tt>IndexedList</tt>.
+     *
+     * @param sorted <tt>true</tt> if the list should keep elements sorted by
+     *               their natural ordering or <tt>false</tt> to keep insertion
+     *               order.
+     * @param capacity initial capacity of the list.
+     */
+    public IndexedList(boolean sorted, int capacity)
+    {
+        this.sorted = sorted;
+        this.items = new ArrayList<T>(capacity);
+        this.positions = new HashMap<T, Integer>(capacity);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T get(int location)
+    {
+        return items.get(location);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size()
+    {
+        return items.size();
+    }
+
+    /**
+     * Adds given element to the list if it's not contained yet. Sorted list
+     * inserts the element at position found with binary search, otherwise it's
+     * appended at the end.
+     *
+     * @param element the element to add.
+     *
+     * @return <tt>true</tt> if the element has been added or <tt>false</tt> if
+     *         it was already contained in the list.
+     */
+    @Override
+    public boolean add(T element)
+    {
+        if(positions.containsKey(element))
+            return false;
+
+        int idx;
+        if(sorted)
+        {
+            idx = Collections.binarySearch(items, element, null);
+            if(idx < 0)
+                idx = -idx - 1;
+        }
+        else
+        {
+            idx = items.size();
+        }
+
+        items.add(idx, element);
+        if(idx == dirtyFrom && idx == items.size() - 1)
+        {
+            // Appended to up to date map, no other elements were shifted
+            positions.put(element, idx);
+            dirtyFrom++;
+        }
+        else
+        {
+            // Marks the element as contained, position will be resolved on
+            // next lookup
+            positions.put(element, Integer.MAX_VALUE);
+            invalidateFrom(idx);
+        }
+        modCount++;
+        return true;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public T remove(int location)
+    {
+        T removed = items.remove(location);
+
+        positions.remove(removed);
+        invalidateFrom(location);
+        modCount++;
+
+        return removed;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean remove(Object element)
+    {
+        int idx = indexOf(element);
+        if(idx < 0)
+            return false;
+
+        remove(idx);
+        return true;
+    }
+
+    /**
+     * Returns the position of given element in constant time(amortized).
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public int indexOf(Object element)
+    {
+        Integer idx = positions.get(element);
+        if(idx == null)
+            return -1;
+        else if(idx < dirtyFrom)
+            return idx;
+
+        int size = items.size();
+        for(int i = dirtyFrom; i < size; i++)
+        {
+            positions.put(items.get(i), i);
+        }
+        dirtyFrom = size;
+
+        return positions.get(element);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int lastIndexOf(Object element)
+    {
+        // Elements are unique
+        return indexOf(element);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public boolean contains(Object element)
+    {
+        return positions.containsKey(element);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear()
+    {
+        items.clear();
+        positions.clear();
+        dirtyFrom = 0;
+        modCount++;
+    }
+
+    /**
+     * Sorts the list again. Must be called when sort keys of the elements
+     * have changed, as binary search used for inserts relies on the order
+     * being valid.
+     */
+    public void resort()
+    {
+        if(!sorted)
+            return;
+
+        Collections.sort(items, null);
+        invalidateFrom(0);
+        modCount++;
+    }
+
+    /**
+     * Marks positions map outdated starting from given index.
+     *
+     * @param idx the position starting from which cached element indexes
+     *            are no longer valid.
+     */
+    private void invalidateFrom(int idx)
+    {
+        if(idx < dirtyFrom)
+            dirtyFrom = idx;
+    }
+}
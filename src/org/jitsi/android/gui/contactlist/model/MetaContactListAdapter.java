@@ -31,11 +31,11 @@ import org.jitsi.android.*;
 import org.jitsi.android.gui.*;
 import org.jitsi.android.gui.chat.*;
 import org.jitsi.android.gui.contactlist.*;
+import org.jitsi.android.gui.util.*;
 import org.jitsi.service.osgi.*;
 import org.jitsi.util.Logger;
 
 import java.util.*;
-import java.util.regex.*;
 
 /**
  * Contact list model is responsible for caching current contact list obtained
@@ -49,6 +49,7 @@ public class MetaContactListAdapter
     extends BaseContactListAdapter
     implements MetaContactListListener,
                ContactPresenceStatusListener,
+               ConversationSummaryStore.SummaryListener,
                UIGroupRenderer
 {
     /**
@@ -68,25 +69,50 @@ public class MetaContactListAdapter
      */
     private String currentQuery;
 
+    /**
+     * Matcher of the {@link #currentQuery} used on the UI thread or
+     * <tt>null</tt> if there's no query.
+     */
+    private QueryMatcher currentMatcher;
+
+    /**
+     * Background task that is currently filtering the contacts.
+     */
+    private FilterTask filterTask;
+
+    /**
+     * Incremented on each change of contact list groups or contacts. Used to
+     * detect changes that took place while contacts were being filtered.
+     */
+    private int modelVersion;
+
+    /**
+     * Coalesces contact list events, so that they're applied at most once per
+     * display frame.
+     */
+    private final ModelUpdateQueue updateQueue;
+
     /**
      * The list of contact list groups
      */
-    private LinkedList<MetaContactGroup> groups;
+    private final IndexedList<MetaContactGroup> groups;
 
     /**
      * The list of contact list groups
      */
-    private LinkedList<MetaContactGroup> originalGroups;
+    private final IndexedList<MetaContactGroup> originalGroups;
 
     /**
-     * The list of contacts.
+     * The list of contacts. Each group's contact list is stored at the index
+     * of the group in {@link #groups}.
      */
-    private LinkedList<TreeSet<MetaContact>> contacts;
+    private final ArrayList<IndexedList<MetaContact>> contacts;
 
     /**
-     * The list of contacts.
+     * The list of contacts. Each group's contact list is stored at the index
+     * of the group in {@link #originalGroups}.
      */
-    private LinkedList<TreeSet<MetaContact>> originalContacts;
+    private final ArrayList<IndexedList<MetaContact>> originalContacts;
 
     /**
      * The <tt>MetaContactListService</tt>, which is the back end of this
@@ -94,19 +120,41 @@ public class MetaContactListAdapter
      */
     private MetaContactListService contactListService;
 
+    /**
+     * The store of conversation summaries displayed in contact rows.
+     */
+    private ConversationSummaryStore summaryStore;
+
     /**
      * <tt>MetaContactRenderer</tt> instance used by this adapter.
      */
-    private MetaContactRenderer contactRenderer;
+    private final MetaContactRenderer contactRenderer
+        = new MetaContactRenderer();
 
     public MetaContactListAdapter(ContactListFragment contactListFragment)
     {
         super(contactListFragment);
 
-        this.originalContacts = new LinkedList<TreeSet<MetaContact>>();
-        this.contacts = new LinkedList<TreeSet<MetaContact>>();
-        this.originalGroups = new LinkedList<MetaContactGroup>();
-        this.groups = new LinkedList<MetaContactGroup>();
+        this.originalContacts = new ArrayList<IndexedList<MetaContact>>();
+        this.contacts = new ArrayList<IndexedList<MetaContact>>();
+        this.originalGroups = new IndexedList<MetaContactGroup>(false);
+        this.groups = new IndexedList<MetaContactGroup>(false);
+
+        this.updateQueue = new ModelUpdateQueue(
+            uiHandler, new ModelUpdateQueue.BatchListener()
+            {
+                @Override
+                public void onDataChanged()
+                {
+                    notifyDataSetChanged();
+                }
+
+                @Override
+                public void onViewsInvalidated()
+                {
+                    invalidateViews();
+                }
+            });
     }
 
     /**
@@ -115,14 +163,30 @@ public class MetaContactListAdapter
      */
     public void initModelData()
     {
-        contactListService
-            = ServiceUtils.getService(
+        initModelData(
+            ServiceUtils.getService(
                 AndroidGUIActivator.bundleContext,
-                MetaContactListService.class);
+                MetaContactListService.class));
+    }
+
+    /**
+     * Initializes the adapter data with the contacts of given
+     * <tt>MetaContactListService</tt>.
+     *
+     * @param contactListService the <tt>MetaContactListService</tt> which
+     *                           will be the back end of this adapter.
+     */
+    public void initModelData(MetaContactListService contactListService)
+    {
+        this.contactListService = contactListService;
 
         addContacts(contactListService.getRoot());
 
         contactListService.addMetaContactListListener(this);
+
+        summaryStore = AndroidGUIActivator.getConversationSummaryStore();
+        if(summaryStore != null)
+            summaryStore.addSummaryListener(this);
     }
 
     /**
@@ -135,6 +199,22 @@ public class MetaContactListAdapter
 
         contactListService.removeMetaContactListListener(this);
 
+        if(summaryStore != null)
+        {
+            summaryStore.removeSummaryListener(this);
+            summaryStore = null;
+        }
+
+        updateQueue.dispose();
+
+        contactRenderer.invalidateAll();
+
+        if (filterTask != null)
+        {
+            filterTask.cancel(true);
+            filterTask = null;
+        }
+
         removeContacts(contactListService.getRoot());
     }
 
@@ -197,10 +277,6 @@ public class MetaContactListAdapter
     @Override
     public UIContactRenderer getContactRenderer(int groupPosition)
     {
-        if(contactRenderer == null)
-        {
-            contactRenderer = new MetaContactRenderer();
-        }
         return contactRenderer;
     }
 
@@ -209,7 +285,7 @@ public class MetaContactListAdapter
      * @param groupIndex contact group index.
      * @return group contact list from original contact list.
      */
-    private TreeSet<MetaContact> getOriginalCList(int groupIndex)
+    private IndexedList<MetaContact> getOriginalCList(int groupIndex)
     {
         if(groupIndex >= 0 && groupIndex < originalContacts.size())
         {
@@ -229,7 +305,7 @@ public class MetaContactListAdapter
      * @param groupIndex contact group index.
      * @return group contact list from filtered contact list.
      */
-    private TreeSet<MetaContact> getContactList(int groupIndex)
+    private IndexedList<MetaContact> getContactList(int groupIndex)
     {
         if(groupIndex >= 0 && groupIndex < contacts.size())
         {
@@ -264,7 +340,9 @@ public class MetaContactListAdapter
      */
     public int getChildIndex(int groupIndex, MetaContact contact)
     {
-        return getChildIndex(getContactList(groupIndex), contact);
+        IndexedList<MetaContact> contactList = getContactList(groupIndex);
+
+        return contactList != null ? contactList.indexOf(contact) : -1;
     }
 
     /**
@@ -323,25 +401,22 @@ public class MetaContactListAdapter
      */
     private void addGroup(final MetaContactGroup group)
     {
-        if (originalGroups.indexOf(group) < 0)
+        modelVersion++;
+
+        if (!originalGroups.contains(group))
         {
             originalGroups.add(group);
 
-            TreeSet<MetaContact> originalChildren
-                = new TreeSet<MetaContact>();
-
-            originalContacts.add(originalChildren);
+            originalContacts.add(new IndexedList<MetaContact>(
+                true, group.countChildContacts()));
         }
 
-        if (isMatching(group, currentQuery)
-            && groups.indexOf(group) < 0)
+        if (isMatching(group)
+            && !groups.contains(group))
         {
             groups.add(group);
 
-            TreeSet<MetaContact> children
-                = new TreeSet<MetaContact>();
-
-            contacts.add(children);
+            contacts.add(new IndexedList<MetaContact>(true));
         }
     }
 
@@ -356,12 +431,13 @@ public class MetaContactListAdapter
     {
         addContactStatusListener(metaContact, this);
 
+        modelVersion++;
+
         int origGroupIndex = originalGroups.indexOf(metaGroup);
 
         int groupIndex = groups.indexOf(metaGroup);
 
-        boolean isMatchingQuery
-            = isMatching(metaContact, currentQuery);
+        boolean isMatchingQuery = isMatching(metaContact);
 
         if (origGroupIndex < 0
             || (isMatchingQuery && groupIndex < 0))
@@ -369,24 +445,23 @@ public class MetaContactListAdapter
             addGroup(metaGroup);
 
             // Update -1 index to new value, after group is added
+            origGroupIndex = originalGroups.indexOf(metaGroup);
             groupIndex = groups.indexOf(metaGroup);
         }
 
-        TreeSet<MetaContact> origContactList
-            = getOriginalCList(groupIndex);
+        IndexedList<MetaContact> origContactList
+            = getOriginalCList(origGroupIndex);
 
-        if (origContactList != null
-            && getChildIndex(origContactList, metaContact) < 0)
+        if (origContactList != null)
         {
+            // Does nothing if already contained
             origContactList.add(metaContact);
         }
 
-        TreeSet<MetaContact> contactList
+        IndexedList<MetaContact> contactList
             = getContactList(groupIndex);
 
-        if (isMatchingQuery
-            && contactList != null
-            && getChildIndex(contactList, metaContact) < 0)
+        if (isMatchingQuery && contactList != null)
         {
             contactList.add(metaContact);
         }
@@ -394,12 +469,14 @@ public class MetaContactListAdapter
 
     private void removeGroup(final MetaContactGroup metaGroup)
     {
+        modelVersion++;
+
         int origGroupIndex = originalGroups.indexOf(metaGroup);
 
         if (origGroupIndex >= 0)
         {
             originalContacts.remove(origGroupIndex);
-            originalGroups.remove(metaGroup);
+            originalGroups.remove(origGroupIndex);
         }
 
         int groupIndex = groups.indexOf(metaGroup);
@@ -407,7 +484,7 @@ public class MetaContactListAdapter
         if (groupIndex >= 0)
         {
             contacts.remove(groupIndex);
-            groups.remove(metaGroup);
+            groups.remove(groupIndex);
         }
     }
 
@@ -424,12 +501,14 @@ public class MetaContactListAdapter
     {
         removeContactStatusListener(metaContact, this);
 
+        modelVersion++;
+
         int origGroupIndex = originalGroups.indexOf(metaGroup);
 
         // Remove the contact from the original list.
         if (origGroupIndex >= 0)
         {
-            TreeSet<MetaContact> origContactList
+            IndexedList<MetaContact> origContactList
                 = getOriginalCList(origGroupIndex);
 
             origContactList.remove(metaContact);
@@ -442,7 +521,7 @@ public class MetaContactListAdapter
         int groupIndex = groups.indexOf(metaGroup);
         if (groupIndex >= 0)
         {
-            TreeSet<MetaContact> contactList
+            IndexedList<MetaContact> contactList
                 = getContactList(groupIndex);
 
             contactList.remove(metaContact);
@@ -465,9 +544,7 @@ public class MetaContactListAdapter
         if (groupIndex < 0)
             return;
 
-        int contactIndex
-            = getChildIndex(getContactList(groupIndex),
-                            metaContact);
+        int contactIndex = getChildIndex(groupIndex, metaContact);
 
         if (contactIndex >= 0)
             updateDisplayName(groupIndex, contactIndex);
@@ -486,8 +563,7 @@ public class MetaContactListAdapter
         if (groupIndex < 0)
             return;
 
-        int contactIndex
-            = getChildIndex(getContactList(groupIndex), metaContact);
+        int contactIndex = getChildIndex(groupIndex, metaContact);
 
         if (contactIndex >= 0)
             updateAvatar(groupIndex, contactIndex, metaContact);
@@ -506,13 +582,31 @@ public class MetaContactListAdapter
         if (groupIndex < 0)
             return;
 
-        int contactIndex
-            = getChildIndex(getContactList(groupIndex), metaContact);
+        int contactIndex = getChildIndex(groupIndex, metaContact);
 
         if (contactIndex >= 0)
             updateStatus(groupIndex, contactIndex, metaContact);
     }
 
+    /**
+     * Rebinds the row of given <tt>metaContact</tt>, if it's visible.
+     *
+     * @param metaContact the <tt>MetaContact</tt>, which row to update
+     */
+    private void updateContactView(final MetaContact metaContact)
+    {
+        int groupIndex = groups.indexOf(
+            metaContact.getParentMetaContactGroup());
+
+        if (groupIndex < 0)
+            return;
+
+        int contactIndex = getChildIndex(groupIndex, metaContact);
+
+        if (contactIndex >= 0)
+            updateContactView(groupIndex, contactIndex);
+    }
+
     /**
      * Indicates that a <tt>MetaContact</tt> has been added to the list.
      *
@@ -520,7 +614,7 @@ public class MetaContactListAdapter
      */
     public void metaContactAdded(final MetaContactEvent evt)
     {
-        uiHandler.post(new Runnable()
+        updateQueue.postMutation(new Runnable()
         {
             @Override
             public void run()
@@ -531,8 +625,6 @@ public class MetaContactListAdapter
 
                 addContact(evt.getParentGroup(),
                            evt.getSourceMetaContact());
-
-                notifyDataSetChanged();
             }
         });
     }
@@ -544,18 +636,12 @@ public class MetaContactListAdapter
      */
     public void metaContactRenamed(final MetaContactRenamedEvent evt)
     {
-        uiHandler.post(new Runnable()
-        {
-            @Override
-            public void run()
-            {
-                if (logger.isDebugEnabled())
-                    logger.debug("CONTACT RENAMED: "
-                                     + evt.getSourceMetaContact());
+        if (logger.isDebugEnabled())
+            logger.debug("CONTACT RENAMED: " + evt.getSourceMetaContact());
 
-                updateDisplayName(evt.getSourceMetaContact());
-            }
-        });
+        updateQueue.postUpdate(
+            new ContactUpdate(
+                ContactUpdate.DISPLAY_NAME, evt.getSourceMetaContact()));
     }
 
     /**
@@ -566,17 +652,13 @@ public class MetaContactListAdapter
      */
     public void protoContactAdded(final ProtoContactEvent evt)
     {
-        uiHandler.post(new Runnable()
-        {
-            @Override
-            public void run()
-            {
-                if (logger.isDebugEnabled())
-                    logger.debug("PROTO CONTACT ADDED: " + evt.getNewParent());
+        if (logger.isDebugEnabled())
+            logger.debug("PROTO CONTACT ADDED: " + evt.getNewParent());
 
-                updateStatus(evt.getNewParent());
-            }
-        });
+        contactRenderer.invalidate(evt.getNewParent());
+
+        updateQueue.postUpdate(
+            new ContactUpdate(ContactUpdate.STATUS, evt.getNewParent()));
     }
 
     /**
@@ -590,7 +672,13 @@ public class MetaContactListAdapter
             logger.debug("PROTO CONTACT MODIFIED: "
                              + evt.getProtoContact().getAddress());
 
-        invalidateViews();
+        if (evt.getParent() != null)
+        {
+            contactRenderer.invalidate(evt.getParent());
+
+            updateQueue.postUpdate(
+                new ContactUpdate(ContactUpdate.ROW, evt.getParent()));
+        }
     }
 
     /**
@@ -601,18 +689,14 @@ public class MetaContactListAdapter
      */
     public void protoContactRemoved(final ProtoContactEvent evt)
     {
-        uiHandler.post(new Runnable()
-        {
-            @Override
-            public void run()
-            {
-                if (logger.isDebugEnabled())
-                    logger.debug("PROTO CONTACT REMOVED: "
-                                     + evt.getProtoContact().getAddress());
+        if (logger.isDebugEnabled())
+            logger.debug("PROTO CONTACT REMOVED: "
+                             + evt.getProtoContact().getAddress());
 
-                updateStatus(evt.getOldParent());
-            }
-        });
+        contactRenderer.invalidate(evt.getOldParent());
+
+        updateQueue.postUpdate(
+            new ContactUpdate(ContactUpdate.STATUS, evt.getOldParent()));
     }
 
     /**
@@ -622,19 +706,17 @@ public class MetaContactListAdapter
      */
     public void protoContactMoved(final ProtoContactEvent evt)
     {
-        uiHandler.post(new Runnable()
-        {
-            @Override
-            public void run()
-            {
-                if (logger.isDebugEnabled())
-                    logger.debug("PROTO CONTACT MOVED: "
-                                     + evt.getProtoContact().getAddress());
+        if (logger.isDebugEnabled())
+            logger.debug("PROTO CONTACT MOVED: "
+                             + evt.getProtoContact().getAddress());
 
-                updateStatus(evt.getOldParent());
-                updateStatus(evt.getNewParent());
-            }
-        });
+        contactRenderer.invalidate(evt.getOldParent());
+        contactRenderer.invalidate(evt.getNewParent());
+
+        updateQueue.postUpdate(
+            new ContactUpdate(ContactUpdate.STATUS, evt.getOldParent()));
+        updateQueue.postUpdate(
+            new ContactUpdate(ContactUpdate.STATUS, evt.getNewParent()));
     }
 
     /**
@@ -644,7 +726,9 @@ public class MetaContactListAdapter
      */
     public void metaContactRemoved(final MetaContactEvent evt)
     {
-        uiHandler.post(new Runnable()
+        contactRenderer.invalidate(evt.getSourceMetaContact());
+
+        updateQueue.postMutation(new Runnable()
         {
             @Override
             public void run()
@@ -655,8 +739,6 @@ public class MetaContactListAdapter
 
                 removeContact( evt.getParentGroup(),
                                evt.getSourceMetaContact());
-
-                notifyDataSetChanged();
             }
         });
     }
@@ -668,7 +750,7 @@ public class MetaContactListAdapter
      */
     public void metaContactMoved(final MetaContactMovedEvent evt)
     {
-        uiHandler.post(new Runnable()
+        updateQueue.postMutation(new Runnable()
         {
             @Override
             public void run()
@@ -679,6 +761,9 @@ public class MetaContactListAdapter
 
                 MetaContactGroup oldParent = evt.getOldParent();
                 MetaContactGroup newParent = evt.getNewParent();
+
+                modelVersion++;
+
                 // Modify original group
                 int oldGroupIdx = originalGroups.indexOf(oldParent);
                 int newGroupIdx = originalGroups.indexOf(newParent);
@@ -689,13 +774,13 @@ public class MetaContactListAdapter
                             + oldGroupIdx + ", dstGroupIdx: " + newGroupIdx);
                 } else
                 {
-                    TreeSet<MetaContact> srcGroup
+                    IndexedList<MetaContact> srcGroup
                         = getOriginalCList(oldGroupIdx);
                     if (srcGroup != null)
                     {
                         srcGroup.remove(evt.getSourceMetaContact());
                     }
-                    TreeSet<MetaContact> dstGroup
+                    IndexedList<MetaContact> dstGroup
                         = getOriginalCList(newGroupIdx);
                     if (dstGroup != null)
                     {
@@ -712,20 +797,19 @@ public class MetaContactListAdapter
                             + oldGroupIdx + ", dstGroupIdx: " + newGroupIdx);
                 } else
                 {
-                    TreeSet<MetaContact> srcGroup
+                    IndexedList<MetaContact> srcGroup
                         = getContactList(oldGroupIdx);
                     if (srcGroup != null)
                     {
                         srcGroup.remove(evt.getSourceMetaContact());
                     }
-                    TreeSet<MetaContact> dstGroup
+                    IndexedList<MetaContact> dstGroup
                         = getContactList(newGroupIdx);
                     if (dstGroup != null)
                     {
                         dstGroup.add(evt.getSourceMetaContact());
                     }
                 }
-                notifyDataSetChanged();
             }
         });
     }
@@ -737,7 +821,7 @@ public class MetaContactListAdapter
      */
     public void metaContactGroupAdded(final MetaContactGroupEvent evt)
     {
-        uiHandler.post(new Runnable()
+        updateQueue.postMutation(new Runnable()
         {
             @Override
             public void run()
@@ -747,8 +831,6 @@ public class MetaContactListAdapter
                                      + evt.getSourceMetaContactGroup());
 
                 addContacts(evt.getSourceMetaContactGroup());
-
-                notifyDataSetChanged();
             }
         });
     }
@@ -763,7 +845,7 @@ public class MetaContactListAdapter
         if (logger.isDebugEnabled())
             logger.debug("GROUP MODIFIED: " + evt.getSourceMetaContactGroup());
 
-        invalidateViews();
+        updateQueue.postInvalidate();
     }
 
     /**
@@ -774,7 +856,9 @@ public class MetaContactListAdapter
      */
     public void metaContactGroupRemoved(final MetaContactGroupEvent evt)
     {
-        uiHandler.post(new Runnable()
+        contactRenderer.invalidateAll();
+
+        updateQueue.postMutation(new Runnable()
         {
             @Override
             public void run()
@@ -784,8 +868,6 @@ public class MetaContactListAdapter
                                      + evt.getSourceMetaContactGroup());
 
                 removeGroup(evt.getSourceMetaContactGroup());
-
-                notifyDataSetChanged();
             }
         });
     }
@@ -798,7 +880,7 @@ public class MetaContactListAdapter
      */
     public void childContactsReordered(final MetaContactGroupEvent evt)
     {
-        uiHandler.post(new Runnable()
+        updateQueue.postMutation(new Runnable()
         {
             public void run()
             {
@@ -808,37 +890,33 @@ public class MetaContactListAdapter
 
                 MetaContactGroup group = evt.getSourceMetaContactGroup();
 
+                modelVersion++;
+
                 int origGroupIndex = originalGroups.indexOf(group);
                 int groupIndex = groups.indexOf(group);
 
                 if (origGroupIndex >= 0)
                 {
-                    TreeSet<MetaContact> contactList
+                    IndexedList<MetaContact> contactList
                         = getOriginalCList(origGroupIndex);
 
                     if (contactList != null)
-                    {
-                        originalContacts.remove(contactList);
-                        originalContacts.add(
-                            origGroupIndex,
-                            new TreeSet<MetaContact>(contactList));
-                    }
+                        contactList.resort();
                 }
 
                 if (groupIndex >= 0)
                 {
-                    TreeSet<MetaContact> contactList
+                    IndexedList<MetaContact> contactList
                         = getContactList(groupIndex);
 
-                    if (contactList != null)
+                    // Filtered list may be the same instance as the original
+                    if (contactList != null
+                        && (origGroupIndex < 0 || contactList
+                            != getOriginalCList(origGroupIndex)))
                     {
-                        contacts.remove(contactList);
-                        contacts.add(groupIndex,
-                                     new TreeSet<MetaContact>(contactList));
+                        contactList.resort();
                     }
                 }
-
-                notifyDataSetChanged();
             }
         });
     }
@@ -854,7 +932,10 @@ public class MetaContactListAdapter
             logger.debug("META CONTACT MODIFIED: "
                              + evt.getSourceMetaContact());
 
-        invalidateViews();
+        contactRenderer.invalidate(evt.getSourceMetaContact());
+
+        updateQueue.postUpdate(
+            new ContactUpdate(ContactUpdate.ROW, evt.getSourceMetaContact()));
     }
 
     /**
@@ -866,18 +947,39 @@ public class MetaContactListAdapter
     public void metaContactAvatarUpdated(
         final MetaContactAvatarUpdateEvent evt)
     {
-        uiHandler.post(new Runnable()
+        if (logger.isDebugEnabled())
+            logger.debug("META CONTACT AVATAR UPDATED: "
+                             + evt.getSourceMetaContact());
+
+        updateQueue.postUpdate(
+            new ContactUpdate(
+                ContactUpdate.AVATAR, evt.getSourceMetaContact()));
+    }
+
+    /**
+     * Indicates that the conversation summary displayed in the row of
+     * a <tt>MetaContact</tt> has changed.
+     *
+     * @param chatId the chat identifier, which is the UID of
+     *        the <tt>MetaContact</tt>, or <tt>null</tt> if all summaries have
+     *        changed.
+     */
+    @Override
+    public void summaryChanged(String chatId)
+    {
+        if(chatId == null)
         {
-            @Override
-            public void run()
-            {
-                if (logger.isDebugEnabled())
-                    logger.debug("META CONTACT AVATAR UPDATED: "
-                                     + evt.getSourceMetaContact());
+            updateQueue.postInvalidate();
+            return;
+        }
 
-                updateAvatar(evt.getSourceMetaContact());
-            }
-        });
+        MetaContact metaContact
+            = contactListService.findMetaContactByMetaUID(chatId);
+        if(metaContact != null)
+        {
+            updateQueue.postUpdate(
+                new ContactUpdate(ContactUpdate.ROW, metaContact));
+        }
     }
 
     /**
@@ -896,41 +998,22 @@ public class MetaContactListAdapter
         if (contacts.size() <= 0)
             return null;
 
-        Iterator<MetaContact> contactList
-            = getContactList(groupPosition).iterator();
-        int i = 0;
-        while (contactList.hasNext())
+        IndexedList<MetaContact> contactList = getContactList(groupPosition);
+        if (contactList == null
+            || childPosition < 0 || childPosition >= contactList.size())
         {
-            MetaContact metaContact = contactList.next();
-            if (i == childPosition)
-            {
-                return metaContact;
-            }
-            i++;
-        }
-
-        return null;
-    }
-
-    private int getChildIndex(  TreeSet<MetaContact> contactList,
-                                MetaContact metaContact)
-    {
-        Iterator<MetaContact> contactListIter
-            = contactList.iterator();
-
-        int i = 0;
-        while (contactListIter.hasNext())
-        {
-            if (metaContact.equals(contactListIter.next()))
-                return i;
-            i++;
+            return null;
         }
 
-        return -1;
+        return contactList.get(childPosition);
     }
 
     /**
-     * Filters list data to match the given <tt>query</tt>.
+     * Filters list data to match the given <tt>query</tt>. Contacts are
+     * matched on background thread and the results are published on the UI
+     * thread at once. Filtering that is in progress is cancelled when new
+     * query arrives. If new query extends the current one, only currently
+     * displayed contacts are checked.
      * Note that this method must be called on UI thread.
      *
      * @param query the query we'd like to match
@@ -939,89 +1022,71 @@ public class MetaContactListAdapter
     {
         assertUIThread();
 
-        currentQuery = query.toLowerCase();
-
-        groups.clear();
-        contacts.clear();
-
-        if (query.isEmpty())
+        if (filterTask != null)
         {
-            groups.addAll(originalGroups);
-            contacts.addAll(originalContacts);
+            filterTask.cancel(true);
+            filterTask = null;
         }
-        else
-        {
-            for (MetaContactGroup metaGroup: originalGroups)
-            {
-                int groupIndex = originalGroups.indexOf(metaGroup);
 
-                TreeSet<MetaContact> contactList
-                    = getOriginalCList(groupIndex);
+        String newQuery = query.toLowerCase();
 
-                TreeSet<MetaContact> filteredList
-                    = new TreeSet<MetaContact>();
+        if (newQuery.isEmpty())
+        {
+            setCurrentQuery(newQuery, null);
 
-                for (MetaContact metaContact: contactList)
-                {
-                    if (isMatching(metaContact, query))
-                        filteredList.add(metaContact);
-                }
+            groups.clear();
+            contacts.clear();
 
-                if (filteredList.size() > 0)
-                {
-                    groups.add(metaGroup);
-                    contacts.add(filteredList);
-                }
+            for (MetaContactGroup metaGroup : originalGroups)
+            {
+                groups.add(metaGroup);
             }
+            contacts.addAll(originalContacts);
+
+            notifyDataSetChanged();
+
+            expandAllGroups();
+            return;
         }
 
-        notifyDataSetChanged();
+        // Narrow current results if the query extends the current one
+        boolean narrow = currentQuery != null
+            && !currentQuery.isEmpty()
+            && newQuery.startsWith(currentQuery);
 
-        expandAllGroups();
+        filterTask = narrow
+            ? new FilterTask(newQuery, groups, contacts)
+            : new FilterTask(newQuery, originalGroups, originalContacts);
+
+        filterTask.execute();
     }
 
     /**
-     * Checks if the given <tt>metaContact</tt> is matching the given
-     * <tt>query</tt>.
-     * A <tt>MetaContact</tt> would be matching the filter if one of the
-     * following is true:<br>
-     * - its display name contains the filter string
-     * - at least one of its child protocol contacts has a display name or an
-     * address that contains the filter string.
+     * Sets the query that is currently applied to displayed contacts.
+     *
+     * @param query the query that is currently applied.
+     * @param index the <tt>ContactSearchIndex</tt> used to match contacts
+     *              added while the query is applied.
+     */
+    private void setCurrentQuery(String query, ContactSearchIndex index)
+    {
+        currentQuery = query;
+        currentMatcher = query == null || query.isEmpty()
+            ? null : new QueryMatcher(query, index);
+    }
+
+    /**
+     * Checks if the given <tt>metaContact</tt> is matching the current query.
+     * Note that this method must be called on UI thread.
      *
      * @param metaContact the <tt>MetaContact</tt> to check
-     * @param query the query string to check for matches
      * @return <tt>true</tt> to indicate that the given <tt>metaContact</tt> is
      * matching the current filter, otherwise returns <tt>false</tt>
+     * @see QueryMatcher#matches(MetaContact)
      */
-    private boolean isMatching(MetaContact metaContact, String query)
+    private boolean isMatching(MetaContact metaContact)
     {
-        if (query == null || query.length() <= 0)
-            return true;
-
-        Pattern queryPattern
-            = Pattern.compile(query,
-                              Pattern.CASE_INSENSITIVE | Pattern.LITERAL);
-
-        if (queryPattern.matcher(
-                metaContact.getDisplayName()).find())
-            return true;
-        else
-        {
-            Iterator<Contact> contacts = metaContact.getContacts();
-            while (contacts.hasNext())
-            {
-                Contact contact = contacts.next();
-
-                if (queryPattern.matcher(contact.getDisplayName()).find()
-                    || queryPattern.matcher(contact.getAddress()).find())
-                {
-                    return true;
-                }
-            }
-        }
-
-        return false;
+        return currentMatcher == null || currentMatcher.matches(metaContact);
     }
 
     /**
@@ -1031,16 +1096,15 @@ public class MetaContactListAdapter
      * Note that this method must be called on UI thread.
      *
      * @param metaGroup the <tt>MetaContactGroup</tt> to check
-     * @param query the query string to check for matches
      * @return <tt>true</tt> to indicate that the given <tt>metaGroup</tt> is
      * matching the current filter, otherwise returns <tt>false</tt>
      */
-    public boolean isMatching(MetaContactGroup metaGroup, String query)
+    private boolean isMatching(MetaContactGroup metaGroup)
     {
         // This method must be run on UI thread
         assertUIThread();
 
-        if (query == null || query.length() <= 0)
+        if (currentMatcher == null)
             return true;
 
         Iterator<MetaContact> contacts = metaGroup.getChildContacts();
@@ -1049,35 +1113,338 @@ public class MetaContactListAdapter
         {
             MetaContact metaContact = contacts.next();
 
-            if (isMatching(metaContact, query))
+            if (currentMatcher.matches(metaContact))
                 return true;
         }
         return false;
     }
 
+    /**
+     * Matches <tt>MetaContact</tt>s against the query string. The query is
+     * folded once and matched against contact names and addresses stored in
+     * <tt>ContactSearchIndex</tt>.
+     */
+    private static class QueryMatcher
+    {
+        /**
+         * Case and diacritics folded query.
+         */
+        private final String foldedQuery;
+
+        /**
+         * The index used to look up contact names and addresses.
+         */
+        private final ContactSearchIndex index;
+
+        /**
+         * Creates new instance of <tt>QueryMatcher</tt>.
+         *
+         * @param query the query string to match.
+         * @param index the <tt>ContactSearchIndex</tt> that holds contact
+         *              names and addresses or <tt>null</tt> if contacts should
+         *              be folded on each check.
+         */
+        QueryMatcher(String query, ContactSearchIndex index)
+        {
+            this.foldedQuery = SearchTextUtil.fold(query);
+            this.index = index != null ? index : new ContactSearchIndex();
+        }
+
+        /**
+         * Checks if the given <tt>metaContact</tt> is matching the query.
+         * A <tt>MetaContact</tt> would be matching the filter if one of the
+         * following is true:<br>
+         * - its display name contains the filter string
+         * - at least one of its child protocol contacts has a display name or
+         * an address that contains the filter string.<br>
+         * Case and diacritical marks are ignored.
+         *
+         * @param metaContact the <tt>MetaContact</tt> to check
+         * @return <tt>true</tt> to indicate that the given <tt>metaContact</tt>
+         * is matching the query, otherwise returns <tt>false</tt>
+         */
+        boolean matches(MetaContact metaContact)
+        {
+            return index.isMatching(metaContact, foldedQuery);
+        }
+    }
+
+    /**
+     * Filters a snapshot of contact list groups on background thread and
+     * publishes the results on the UI thread.
+     */
+    private class FilterTask
+        extends AsyncTask<Void, Void, Void>
+    {
+        /**
+         * The query to match.
+         */
+        private final String query;
+
+        /**
+         * Snapshot of groups to be filtered.
+         */
+        private final List<MetaContactGroup> srcGroups;
+
+        /**
+         * Snapshot of group contacts to be filtered.
+         */
+        private final List<List<MetaContact>> srcContacts;
+
+        /**
+         * Model version at the time when the snapshot was taken.
+         */
+        private final int srcVersion;
+
+        /**
+         * The index used to find matching contacts.
+         */
+        private ContactSearchIndex index;
+
+        /**
+         * Groups that contain matching contacts.
+         */
+        private final List<MetaContactGroup> resultGroups
+            = new ArrayList<MetaContactGroup>();
+
+        /**
+         * Matching contacts of groups in {@link #resultGroups}.
+         */
+        private final List<IndexedList<MetaContact>> resultContacts
+            = new ArrayList<IndexedList<MetaContact>>();
+
+        /**
+         * Creates new instance of <tt>FilterTask</tt>. Must be called on UI
+         * thread as it takes the snapshot of given lists.
+         *
+         * @param query the query to match.
+         * @param groups the groups to filter.
+         * @param groupContacts contacts of <tt>groups</tt>.
+         */
+        FilterTask(String query,
+                   List<MetaContactGroup> groups,
+                   List<IndexedList<MetaContact>> groupContacts)
+        {
+            this.query = query;
+            this.srcGroups = new ArrayList<MetaContactGroup>(groups);
+            this.srcContacts
+                = new ArrayList<List<MetaContact>>(groupContacts.size());
+            for (IndexedList<MetaContact> contactList : groupContacts)
+            {
+                srcContacts.add(new ArrayList<MetaContact>(contactList));
+            }
+            this.srcVersion = modelVersion;
+        }
+
+        @Override
+        protected Void doInBackground(Void... params)
+        {
+            // Builds the index on first use
+            index = AndroidGUIActivator.getContactSearchIndex();
+
+            Set<MetaContact> matching = null;
+            QueryMatcher matcher = null;
+            if (index != null)
+                matching = index.search(query);
+            else
+                matcher = new QueryMatcher(query, null);
+
+            for (int i = 0; i < srcGroups.size(); i++)
+            {
+                List<MetaContact> contactList = srcContacts.get(i);
+                IndexedList<MetaContact> filteredList = null;
+
+                for (MetaContact metaContact : contactList)
+                {
+                    if (isCancelled())
+                        return null;
+
+                    boolean isMatching = matcher != null
+                        ? matcher.matches(metaContact)
+                        // null result means that the query is empty
+                        : matching == null || matching.contains(metaContact);
+
+                    if (isMatching)
+                    {
+                        if (filteredList == null)
+                        {
+                            filteredList
+                                = new IndexedList<MetaContact>(true);
+                        }
+                        filteredList.add(metaContact);
+                    }
+                }
+
+                if (filteredList != null)
+                {
+                    resultGroups.add(srcGroups.get(i));
+                    resultContacts.add(filteredList);
+                }
+            }
+            return null;
+        }
+
+        @Override
+        protected void onPostExecute(Void result)
+        {
+            if (filterTask != this)
+                return;
+
+            filterTask = null;
+
+            if (srcVersion != modelVersion)
+            {
+                // Contact list has changed in the meantime, filter again
+                if (logger.isDebugEnabled())
+                    logger.debug("Model changed, filtering again: " + query);
+
+                filterTask = new FilterTask(
+                    query, originalGroups, originalContacts);
+                filterTask.execute();
+                return;
+            }
+
+            setCurrentQuery(query, index);
+
+            groups.clear();
+            contacts.clear();
+
+            for (MetaContactGroup metaGroup : resultGroups)
+            {
+                groups.add(metaGroup);
+            }
+            contacts.addAll(resultContacts);
+
+            notifyDataSetChanged();
+
+            expandAllGroups();
+        }
+    }
+
     @Override
     public void contactPresenceStatusChanged(
         final ContactPresenceStatusChangeEvent event)
     {
-        uiHandler.post(new Runnable()
+        Contact sourceContact = event.getSourceContact();
+
+        if (logger.isDebugEnabled())
+            logger.debug("Contact presence status changed: "
+                             + sourceContact.getAddress());
+
+        MetaContact metaContact
+            = contactListService.findMetaContactByContact(sourceContact);
+
+        if (metaContact != null)
         {
-            @Override
-            public void run()
-            {
-                Contact sourceContact = event.getSourceContact();
+            contactRenderer.invalidate(metaContact);
 
-                if (logger.isDebugEnabled())
-                    logger.debug("Contact presence status changed: "
-                                     + sourceContact.getAddress());
+            updateQueue.postUpdate(
+                new ContactUpdate(ContactUpdate.STATUS, metaContact));
+        }
+    }
 
-                MetaContact metaContact
-                    = contactListService
-                    .findMetaContactByContact(sourceContact);
+    /**
+     * Returns the queue which coalesces contact list events handled by this
+     * adapter.
+     *
+     * @return the <tt>ModelUpdateQueue</tt> of this adapter.
+     */
+    public ModelUpdateQueue getUpdateQueue()
+    {
+        return updateQueue;
+    }
+
+    /**
+     * Row update of single <tt>MetaContact</tt>. Updates of the same type and
+     * contact are equal, so that they're merged by the
+     * <tt>ModelUpdateQueue</tt> when posted within the same frame.
+     */
+    private class ContactUpdate
+        implements Runnable
+    {
+        /**
+         * Display name update type.
+         */
+        static final int DISPLAY_NAME = 0;
+
+        /**
+         * Avatar update type.
+         */
+        static final int AVATAR = 1;
+
+        /**
+         * Presence status update type.
+         */
+        static final int STATUS = 2;
+
+        /**
+         * Update type that rebinds whole contact row.
+         */
+        static final int ROW = 3;
+
+        /**
+         * The type of this update.
+         */
+        private final int type;
+
+        /**
+         * The <tt>MetaContact</tt> to update.
+         */
+        private final MetaContact metaContact;
+
+        /**
+         * Creates new instance of <tt>ContactUpdate</tt>.
+         *
+         * @param type the type of the update.
+         * @param metaContact the <tt>MetaContact</tt> to update.
+         */
+        ContactUpdate(int type, MetaContact metaContact)
+        {
+            this.type = type;
+            this.metaContact = metaContact;
+        }
 
-                if (metaContact != null)
+        @Override
+        public void run()
+        {
+            switch (type)
+            {
+                case DISPLAY_NAME:
+                    updateDisplayName(metaContact);
+                    break;
+                case AVATAR:
+                    updateAvatar(metaContact);
+                    break;
+                case ROW:
+                    updateContactView(metaContact);
+                    break;
+                default:
                     updateStatus(metaContact);
             }
-        });
+        }
+
+        @Override
+        public boolean equals(Object o)
+        {
+            if (!(o instanceof ContactUpdate))
+                return false;
+
+            ContactUpdate other = (ContactUpdate) o;
+
+            return type == other.type && metaContact.equals(other.metaContact);
+        }
+
+        @Override
+        public int hashCode()
+        {
+            return 31 * metaContact.hashCode() + type;
+        }
+
+        @Override
+        public String toString()
+        {
+            return "ContactUpdate(" + type + ", " + metaContact + ")";
+        }
     }
 
     /**
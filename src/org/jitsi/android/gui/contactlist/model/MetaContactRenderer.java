@@ -27,15 +27,84 @@ import org.jitsi.android.gui.chat.*;
 import org.jitsi.android.gui.util.*;
 
 import java.util.*;
+import java.util.concurrent.*;
+import java.util.concurrent.atomic.*;
 
 /**
  * Class used to obtain UI specific data for <tt>MetaContact</tt> instances.
+ * Display details, call capabilities and status icon of each contact are
+ * computed once and cached until the contact is invalidated with
+ * {@link #invalidate(MetaContact)}, so that binding list rows doesn't query
+ * the protocol layer.
  *
  * @author Pawel Domas
  */
 public class MetaContactRenderer
     implements UIContactRenderer
 {
+    /**
+     * Cached render states of <tt>MetaContact</tt>s.
+     */
+    private final ConcurrentMap<MetaContact, RenderState> renderStates
+        = new ConcurrentHashMap<MetaContact, RenderState>();
+
+    /**
+     * Incremented on each invalidation. Render state computed while
+     * the invalidation took place is not cached, as it might be outdated.
+     */
+    private final AtomicLong invalidationCount = new AtomicLong();
+
+    /**
+     * Returns the render state of given <tt>metaContact</tt>.
+     *
+     * @param metaContact the <tt>MetaContact</tt> to render.
+     * @return the render state of given <tt>metaContact</tt>.
+     */
+    private RenderState getRenderState(MetaContact metaContact)
+    {
+        RenderState state = renderStates.get(metaContact);
+        if(state == null)
+        {
+            long invalidations = invalidationCount.get();
+
+            state = new RenderState(metaContact);
+
+            // Invalidation may happen between the check and the put, so
+            // the state is put first and dropped if it might be outdated
+            renderStates.put(metaContact, state);
+            if(invalidations != invalidationCount.get())
+                renderStates.remove(metaContact, state);
+        }
+        return state;
+    }
+
+    /**
+     * Drops cached render state of given <tt>metaContact</tt>. Must be called
+     * when presence status, subscription status or protocol contacts of
+     * the <tt>metaContact</tt> have changed. Can be called on any thread.
+     *
+     * @param metaContact the <tt>MetaContact</tt> which has changed.
+     */
+    public void invalidate(MetaContact metaContact)
+    {
+        if(metaContact == null)
+            return;
+
+        invalidationCount.incrementAndGet();
+
+        renderStates.remove(metaContact);
+    }
+
+    /**
+     * Drops all cached render states.
+     */
+    public void invalidateAll()
+    {
+        invalidationCount.incrementAndGet();
+
+        renderStates.clear();
+    }
+
     @Override
     public boolean isSelected(Object contactImpl)
     {
@@ -53,15 +122,41 @@ public class MetaContactRenderer
     public String getStatusMessage(Object contactImpl)
     {
         MetaContact metaContact = (MetaContact) contactImpl;
-        String displayDetails = getDisplayDetails(metaContact);
-        return displayDetails != null ? displayDetails : "";
+
+        // Unread message is displayed instead of the status
+        ConversationSummaryStore.Summary summary = getSummary(metaContact);
+        if(summary != null && summary.getUnreadCount() > 0)
+            return summary.getSnippet();
+
+        return getRenderState(metaContact).displayDetails;
     }
 
     @Override
     public boolean isDisplayBold(Object contactImpl)
     {
-        return ChatSessionManager
-            .getActiveChat((MetaContact) contactImpl) != null;
+        MetaContact metaContact = (MetaContact) contactImpl;
+        if(ChatSessionManager.getActiveChat(metaContact) != null)
+            return true;
+
+        ConversationSummaryStore.Summary summary = getSummary(metaContact);
+        return summary != null && summary.getUnreadCount() > 0;
+    }
+
+    /**
+     * Returns the conversation summary of given <tt>metaContact</tt>.
+     *
+     * @param metaContact the <tt>MetaContact</tt>.
+     *
+     * @return the conversation summary or <tt>null</tt> if there's none.
+     */
+    private static ConversationSummaryStore.Summary getSummary(
+        MetaContact metaContact)
+    {
+        ConversationSummaryStore summaries
+            = AndroidGUIActivator.getConversationSummaryStore();
+
+        return summaries != null
+            ? summaries.getSummary(metaContact.getMetaUID()) : null;
     }
 
     @Override
@@ -73,21 +168,19 @@ public class MetaContactRenderer
     @Override
     public Drawable getStatusImage(Object contactImpl)
     {
-        return getStatusDrawable((MetaContact) contactImpl);
+        return getRenderState((MetaContact) contactImpl).statusDrawable;
     }
 
     @Override
     public boolean isShowVideoCallBtn(Object contactImpl)
     {
-        return isShowButton( (MetaContact) contactImpl,
-                             OperationSetVideoTelephony.class);
+        return getRenderState((MetaContact) contactImpl).showVideoCall;
     }
 
     @Override
     public boolean isShowCallBtn(Object contactImpl)
     {
-        return isShowButton( (MetaContact) contactImpl,
-                             OperationSetBasicTelephony.class);
+        return getRenderState((MetaContact) contactImpl).showCall;
     }
 
     @Override
@@ -121,15 +214,14 @@ public class MetaContactRenderer
                 = protoContact.getProtocolProvider()
                 .getOperationSet(OperationSetExtendedAuthorizations.class);
 
-            if (authOpSet != null
-                && authOpSet.getSubscriptionStatus(protoContact) != null
-                && !authOpSet.getSubscriptionStatus(protoContact)
-                .equals(
+            OperationSetExtendedAuthorizations.SubscriptionStatus status
+                = authOpSet != null
+                    ? authOpSet.getSubscriptionStatus(protoContact) : null;
+
+            if (status != null
+                && !status.equals(
                     OperationSetExtendedAuthorizations.SubscriptionStatus.Subscribed))
             {
-                OperationSetExtendedAuthorizations.SubscriptionStatus status
-                    = authOpSet.getSubscriptionStatus(protoContact);
-
                 if (status.equals(
                     OperationSetExtendedAuthorizations.SubscriptionStatus.SubscriptionPending))
                     subscriptionDetails
@@ -257,4 +349,46 @@ public class MetaContactRenderer
 
         return StatusUtil.getContactStatusIcon(status);
     }
+
+    /**
+     * Render state of single <tt>MetaContact</tt>.
+     */
+    private static class RenderState
+    {
+        /**
+         * Display details shown below contact's name.
+         */
+        private final String displayDetails;
+
+        /**
+         * Status icon.
+         */
+        private final Drawable statusDrawable;
+
+        /**
+         * Indicates if the contact supports calls.
+         */
+        private final boolean showCall;
+
+        /**
+         * Indicates if the contact supports video calls.
+         */
+        private final boolean showVideoCall;
+
+        /**
+         * Computes render state of given <tt>metaContact</tt>.
+         *
+         * @param metaContact the <tt>MetaContact</tt> to render.
+         */
+        RenderState(MetaContact metaContact)
+        {
+            String details = getDisplayDetails(metaContact);
+            this.displayDetails = details != null ? details : "";
+            this.statusDrawable = getStatusDrawable(metaContact);
+            this.showCall = isShowButton(
+                metaContact, OperationSetBasicTelephony.class);
+            this.showVideoCall = isShowButton(
+                metaContact, OperationSetVideoTelephony.class);
+        }
+    }
 }
@@ -0,0 +1,385 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.gui.contactlist.model;
+
+import android.os.*;
+
+import net.java.sip.communicator.util.*;
+
+import java.util.*;
+
+/**
+ * Gathers contact list model events posted from any thread and applies them on
+ * the UI thread in batches, at most once per display frame. Each batch ends
+ * with a single notification:
+ * <ul>
+ * <li>if any structural mutation(contact or group added, removed or moved) was
+ * applied the whole data set is refreshed and row updates are skipped, as
+ * every row is going to be rebound anyway,</li>
+ * <li>otherwise pending row updates are applied. Equal updates posted within
+ * the same frame are applied only once.</li>
+ * </ul>
+ * The queue keeps counters of received events and UI refreshes, so that
+ * the effect of coalescing can be checked in the logs.
+ *
+ * @author Pawel Domas
+ */
+public class ModelUpdateQueue
+{
+    /**
+     * The logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(ModelUpdateQueue.class);
+
+    /**
+     * Minimal interval between two consecutive batches in milliseconds.
+     */
+    static final long FRAME_INTERVAL = 16;
+
+    /**
+     * Statistics are logged every time this many batches have been applied.
+     */
+    private static final int STATS_INTERVAL = 100;
+
+    /**
+     * The UI thread handler.
+     */
+    private final Handler uiHandler;
+
+    /**
+     * The listener notified at the end of each batch.
+     */
+    private final BatchListener listener;
+
+    /**
+     * Pending structural mutations in posting order.
+     */
+    private final List<Runnable> mutations = new ArrayList<Runnable>();
+
+    /**
+     * Pending row updates. Equal updates are stored only once.
+     */
+    private final Set<Runnable> updates = new LinkedHashSet<Runnable>();
+
+    /**
+     * Indicates that all visible rows must be refreshed.
+     */
+    private boolean invalidatePending;
+
+    /**
+     * Indicates that the batch is scheduled on the UI thread.
+     */
+    private boolean scheduled;
+
+    /**
+     * Indicates that this queue has been disposed.
+     */
+    private boolean disposed;
+
+    /**
+     * Uptime of the last batch.
+     */
+    private long lastFlush;
+
+    /**
+     * The number of events received.
+     */
+    private long eventCount;
+
+    /**
+     * The number of row updates dropped, because equal update was pending.
+     */
+    private long mergedCount;
+
+    /**
+     * The number of batches applied.
+     */
+    private long batchCount;
+
+    /**
+     * The number of times the listener has been asked to refresh the UI.
+     */
+    private long refreshCount;
+
+    /**
+     * Applies pending events on the UI thread.
+     */
+    private final Runnable flushRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            flush();
+        }
+    };
+
+    /**
+     * Creates new instance of <tt>ModelUpdateQueue</tt>.
+     *
+     * @param uiHandler the UI thread <tt>Handler</tt>.
+     * @param listener the listener notified at the end of each batch.
+     */
+    public ModelUpdateQueue(Handler uiHandler, BatchListener listener)
+    {
+        this.uiHandler = uiHandler;
+        this.listener = listener;
+    }
+
+    /**
+     * Posts structural mutation of the model. All mutations are applied in
+     * posting order and the batch ends with
+     * {@link BatchListener#onDataChanged()}.
+     *
+     * @param mutation the mutation to apply on the UI thread.
+     */
+    public synchronized void postMutation(Runnable mutation)
+    {
+        if(disposed)
+            return;
+
+        eventCount++;
+        mutations.add(mutation);
+        schedule();
+    }
+
+    /**
+     * Posts row update. Update is skipped if equal update is already pending
+     * or if structural mutation is applied in the same batch.
+     *
+     * @param update the update to apply on the UI thread. Must implement
+     *               <tt>equals</tt> and <tt>hashCode</tt> for merging to
+     *               take place.
+     */
+    public synchronized void postUpdate(Runnable update)
+    {
+        if(disposed)
+            return;
+
+        eventCount++;
+        if(!updates.add(update))
+            mergedCount++;
+        schedule();
+    }
+
+    /**
+     * Requests refresh of all visible rows. The batch ends with
+     * {@link BatchListener#onViewsInvalidated()} unless structural mutation
+     * has been applied.
+     */
+    public synchronized void postInvalidate()
+    {
+        if(disposed)
+            return;
+
+        eventCount++;
+        if(invalidatePending)
+            mergedCount++;
+        invalidatePending = true;
+        schedule();
+    }
+
+    /**
+     * Schedules the batch on the UI thread. The batch is run immediately if
+     * more than {@link #FRAME_INTERVAL} has passed since the last one, or
+     * delayed until the next frame otherwise. Must be called while holding
+     * this instance's lock.
+     */
+    private void schedule()
+    {
+        if(scheduled)
+            return;
+
+        scheduled = true;
+
+        long delay = lastFlush + FRAME_INTERVAL - SystemClock.uptimeMillis();
+        if(delay > 0)
+            uiHandler.postDelayed(flushRunnable, delay);
+        else
+            uiHandler.post(flushRunnable);
+    }
+
+    /**
+     * Applies all pending events and notifies the listener. Runs on the UI
+     * thread.
+     */
+    private void flush()
+    {
+        List<Runnable> batchMutations;
+        List<Runnable> batchUpdates;
+        boolean invalidate;
+
+        synchronized (this)
+        {
+            scheduled = false;
+            if(disposed)
+                return;
+
+            lastFlush = SystemClock.uptimeMillis();
+
+            batchMutations = new ArrayList<Runnable>(mutations);
+            mutations.clear();
+            batchUpdates = new ArrayList<Runnable>(updates);
+            updates.clear();
+            invalidate = invalidatePending;
+            invalidatePending = false;
+
+            batchCount++;
+        }
+
+        boolean refreshed = false;
+        if(!batchMutations.isEmpty())
+        {
+            for(Runnable mutation : batchMutations)
+            {
+                apply(mutation);
+            }
+            // All rows are rebound, so updates are not needed
+            listener.onDataChanged();
+            refreshed = true;
+        }
+        else
+        {
+            for(Runnable update : batchUpdates)
+            {
+                apply(update);
+            }
+            if(invalidate)
+            {
+                listener.onViewsInvalidated();
+                refreshed = true;
+            }
+        }
+
+        if(refreshed)
+        {
+            synchronized (this)
+            {
+                refreshCount++;
+            }
+        }
+
+        if(logger.isDebugEnabled() && batchCount % STATS_INTERVAL == 0)
+            logger.debug(getStatistics());
+    }
+
+    /**
+     * Runs single event and logs any error, so that it will not prevent other
+     * events of the batch from being applied.
+     *
+     * @param event the event to apply.
+     */
+    private void apply(Runnable event)
+    {
+        try
+        {
+            event.run();
+        }
+        catch (Exception e)
+        {
+            logger.error("Error applying contact list event: " + event, e);
+        }
+    }
+
+    /**
+     * Drops all pending events. Events posted after this call are ignored.
+     */
+    public synchronized void dispose()
+    {
+        disposed = true;
+
+        uiHandler.removeCallbacks(flushRunnable);
+
+        mutations.clear();
+        updates.clear();
+        invalidatePending = false;
+
+        if(logger.isDebugEnabled())
+            logger.debug(getStatistics());
+    }
+
+    /**
+     * Returns the number of events received by this queue.
+     * @return the number of events received by this queue.
+     */
+    public synchronized long getEventCount()
+    {
+        return eventCount;
+    }
+
+    /**
+     * Returns the number of batches applied by this queue.
+     * @return the number of batches applied by this queue.
+     */
+    public synchronized long getBatchCount()
+    {
+        return batchCount;
+    }
+
+    /**
+     * Returns the number of UI refreshes done by this queue, that is the
+     * number of calls to {@link BatchListener#onDataChanged()} and
+     * {@link BatchListener#onViewsInvalidated()}. Batches which only update
+     * single rows are not counted.
+     * @return the number of UI refreshes done by this queue.
+     */
+    public synchronized long getRefreshCount()
+    {
+        return refreshCount;
+    }
+
+    /**
+     * Returns the number of updates that have been merged with equal pending
+     * updates.
+     * @return the number of updates that have been merged with equal pending
+     *         updates.
+     */
+    public synchronized long getMergedCount()
+    {
+        return mergedCount;
+    }
+
+    /**
+     * Returns human readable summary of queue statistics.
+     * @return human readable summary of queue statistics.
+     */
+    public synchronized String getStatistics()
+    {
+        return "Contact list events: " + eventCount
+            + ", merged: " + mergedCount
+            + ", batches: " + batchCount
+            + ", UI refreshes: " + refreshCount;
+    }
+
+    /**
+     * Interface notified at the end of each batch. Methods are called on
+     * the UI thread.
+     */
+    public interface BatchListener
+    {
+        /**
+         * Called after structural mutations have been applied.
+         */
+        void onDataChanged();
+
+        /**
+         * Called when all visible rows should be refreshed.
+         */
+        void onViewsInvalidated();
+    }
+}
@@ -17,18 +17,25 @@
  */
 package org.jitsi.android.gui.contactlist.model;
 
+import android.database.*;
 import android.os.*;
 
+import net.java.sip.communicator.service.contactlist.*;
 import net.java.sip.communicator.service.contactsource.*;
+import net.java.sip.communicator.service.gui.*;
+import net.java.sip.communicator.service.protocol.*;
 import net.java.sip.communicator.util.*;
 
 import org.jitsi.android.gui.*;
+import org.jitsi.android.gui.chat.*;
 import org.jitsi.android.gui.contactlist.*;
+import org.jitsi.android.gui.util.*;
 import org.jitsi.service.osgi.*;
 
 import org.osgi.framework.*;
 
 import java.util.*;
+import java.util.regex.*;
 
 /**
  * Class implements adapter that can be used to search contact sources and the
@@ -48,6 +55,12 @@ public class QueryContactListAdapter
     private final Logger logger
         = Logger.getLogger(QueryContactListAdapter.class);
 
+    /**
+     * Matches phone numbers with optional formatting characters.
+     */
+    private static final Pattern PHONE_NUMBER
+        = Pattern.compile("\\+?[0-9 ()\\-.]+");
+
     /**
      * Handler used to execute stuff on UI thread.
      */
@@ -75,6 +88,110 @@ public class QueryContactListAdapter
      */
     private List<ContactQuery> queries = new ArrayList<ContactQuery>();
 
+    /**
+     * Contacts received from queries, which have not been added to
+     * the results yet.
+     */
+    private final Map<ContactQuery, List<SourceContact>> pendingContacts
+        = new LinkedHashMap<ContactQuery, List<SourceContact>>();
+
+    /**
+     * Normalized addresses of the contacts already displayed. Used to skip
+     * the same contact returned by multiple sources. Accessed on the UI thread.
+     */
+    private final Set<String> displayedAddresses = new HashSet<String>();
+
+    /**
+     * Normalized addresses of the contacts with active chats, which are
+     * ranked first. Accessed on the UI thread.
+     */
+    private final Set<String> recentAddresses = new HashSet<String>();
+
+    /**
+     * Case and diacritics folded query string. Accessed on the UI thread.
+     */
+    private String foldedQuery = "";
+
+    /**
+     * Normalized addresses of the meta contacts matching
+     * {@link #rosterQuery}, as found by <tt>ContactSearchIndex</tt>. Source
+     * contacts with these addresses are displayed in the contact list groups
+     * already. Guarded by {@link #pendingContacts}.
+     */
+    private Set<String> rosterAddresses;
+
+    /**
+     * The query string of {@link #rosterAddresses}.
+     */
+    private String rosterQuery;
+
+    /**
+     * Indicates that new results group has been added in current batch.
+     */
+    private boolean groupAdded;
+
+    /**
+     * The number of contacts skipped as duplicates for current query.
+     */
+    private int duplicateCount;
+
+    /**
+     * Applies received results at most once per display frame.
+     */
+    private final ModelUpdateQueue updateQueue;
+
+    /**
+     * Adds pending contacts to the results on the UI thread. Contacts
+     * received within single frame are added at once.
+     */
+    private final Runnable addPendingContacts = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            Map<ContactQuery, List<SourceContact>> received;
+            synchronized (pendingContacts)
+            {
+                received = new LinkedHashMap<ContactQuery,
+                    List<SourceContact>>(pendingContacts);
+                pendingContacts.clear();
+            }
+
+            for(Map.Entry<ContactQuery, List<SourceContact>> entry
+                : received.entrySet())
+            {
+                ContactQuery query = entry.getKey();
+                if(!queries.contains(query))
+                {
+                    logger.debug("Received results of cancelled query: "
+                                     + query);
+                    continue;
+                }
+
+                addResults(query, entry.getValue());
+            }
+        }
+    };
+
+    /**
+     * Forwards meta contact list changes, as meta contacts are filtered
+     * asynchronously.
+     */
+    private final DataSetObserver metaListObserver = new DataSetObserver()
+    {
+        @Override
+        public void onChanged()
+        {
+            notifyDataSetChanged();
+        }
+
+        @Override
+        public void onInvalidated()
+        {
+            notifyDataSetInvalidated();
+        }
+    };
+
     /**
      * Creates new instance of <tt>QueryContactListAdapter</tt>.
      * @param fragment parent fragment.
@@ -86,6 +203,28 @@ public class QueryContactListAdapter
         super(fragment);
 
         this.metaContactList = contactListModel;
+
+        this.updateQueue = new ModelUpdateQueue(
+            uiHandler, new ModelUpdateQueue.BatchListener()
+            {
+                @Override
+                public void onDataChanged()
+                {
+                    notifyDataSetChanged();
+
+                    if(groupAdded)
+                    {
+                        groupAdded = false;
+                        expandAllGroups();
+                    }
+                }
+
+                @Override
+                public void onViewsInvalidated()
+                {
+                    invalidateViews();
+                }
+            });
     }
 
     private List<ContactSourceService> getSources()
@@ -115,6 +254,8 @@ public class QueryContactListAdapter
     public void initModelData()
     {
         this.sources = getSources();
+
+        metaContactList.registerDataSetObserver(metaListObserver);
     }
 
     /**
@@ -125,7 +266,11 @@ public class QueryContactListAdapter
     {
         super.dispose();
 
+        metaContactList.unregisterDataSetObserver(metaListObserver);
+
         cancelQueries();
+
+        updateQueue.dispose();
     }
 
     @Override
@@ -185,7 +330,7 @@ public class QueryContactListAdapter
         }
         else
         {
-            return results.get(groupPosition-groupPosition)
+            return results.get(groupPosition-metaGroupCount)
                 .contacts.get(childPosition);
         }
     }
@@ -208,6 +353,17 @@ public class QueryContactListAdapter
     {
         cancelQueries();
 
+        if(logger.isDebugEnabled() && duplicateCount > 0)
+            logger.debug("Skipped duplicates: " + duplicateCount
+                             + " for query: " + foldedQuery);
+
+        foldedQuery = SearchTextUtil.fold(queryStr);
+        displayedAddresses.clear();
+        duplicateCount = 0;
+        updateRecentAddresses();
+
+        results = new ArrayList<ResultGroup>();
+
         for(ContactSourceService css : sources)
         {
             ContactQuery query = css.createContactQuery(queryStr);
@@ -219,17 +375,265 @@ public class QueryContactListAdapter
 
         metaContactList.filterData(queryStr);
 
-        results = new ArrayList<ResultGroup>();
         notifyDataSetChanged();
     }
 
+    /**
+     * Collects addresses of contacts with active chats.
+     */
+    private void updateRecentAddresses()
+    {
+        recentAddresses.clear();
+
+        for(Chat chat : ChatSessionManager.getActiveChats())
+        {
+            if(!(chat instanceof ChatSession))
+                continue;
+
+            MetaContact metaContact = ((ChatSession) chat).getMetaContact();
+            if(metaContact == null)
+                continue;
+
+            Iterator<Contact> contacts = metaContact.getContacts();
+            while(contacts.hasNext())
+            {
+                String address
+                    = normalizeAddress(contacts.next().getAddress());
+                if(address != null)
+                    recentAddresses.add(address);
+            }
+        }
+    }
+
+    /**
+     * Adds contacts received from given <tt>query</tt> to its results group.
+     * Contacts already displayed in any group are skipped.
+     *
+     * @param query the query which returned the contacts.
+     * @param contacts received contacts.
+     */
+    private void addResults(ContactQuery query, List<SourceContact> contacts)
+    {
+        ResultGroup resultGroup = getResultGroup(query);
+
+        for(SourceContact contact : contacts)
+        {
+            if(resultGroup != null && resultGroup.contains(contact))
+                continue;
+
+            String address = normalizeAddress(contact.getContactAddress());
+            if(address != null && !displayedAddresses.add(address))
+            {
+                duplicateCount++;
+                continue;
+            }
+
+            if(resultGroup == null)
+            {
+                resultGroup = new ResultGroup(query);
+                results.add(resultGroup);
+                groupAdded = true;
+            }
+            resultGroup.add(contact, getRank(contact, address));
+        }
+    }
+
+    /**
+     * Calculates the rank of given <tt>contact</tt>. Contacts with lower rank
+     * are displayed first. Contacts with active chats come first, then
+     * the ones which display name starts with the query, then the ones with
+     * a word of display name starting with the query.
+     *
+     * @param contact the contact to rank.
+     * @param address normalized address of the contact.
+     *
+     * @return the rank of given <tt>contact</tt>.
+     */
+    private int getRank(SourceContact contact, String address)
+    {
+        int rank = address != null && recentAddresses.contains(address)
+            ? 0 : 3;
+
+        String name = contact.getDisplayName();
+        name = name != null ? SearchTextUtil.fold(name) : "";
+
+        if(foldedQuery.length() == 0 || name.startsWith(foldedQuery))
+            return rank;
+        else if(name.contains(" " + foldedQuery))
+            return rank + 1;
+        else
+            return rank + 2;
+    }
+
+    /**
+     * Normalizes given contact <tt>address</tt>, so that the same address
+     * returned by different contact sources can be compared. URI schemes and
+     * XMPP resources are removed and phone numbers are reduced to digits.
+     *
+     * @param address the address to normalize.
+     *
+     * @return normalized address or <tt>null</tt> if given <tt>address</tt>
+     *         is empty.
+     */
+    static String normalizeAddress(String address)
+    {
+        if(address == null)
+            return null;
+
+        String normalized = address.trim().toLowerCase();
+
+        int colon = normalized.indexOf(':');
+        if(colon > 0)
+        {
+            String scheme = normalized.substring(0, colon);
+            if(scheme.equals("sip") || scheme.equals("sips")
+                || scheme.equals("tel") || scheme.equals("xmpp"))
+            {
+                normalized = normalized.substring(colon + 1);
+            }
+        }
+
+        int slash = normalized.indexOf('/');
+        if(slash > 0 && normalized.indexOf('@') > 0)
+            normalized = normalized.substring(0, slash);
+
+        if(PHONE_NUMBER.matcher(normalized).matches())
+        {
+            StringBuilder digits = new StringBuilder(normalized.length());
+            for(int i = 0; i < normalized.length(); i++)
+            {
+                char c = normalized.charAt(i);
+                if(Character.isDigit(c) || (c == '+' && digits.length() == 0))
+                    digits.append(c);
+            }
+            normalized = digits.toString();
+        }
+
+        return normalized.length() > 0 ? normalized : null;
+    }
+
     private void cancelQueries()
     {
         for(ContactQuery query : queries)
         {
+            query.removeContactQueryListener(this);
             query.cancel();
         }
         queries.clear();
+
+        synchronized (pendingContacts)
+        {
+            pendingContacts.clear();
+            rosterAddresses = null;
+            rosterQuery = null;
+        }
+    }
+
+    /**
+     * Returns normalized addresses of the meta contacts matching given
+     * <tt>queryStr</tt>. The addresses are looked up in
+     * <tt>ContactSearchIndex</tt> once per query string. Called on the query
+     * thread, as the index may be built on first use.
+     *
+     * @param queryStr the query string.
+     *
+     * @return normalized addresses of matching meta contacts.
+     */
+    private Set<String> getRosterAddresses(String queryStr)
+    {
+        synchronized (pendingContacts)
+        {
+            if(rosterAddresses != null && queryStr.equals(rosterQuery))
+                return rosterAddresses;
+        }
+
+        Set<String> addresses = new HashSet<String>();
+
+        ContactSearchIndex index = AndroidGUIActivator.getContactSearchIndex();
+        Set<MetaContact> matching = index != null && queryStr.length() > 0
+            ? index.search(queryStr) : null;
+        if(matching != null)
+        {
+            for(MetaContact metaContact : matching)
+            {
+                Iterator<Contact> contacts = metaContact.getContacts();
+                while(contacts.hasNext())
+                {
+                    String address
+                        = normalizeAddress(contacts.next().getAddress());
+                    if(address != null)
+                        addresses.add(address);
+                }
+            }
+        }
+
+        synchronized (pendingContacts)
+        {
+            rosterAddresses = addresses;
+            rosterQuery = queryStr;
+        }
+        return addresses;
+    }
+
+    /**
+     * Finds the results group of given <tt>query</tt>.
+     *
+     * @param query the query for which results group will be returned.
+     * @return the results group of given <tt>query</tt> or <tt>null</tt> if
+     *         no results have been received yet.
+     */
+    private ResultGroup getResultGroup(ContactQuery query)
+    {
+        for(ResultGroup resultGroup : results)
+        {
+            if(resultGroup.query == query)
+                return resultGroup;
+        }
+        return null;
+    }
+
+    /**
+     * Schedules given <tt>contacts</tt> to be added to results of given
+     * <tt>query</tt> on the UI thread. Contacts of the meta contacts matching
+     * the query are skipped, as they are displayed in the contact list groups.
+     * Called on the query thread.
+     *
+     * @param query the query which returned the contacts.
+     * @param contacts the contacts to add.
+     */
+    private void postContacts(ContactQuery query,
+                              Collection<SourceContact> contacts)
+    {
+        if(contacts.isEmpty())
+            return;
+
+        Set<String> roster = getRosterAddresses(query.getQueryString());
+        List<SourceContact> added
+            = new ArrayList<SourceContact>(contacts.size());
+        for(SourceContact contact : contacts)
+        {
+            String address = normalizeAddress(contact.getContactAddress());
+            if(address == null || !roster.contains(address))
+                added.add(contact);
+        }
+        if(added.isEmpty())
+            return;
+
+        synchronized (pendingContacts)
+        {
+            boolean schedule = pendingContacts.isEmpty();
+
+            List<SourceContact> pending = pendingContacts.get(query);
+            if(pending == null)
+            {
+                pending = new ArrayList<SourceContact>();
+                pendingContacts.put(query, pending);
+            }
+            pending.addAll(added);
+
+            if(schedule)
+                updateQueue.postMutation(addPendingContacts);
+        }
     }
 
     @Override
@@ -242,7 +646,9 @@ public class QueryContactListAdapter
     public void contactReceived(
         ContactReceivedEvent contactReceivedEvent)
     {
-
+        postContacts(contactReceivedEvent.getQuerySource(),
+                     Collections.singletonList(
+                         contactReceivedEvent.getContact()));
     }
 
     @Override
@@ -252,37 +658,11 @@ public class QueryContactListAdapter
         if(contactQueryStatusEvent.getEventType()
             == ContactQuery.QUERY_COMPLETED)
         {
-            final ContactQuery query
-                = contactQueryStatusEvent.getQuerySource();
+            ContactQuery query = contactQueryStatusEvent.getQuerySource();
 
-            final ResultGroup resultGroup
-                = new ResultGroup( query.getContactSource(),
-                                   query.getQueryResults() );
-
-            if(resultGroup.getCount() == 0)
-            {
-                return;
-            }
-
-            uiHandler.post(new Runnable()
-            {
-                @Override
-                public void run()
-                {
-                    if(!queries.contains(query))
-                    {
-                        logger.warn(
-                            "Received event for cancelled query: "+query);
-                        return;
-                    }
-
-                    results.add(resultGroup);
-
-                    notifyDataSetChanged();
-
-                    expandAllGroups();
-                }
-            });
+            // Results of sources that do not stream contacts, the ones
+            // received already are skipped
+            postContacts(query, query.getQueryResults());
         }
     }
 
@@ -298,21 +678,57 @@ public class QueryContactListAdapter
         logger.error("CONTACT CHANGED NOT IMPLEMENTED");
     }
 
+    /**
+     * Results of single contact source query, sorted by rank and display
+     * name. Accessed on the UI thread.
+     */
     private class ResultGroup
+        implements Comparator<SourceContact>
     {
-        private final List<SourceContact> contacts;
+        private final List<SourceContact> contacts
+            = new ArrayList<SourceContact>();
+        private final Map<SourceContact, Integer> ranks
+            = new HashMap<SourceContact, Integer>();
+        private final ContactQuery query;
         private final ContactSourceService source;
 
-        public ResultGroup(ContactSourceService source,
-                           List<SourceContact> results)
+        public ResultGroup(ContactQuery query)
+        {
+            this.query = query;
+            this.source = query.getContactSource();
+        }
+
+        boolean contains(SourceContact contact)
+        {
+            return ranks.containsKey(contact);
+        }
+
+        void add(SourceContact contact, int rank)
         {
-            this.source = source;
-            this.contacts = results;
+            ranks.put(contact, rank);
+
+            int idx = Collections.binarySearch(contacts, contact, this);
+            if(idx < 0)
+                idx = -idx - 1;
+            contacts.add(idx, contact);
         }
 
         int getCount()
         {
             return contacts.size();
         }
+
+        @Override
+        public int compare(SourceContact c1, SourceContact c2)
+        {
+            int result = ranks.get(c1) - ranks.get(c2);
+            if(result != 0)
+                return result;
+
+            String name1 = c1.getDisplayName();
+            String name2 = c2.getDisplayName();
+            return (name1 != null ? name1 : "")
+                .compareToIgnoreCase(name2 != null ? name2 : "");
+        }
     }
 }
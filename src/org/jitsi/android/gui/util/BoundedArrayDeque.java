@@ -0,0 +1,278 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.gui.util;
+
+import java.util.*;
+
+/**
+ * Array backed double ended queue with constant time positional access and
+ * limited size. When the queue is full, adding an element at the end evicts
+ * the first one, while adding at the front is refused. The backing array
+ * grows on demand up to the maximal size, so that small queues don't reserve
+ * the whole window upfront.<br/>
+ * This class is not thread safe.
+ *
+ * @param <E> the type of elements.
+ *
+ * @author Pawel Domas
+ */
+public class BoundedArrayDeque<E>
+    extends AbstractList<E>
+    implements RandomAccess
+{
+    /**
+     * Initial capacity of the backing array.
+     */
+    private static final int INITIAL_CAPACITY = 16;
+
+    /**
+     * The maximal number of elements.
+     */
+    private final int maxSize;
+
+    /**
+     * The backing circular array.
+     */
+    private Object[] elements;
+
+    /**
+     * The index of the first element in {@link #elements}.
+     */
+    private int head;
+
+    /**
+     * The number of elements.
+     */
+    private int size;
+
+    /**
+     * Creates new instance of <tt>BoundedArrayDeque</tt>.
+     *
+     * @param maxSize the maximal number of elements.
+     */
+    public BoundedArrayDeque(int maxSize)
+    {
+        if(maxSize <= 0)
+            throw new IllegalArgumentException("maxSize: " + maxSize);
+
+        this.maxSize = maxSize;
+        this.elements = new Object[Math.min(maxSize, INITIAL_CAPACITY)];
+    }
+
+    /**
+     * Returns the maximal number of elements.
+     *
+     * @return the maximal number of elements.
+     */
+    public int getMaxSize()
+    {
+        return maxSize;
+    }
+
+    /**
+     * Returns <tt>true</tt> if the queue contains maximal number of elements.
+     *
+     * @return <tt>true</tt> if the queue contains maximal number of elements.
+     */
+    public boolean isFull()
+    {
+        return size == maxSize;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    @SuppressWarnings("unchecked")
+    public E get(int location)
+    {
+        if(location < 0 || location >= size)
+        {
+            throw new IndexOutOfBoundsException(
+                "Index: " + location + ", size: " + size);
+        }
+        return (E) elements[(head + location) % elements.length];
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public int size()
+    {
+        return size;
+    }
+
+    /**
+     * Appends given element at the end of the queue. If the queue is full,
+     * the first element is evicted.
+     *
+     * @param element the element to append.
+     *
+     * @return always <tt>true</tt>.
+     */
+    @Override
+    public boolean add(E element)
+    {
+        addLast(element);
+        return true;
+    }
+
+    /**
+     * Appends given element at the end of the queue. If the queue is full,
+     * the first element is evicted.
+     *
+     * @param element the element to append.
+     *
+     * @return the evicted element or <tt>null</tt> if there was enough room.
+     */
+    @SuppressWarnings("unchecked")
+    public E addLast(E element)
+    {
+        modCount++;
+
+        E evicted = null;
+        if(size == maxSize)
+        {
+            evicted = (E) elements[head];
+            elements[head] = null;
+            head = (head + 1) % elements.length;
+            size--;
+        }
+        else
+        {
+            ensureCapacity(size + 1);
+        }
+
+        elements[(head + size) % elements.length] = element;
+        size++;
+
+        return evicted;
+    }
+
+    /**
+     * Inserts given element at the front of the queue, unless the queue is
+     * full.
+     *
+     * @param element the element to insert.
+     *
+     * @return <tt>true</tt> if the element has been inserted or
+     *         <tt>false</tt> if the queue is full.
+     */
+    public boolean offerFirst(E element)
+    {
+        if(size == maxSize)
+            return false;
+
+        modCount++;
+
+        ensureCapacity(size + 1);
+
+        head = (head - 1 + elements.length) % elements.length;
+        elements[head] = element;
+        size++;
+
+        return true;
+    }
+
+    /**
+     * Returns the first element.
+     *
+     * @return the first element.
+     * @throws NoSuchElementException if the queue is empty.
+     */
+    public E getFirst()
+    {
+        if(size == 0)
+            throw new NoSuchElementException();
+
+        return get(0);
+    }
+
+    /**
+     * Returns the last element.
+     *
+     * @return the last element.
+     * @throws NoSuchElementException if the queue is empty.
+     */
+    public E getLast()
+    {
+        if(size == 0)
+            throw new NoSuchElementException();
+
+        return get(size - 1);
+    }
+
+    /**
+     * Removes <tt>count</tt> elements from the front of the queue.
+     *
+     * @param count the number of elements to remove.
+     */
+    public void removeFirst(int count)
+    {
+        if(count < 0 || count > size)
+        {
+            throw new IndexOutOfBoundsException(
+                "Count: " + count + ", size: " + size);
+        }
+
+        modCount++;
+
+        for(int i = 0; i < count; i++)
+        {
+            elements[head] = null;
+            head = (head + 1) % elements.length;
+        }
+        size -= count;
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void clear()
+    {
+        modCount++;
+
+        Arrays.fill(elements, null);
+        head = 0;
+        size = 0;
+    }
+
+    /**
+     * Grows the backing array, so that it can hold <tt>minCapacity</tt>
+     * elements. Capacity doubles on each growth, but never exceeds
+     * {@link #maxSize}.
+     *
+     * @param minCapacity required capacity.
+     */
+    private void ensureCapacity(int minCapacity)
+    {
+        if(minCapacity <= elements.length)
+            return;
+
+        int capacity = Math.max(minCapacity, elements.length * 2);
+        Object[] newElements = new Object[Math.min(capacity, maxSize)];
+        for(int i = 0; i < size; i++)
+        {
+            newElements[i] = elements[(head + i) % elements.length];
+        }
+        elements = newElements;
+        head = 0;
+    }
+}
@@ -33,6 +33,7 @@ import org.jitsi.android.*;
  * @author Pawel Domas
  */
 public class DrawableCache
+    implements MemoryCoordinator.Trimmable
 {
     //TODO: there is no LruCache prior API 12
     /**
@@ -125,4 +126,24 @@ public class DrawableCache
     {
         cache.put(key, bmp);
     }
+
+    /**
+     * Shrinks the cache to half of it's current size or clears it entirely
+     * if memory pressure is severe.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public long trimMemory(int level)
+    {
+        int sizeBefore = cache.size();
+
+        if(MemoryCoordinator.isSevere(level))
+            cache.evictAll();
+        else
+            cache.trimToSize(sizeBefore / 2);
+
+        // Size is stored in kilobytes
+        return (sizeBefore - cache.size()) * 1024L;
+    }
 }
@@ -0,0 +1,264 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.gui.util;
+
+import android.content.*;
+
+import net.java.sip.communicator.util.*;
+
+import java.util.*;
+
+/**
+ * Central point that trims application caches when Android reports memory
+ * pressure. Subsystems register themselves as {@link Trimmable}s with
+ * a priority. On each <tt>onTrimMemory</tt>/<tt>onLowMemory</tt> callback
+ * the caches are trimmed in priority order, starting with the ones that are
+ * the cheapest to rebuild. Less severe levels trim only low priority caches.
+ *
+ * @author Pawel Domas
+ */
+public class MemoryCoordinator
+{
+    /**
+     * The logger
+     */
+    private static final Logger logger
+        = Logger.getLogger(MemoryCoordinator.class);
+
+    /**
+     * Priority of caches that are cheap to rebuild(for example images loaded
+     * from resources). Trimmed first, already on moderate memory pressure.
+     */
+    public static final int PRIORITY_LOW = 0;
+
+    /**
+     * Priority of caches that take some effort to rebuild(decoded bitmaps,
+     * avatars).
+     */
+    public static final int PRIORITY_NORMAL = 1;
+
+    /**
+     * Priority of caches that require expensive queries to be rebuilt
+     * (for example chat history). Trimmed only on critical memory pressure or
+     * when the application is in the background.
+     */
+    public static final int PRIORITY_HIGH = 2;
+
+    /**
+     * The list of registered caches sorted by priority.
+     */
+    private final List<Registration> registrations
+        = new ArrayList<Registration>();
+
+    /**
+     * Estimated number of bytes reclaimed by the last trim operation.
+     */
+    private long lastReclaimed;
+
+    /**
+     * Registers given <tt>Trimmable</tt> with this coordinator.
+     *
+     * @param trimmable the <tt>Trimmable</tt> cache to register.
+     * @param priority trim priority of the cache. One of {@link #PRIORITY_LOW},
+     *                 {@link #PRIORITY_NORMAL} or {@link #PRIORITY_HIGH}.
+     */
+    public synchronized void register(Trimmable trimmable, int priority)
+    {
+        for(Registration r : registrations)
+        {
+            if(r.trimmable == trimmable)
+                return;
+        }
+
+        // Keeps the list sorted by priority, in registration order
+        int idx = 0;
+        while(idx < registrations.size()
+            && registrations.get(idx).priority <= priority)
+        {
+            idx++;
+        }
+        registrations.add(idx, new Registration(trimmable, priority));
+    }
+
+    /**
+     * Unregisters given <tt>Trimmable</tt> from this coordinator.
+     *
+     * @param trimmable the <tt>Trimmable</tt> to be removed.
+     */
+    public synchronized void unregister(Trimmable trimmable)
+    {
+        Iterator<Registration> i = registrations.iterator();
+        while(i.hasNext())
+        {
+            if(i.next().trimmable == trimmable)
+            {
+                i.remove();
+                return;
+            }
+        }
+    }
+
+    /**
+     * Trims registered caches for given memory trim level.
+     *
+     * @param level the memory trim level as passed to
+     *              {@link ComponentCallbacks2#onTrimMemory(int)}.
+     *
+     * @return estimated number of bytes reclaimed.
+     */
+    public long onTrimMemory(int level)
+    {
+        int maxPriority = getMaxTrimmedPriority(level);
+        if(maxPriority < PRIORITY_LOW)
+            return 0;
+
+        List<Registration> toTrim;
+        synchronized (this)
+        {
+            toTrim = new ArrayList<Registration>(registrations);
+        }
+
+        long total = 0;
+        StringBuilder report = new StringBuilder();
+        for(Registration r : toTrim)
+        {
+            // The list is sorted, so we're done here
+            if(r.priority > maxPriority)
+                break;
+
+            try
+            {
+                long reclaimed = r.trimmable.trimMemory(level);
+
+                total += reclaimed;
+                report.append("\n")
+                    .append(r.trimmable.getClass().getSimpleName())
+                    .append(": ").append(reclaimed / 1024).append(" kB");
+            }
+            catch (Exception e)
+            {
+                logger.error("Error trimming " + r.trimmable, e);
+            }
+        }
+
+        synchronized (this)
+        {
+            lastReclaimed = total;
+        }
+
+        logger.info("Memory trim level: " + level
+                        + " reclaimed ~" + (total / 1024) + " kB" + report);
+
+        return total;
+    }
+
+    /**
+     * Trims all registered caches as much as possible.
+     *
+     * @return estimated number of bytes reclaimed.
+     */
+    public long onLowMemory()
+    {
+        return onTrimMemory(ComponentCallbacks2.TRIM_MEMORY_COMPLETE);
+    }
+
+    /**
+     * Returns estimated number of bytes reclaimed by the last trim operation.
+     * @return estimated number of bytes reclaimed by the last trim operation.
+     */
+    public synchronized long getLastReclaimed()
+    {
+        return lastReclaimed;
+    }
+
+    /**
+     * Returns the highest cache priority that will be trimmed for given trim
+     * <tt>level</tt>.
+     *
+     * @param level the memory trim level.
+     *
+     * @return the highest cache priority that will be trimmed for given
+     *         <tt>level</tt> or <tt>-1</tt> if nothing should be trimmed.
+     */
+    static int getMaxTrimmedPriority(int level)
+    {
+        if(level >= ComponentCallbacks2.TRIM_MEMORY_BACKGROUND
+            || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL)
+        {
+            return PRIORITY_HIGH;
+        }
+        else if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_LOW)
+        {
+            return PRIORITY_NORMAL;
+        }
+        else if(level >= ComponentCallbacks2.TRIM_MEMORY_RUNNING_MODERATE)
+        {
+            return PRIORITY_LOW;
+        }
+        return -1;
+    }
+
+    /**
+     * Returns <tt>true</tt> if given trim <tt>level</tt> indicates that caches
+     * should be released entirely instead of being shrunk.
+     *
+     * @param level the memory trim level.
+     *
+     * @return <tt>true</tt> if caches should be released entirely.
+     */
+    public static boolean isSevere(int level)
+    {
+        return level >= ComponentCallbacks2.TRIM_MEMORY_MODERATE
+            || level == ComponentCallbacks2.TRIM_MEMORY_RUNNING_CRITICAL;
+    }
+
+    /**
+     * Interface implemented by the caches which can release their memory on
+     * demand.
+     */
+    public interface Trimmable
+    {
+        /**
+         * Releases some or all of the memory held by this cache. Called on
+         * the UI thread.
+         *
+         * @param level the memory trim level.
+         *              {@link MemoryCoordinator#isSevere(int)} tells whether
+         *              the cache should be cleared entirely.
+         *
+         * @return estimated number of bytes reclaimed.
+         */
+        long trimMemory(int level);
+    }
+
+    /**
+     * Registered <tt>Trimmable</tt> and it's priority.
+     */
+    private static class Registration
+    {
+        private final Trimmable trimmable;
+
+        private final int priority;
+
+        Registration(Trimmable trimmable, int priority)
+        {
+            this.trimmable = trimmable;
+            this.priority = priority;
+        }
+    }
+}
@@ -0,0 +1,84 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.gui.util;
+
+import java.text.*;
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Folds text for case and diacritics insensitive searches, so that for
+ * example "Jörg" is found by "jorg", and splits it into tokens. Used by
+ * the contact search and chat history indexes.
+ *
+ * @author Pawel Domas
+ */
+public class SearchTextUtil
+{
+    /**
+     * Matches combining diacritical marks left after NFD normalization.
+     */
+    private static final Pattern DIACRITICS
+        = Pattern.compile("\\p{InCombiningDiacriticalMarks}+");
+
+    /**
+     * Matches token separators.
+     */
+    private static final Pattern SEPARATORS
+        = Pattern.compile("[^\\p{L}\\p{N}]+");
+
+    /**
+     * Removes diacritical marks from given <tt>text</tt> and converts it to
+     * lower case.
+     *
+     * @param text the text to fold.
+     *
+     * @return case and diacritics folded <tt>text</tt>.
+     */
+    public static String fold(String text)
+    {
+        String decomposed = Normalizer.normalize(text, Normalizer.Form.NFD);
+
+        return DIACRITICS.matcher(decomposed).replaceAll("")
+            .toLowerCase(Locale.US);
+    }
+
+    /**
+     * Splits given <tt>text</tt> into case and diacritics folded tokens.
+     * Tokens are separated by characters which are neither letters nor
+     * digits.
+     *
+     * @param text the text to split.
+     *
+     * @return case and diacritics folded tokens of given <tt>text</tt>.
+     */
+    public static String[] tokenize(String text)
+    {
+        if(text == null)
+            return new String[0];
+
+        String folded = fold(text);
+
+        String[] split = SEPARATORS.split(folded);
+        // Leading separator results in empty first token
+        if(split.length > 0 && split[0].length() == 0)
+            split = Arrays.copyOfRange(split, 1, split.length);
+
+        return split;
+    }
+}
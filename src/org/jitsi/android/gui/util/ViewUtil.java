@@ -61,6 +61,35 @@ public class ViewUtil
         return ((TextView)container.findViewById(id)).getText().toString();
     }
 
+    /**
+     * Binds the row of given <tt>ListView</tt> again, if it's visible, instead
+     * of refreshing the whole list. Must be called on the UI thread.
+     *
+     * @param listView the <tt>ListView</tt> which displays the row.
+     * @param position the position of the row in the adapter, not counting
+     *                 the header views.
+     *
+     * @return <tt>false</tt> if the whole list has to be refreshed, because
+     *         the adapter has replaced the view of the row.
+     */
+    public static boolean refreshRow(ListView listView, int position)
+    {
+        int listPosition = position + listView.getHeaderViewsCount();
+        int firstVisible = listView.getFirstVisiblePosition();
+        if(listPosition < firstVisible
+            || listPosition > listView.getLastVisiblePosition())
+        {
+            return true;
+        }
+
+        View row = listView.getChildAt(listPosition - firstVisible);
+        if(row == null)
+            return false;
+
+        return listView.getAdapter().getView(listPosition, row, listView)
+            == row;
+    }
+
     public static boolean isCompoundChecked(View container, int id)
     {
         return ((CompoundButton)container.findViewById(id)).isChecked();
@@ -0,0 +1,543 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.androidcontacts;
+
+import android.content.*;
+import android.database.*;
+import android.os.*;
+import android.provider.ContactsContract.*;
+import android.provider.ContactsContract.CommonDataKinds.*;
+
+import net.java.sip.communicator.util.*;
+import org.jitsi.android.*;
+import org.jitsi.android.gui.util.*;
+
+import java.util.*;
+
+/**
+ * In memory snapshot of the Android address book. Contains names, lookup keys,
+ * photo URIs and phone, SIP and XMPP addresses of all contacts. The snapshot is
+ * loaded once on background thread and then kept up to date by
+ * a <tt>ContentObserver</tt>. On API 18 and newer only the contacts updated or
+ * deleted since the last load are reloaded, older releases load the whole
+ * address book again.
+ * <p>
+ * Loaded entries are published as an immutable list, so that queries can
+ * search it from any thread without locking.
+ *
+ * @author Pawel Domas
+ */
+public class AddressBookSnapshot
+    extends ContentObserver
+{
+    /**
+     * The logger.
+     */
+    private final static Logger logger
+        = Logger.getLogger(AddressBookSnapshot.class);
+
+    /**
+     * Delay between change notification and reload, so that batch changes
+     * done by sync adapters result in single reload.
+     */
+    private static final long RELOAD_DELAY = 2000;
+
+    /**
+     * Key for display name varies on Android versions
+     */
+    private final static String DISPLAY_NAME_COLUMN
+        = AndroidUtils.hasAPI(Build.VERSION_CODES.HONEYCOMB)
+            ? Data.DISPLAY_NAME_PRIMARY
+            : Data.DISPLAY_NAME;
+
+    /**
+     * Indicates if delta reloads are supported.
+     */
+    private static final boolean DELTA_SUPPORTED
+        = AndroidUtils.hasAPI(Build.VERSION_CODES.JELLY_BEAN_MR2);
+
+    /**
+     * List of projection columns that will be returned. Also used by
+     * <tt>AndroidContactQuery</tt> before the snapshot is loaded, so that both
+     * return the same addresses.
+     */
+    static final String[] PROJECTION =
+        {
+            Data.CONTACT_ID,
+            Data.LOOKUP_KEY,
+            DISPLAY_NAME_COLUMN,
+            Data.PHOTO_THUMBNAIL_URI,
+            Data.PHOTO_URI,
+            Data.PHOTO_ID,
+            Data.MIMETYPE,
+            Data.DATA1,
+            Im.PROTOCOL
+        };
+
+    /**
+     * Selects phone, SIP and IM data rows.
+     */
+    static final String SELECTION
+        = Data.MIMETYPE + " IN (?,?,?)";
+
+    /**
+     * Selection arguments of {@link #SELECTION}.
+     */
+    static final String[] SELECTION_ARGS =
+        {
+            Phone.CONTENT_ITEM_TYPE,
+            SipAddress.CONTENT_ITEM_TYPE,
+            Im.CONTENT_ITEM_TYPE
+        };
+
+    /**
+     * Orders entries by display name.
+     */
+    private static final Comparator<Entry> NAME_ORDER
+        = new Comparator<Entry>()
+    {
+        @Override
+        public int compare(Entry e1, Entry e2)
+        {
+            return e1.foldedName.compareTo(e2.foldedName);
+        }
+    };
+
+    /**
+     * The thread on which the address book is loaded.
+     */
+    private final HandlerThread loaderThread;
+
+    /**
+     * The handler of {@link #loaderThread}.
+     */
+    private final Handler loaderHandler;
+
+    /**
+     * Entries by contact id. Accessed only on the loader thread.
+     */
+    private final Map<Long, Entry> entryMap = new HashMap<Long, Entry>();
+
+    /**
+     * Published snapshot sorted by display name or <tt>null</tt> if
+     * the address book has not been loaded yet.
+     */
+    private volatile List<Entry> entries;
+
+    /**
+     * Time of the last load. Accessed only on the loader thread.
+     */
+    private long lastLoadTime;
+
+    /**
+     * Runs the reload on the loader thread.
+     */
+    private final Runnable reloadRunnable = new Runnable()
+    {
+        @Override
+        public void run()
+        {
+            reload();
+        }
+    };
+
+    /**
+     * Creates new instance of <tt>AddressBookSnapshot</tt>.
+     *
+     * @param loaderThread the thread on which the address book will be
+     *                     loaded. Must be started.
+     */
+    private AddressBookSnapshot(HandlerThread loaderThread)
+    {
+        super(new Handler(loaderThread.getLooper()));
+
+        this.loaderThread = loaderThread;
+        this.loaderHandler = new Handler(loaderThread.getLooper());
+    }
+
+    /**
+     * Creates new <tt>AddressBookSnapshot</tt> instance.
+     *
+     * @return new <tt>AddressBookSnapshot</tt> instance.
+     */
+    public static AddressBookSnapshot create()
+    {
+        HandlerThread thread = new HandlerThread(
+            "AddressBookSnapshot",
+            android.os.Process.THREAD_PRIORITY_BACKGROUND);
+        thread.start();
+
+        return new AddressBookSnapshot(thread);
+    }
+
+    /**
+     * Starts loading the address book and observing changes.
+     */
+    public void start()
+    {
+        getContentResolver().registerContentObserver(
+            Contacts.CONTENT_URI, true, this);
+
+        loaderHandler.post(reloadRunnable);
+    }
+
+    /**
+     * Stops observing address book changes and releases the snapshot.
+     */
+    public void stop()
+    {
+        getContentResolver().unregisterContentObserver(this);
+
+        loaderHandler.removeCallbacks(reloadRunnable);
+        loaderThread.quit();
+
+        entries = null;
+    }
+
+    /**
+     * Returns <tt>true</tt> if the address book has been loaded.
+     *
+     * @return <tt>true</tt> if the address book has been loaded.
+     */
+    public boolean isReady()
+    {
+        return entries != null;
+    }
+
+    /**
+     * Returns all entries of the address book sorted by display name.
+     *
+     * @return unmodifiable list of address book entries or <tt>null</tt> if
+     *         the address book has not been loaded yet.
+     */
+    public List<Entry> getEntries()
+    {
+        return entries;
+    }
+
+    /**
+     * Schedules the reload of changed contacts.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public void onChange(boolean selfChange)
+    {
+        loaderHandler.removeCallbacks(reloadRunnable);
+        loaderHandler.postDelayed(reloadRunnable, RELOAD_DELAY);
+    }
+
+    /**
+     * Returns the <tt>ContentResolver</tt>.
+     *
+     * @return the <tt>ContentResolver</tt>.
+     */
+    private static ContentResolver getContentResolver()
+    {
+        return JitsiApplication.getGlobalContext().getContentResolver();
+    }
+
+    /**
+     * Loads changed contacts and publishes new snapshot. Runs on the loader
+     * thread.
+     */
+    private void reload()
+    {
+        long start = System.currentTimeMillis();
+        boolean delta = DELTA_SUPPORTED && lastLoadTime > 0;
+
+        try
+        {
+            int changed;
+            if(delta)
+            {
+                changed = loadChanges(lastLoadTime);
+            }
+            else
+            {
+                entryMap.clear();
+                changed = loadData(null, null);
+            }
+
+            // Timestamps are taken before the queries, so that concurrent
+            // changes will be loaded next time
+            lastLoadTime = start;
+
+            List<Entry> sorted = new ArrayList<Entry>(entryMap.values());
+            Collections.sort(sorted, NAME_ORDER);
+            entries = Collections.unmodifiableList(sorted);
+
+            if(logger.isDebugEnabled())
+            {
+                logger.debug((delta ? "Delta" : "Full")
+                    + " address book load: " + changed + " rows in "
+                    + (System.currentTimeMillis() - start)
+                    + " ms, contacts: " + sorted.size());
+            }
+        }
+        catch (RuntimeException e)
+        {
+            // Missing permission or provider error
+            logger.error("Failed to load the address book", e);
+        }
+    }
+
+    /**
+     * Reloads contacts updated or deleted since given <tt>timestamp</tt>.
+     *
+     * @param timestamp the time of the last load.
+     *
+     * @return the number of rows loaded.
+     */
+    private int loadChanges(long timestamp)
+    {
+        String[] args = new String[]{ String.valueOf(timestamp) };
+
+        // Deleted contacts
+        Cursor cursor = getContentResolver().query(
+            DeletedContacts.CONTENT_URI,
+            new String[]{ DeletedContacts.CONTACT_ID },
+            DeletedContacts.CONTACT_DELETED_TIMESTAMP + " > ?", args, null);
+        removeContacts(cursor);
+
+        // Updated contacts are removed, as they might no longer have any
+        // of the addresses we're interested in
+        cursor = getContentResolver().query(
+            Contacts.CONTENT_URI,
+            new String[]{ Contacts._ID },
+            Contacts.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?", args, null);
+        removeContacts(cursor);
+
+        return loadData(
+            Data.CONTACT_LAST_UPDATED_TIMESTAMP + " > ?", args);
+    }
+
+    /**
+     * Removes contacts which ids are contained in the first column of given
+     * <tt>cursor</tt> and closes the cursor.
+     *
+     * @param cursor the cursor with ids of contacts to be removed.
+     */
+    private void removeContacts(Cursor cursor)
+    {
+        if(cursor == null)
+            return;
+
+        try
+        {
+            while(cursor.moveToNext())
+            {
+                entryMap.remove(cursor.getLong(0));
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+    }
+
+    /**
+     * Loads data rows matching given additional selection into
+     * {@link #entryMap}.
+     *
+     * @param selection additional selection or <tt>null</tt> to load all
+     *                  rows.
+     * @param args arguments of additional selection.
+     *
+     * @return the number of rows loaded.
+     */
+    private int loadData(String selection, String[] args)
+    {
+        String fullSelection = SELECTION;
+        String[] fullArgs = SELECTION_ARGS;
+        if(selection != null)
+        {
+            fullSelection += " AND " + selection;
+            fullArgs = new String[SELECTION_ARGS.length + args.length];
+            System.arraycopy(
+                SELECTION_ARGS, 0, fullArgs, 0, SELECTION_ARGS.length);
+            System.arraycopy(
+                args, 0, fullArgs, SELECTION_ARGS.length, args.length);
+        }
+
+        Cursor cursor = getContentResolver().query(
+            Data.CONTENT_URI, PROJECTION, fullSelection, fullArgs, null);
+        if(cursor == null)
+            return 0;
+
+        // Contacts loaded by this call, their old entries are replaced
+        Set<Long> loaded = new HashSet<Long>();
+        int rows = 0;
+        try
+        {
+            while(cursor.moveToNext())
+            {
+                String address = getAddress(cursor);
+                if(address == null)
+                    continue;
+
+                long id = cursor.getLong(0);
+                Entry entry;
+                if(loaded.add(id))
+                {
+                    // Published entries are never modified
+                    entry = new Entry( id,
+                                       cursor.getString(1),
+                                       cursor.getString(2),
+                                       cursor.getString(3),
+                                       cursor.getString(4),
+                                       cursor.getString(5) );
+                    entryMap.put(id, entry);
+                }
+                else
+                {
+                    entry = entryMap.get(id);
+                }
+                entry.addAddress(address);
+                rows++;
+            }
+        }
+        finally
+        {
+            cursor.close();
+        }
+        return rows;
+    }
+
+    /**
+     * Returns the address stored in current row of the cursor obtained with
+     * {@link #PROJECTION}.
+     *
+     * @param cursor the cursor positioned on phone, SIP or IM data row.
+     *
+     * @return the address or <tt>null</tt> if the row is empty or is not
+     *         an XMPP address.
+     */
+    static String getAddress(Cursor cursor)
+    {
+        String address = cursor.getString(7);
+        if(address == null || address.length() == 0)
+            return null;
+
+        if(Im.CONTENT_ITEM_TYPE.equals(cursor.getString(6))
+            && (cursor.isNull(8) || cursor.getInt(8) != Im.PROTOCOL_JABBER))
+        {
+            return null;
+        }
+        return address;
+    }
+
+    /**
+     * Single address book contact.
+     */
+    public static class Entry
+    {
+        /**
+         * Contact id.
+         */
+        final long id;
+
+        /**
+         * Contact lookup key.
+         */
+        final String lookupKey;
+
+        /**
+         * Contact display name.
+         */
+        final String displayName;
+
+        /**
+         * Lower case display name used for searching and sorting.
+         */
+        final String foldedName;
+
+        /**
+         * Photo thumbnail URI.
+         */
+        final String thumbnailUri;
+
+        /**
+         * Photo URI.
+         */
+        final String photoUri;
+
+        /**
+         * Photo id.
+         */
+        final String photoId;
+
+        /**
+         * Phone numbers, SIP and XMPP addresses of the contact. Modified only
+         * before the entry is published.
+         */
+        final List<String> addresses = new ArrayList<String>(2);
+
+        /**
+         * Lower case {@link #addresses} used for searching.
+         */
+        private final List<String> foldedAddresses = new ArrayList<String>(2);
+
+        Entry(long id, String lookupKey, String displayName,
+              String thumbnailUri, String photoUri, String photoId)
+        {
+            this.id = id;
+            this.lookupKey = lookupKey;
+            this.displayName = displayName != null ? displayName : "";
+            this.foldedName = this.displayName.toLowerCase();
+            this.thumbnailUri = thumbnailUri;
+            this.photoUri = photoUri;
+            this.photoId = photoId;
+        }
+
+        /**
+         * Adds new address to this entry.
+         *
+         * @param address the address to add.
+         */
+        private void addAddress(String address)
+        {
+            if(!addresses.contains(address))
+            {
+                addresses.add(address);
+                foldedAddresses.add(address.toLowerCase());
+            }
+        }
+
+        /**
+         * Checks if this entry is matching given query.
+         *
+         * @param foldedQuery lower case query string.
+         *
+         * @return <tt>true</tt> if the display name or any of the addresses
+         *         of this entry contains given query.
+         */
+        boolean matches(String foldedQuery)
+        {
+            if(foldedName.contains(foldedQuery))
+                return true;
+
+            for(String address : foldedAddresses)
+            {
+                if(address.contains(foldedQuery))
+                    return true;
+            }
+            return false;
+        }
+    }
+}
@@ -23,53 +23,65 @@ import android.net.*;
 import android.os.*;
 import android.provider.*;
 import net.java.sip.communicator.service.contactsource.*;
+import net.java.sip.communicator.util.*;
 import org.jitsi.android.*;
 import org.jitsi.android.gui.util.*;
 
 import java.util.*;
 
 /**
- * Android contact query.
+ * Android contact query. Contacts are searched in the
+ * <tt>AddressBookSnapshot</tt> of the parent contact source. Until
+ * the snapshot is loaded, phone, SIP and XMPP addresses of matching contacts
+ * are obtained with a single query on <tt>ContactsContract.Data</tt> table, which joins raw
+ * contact data with the contact columns. Rows are sorted by display name and
+ * grouped by contact. Results are published in pages of {@link #PAGE_SIZE}
+ * contacts, so that they can be displayed before the whole cursor has been
+ * read.
  *
  * @author Pawel Domas
  */
 public class AndroidContactQuery
     extends AbstractContactQuery<AndroidContactSource>
 {
+    /**
+     * The logger.
+     */
+    private final static Logger logger
+        = Logger.getLogger(AndroidContactQuery.class);
+
     /**
      * Key for display name varies on Android versions
      */
     private final static String DISPLAY_NAME_COLUMN
         = AndroidUtils.hasAPI(Build.VERSION_CODES.HONEYCOMB)
-            ? ContactsContract.Contacts.DISPLAY_NAME_PRIMARY
-            : ContactsContract.Contacts.DISPLAY_NAME;
+            ? ContactsContract.Data.DISPLAY_NAME_PRIMARY
+            : ContactsContract.Data.DISPLAY_NAME;
 
     /**
-     * Selection query
+     * Selection query, selects the same data rows as
+     * <tt>AddressBookSnapshot</tt>.
      */
     private static final String SELECTION
-        = DISPLAY_NAME_COLUMN+ " LIKE ?"
-            + " AND " +ContactsContract.Contacts.HAS_PHONE_NUMBER + " > 0";
+        = AddressBookSnapshot.SELECTION
+            + " AND " + DISPLAY_NAME_COLUMN + " LIKE ?";
 
     /**
-     * List of projection columns that will be returned
+     * Sort order which groups the rows of each contact together.
      */
-    private static final String[] PROJECTION =
-        {
-            ContactsContract.Contacts._ID,
-            ContactsContract.Contacts.LOOKUP_KEY,
-            DISPLAY_NAME_COLUMN,
-            ContactsContract.Contacts.PHOTO_THUMBNAIL_URI,
-            ContactsContract.Contacts.PHOTO_URI,
-            ContactsContract.Contacts.PHOTO_ID
-        };
+    private static final String SORT_ORDER
+        = DISPLAY_NAME_COLUMN + ", " + ContactsContract.Data.CONTACT_ID;
 
     /**
      * The uri that will be user for queries.
      */
-    private static final Uri CONTACTS_URI
-        = ContactsContract.Contacts.CONTENT_URI;
+    private static final Uri DATA_URI = ContactsContract.Data.CONTENT_URI;
 
+    /**
+     * The number of contacts published at once. Each contact gives one result
+     * for each of its addresses, which are never split across pages.
+     */
+    static final int PAGE_SIZE = 50;
 
     /**
      * Query string
@@ -82,18 +94,22 @@ public class AndroidContactQuery
     private final List<SourceContact> results = new ArrayList<SourceContact>();
 
     /**
-     * The thread that runs the query
+     * Indicates if the query has been started.
      */
-    private Thread queryThread;
+    private boolean started;
 
     /**
      * Flag used to cancel the query thread
      */
-    private boolean cancel = false;
-
-    //TODO: implement cancel, on API >= 16
-    //private CancellationSignal cancelSignal = new CancellationSignal();
+    private volatile boolean cancel = false;
 
+    /**
+     * Signal used to abort provider query on API 16 and newer, otherwise
+     * <tt>null</tt>.
+     */
+    private final CancellationSignal cancelSignal
+        = AndroidUtils.hasAPI(Build.VERSION_CODES.JELLY_BEAN)
+            ? new CancellationSignal() : null;
 
     /**
      * Creates new instance of <tt>AndroidContactQuery</tt>.
@@ -112,100 +128,198 @@ public class AndroidContactQuery
      * {@inheritDoc}
      */
     @Override
-    public void start()
+    public synchronized void start()
     {
-        if(queryThread != null)
+        if(started)
             return;
 
-        queryThread = new Thread(new Runnable()
+        started = true;
+
+        AsyncTask.THREAD_POOL_EXECUTOR.execute(new Runnable()
         {
             @Override
             public void run()
             {
-                doQuery();
+                try
+                {
+                    doQuery();
+                }
+                catch (RuntimeException e)
+                {
+                    // Thrown by the provider when the query is cancelled
+                    if(cancel)
+                        return;
+
+                    logger.error("Error querying contacts: " + queryString, e);
+                    setStatus(ContactQuery.QUERY_ERROR);
+                }
             }
         });
-        queryThread.start();
     }
 
     /**
-     * Executes the query.
+     * Runs the provider query.
+     *
+     * @return the cursor with query results or <tt>null</tt> if
+     *         the provider is not available.
      */
-    private void doQuery()
+    private Cursor runQuery()
     {
-        Context ctx = JitsiApplication.getGlobalContext();
-        Cursor rCursor = ctx.getContentResolver()
-            .query(CONTACTS_URI,
-                   PROJECTION,
-                   SELECTION,
-                   new String[]{queryString}, null);
-                   //new CancellationSignal());
+        ContentResolver resolver
+            = JitsiApplication.getGlobalContext().getContentResolver();
 
-        try
+        String[] snapshotArgs = AddressBookSnapshot.SELECTION_ARGS;
+        String[] selectionArgs = new String[snapshotArgs.length + 1];
+        System.arraycopy(
+            snapshotArgs, 0, selectionArgs, 0, snapshotArgs.length);
+        selectionArgs[snapshotArgs.length] = "%" + queryString + "%";
+
+        if(cancelSignal != null)
+        {
+            return resolver.query(DATA_URI, AddressBookSnapshot.PROJECTION,
+                                  SELECTION, selectionArgs,
+                                  SORT_ORDER, cancelSignal);
+        }
+        else
+        {
+            return resolver.query(DATA_URI, AddressBookSnapshot.PROJECTION,
+                                  SELECTION, selectionArgs,
+                                  SORT_ORDER);
+        }
+    }
+
+    /**
+     * Searches the address book snapshot.
+     *
+     * @param entries address book entries.
+     */
+    private void searchSnapshot(List<AddressBookSnapshot.Entry> entries)
+    {
+        String foldedQuery = queryString.toLowerCase();
+
+        List<SourceContact> page = new ArrayList<SourceContact>(PAGE_SIZE);
+        int pageContacts = 0;
+        for(AddressBookSnapshot.Entry entry : entries)
         {
             if(cancel)
                 return;
 
+            if(!entry.matches(foldedQuery))
+                continue;
+
+            if(pageContacts >= PAGE_SIZE)
+            {
+                publishPage(page);
+                page.clear();
+                pageContacts = 0;
+            }
+            pageContacts++;
+
+            // One result for each address
+            for(String address : entry.addresses)
+            {
+                page.add(
+                    new AndroidContact( getContactSource(),
+                                        entry.id,
+                                        entry.lookupKey,
+                                        entry.displayName,
+                                        entry.thumbnailUri,
+                                        entry.photoUri,
+                                        entry.photoId,
+                                        address ));
+            }
+        }
+
+        publishPage(page);
+
+        if(!cancel)
+        {
+            setStatus(ContactQuery.QUERY_COMPLETED);
+        }
+    }
+
+    /**
+     * Executes the query.
+     */
+    private void doQuery()
+    {
+        if(cancel)
+            return;
+
+        AddressBookSnapshot snapshot = getContactSource().getSnapshot();
+        List<AddressBookSnapshot.Entry> entries
+            = snapshot != null ? snapshot.getEntries() : null;
+        if(entries != null)
+        {
+            searchSnapshot(entries);
+            return;
+        }
+
+        Cursor rCursor = runQuery();
+        if(rCursor == null)
+        {
+            setStatus(ContactQuery.QUERY_ERROR);
+            return;
+        }
+
+        try
+        {
             // Get projection column ids
-            int ID = rCursor.getColumnIndex(ContactsContract.Contacts._ID);
+            int ID = rCursor.getColumnIndex(ContactsContract.Data.CONTACT_ID);
             int LOOP_UP = rCursor.getColumnIndex(
-                ContactsContract.Contacts.LOOKUP_KEY);
+                ContactsContract.Data.LOOKUP_KEY);
             int DISPLAY_NAME = rCursor.getColumnIndex(
                 DISPLAY_NAME_COLUMN);
-            //int HAS_PHONE = rCursor.getColumnIndex(
-            //    ContactsContract.Contacts.HAS_PHONE_NUMBER);
             int THUMBNAIL_URI = rCursor.getColumnIndex(
-                ContactsContract.Contacts.PHOTO_THUMBNAIL_URI);
+                ContactsContract.Data.PHOTO_THUMBNAIL_URI);
             int PHOTO_URI = rCursor.getColumnIndex(
-                ContactsContract.Contacts.PHOTO_URI);
+                ContactsContract.Data.PHOTO_URI);
             int PHOTO_ID = rCursor.getColumnIndex(
-                ContactsContract.Contacts.PHOTO_ID);
+                ContactsContract.Data.PHOTO_ID);
+
+            List<SourceContact> page
+                = new ArrayList<SourceContact>(PAGE_SIZE);
+            int pageContacts = 0;
+            long lastId = -1;
 
-            // Create results
+            // Create results, one for each address
             while(rCursor.moveToNext())
             {
                 if(cancel)
-                    break;
+                    return;
+
+                String address = AddressBookSnapshot.getAddress(rCursor);
+                if(address == null)
+                    continue;
 
+                // Rows of each contact follow each other, pages are
+                // published only when the contact changes
                 long id = rCursor.getLong(ID);
-                String lookUp = rCursor.getString(LOOP_UP);
-                String displayName = rCursor.getString(DISPLAY_NAME);
-                String thumbnail = rCursor.getString(THUMBNAIL_URI);
-                String photoUri = rCursor.getString(PHOTO_URI);
-                String photoId = rCursor.getString(PHOTO_ID);
-
-                // Loop on all phones
-                Cursor result = null;
-                try
+                if(id != lastId)
                 {
-                    result = ctx.getContentResolver().query(
-                    ContactsContract.CommonDataKinds.Phone.CONTENT_URI,
-                    new String[]{ContactsContract.CommonDataKinds.Phone.DATA},
-                    ContactsContract.CommonDataKinds.Phone.LOOKUP_KEY+"=?",
-                    new String[]{String.valueOf(lookUp)},null);
-
-                    while (result.moveToNext() && !cancel)
+                    if(pageContacts >= PAGE_SIZE)
                     {
-                        int adrIdx = result.getColumnIndex(
-                            ContactsContract.CommonDataKinds.Phone.DATA);
-                        String phone = result.getString(adrIdx);
-                        results.add(
-                            new AndroidContact( getContactSource(),
-                                                id, lookUp,
-                                                displayName,
-                                                thumbnail,
-                                                photoUri,
-                                                photoId,
-                                                phone) );
+                        publishPage(page);
+                        page.clear();
+                        pageContacts = 0;
                     }
+                    pageContacts++;
+                    lastId = id;
                 }
-                finally
-                {
-                    if(result != null)
-                        result.close();
-                }
+
+                page.add(
+                    new AndroidContact( getContactSource(),
+                                        id,
+                                        rCursor.getString(LOOP_UP),
+                                        rCursor.getString(DISPLAY_NAME),
+                                        rCursor.getString(THUMBNAIL_URI),
+                                        rCursor.getString(PHOTO_URI),
+                                        rCursor.getString(PHOTO_ID),
+                                        address ));
             }
 
+            publishPage(page);
+
             if(!cancel)
             {
                 setStatus(ContactQuery.QUERY_COMPLETED);
@@ -218,20 +332,39 @@ public class AndroidContactQuery
     }
 
     /**
-     * {@inheritDoc}
+     * Adds given <tt>page</tt> of contacts to the results and notifies
+     * the listeners.
+     *
+     * @param page the list of contacts to publish.
      */
-    @Override
-    public void cancel()
+    private void publishPage(List<SourceContact> page)
     {
-        cancel = true;
-        try
+        if(cancel || page.isEmpty())
+            return;
+
+        synchronized (results)
         {
-            queryThread.join();
+            results.addAll(page);
         }
-        catch (InterruptedException e)
+
+        for(SourceContact contact : page)
         {
-            throw new RuntimeException(e);
+            fireContactReceived(contact);
         }
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void cancel()
+    {
+        cancel = true;
+
+        // Aborts the provider query, the thread will finish on it's own
+        if(cancelSignal != null)
+            cancelSignal.cancel();
+
         super.cancel();
     }
 
@@ -252,6 +385,9 @@ public class AndroidContactQuery
     @Override
     public List<SourceContact> getQueryResults()
     {
-        return results;
+        synchronized (results)
+        {
+            return new ArrayList<SourceContact>(results);
+        }
     }
 }
@@ -29,6 +29,43 @@ import java.util.regex.*;
 public class AndroidContactSource
     implements ExtendedContactSourceService
 {
+    /**
+     * Address book snapshot searched by queries.
+     */
+    private volatile AddressBookSnapshot snapshot;
+
+    /**
+     * Starts loading the address book snapshot.
+     */
+    void start()
+    {
+        snapshot = AddressBookSnapshot.create();
+        snapshot.start();
+    }
+
+    /**
+     * Releases the address book snapshot.
+     */
+    void stop()
+    {
+        if(snapshot != null)
+        {
+            snapshot.stop();
+            snapshot = null;
+        }
+    }
+
+    /**
+     * Returns the address book snapshot.
+     *
+     * @return the address book snapshot or <tt>null</tt> if this source has
+     *         not been started.
+     */
+    AddressBookSnapshot getSnapshot()
+    {
+        return snapshot;
+    }
+
     /**
      * Queries this search source for the given <tt>searchPattern</tt>.
      * @param queryPattern the pattern to search for
@@ -37,8 +74,7 @@ public class AndroidContactSource
     @Override
     public ContactQuery createContactQuery(Pattern queryPattern)
     {
-        return new AndroidContactQuery(this,
-                                       "%"+queryPattern.toString()+"%");
+        return new AndroidContactQuery(this, queryPattern.toString());
     }
 
     /**
@@ -20,6 +20,8 @@ package org.jitsi.impl.androidcontacts;
 import net.java.sip.communicator.service.contactsource.*;
 import net.java.sip.communicator.util.*;
 
+import org.osgi.framework.*;
+
 /**
  * Activator of <tt>AndroidContactSource</tt> service.
  *
@@ -34,6 +36,30 @@ public class AndroidContactsActivator
         super(ContactSourceService.class, "Android contacts");
     }
 
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void start(BundleContext bundleContext)
+            throws Exception
+    {
+        super.start(bundleContext);
+
+        serviceImpl.start();
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void stop(BundleContext bundleContext)
+            throws Exception
+    {
+        serviceImpl.stop();
+
+        super.stop(bundleContext);
+    }
+
     /**
      * {@inheritDoc}
      */
@@ -20,6 +20,9 @@ package org.jitsi.impl.androidimageloader;
 import net.java.sip.communicator.service.gui.*;
 import net.java.sip.communicator.util.*;
 
+import org.jitsi.android.*;
+import org.jitsi.android.gui.util.*;
+
 import org.osgi.framework.*;
 
 /**
@@ -53,6 +56,21 @@ public class ImageLoaderActivator
         super.start(bundleContext);
 
         ImageLoaderActivator.bundleContext = bundleContext;
+
+        JitsiApplication.getMemoryCoordinator()
+            .register(serviceImpl, MemoryCoordinator.PRIORITY_LOW);
+    }
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void stop(BundleContext bundleContext)
+            throws Exception
+    {
+        JitsiApplication.getMemoryCoordinator().unregister(serviceImpl);
+
+        super.stop(bundleContext);
     }
 
     /**
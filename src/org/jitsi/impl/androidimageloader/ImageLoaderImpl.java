@@ -17,6 +17,7 @@
  */
 package org.jitsi.impl.androidimageloader;
 
+import android.graphics.*;
 import android.graphics.drawable.*;
 
 import net.java.sip.communicator.service.gui.*;
@@ -35,7 +36,8 @@ import java.util.*;
  * @author Pawel Domas
  */
 public class ImageLoaderImpl
-    implements ImageLoaderService<Drawable>
+    implements ImageLoaderService<Drawable>,
+               MemoryCoordinator.Trimmable
 {
     /**
      * Raw images data cache.
@@ -53,7 +55,7 @@ public class ImageLoaderImpl
      * {@inheritDoc}
      */
     @Override
-    public Drawable getImage(ImageID imageID)
+    public synchronized Drawable getImage(ImageID imageID)
     {
         if(!drawableCache.containsKey(imageID.getId()))
         {
@@ -68,7 +70,7 @@ public class ImageLoaderImpl
      * {@inheritDoc}
      */
     @Override
-    public byte[] getImageBytes(ImageID imageID)
+    public synchronized byte[] getImageBytes(ImageID imageID)
     {
         if(!rawCache.containsKey(imageID.getId()))
         {
@@ -85,9 +87,40 @@ public class ImageLoaderImpl
      * {@inheritDoc}
      */
     @Override
-    public void clearCache()
+    public synchronized void clearCache()
     {
         rawCache.clear();
         drawableCache.clear();
     }
+
+    /**
+     * Images are loaded from resources, so both caches are cleared on any
+     * memory pressure level.
+     *
+     * {@inheritDoc}
+     */
+    @Override
+    public synchronized long trimMemory(int level)
+    {
+        long reclaimed = 0;
+
+        for(byte[] raw : rawCache.values())
+        {
+            if(raw != null)
+                reclaimed += raw.length;
+        }
+        for(Drawable drawable : drawableCache.values())
+        {
+            if(drawable instanceof BitmapDrawable)
+            {
+                Bitmap bmp = ((BitmapDrawable) drawable).getBitmap();
+                if(bmp != null)
+                    reclaimed += bmp.getRowBytes() * bmp.getHeight();
+            }
+        }
+
+        clearCache();
+
+        return reclaimed;
+    }
 }
@@ -18,8 +18,11 @@
 package org.jitsi.impl.neomedia.jmfext.media.protocol.audiorecord;
 
 import java.io.*;
+import java.nio.*;
+import java.util.*;
 
 import javax.media.*;
+import javax.media.Buffer; // disambiguation
 import javax.media.control.*;
 
 import android.annotation.*;
@@ -33,6 +36,7 @@ import org.jitsi.impl.neomedia.device.*;
 import org.jitsi.impl.neomedia.jmfext.media.protocol.*;
 import net.java.sip.communicator.util.*;
 import org.jitsi.impl.neomedia.*;
+import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
 
 /**
@@ -57,6 +61,20 @@ public class DataSource
     private static final int THREAD_PRIORITY
         = Process.THREAD_PRIORITY_URGENT_AUDIO;
 
+    /**
+     * Name of configuration property that enables capturing into direct
+     * <tt>ByteBuffer</tt>s.
+     */
+    public static final String DIRECT_CAPTURE_PROPERTY
+        = "org.jitsi.impl.neomedia.android.direct_capture";
+
+    /**
+     * Direct <tt>ByteBuffer</tt>s released by disconnected streams, reused by
+     * the streams connected later on.
+     */
+    private static final List<ByteBuffer> captureBufferPool
+        = new ArrayList<ByteBuffer>();
+
     /**
      * Initializes a new <tt>DataSource</tt> instance.
      */
@@ -141,6 +159,92 @@ public class DataSource
         super.doDisconnect();
     }
 
+    /**
+     * Returns <tt>true</tt> if audio is captured into direct
+     * <tt>ByteBuffer</tt>s.
+     *
+     * @return <tt>true</tt> if direct capture mode is enabled.
+     */
+    private static boolean isDirectCaptureEnabled()
+    {
+        return LibJitsi.getConfigurationService()
+                .getBoolean(DIRECT_CAPTURE_PROPERTY, true);
+    }
+
+    /**
+     * Takes direct <tt>ByteBuffer</tt> of at least given capacity from
+     * the pool.
+     *
+     * @param capacity the minimal capacity of the buffer.
+     * @return pooled buffer or <tt>null</tt> if there's no buffer large enough
+     */
+    private static ByteBuffer acquireCaptureBuffer(int capacity)
+    {
+        synchronized (captureBufferPool)
+        {
+            for (int i = captureBufferPool.size() - 1; i >= 0; i--)
+            {
+                if (captureBufferPool.get(i).capacity() >= capacity)
+                    return captureBufferPool.remove(i);
+            }
+        }
+        return null;
+    }
+
+    /**
+     * Returns direct <tt>ByteBuffer</tt> to the pool.
+     *
+     * @param buffer the buffer which is no longer used.
+     */
+    private static void releaseCaptureBuffer(ByteBuffer buffer)
+    {
+        synchronized (captureBufferPool)
+        {
+            captureBufferPool.add(buffer);
+        }
+    }
+
+    /**
+     * Applies the gain specified by <tt>gainControl</tt> to 16-bit samples in
+     * place, the same way as
+     * {@link BasicVolumeControl#applyGain(GainControl, byte[], int, int)}
+     * does for <tt>byte</tt> arrays.
+     *
+     * @param gainControl the <tt>GainControl</tt> which specifies the gain.
+     * @param samples the samples.
+     * @param count the number of samples to process.
+     */
+    private static void applyGain(GainControl gainControl,
+                                  ShortBuffer samples, int count)
+    {
+        if (gainControl.getMute())
+        {
+            for (int i = 0; i < count; i++)
+                samples.put(i, (short) 0);
+            return;
+        }
+
+        float level
+            = gainControl.getLevel()
+                * (BasicVolumeControl.MAX_VOLUME_PERCENT / 100);
+
+        if (level == 1)
+            return;
+
+        for (int i = 0; i < count; i++)
+        {
+            int s = (int) (samples.get(i) * level);
+
+            /* Clip, don't wrap. */
+            if (s > Short.MAX_VALUE)
+                s = Short.MAX_VALUE;
+            else if (s < Short.MIN_VALUE)
+                s = Short.MIN_VALUE;
+
+            samples.put(i, (short) s);
+        }
+    }
+
     /**
      * Sets the priority of the calling thread to {@link #THREAD_PRIORITY}.
      */
@@ -221,7 +325,54 @@ public class DataSource
          * The <tt>android.media.AudioRecord</tt> which does the actual
          * capturing of audio.
          */
-        private AudioRecord audioRecord;
+        private volatile AudioRecord audioRecord;
+
+        /**
+         * The indicator which determines whether {@link #audioRecord} is
+         * recording. Checked by {@link #read(Buffer)} without locking.
+         */
+        private volatile boolean recording;
+
+        /**
+         * The lock held by {@link #read(Buffer)} while reading from
+         * {@link #audioRecord}, so that it's not released in the meantime.
+         * Unlike the monitor of this stream, it's not held by the methods
+         * which control the stream.
+         */
+        private final Object readSyncRoot = new Object();
+
+        /**
+         * The indicator which determines whether audio is captured into
+         * {@link #captureBuffer}.
+         */
+        private boolean directCapture;
+
+        /**
+         * Direct buffer into which audio is captured in direct capture mode.
+         */
+        private ByteBuffer captureBuffer;
+
+        /**
+         * 16-bit samples view of {@link #captureBuffer}.
+         */
+        private ShortBuffer captureSamples;
+
+        /**
+         * The number of <tt>Buffer</tt>s read since the stream was connected.
+         */
+        private int readCount;
+
+        /**
+         * The number of <tt>byte</tt> arrays allocated by {@link #read(Buffer)}
+         * since the stream was connected.
+         */
+        private int arrayAllocations;
+
+        /**
+         * The number of direct buffers allocated since the stream was
+         * connected, because there was none in the pool.
+         */
+        private int directBufferAllocations;
 
         /**
          * The <tt>GainControl</tt> through which the volume/gain of captured media
@@ -320,6 +471,12 @@ public class DataSource
                                 * channels
                                 * (sampleSizeInBits / 8));
 
+            // The counters cover the whole connection, the direct buffer is
+            // allocated here and reused by all starts
+            readCount = 0;
+            arrayAllocations = 0;
+            directBufferAllocations = 0;
+
             /*
              * Apart from the thread in which #read(Buffer) is executed, use the
              * thread priority for the thread which will create the AudioRecord.
@@ -343,6 +500,19 @@ public class DataSource
 
                 // tries to configure audio effects if available
                 configureEffects();
+
+                directCapture = isDirectCaptureEnabled();
+                if (directCapture)
+                {
+                    captureBuffer = acquireCaptureBuffer(length);
+                    if (captureBuffer == null)
+                    {
+                        captureBuffer = ByteBuffer.allocateDirect(length);
+                        directBufferAllocations++;
+                    }
+                    captureBuffer.order(ByteOrder.nativeOrder());
+                    captureSamples = captureBuffer.asShortBuffer();
+                }
             }
             catch (IllegalArgumentException iae)
             {
@@ -421,8 +591,21 @@ public class DataSource
         {
             if (audioRecord != null)
             {
-                audioRecord.release();
-                audioRecord = null;
+                recording = false;
+
+                // Waits for the read in progress
+                synchronized (readSyncRoot)
+                {
+                    audioRecord.release();
+                    audioRecord = null;
+
+                    if (captureBuffer != null)
+                    {
+                        releaseCaptureBuffer(captureBuffer);
+                        captureBuffer = null;
+                        captureSamples = null;
+                    }
+                }
 
                 setThreadPriority = true;
             }
@@ -479,25 +662,48 @@ public class DataSource
             {
                 data = new byte[length];
                 buffer.setData(data);
+                arrayAllocations++;
             }
 
-            int toRead = length;
             byte[] bytes = (byte[]) data;
-            int offset = 0;
 
             buffer.setLength(0);
-            while (toRead > 0)
+            synchronized (readSyncRoot)
             {
-                int read;
+                AudioRecord audioRecord = this.audioRecord;
 
-                synchronized (this)
+                if (audioRecord != null)
                 {
-                    if (audioRecord.getRecordingState()
-                            == AudioRecord.RECORDSTATE_RECORDING)
-                        read = audioRecord.read(bytes, offset, toRead);
+                    if (directCapture)
+                        readDirect(audioRecord, buffer, bytes, length);
                     else
-                        break;
+                        readArray(audioRecord, buffer, bytes, length);
                 }
+            }
+            buffer.setOffset(0);
+            readCount++;
+        }
+
+        /**
+         * Reads media data directly into given <tt>byte</tt> array and applies
+         * software gain afterwards.
+         *
+         * @param audioRecord the <tt>AudioRecord</tt> to read from.
+         * @param buffer the <tt>Buffer</tt> in which media data is to be read.
+         * @param bytes the data of <tt>buffer</tt>.
+         * @param length the number of bytes to read.
+         * @throws IOException if <tt>audioRecord</tt> fails to read.
+         */
+        private void readArray(AudioRecord audioRecord, Buffer buffer,
+                               byte[] bytes, int length)
+            throws IOException
+        {
+            int toRead = length;
+            int offset = 0;
+
+            while (toRead > 0 && recording)
+            {
+                int read = audioRecord.read(bytes, offset, toRead);
 
                 if (read < 0)
                 {
@@ -514,14 +720,63 @@ public class DataSource
                     toRead -= read;
                 }
             }
-            buffer.setOffset(0);
 
             // Apply software gain.
             if (gainControl != null)
             {
                 BasicVolumeControl.applyGain(
                         gainControl,
-                        bytes, buffer.getOffset(), buffer.getLength());
+                        bytes, 0, buffer.getLength());
+            }
+        }
+
+        /**
+         * Reads media data into {@link #captureBuffer}, applies software gain
+         * in place and copies the data into given <tt>byte</tt> array.
+         * <tt>AudioRecord</tt> always writes at the beginning of the direct
+         * buffer, so each chunk is copied before next one is read.
+         *
+         * @param audioRecord the <tt>AudioRecord</tt> to read from.
+         * @param buffer the <tt>Buffer</tt> in which media data is to be read.
+         * @param bytes the data of <tt>buffer</tt>.
+         * @param length the number of bytes to read.
+         * @throws IOException if <tt>audioRecord</tt> fails to read.
+         */
+        private void readDirect(AudioRecord audioRecord, Buffer buffer,
+                                byte[] bytes, int length)
+            throws IOException
+        {
+            ByteBuffer captureBuffer = this.captureBuffer;
+            int toRead = length;
+            int offset = 0;
+
+            while (toRead > 0 && recording)
+            {
+                captureBuffer.clear();
+
+                int read
+                    = audioRecord.read(
+                            captureBuffer,
+                            Math.min(toRead, captureBuffer.capacity()));
+
+                if (read < 0)
+                {
+                    throw
+                        new IOException(
+                                AudioRecord.class.getName()
+                                    + "#read(ByteBuffer, int) returned "
+                                    + read);
+                }
+
+                // Apply software gain.
+                if (gainControl != null)
+                    applyGain(gainControl, captureSamples, read / 2);
+
+                captureBuffer.get(bytes, offset, read);
+
+                buffer.setLength(buffer.getLength() + read);
+                offset += read;
+                toRead -= read;
             }
         }
 
@@ -555,6 +810,7 @@ public class DataSource
                 {
                     setThreadPriority = true;
                     audioRecord.startRecording();
+                    recording = true;
                 }
             }
         }
@@ -575,8 +831,20 @@ public class DataSource
             {
                 if (audioRecord != null)
                 {
+                    recording = false;
                     audioRecord.stop();
                     setThreadPriority = true;
+
+                    if (logger.isInfoEnabled())
+                    {
+                        logger.info(
+                                "Since connected read " + readCount
+                                    + " buffers, allocated "
+                                    + arrayAllocations + " arrays and "
+                                    + directBufferAllocations
+                                    + " direct buffers, direct capture: "
+                                    + directCapture);
+                    }
                 }
             }
 
@@ -0,0 +1,396 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.jmfext.media.renderer.audio;
+
+import java.util.concurrent.atomic.*;
+
+/**
+ * Lock-free ring buffer of audio data with single producer thread and single
+ * consumer thread. Neither {@link #write(byte[], int, int)} nor
+ * {@link #read(byte[], int, int)} ever blocks.<br/>
+ * When there's not enough free room for written data the buffer overruns and
+ * the data is dropped as specified by {@link OverrunPolicy}. Data is always
+ * dropped in whole frames.<br/>
+ * The consumer doesn't get any data until the buffer is filled up to
+ * the prefill level. When the consumer drains the buffer completely, it
+ * underruns and waits again for the prefill level to be reached, so that
+ * the playback is resumed with the same latency.
+ *
+ * @author Pawel Domas
+ */
+public class AudioRingBuffer
+{
+    /**
+     * Specifies which data is dropped when the buffer overruns.
+     */
+    public enum OverrunPolicy
+    {
+        /**
+         * The oldest data is dropped to make room for written data, which
+         * keeps the latency bounded.
+         */
+        DROP_OLDEST,
+
+        /**
+         * The part of written data that doesn't fit is dropped.
+         */
+        DROP_NEWEST
+    }
+
+    /**
+     * The data.
+     */
+    private final byte[] data;
+
+    /**
+     * The size of audio frame in bytes.
+     */
+    private final int frameSize;
+
+    /**
+     * The overrun policy.
+     */
+    private final OverrunPolicy overrunPolicy;
+
+    /**
+     * The total number of bytes written. Modified only by the producer.
+     */
+    private volatile long writePosition;
+
+    /**
+     * The total number of bytes read or dropped. Advanced by the consumer and
+     * by the producer when it drops the oldest data.
+     */
+    private final AtomicLong readPosition = new AtomicLong();
+
+    /**
+     * The number of bytes that must be available before the consumer gets
+     * any data.
+     */
+    private volatile int prefillLevel;
+
+    /**
+     * Indicates that the consumer waits for the prefill level to be reached.
+     * Used only by the consumer.
+     */
+    private boolean prefilling = true;
+
+    /**
+     * The number of overruns. Modified only by the producer.
+     */
+    private volatile long overrunCount;
+
+    /**
+     * The number of bytes dropped on overruns. Modified only by the producer.
+     */
+    private volatile long droppedBytes;
+
+    /**
+     * The number of underruns. Modified only by the consumer.
+     */
+    private volatile long underrunCount;
+
+    /**
+     * Creates new instance of <tt>AudioRingBuffer</tt>.
+     *
+     * @param capacity the capacity in bytes, rounded down to whole frames.
+     * @param frameSize the size of audio frame in bytes.
+     * @param overrunPolicy specifies which data is dropped on overruns.
+     */
+    public AudioRingBuffer(int capacity, int frameSize,
+                           OverrunPolicy overrunPolicy)
+    {
+        if(frameSize <= 0 || capacity < frameSize)
+            throw new IllegalArgumentException(
+                "capacity: " + capacity + ", frameSize: " + frameSize);
+
+        this.data = new byte[capacity - capacity % frameSize];
+        this.frameSize = frameSize;
+        this.overrunPolicy = overrunPolicy;
+        this.prefillLevel = data.length / 2;
+    }
+
+    /**
+     * Returns the capacity in bytes.
+     *
+     * @return the capacity in bytes.
+     */
+    public int getCapacity()
+    {
+        return data.length;
+    }
+
+    /**
+     * Returns the number of bytes that can be read.
+     *
+     * @return the number of bytes that can be read.
+     */
+    public int getAvailable()
+    {
+        long r = readPosition.get();
+
+        return (int) (writePosition - r);
+    }
+
+    /**
+     * Returns the number of bytes that must be available before the consumer
+     * gets any data.
+     *
+     * @return the prefill level in bytes.
+     */
+    public int getPrefillLevel()
+    {
+        return prefillLevel;
+    }
+
+    /**
+     * Sets the number of bytes that must be available before the consumer
+     * gets any data. The level is rounded down to whole frames and limited by
+     * the capacity.
+     *
+     * @param prefillLevel the prefill level in bytes.
+     */
+    public void setPrefillLevel(int prefillLevel)
+    {
+        prefillLevel = Math.max(0, Math.min(prefillLevel, data.length));
+
+        this.prefillLevel = prefillLevel - prefillLevel % frameSize;
+    }
+
+    /**
+     * Returns the number of overruns.
+     *
+     * @return the number of overruns.
+     */
+    public long getOverrunCount()
+    {
+        return overrunCount;
+    }
+
+    /**
+     * Returns the number of bytes dropped on overruns.
+     *
+     * @return the number of dropped bytes.
+     */
+    public long getDroppedBytes()
+    {
+        return droppedBytes;
+    }
+
+    /**
+     * Returns the number of underruns.
+     *
+     * @return the number of underruns.
+     */
+    public long getUnderrunCount()
+    {
+        return underrunCount;
+    }
+
+    /**
+     * Writes audio data. Must be called only by the producer thread.
+     *
+     * @param src the data.
+     * @param offset the offset of the data in <tt>src</tt>.
+     * @param length the length of the data in bytes.
+     *
+     * @return the number of bytes written or dropped in place of the oldest
+     * data, which is less than <tt>length</tt> only when the newest data is
+     * dropped.
+     */
+    public int write(byte[] src, int offset, int length)
+    {
+        int capacity = data.length;
+        long w = writePosition;
+        int consumed = 0;
+
+        if(length > capacity)
+        {
+            // Only the newest data can fit
+            if(overrunPolicy == OverrunPolicy.DROP_NEWEST)
+            {
+                consumed = length - capacity;
+                length = capacity;
+            }
+            else
+            {
+                int skip = alignUp(length - capacity);
+
+                offset += skip;
+                length -= skip;
+                consumed = skip;
+            }
+            overrunCount++;
+            droppedBytes += consumed;
+        }
+
+        int free = capacity - (int) (w - readPosition.get());
+
+        if(length > free)
+        {
+            if(overrunPolicy == OverrunPolicy.DROP_NEWEST)
+            {
+                int fits = free - free % frameSize;
+
+                if(consumed == 0)
+                    overrunCount++;
+                droppedBytes += length - fits;
+                length = fits;
+
+                if(length == 0)
+                    return 0;
+            }
+            else
+            {
+                dropOldest(w, length);
+                if(consumed == 0)
+                    overrunCount++;
+            }
+        }
+
+        int index = (int) (w % capacity);
+        int tail = Math.min(length, capacity - index);
+
+        System.arraycopy(src, offset, data, index, tail);
+        if(tail < length)
+            System.arraycopy(src, offset + tail, data, 0, length - tail);
+
+        writePosition = w + length;
+
+        return overrunPolicy == OverrunPolicy.DROP_NEWEST
+            ? length : consumed + length;
+    }
+
+    /**
+     * Advances the read position, so that there is room for <tt>length</tt>
+     * bytes. Called by the producer.
+     *
+     * @param w the write position.
+     * @param length the number of bytes to make room for.
+     */
+    private void dropOldest(long w, int length)
+    {
+        while(true)
+        {
+            long r = readPosition.get();
+            int used = (int) (w - r);
+            int excess = length - (data.length - used);
+
+            if(excess <= 0)
+                return;
+
+            excess = Math.min(alignUp(excess), used);
+            if(readPosition.compareAndSet(r, r + excess))
+            {
+                droppedBytes += excess;
+                return;
+            }
+            // The consumer has read some data in the meantime
+        }
+    }
+
+    /**
+     * Reads audio data. Must be called only by the consumer thread. Only
+     * whole frames are read.
+     *
+     * @param dst the array to read into.
+     * @param offset the offset in <tt>dst</tt>.
+     * @param length the maximal number of bytes to read.
+     *
+     * @return the number of bytes read, zero when the buffer is being
+     * prefilled.
+     */
+    public int read(byte[] dst, int offset, int length)
+    {
+        int capacity = data.length;
+
+        while(true)
+        {
+            long r = readPosition.get();
+            int available = (int) (writePosition - r);
+
+            if(prefilling)
+            {
+                if(available < prefillLevel || available == 0)
+                    return 0;
+                prefilling = false;
+            }
+            else if(available == 0)
+            {
+                underrunCount++;
+                prefilling = true;
+                return 0;
+            }
+
+            int count = Math.min(length, available);
+
+            count -= count % frameSize;
+            if(count == 0)
+                return 0;
+
+            int index = (int) (r % capacity);
+            int tail = Math.min(count, capacity - index);
+
+            System.arraycopy(data, index, dst, offset, tail);
+            if(tail < count)
+                System.arraycopy(data, 0, dst, offset + tail, count - tail);
+
+            if(readPosition.compareAndSet(r, r + count))
+                return count;
+            // The producer has dropped the data being copied, try again
+        }
+    }
+
+    /**
+     * Drops the oldest data in order to reduce the latency. Must be called
+     * only by the consumer thread. Only whole frames are dropped.
+     *
+     * @param length the maximal number of bytes to drop.
+     *
+     * @return the number of bytes dropped.
+     */
+    public int skip(int length)
+    {
+        while(true)
+        {
+            long r = readPosition.get();
+            int count = Math.min(length, (int) (writePosition - r));
+
+            count -= count % frameSize;
+            if(count <= 0)
+                return 0;
+
+            if(readPosition.compareAndSet(r, r + count))
+                return count;
+        }
+    }
+
+    /**
+     * Rounds the number of bytes up to whole frames.
+     *
+     * @param bytes the number of bytes.
+     *
+     * @return the number of bytes rounded up to whole frames.
+     */
+    private int alignUp(int bytes)
+    {
+        int remainder = bytes % frameSize;
+
+        return remainder == 0 ? bytes : bytes + frameSize - remainder;
+    }
+}
@@ -19,12 +19,16 @@ package org.jitsi.impl.neomedia.jmfext.media.renderer.audio;
 
 import android.media.*;
 
+import java.util.concurrent.*;
+import java.util.concurrent.locks.*;
+
 import javax.media.*;
 import javax.media.format.AudioFormat; // disambiguation
 
 import org.jitsi.impl.neomedia.device.*;
 import net.java.sip.communicator.util.*;
 import org.jitsi.impl.neomedia.*;
+import org.jitsi.service.libjitsi.*;
 import org.jitsi.service.neomedia.*;
 import org.jitsi.service.neomedia.codec.*;
 
@@ -60,6 +64,24 @@ public class AudioTrackRenderer
      */
     private static final int LATENCY = 0;
 
+    /**
+     * The name of the <tt>boolean</tt> configuration property which enables
+     * adaptive playout latency of call audio.
+     */
+    public static final String ADAPTIVE_PLAYOUT_PROPERTY
+        = "org.jitsi.impl.neomedia.android.adaptive_playout";
+
+    /**
+     * The initial target latency in adaptive playout mode in milliseconds.
+     */
+    private static final int ADAPTIVE_PLAYOUT_INITIAL_LATENCY = 60;
+
+    /**
+     * The opened <tt>AudioTrackRenderer</tt>s which play call audio.
+     */
+    private static final CopyOnWriteArrayList<AudioTrackRenderer>
+        callRenderers = new CopyOnWriteArrayList<AudioTrackRenderer>();
+
     /**
      * The maximum valid volume value accepted by <tt>AudioTrack</tt> instances.
      */
@@ -127,27 +149,56 @@ public class AudioTrackRenderer
     /**
      * The buffer into which media data is written during the execution of
      * {@link #process(Buffer)} and from which media data is read into
-     * {@link #audioTrack} in order to incur latency.
+     * {@link #audioTrack} in order to incur latency. The oldest data is
+     * dropped when it overruns.
+     */
+    private AudioRingBuffer latency;
+
+    /**
+     * The <tt>Thread</tt> which reads from {@link #latency} and writes into
+     * {@link #audioTrack}. Set to <tt>null</tt> in order to stop the thread.
      */
-    private byte[] latency;
+    private volatile Thread latencyThread;
 
     /**
-     * The zero-based index in {@link #latency} at which the beginning of
-     * (actual/valid) media data is contained.
+     * Tunes the amount of audio buffered in {@link #audioTrack} in adaptive
+     * playout mode, <tt>null</tt> otherwise.
      */
-    private int latencyHead;
+    private PlayoutLatencyControl playoutControl;
 
     /**
-     * The number of bytes in {@link #latency} containing (actual/valid) media
-     * data.
+     * The number of bytes of media data played in one millisecond.
      */
-    private int latencyLength;
+    private int bytesPerMillisecond;
 
     /**
-     * The <tt>Thread</tt> which reads from {@link #latency} and writes into
-     * {@link #audioTrack}.
+     * The size of audio frame in bytes.
      */
-    private Thread latencyThread;
+    private int frameSizeInBytes;
+
+    /**
+     * The size of the buffer of {@link #audioTrack} in frames.
+     */
+    private int audioTrackBufferSizeInFrames;
+
+    /**
+     * The number of frames written into {@link #audioTrack} counted from
+     * the playback head position at which the count was last reset. Modified
+     * only by the thread which writes into <tt>audioTrack</tt>.
+     */
+    private volatile long framesWritten;
+
+    /**
+     * Indicates that some data has been written into {@link #audioTrack}
+     * since it last ran out of data.
+     */
+    private boolean playoutPrimed;
+
+    /**
+     * Indicates that {@link #audioTrack} has been (re)started, so that
+     * {@link #framesWritten} has to be reset.
+     */
+    private volatile boolean playoutRestarted;
 
     /**
      * The indicator which determines whether this <tt>AudioTrackRenderer</tt>
@@ -223,29 +274,64 @@ public class AudioTrackRenderer
     {
         if (audioTrack != null)
         {
+            Thread latencyThread = this.latencyThread;
+
+            if (latencyThread != null)
+            {
+                this.latencyThread = null;
+                LockSupport.unpark(latencyThread);
+
+                boolean interrupted = false;
+
+                while (latencyThread.isAlive())
+                {
+                    try
+                    {
+                        latencyThread.join();
+                    }
+                    catch (InterruptedException ie)
+                    {
+                        interrupted = true;
+                    }
+                }
+                if (interrupted)
+                    Thread.currentThread().interrupt();
+            }
+
             audioTrack.release();
             audioTrack = null;
 
             setThreadPriority = true;
 
-            boolean interrupted = false;
+            callRenderers.remove(this);
 
-            while (latencyThread != null)
+            if (playoutControl != null)
             {
-                try
+                if (logger.isInfoEnabled())
                 {
-                    wait(20);
+                    logger.info(
+                            "Adaptive playout glitches: "
+                                + playoutControl.getGlitchCount()
+                                + ", final target latency: "
+                                + playoutControl.getTargetLatency() + " ms");
                 }
-                catch (InterruptedException ie)
+                playoutControl = null;
+            }
+
+            if (latency != null)
+            {
+                if (logger.isInfoEnabled())
                 {
-                    interrupted = true;
+                    logger.info(
+                            "Latency buffer overruns: "
+                                + latency.getOverrunCount()
+                                + ", dropped bytes: "
+                                + latency.getDroppedBytes()
+                                + ", underruns: "
+                                + latency.getUnderrunCount());
                 }
+                latency = null;
             }
-            if (interrupted)
-                Thread.currentThread().interrupt();
-            latency = null;
-            latencyHead = 0;
-            latencyLength = 0;
         }
     }
 
@@ -273,6 +359,110 @@ public class AudioTrackRenderer
         return streamType;
     }
 
+    /**
+     * Returns the current playout latency of call audio i.e. the highest
+     * playout latency of opened <tt>AudioTrackRenderer</tt>s which play call
+     * audio.
+     *
+     * @return the playout latency in milliseconds or <tt>-1</tt> if there's no
+     * call audio being played.
+     * @see #getPlayoutLatency()
+     */
+    public static int getCallPlayoutLatency()
+    {
+        int playoutLatency = -1;
+
+        for (AudioTrackRenderer renderer : callRenderers)
+        {
+            playoutLatency
+                = Math.max(playoutLatency, renderer.getPlayoutLatency());
+        }
+        return playoutLatency;
+    }
+
+    /**
+     * Returns the current playout latency of this renderer i.e. the amount of
+     * audio queued for playback by <tt>AudioTrackRenderer</tt> and
+     * <tt>AudioTrack</tt>. It's computed on request, so that the playback
+     * doesn't have to track it.
+     *
+     * @return the playout latency in milliseconds or <tt>-1</tt> if this
+     * renderer isn't opened.
+     */
+    public synchronized int getPlayoutLatency()
+    {
+        if (audioTrack == null)
+            return -1;
+
+        // The position is unsigned 32-bit value
+        long head = audioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        long queued = framesWritten - head;
+
+        /*
+         * The count may be out of range until the thread which writes into
+         * the AudioTrack notices that it has been restarted.
+         */
+        queued = Math.max(0, Math.min(queued, audioTrackBufferSizeInFrames));
+
+        int queuedBytes = (int) queued * frameSizeInBytes;
+        AudioRingBuffer latency = this.latency;
+
+        if (latency != null)
+            queuedBytes += latency.getAvailable();
+        return queuedBytes / bytesPerMillisecond;
+    }
+
+    /**
+     * Returns <tt>true</tt> if adaptive playout latency is enabled.
+     *
+     * @return <tt>true</tt> if adaptive playout latency is enabled.
+     */
+    private static boolean isAdaptivePlayoutEnabled()
+    {
+        return LibJitsi.getConfigurationService()
+                .getBoolean(ADAPTIVE_PLAYOUT_PROPERTY, false);
+    }
+
+    /**
+     * Returns <tt>true</tt> if this renderer plays call audio.
+     *
+     * @return <tt>true</tt> if this renderer plays call audio.
+     */
+    private boolean isCallStream()
+    {
+        return streamType == AudioManager.STREAM_VOICE_CALL;
+    }
+
+    /**
+     * Returns the number of frames written into {@link #audioTrack}, which
+     * haven't been played yet. Must be called by the thread which writes into
+     * <tt>audioTrack</tt>.
+     *
+     * @param audioTrack the <tt>AudioTrack</tt>.
+     * @return the number of queued frames.
+     */
+    private int getQueuedFrames(AudioTrack audioTrack)
+    {
+        // The position is unsigned 32-bit value
+        long head = audioTrack.getPlaybackHeadPosition() & 0xFFFFFFFFL;
+        long queued = framesWritten - head;
+
+        if (playoutRestarted
+                || (queued < 0)
+                || (queued > audioTrackBufferSizeInFrames))
+        {
+            /*
+             * The position is reset when AudioTrack is stopped and it wraps
+             * around eventually.
+             */
+            playoutRestarted = false;
+            playoutPrimed = false;
+            framesWritten = head;
+            queued = 0;
+        }
+        return (int) queued;
+    }
+
     /**
      * Implements {@link Renderer#getSupportedInputFormats()}. Gets the list of
      * input <tt>Format</tt>s supported by this <tt>Renderer</tt>.
@@ -379,7 +569,7 @@ public class AudioTrackRenderer
                 throw new ResourceUnavailableException("sampleSizeInBits");
             }
 
-            int bytesPerMillisecond
+            bytesPerMillisecond
                 = (int)
                     Math.round(
                             (sampleRate / 1000)
@@ -389,13 +579,40 @@ public class AudioTrackRenderer
             audioTrackWriteLengthInBytes
                 = 20 /* milliseconds */ * bytesPerMillisecond;
 
+            frameSizeInBytes = channels * (sampleSizeInBits / 8);
+
             /*
              * Give the AudioTrack a large enough buffer size in bytes in case
-             * it remedies cracking.
+             * it remedies cracking. In adaptive playout mode the buffer must
+             * be able to hold the maximal target latency.
              */
+            boolean adaptivePlayout
+                = (LATENCY <= 0)
+                    && isCallStream()
+                    && isAdaptivePlayoutEnabled();
             int audioTrackBufferSizeInBytes
                 = 5 * audioTrackWriteLengthInBytes;
 
+            if (adaptivePlayout)
+            {
+                audioTrackBufferSizeInBytes
+                    = Math.max(
+                            audioTrackBufferSizeInBytes,
+                            PlayoutLatencyControl.MAX_LATENCY
+                                * bytesPerMillisecond);
+            }
+            audioTrackBufferSizeInBytes
+                = Math.max(
+                        audioTrackBufferSizeInBytes,
+                        AudioTrack.getMinBufferSize(
+                                (int) sampleRate,
+                                channelConfig,
+                                audioFormat));
+            audioTrackBufferSizeInFrames
+                = audioTrackBufferSizeInBytes / frameSizeInBytes;
+            framesWritten = 0;
+            playoutPrimed = false;
+
             /*
              * Apart from the thread in which #process(Buffer) is executed, use
              * the thread priority for the thread which will create the
@@ -409,16 +626,14 @@ public class AudioTrackRenderer
                         (int) sampleRate,
                         channelConfig,
                         audioFormat,
-                        Math.max(
-                                audioTrackBufferSizeInBytes,
-                                AudioTrack.getMinBufferSize(
-                                        (int) sampleRate,
-                                        channelConfig,
-                                        audioFormat)),
+                        audioTrackBufferSizeInBytes,
                         AudioTrack.MODE_STREAM);
 
             setThreadPriority = true;
 
+            if (isCallStream())
+                callRenderers.addIfAbsent(this);
+
             if (USE_SOFTWARE_GAIN)
             {
                 /*
@@ -446,25 +661,62 @@ public class AudioTrackRenderer
                 gainControlLevelAppliedToAudioTrack = -1;
             }
 
-            /* Incur latency if requested. */
-            latency
-                = (LATENCY > 0)
-                    ? new byte[2 * LATENCY * bytesPerMillisecond]
-                    : null;
-            latencyHead = 0;
-            latencyLength = 0;
+            /*
+             * Incur latency if requested. The latency buffer is prefilled up
+             * to its half i.e. LATENCY milliseconds.
+             */
+            if (LATENCY > 0)
+            {
+                latency
+                    = new AudioRingBuffer(
+                            2 * LATENCY * bytesPerMillisecond,
+                            frameSizeInBytes,
+                            AudioRingBuffer.OverrunPolicy.DROP_OLDEST);
+                playoutControl = null;
+            }
+            else if (adaptivePlayout)
+            {
+                /*
+                 * The latency buffer only hands the data over to the latency
+                 * thread, which keeps the target latency queued in the
+                 * AudioTrack.
+                 */
+                latency
+                    = new AudioRingBuffer(
+                            2 * PlayoutLatencyControl.MAX_LATENCY
+                                * bytesPerMillisecond,
+                            frameSizeInBytes,
+                            AudioRingBuffer.OverrunPolicy.DROP_OLDEST);
+                latency.setPrefillLevel(0);
+                playoutControl
+                    = new PlayoutLatencyControl(
+                            ADAPTIVE_PLAYOUT_INITIAL_LATENCY);
+            }
+            else
+            {
+                latency = null;
+                playoutControl = null;
+            }
 
             if (latency == null)
                 latencyThread = null;
             else
             {
+                final AudioTrack audioTrack = this.audioTrack;
+                final AudioRingBuffer latency = this.latency;
+                final PlayoutLatencyControl playoutControl
+                    = this.playoutControl;
+
                 latencyThread
                     = new Thread()
                             {
                                 @Override
                                 public void run()
                                 {
-                                    runInLatencyThread();
+                                    runInLatencyThread(
+                                            audioTrack,
+                                            latency,
+                                            playoutControl);
                                 }
                             };
                 latencyThread.setDaemon(true);
@@ -630,78 +882,33 @@ public class AudioTrackRenderer
                         }
 
                         if (latency == null)
+                        {
+                            /*
+                             * Only count the written frames, the playback
+                             * head position is queried on request.
+                             */
+                            if (playoutRestarted)
+                                getQueuedFrames(audioTrack);
+
                             written = audioTrack.write(bytes, offset, length);
+                            if (written > 0)
+                                framesWritten += written / frameSizeInBytes;
+                        }
                         else
                         {
                             /*
                              * Incur latency i.e. process the specified Buffer
                              * by means of the latency field of this
-                             * AudioTrackRenderer.
+                             * AudioTrackRenderer. The latency buffer never
+                             * blocks, the oldest data is dropped when it's
+                             * full.
                              */
-                            written = 0;
+                            written = latency.write(bytes, offset, length);
 
-                            /*
-                             * If there is no free room in the latency buffer,
-                             * wait for it to be freed.
-                             */
-                            if (latency.length - latencyLength <= 0)
-                            {
-                                boolean interrupted = false;
-
-                                try
-                                {
-                                    wait(20);
-                                }
-                                catch (InterruptedException ie)
-                                {
-                                    interrupted = true;
-                                }
-                                if (interrupted)
-                                    Thread.currentThread().interrupt();
-                            }
-                            else
-                            {
-                                /*
-                                 * There is some free room in the latency buffer
-                                 * so we can fill it up using the data specified
-                                 * by the caller in the Buffer.
-                                 */
-                                int latencyTail = latencyHead + latencyLength;
-                                int freeTail = latency.length - latencyTail;
-                                int toWrite = length;
-
-                                if (freeTail > 0)
-                                {
-                                    int tailToWrite
-                                        = Math.min(freeTail, toWrite);
-
-                                    System.arraycopy(
-                                            bytes, offset,
-                                            latency, latencyTail,
-                                            tailToWrite);
-                                    latencyLength += tailToWrite;
-                                    toWrite -= tailToWrite;
-                                    written = tailToWrite;
-                                }
-                                if (toWrite > 0)
-                                {
-                                    int freeHead
-                                        = latency.length - latencyLength;
+                            Thread latencyThread = this.latencyThread;
 
-                                    if (freeHead > 0)
-                                    {
-                                        int headToWrite
-                                            = Math.min(freeHead, toWrite);
-
-                                        System.arraycopy(
-                                                bytes, offset + written,
-                                                latency, 0,
-                                                headToWrite);
-                                        latencyLength += headToWrite;
-                                        written += headToWrite;
-                                    }
-                                }
-                            }
+                            if (latencyThread != null)
+                                LockSupport.unpark(latencyThread);
                         }
 
                         if (written < 0)
@@ -753,91 +960,104 @@ public class AudioTrackRenderer
 
     /**
      * Runs in {@link #latencyThread}. Reads from {@link #latency} and writes
-     * into {@link #audioTrack}.
+     * into {@link #audioTrack}. Doesn't synchronize with
+     * {@link #process(Buffer)}, which only wakes this thread up when new data
+     * is available.<br/>
+     * In adaptive playout mode only as much data is written as is needed to
+     * keep the target latency queued in the <tt>AudioTrack</tt>. When
+     * the <tt>AudioTrack</tt> runs out of data, the target latency is
+     * increased. Data which piles up in the latency buffer above the target
+     * latency is dropped.
+     *
+     * @param audioTrack the <tt>AudioTrack</tt> to write into.
+     * @param latency the latency buffer to read from.
+     * @param playoutControl controls the latency in adaptive playout mode,
+     * <tt>null</tt> otherwise.
      */
-    private void runInLatencyThread()
+    private void runInLatencyThread(AudioTrack audioTrack,
+                                    AudioRingBuffer latency,
+                                    PlayoutLatencyControl playoutControl)
     {
-        try
-        {
-            org.jitsi.impl.neomedia.jmfext.media.protocol
-                    .audiorecord.DataSource.setThreadPriority();
+        org.jitsi.impl.neomedia.jmfext.media.protocol
+                .audiorecord.DataSource.setThreadPriority();
 
-            boolean latencyIncurred = false;
+        byte[] bytes = new byte[2 * audioTrackWriteLengthInBytes];
 
-            while (true)
+        while (Thread.currentThread().equals(latencyThread))
+        {
+            int toRead = bytes.length;
+
+            if (playoutControl != null)
             {
-                synchronized (this)
+                int queued = getQueuedFrames(audioTrack);
+                long now = System.nanoTime() / 1000000;
+
+                if (playoutPrimed
+                        && (queued == 0)
+                        && (audioTrack.getPlayState()
+                                == AudioTrack.PLAYSTATE_PLAYING))
                 {
-                    if (!Thread.currentThread().equals(latencyThread))
-                        break;
-                    if (audioTrack == null)
-                        break;
+                    playoutPrimed = false;
+                    playoutControl.glitch(now);
+                }
 
-                    boolean wait = false;
+                int target
+                    = playoutControl.update(now) * bytesPerMillisecond;
+                int excess = latency.getAvailable() - target;
 
-                    if (!latencyIncurred)
-                    {
-                        if (latencyLength < (latency.length / 2))
-                            wait = true;
-                        else
-                            latencyIncurred = true;
-                    }
-                    else if (latencyLength <= 0)
-                        wait = true;
+                if (excess > bytes.length)
+                    latency.skip(excess);
 
-                    if (wait)
-                    {
-                        boolean interrupted = false;
+                toRead
+                    = Math.min(
+                            toRead,
+                            target - queued * frameSizeInBytes);
+            }
+            else if (playoutRestarted)
+            {
+                getQueuedFrames(audioTrack);
+            }
 
-                        try
-                        {
-                            wait(20);
-                        }
-                        catch (InterruptedException ie)
-                        {
-                            interrupted = true;
-                        }
-                        if (interrupted)
-                            Thread.currentThread().interrupt();
+            int toWrite
+                = (toRead > 0) ? latency.read(bytes, 0, toRead) : 0;
 
-                        continue;
-                    }
+            if (toWrite == 0)
+            {
+                /*
+                 * Wait for #process(Buffer) to write more data or for
+                 * the AudioTrack to play the queued data.
+                 */
+                LockSupport.parkNanos(
+                        this,
+                        TimeUnit.MILLISECONDS.toNanos(
+                                (playoutControl == null) ? 20 : 10));
+                continue;
+            }
 
-                    int toWrite
-                        = Math.min(
-                                Math.min(
-                                        latencyLength,
-                                        latency.length - latencyHead),
-                                2 * audioTrackWriteLengthInBytes);
-                    int written
-                        = audioTrack.write(latency, latencyHead, toWrite);
+            int offset = 0;
 
-                    if (written < 0)
-                    {
-                        throw
-                            new RuntimeException(
-                                    "android.media.AudioTrack"
-                                        + "#write(byte[], int, int)");
-                    }
-                    else if (written > 0)
-                    {
-                        latencyHead += written;
-                        if (latencyHead >= latency.length)
-                            latencyHead = 0;
-                        latencyLength -= written;
-                    }
-                }
-            }
-        }
-        finally
-        {
-            synchronized (this)
+            while (toWrite > 0 && Thread.currentThread().equals(latencyThread))
             {
-                if (Thread.currentThread().equals(latencyThread))
+                int written = audioTrack.write(bytes, offset, toWrite);
+
+                if (written < 0)
                 {
-                    latencyThread = null;
-                    notify();
+                    throw
+                        new RuntimeException(
+                                "android.media.AudioTrack"
+                                    + "#write(byte[], int, int)");
+                }
+                else if (written == 0)
+                {
+                    // The AudioTrack is paused or stopped.
+                    LockSupport.parkNanos(
+                            this,
+                            TimeUnit.MILLISECONDS.toNanos(20));
                 }
+                offset += written;
+                toWrite -= written;
+                framesWritten += written / frameSizeInBytes;
+                playoutPrimed = true;
             }
         }
     }
@@ -853,6 +1073,7 @@ public class AudioTrackRenderer
         if (audioTrack != null)
         {
             setThreadPriority = true;
+            playoutRestarted = true;
             audioTrack.play();
         }
     }
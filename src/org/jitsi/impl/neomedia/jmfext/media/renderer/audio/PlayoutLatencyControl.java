@@ -0,0 +1,145 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.impl.neomedia.jmfext.media.renderer.audio;
+
+/**
+ * Decides how much audio should be buffered for playout. The target latency
+ * grows by half on each playback glitch and shrinks by
+ * {@link #SHRINK_STEP} after each {@link #STABLE_PERIOD} without glitches,
+ * so that it quickly adapts to a device that can't keep up and slowly gets
+ * rid of excess delay when playback is stable.<br/>
+ * Not thread safe, it's meant to be used by the thread that writes to
+ * the output device.
+ *
+ * @author Pawel Domas
+ */
+public class PlayoutLatencyControl
+{
+    /**
+     * The minimal target latency in milliseconds.
+     */
+    public static final int MIN_LATENCY = 40;
+
+    /**
+     * The maximal target latency in milliseconds.
+     */
+    public static final int MAX_LATENCY = 300;
+
+    /**
+     * The minimal increase of target latency on a glitch in milliseconds.
+     */
+    private static final int MIN_GROW_STEP = 20;
+
+    /**
+     * The decrease of target latency after stable period in milliseconds.
+     */
+    private static final int SHRINK_STEP = 10;
+
+    /**
+     * The time without glitches after which target latency is decreased in
+     * milliseconds.
+     */
+    private static final long STABLE_PERIOD = 5000;
+
+    /**
+     * The target latency in milliseconds.
+     */
+    private int targetLatency;
+
+    /**
+     * The time of the last change of the target latency or <tt>-1</tt> if
+     * it hasn't been set yet.
+     */
+    private long lastChange = -1;
+
+    /**
+     * The number of glitches.
+     */
+    private long glitchCount;
+
+    /**
+     * Creates new instance of <tt>PlayoutLatencyControl</tt>.
+     *
+     * @param initialLatency initial target latency in milliseconds.
+     */
+    public PlayoutLatencyControl(int initialLatency)
+    {
+        targetLatency
+            = Math.max(MIN_LATENCY, Math.min(initialLatency, MAX_LATENCY));
+    }
+
+    /**
+     * Returns the target latency.
+     *
+     * @return the target latency in milliseconds.
+     */
+    public int getTargetLatency()
+    {
+        return targetLatency;
+    }
+
+    /**
+     * Returns the number of reported glitches.
+     *
+     * @return the number of glitches.
+     */
+    public long getGlitchCount()
+    {
+        return glitchCount;
+    }
+
+    /**
+     * Reports playback glitch i.e. the device has run out of data. Increases
+     * the target latency.
+     *
+     * @param now the current time in milliseconds.
+     */
+    public void glitch(long now)
+    {
+        glitchCount++;
+
+        targetLatency
+            = Math.min(
+                    MAX_LATENCY,
+                    targetLatency
+                        + Math.max(MIN_GROW_STEP, targetLatency / 2));
+        lastChange = now;
+    }
+
+    /**
+     * Decreases the target latency if there hasn't been any glitch for
+     * {@link #STABLE_PERIOD}.
+     *
+     * @param now the current time in milliseconds.
+     *
+     * @return the target latency in milliseconds.
+     */
+    public int update(long now)
+    {
+        if(lastChange == -1)
+        {
+            lastChange = now;
+        }
+        else if(now - lastChange >= STABLE_PERIOD)
+        {
+            targetLatency = Math.max(MIN_LATENCY, targetLatency - SHRINK_STEP);
+            lastChange = now;
+        }
+        return targetLatency;
+    }
+}
@@ -0,0 +1,334 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.test;
+
+import android.test.suitebuilder.annotation.*;
+
+import junit.framework.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.impl.neomedia.jmfext.media.renderer.audio.*;
+
+/**
+ * Checks overrun and underrun handling of <tt>AudioRingBuffer</tt> and
+ * streams data between producer and consumer threads, the way
+ * <tt>AudioTrackRenderer</tt> does.
+ *
+ * @author Pawel Domas
+ */
+public class AudioRingBufferTest
+    extends TestCase
+{
+    /**
+     * The logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(AudioRingBufferTest.class);
+
+    /**
+     * The size of 16-bit mono frame.
+     */
+    private static final int FRAME_SIZE = 2;
+
+    /**
+     * The number of bytes streamed between the threads.
+     */
+    private static final int STREAMED_BYTES = 20000000;
+
+    /**
+     * Creates the data with consecutive byte values.
+     *
+     * @param first the first value.
+     * @param length the length of the data.
+     *
+     * @return the data.
+     */
+    private static byte[] sequence(int first, int length)
+    {
+        byte[] data = new byte[length];
+        for(int i = 0; i < length; i++)
+        {
+            data[i] = (byte) (first + i);
+        }
+        return data;
+    }
+
+    @SmallTest
+    public void testPrefillAndUnderrun()
+    {
+        AudioRingBuffer ring = new AudioRingBuffer(
+            16, FRAME_SIZE, AudioRingBuffer.OverrunPolicy.DROP_OLDEST);
+        byte[] out = new byte[16];
+
+        assertEquals(8, ring.getPrefillLevel());
+
+        assertEquals(6, ring.write(sequence(0, 6), 0, 6));
+        assertEquals(0, ring.read(out, 0, out.length));
+
+        assertEquals(4, ring.write(sequence(6, 4), 0, 4));
+        assertEquals(10, ring.read(out, 0, out.length));
+        assertEquals(9, out[9]);
+
+        // Drained buffer underruns and is prefilled again
+        assertEquals(0, ring.read(out, 0, out.length));
+        assertEquals(1, ring.getUnderrunCount());
+        ring.write(sequence(10, 4), 0, 4);
+        assertEquals(0, ring.read(out, 0, out.length));
+        ring.write(sequence(14, 4), 0, 4);
+        assertEquals(8, ring.read(out, 0, out.length));
+        assertEquals(10, out[0]);
+        assertEquals(17, out[7]);
+        assertEquals(0, ring.getOverrunCount());
+    }
+
+    @SmallTest
+    public void testDropOldest()
+    {
+        AudioRingBuffer ring = new AudioRingBuffer(
+            16, FRAME_SIZE, AudioRingBuffer.OverrunPolicy.DROP_OLDEST);
+        ring.setPrefillLevel(0);
+        byte[] out = new byte[16];
+
+        assertEquals(12, ring.write(sequence(0, 12), 0, 12));
+        assertEquals(4, ring.read(out, 0, 4));
+
+        // Wraps around and drops 2 oldest frames
+        assertEquals(12, ring.write(sequence(12, 12), 0, 12));
+        assertEquals(1, ring.getOverrunCount());
+        assertEquals(4, ring.getDroppedBytes());
+        assertEquals(16, ring.getAvailable());
+        assertEquals(16, ring.read(out, 0, out.length));
+        assertEquals(8, out[0]);
+        assertEquals(23, out[15]);
+
+        // Larger than the capacity, only the newest data is kept
+        assertEquals(22, ring.write(sequence(30, 22), 0, 22));
+        assertEquals(2, ring.getOverrunCount());
+        assertEquals(16, ring.read(out, 0, out.length));
+        assertEquals(36, out[0]);
+    }
+
+    @SmallTest
+    public void testDropNewest()
+    {
+        AudioRingBuffer ring = new AudioRingBuffer(
+            16, FRAME_SIZE, AudioRingBuffer.OverrunPolicy.DROP_NEWEST);
+        ring.setPrefillLevel(0);
+        byte[] out = new byte[16];
+
+        assertEquals(12, ring.write(sequence(0, 12), 0, 12));
+        assertEquals(4, ring.write(sequence(12, 12), 0, 12));
+        assertEquals(1, ring.getOverrunCount());
+        assertEquals(8, ring.getDroppedBytes());
+        assertEquals(0, ring.write(sequence(30, 2), 0, 2));
+        assertEquals(2, ring.getOverrunCount());
+
+        assertEquals(16, ring.read(out, 0, out.length));
+        assertEquals(0, out[0]);
+        assertEquals(15, out[15]);
+    }
+
+    @MediumTest
+    public void testStreaming()
+        throws Exception
+    {
+        final AudioRingBuffer ring = new AudioRingBuffer(
+            3200, FRAME_SIZE, AudioRingBuffer.OverrunPolicy.DROP_NEWEST);
+        Thread producer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                byte[] chunk = new byte[640];
+                int value = 0;
+                int written = 0;
+                while(written < STREAMED_BYTES)
+                {
+                    for(int i = 0; i < chunk.length; i++)
+                    {
+                        chunk[i] = (byte) (value + i);
+                    }
+                    int count = ring.write(chunk, 0, chunk.length);
+                    // Dropped data is written again
+                    value += count;
+                    written += count;
+                    if(count < chunk.length)
+                        Thread.yield();
+                }
+                // The tail of the stream may be below the prefill level
+                ring.setPrefillLevel(0);
+            }
+        };
+
+        // Doesn't prevent exit when the test fails
+        producer.setDaemon(true);
+
+        long start = System.nanoTime();
+        producer.start();
+
+        byte[] out = new byte[700];
+        int expected = 0;
+        int read = 0;
+        while(read < STREAMED_BYTES)
+        {
+            int count = ring.read(out, 0, out.length);
+            for(int i = 0; i < count; i++)
+            {
+                if(out[i] != (byte) expected++)
+                    fail("Unexpected data at " + (read + i));
+            }
+            read += count;
+            if(count == 0)
+                Thread.yield();
+        }
+        producer.join();
+
+        long time = System.nanoTime() - start;
+        logger.info("Streamed " + read + " bytes in " + time / 1000000
+            + " ms, overruns: " + ring.getOverrunCount() + ", underruns: "
+            + ring.getUnderrunCount());
+
+        assertEquals(STREAMED_BYTES, read);
+    }
+
+    @MediumTest
+    public void testStreamingDropOldest()
+        throws Exception
+    {
+        // Each frame holds its index, so that gaps can be measured
+        final int frameSize = 4;
+        final int frameCount = STREAMED_BYTES / frameSize;
+        final AudioRingBuffer ring = new AudioRingBuffer(
+            3200, frameSize, AudioRingBuffer.OverrunPolicy.DROP_OLDEST);
+        ring.setPrefillLevel(0);
+
+        final boolean[] done = new boolean[1];
+        Thread producer = new Thread()
+        {
+            @Override
+            public void run()
+            {
+                byte[] chunk = new byte[640];
+                int frame = 0;
+                while(frame < frameCount)
+                {
+                    for(int i = 0; i < chunk.length; i += frameSize)
+                    {
+                        putFrameIndex(chunk, i, frame++);
+                    }
+                    // The oldest data is dropped, so all is always consumed,
+                    // otherwise the test fails on missing frames
+                    if(ring.write(chunk, 0, chunk.length) != chunk.length)
+                        break;
+                }
+                synchronized (done)
+                {
+                    done[0] = true;
+                }
+            }
+        };
+
+        // Doesn't prevent exit when the test fails
+        producer.setDaemon(true);
+        producer.start();
+
+        byte[] out = new byte[700];
+        int expected = 0;
+        long readFrames = 0;
+        long gapFrames = 0;
+        int reads = 0;
+        while(true)
+        {
+            boolean producerDone;
+            synchronized (done)
+            {
+                producerDone = done[0];
+            }
+
+            int count = ring.read(out, 0, out.length);
+            if(count == 0)
+            {
+                if(producerDone && ring.getAvailable() == 0)
+                    break;
+                Thread.yield();
+                continue;
+            }
+
+            // Frames of single read are contiguous, there may be a gap
+            // between reads where the oldest data has been dropped
+            int first = getFrameIndex(out, 0);
+            if(first < expected)
+                fail("Frame " + first + " read again, expected " + expected);
+            gapFrames += first - expected;
+
+            for(int i = 0; i < count; i += frameSize)
+            {
+                if(getFrameIndex(out, i) != first + i / frameSize)
+                    fail("Non contiguous data at frame " + first);
+            }
+            expected = first + count / frameSize;
+            readFrames += count / frameSize;
+
+            // Let the producer overrun the buffer
+            if(++reads % 64 == 0)
+                Thread.sleep(1);
+        }
+        producer.join();
+
+        logger.info("Read " + readFrames + " of " + frameCount
+            + " frames, overruns: " + ring.getOverrunCount());
+
+        assertEquals(frameCount, expected);
+        assertEquals(frameCount, readFrames + gapFrames);
+        assertEquals(gapFrames * frameSize, ring.getDroppedBytes());
+        assertTrue(ring.getOverrunCount() > 0);
+    }
+
+    /**
+     * Stores the index of a frame in its first four bytes.
+     *
+     * @param data the data.
+     * @param offset the offset of the frame.
+     * @param index the index of the frame.
+     */
+    private static void putFrameIndex(byte[] data, int offset, int index)
+    {
+        data[offset] = (byte) (index >>> 24);
+        data[offset + 1] = (byte) (index >>> 16);
+        data[offset + 2] = (byte) (index >>> 8);
+        data[offset + 3] = (byte) index;
+    }
+
+    /**
+     * Reads the index of a frame stored by
+     * {@link #putFrameIndex(byte[], int, int)}.
+     *
+     * @param data the data.
+     * @param offset the offset of the frame.
+     *
+     * @return the index of the frame.
+     */
+    private static int getFrameIndex(byte[] data, int offset)
+    {
+        return (data[offset] & 0xFF) << 24
+            | (data[offset + 1] & 0xFF) << 16
+            | (data[offset + 2] & 0xFF) << 8
+            | (data[offset + 3] & 0xFF);
+    }
+}
@@ -0,0 +1,352 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.test;
+
+import android.content.*;
+import android.test.suitebuilder.annotation.*;
+
+import junit.framework.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.android.gui.chat.*;
+import org.jitsi.android.gui.util.*;
+
+import java.util.*;
+
+/**
+ * Checks the hits of <tt>ChatHistoryIndex</tt> queries and compares them with
+ * the messages found by scanning synthetic chat history. Also replays
+ * queries against 100k messages to measure them.
+ *
+ * @author Pawel Domas
+ */
+public class ChatHistoryIndexTest
+    extends TestCase
+{
+    /**
+     * The logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(ChatHistoryIndexTest.class);
+
+    /**
+     * The maximal number of hits returned by the queries.
+     */
+    private static final int MAX_RESULTS = 50;
+
+    /**
+     * Plain words the messages are made of. With the ticket numbers added
+     * by {@link #createMessages(int, int, long)} the vocabulary is large,
+     * like in real conversations.
+     */
+    private static final String[] WORDS
+        = { "hi", "how", "are", "you", "see", "the", "meeting", "at", "call",
+            "me", "later", "ok", "lunch", "Zürich", "café", "build", "failed",
+            "deploy", "server", "jitsi.org", "video", "audio", "echo",
+            "review", "merge", "branch" };
+
+    /**
+     * Queries, both typed as prefixes and whole tokens.
+     */
+    private static final String[] QUERIES
+        = { "m", "me", "mee", "meet", "meeting", "zurich", "cafe", "build f",
+            "build failed", "deploy server", "ticket 1", "ticket 12",
+            "ticket 1234", "review merge branch", "nothing", "echo audio vid" };
+
+    /**
+     * Creates synthetic messages spread over given number of chats, ordered
+     * by the timestamp. Some of the messages correct the previous one.
+     *
+     * @param count the number of messages.
+     * @param chatCount the number of chats.
+     * @param seed the seed of the random generator.
+     *
+     * @return synthetic messages ordered by the timestamp.
+     */
+    private static List<Message> createMessages(int count, int chatCount,
+                                                long seed)
+    {
+        Random random = new Random(seed);
+        List<Message> messages = new ArrayList<Message>(count);
+        long time = 1400000000000L;
+        for(int i = 0; i < count; i++)
+        {
+            int words = 1 + random.nextInt(random.nextInt(10) == 0 ? 60 : 12);
+            StringBuilder text = new StringBuilder();
+            for(int w = 0; w < words; w++)
+            {
+                if(w > 0)
+                    text.append(' ');
+
+                if(random.nextInt(20) == 0)
+                    text.append("ticket ").append(random.nextInt(5000));
+                else
+                    text.append(WORDS[random.nextInt(WORDS.length)]);
+            }
+            time += 1000 + random.nextInt(60000);
+
+            String correctedUID = null;
+            if(i > 0 && random.nextInt(100) == 0)
+                correctedUID = messages.get(i - 1).uid;
+
+            messages.add(new Message(
+                "msg" + i, "chat" + random.nextInt(chatCount), time,
+                text.toString(), correctedUID));
+        }
+        return messages;
+    }
+
+    /**
+     * Indexes given messages. Recent messages are indexed first, like when
+     * the index is filled from the history.
+     *
+     * @param messages the messages ordered by the timestamp.
+     *
+     * @return the index of given messages.
+     */
+    private static ChatHistoryIndex createIndex(List<Message> messages)
+    {
+        ChatHistoryIndex index = new ChatHistoryIndex();
+        for(int i = messages.size() - 1; i >= 0; i--)
+        {
+            Message msg = messages.get(i);
+            index.addMessage(msg.uid, msg.chatId, msg.timestamp, msg.text,
+                             msg.correctedUID);
+        }
+        return index;
+    }
+
+    /**
+     * Finds the messages matching the query by scanning all messages.
+     *
+     * @param messages the messages ordered by the timestamp.
+     * @param query the query.
+     * @param prefix <tt>true</tt> to match query tokens as prefixes.
+     * @param chatId the chat to search in or <tt>null</tt> to search in all
+     * chats.
+     *
+     * @return UIDs of the most recent matching messages.
+     */
+    private static List<String> scan(List<Message> messages, String query,
+                                     boolean prefix, String chatId)
+    {
+        String[] queryTokens = SearchTextUtil.tokenize(query);
+
+        Set<String> corrected = new HashSet<String>();
+        for(Message msg : messages)
+        {
+            if(msg.correctedUID != null)
+                corrected.add(msg.correctedUID);
+        }
+
+        List<String> result = new ArrayList<String>();
+        for(int i = messages.size() - 1;
+            i >= 0 && result.size() < MAX_RESULTS; i--)
+        {
+            Message msg = messages.get(i);
+            if(corrected.contains(msg.uid)
+                || (chatId != null && !chatId.equals(msg.chatId)))
+                continue;
+
+            List<String> tokens
+                = Arrays.asList(SearchTextUtil.tokenize(msg.text));
+            boolean matching = true;
+            for(String queryToken : queryTokens)
+            {
+                boolean found = false;
+                for(String token : tokens)
+                {
+                    if(prefix
+                        ? token.startsWith(queryToken)
+                        : token.equals(queryToken))
+                    {
+                        found = true;
+                        break;
+                    }
+                }
+                if(!found)
+                {
+                    matching = false;
+                    break;
+                }
+            }
+            if(matching)
+                result.add(msg.uid);
+        }
+        return result;
+    }
+
+    /**
+     * Returns the UIDs of given hits.
+     *
+     * @param hits the hits.
+     *
+     * @return the UIDs of given hits.
+     */
+    private static List<String> getUids(List<ChatHistoryIndex.Hit> hits)
+    {
+        List<String> uids = new ArrayList<String>(hits.size());
+        for(ChatHistoryIndex.Hit hit : hits)
+        {
+            uids.add(hit.getMessageUID());
+        }
+        return uids;
+    }
+
+    @MediumTest
+    public void testSameResultsAsScan()
+    {
+        List<Message> messages = createMessages(10000, 20, 1);
+        ChatHistoryIndex index = createIndex(messages);
+
+        for(String query : QUERIES)
+        {
+            for(boolean prefix : new boolean[] { true, false })
+            {
+                String name = query + (prefix ? "*" : "");
+                assertEquals(
+                    name,
+                    scan(messages, query, prefix, null),
+                    getUids(index.search(query, prefix, MAX_RESULTS)));
+                assertEquals(
+                    name,
+                    scan(messages, query, prefix, "chat7"),
+                    getUids(
+                        index.search(query, prefix, "chat7", MAX_RESULTS)));
+            }
+        }
+    }
+
+    @SmallTest
+    public void testHits()
+    {
+        ChatHistoryIndex index = new ChatHistoryIndex();
+        index.addMessage("1", "alice", 1000, "Lunch at the café?", null);
+        index.addMessage("2", "bob", 2000, "cafe is closed", null);
+        index.addMessage("3", "bob", 3000, "lunch at noon", null);
+        index.addMessage("4", "bob", 4000, "lunch at 1", "3");
+        // Duplicate is ignored
+        index.addMessage("2", "bob", 2000, "cafe is closed", null);
+
+        assertEquals(4, index.getMessageCount());
+
+        List<ChatHistoryIndex.Hit> hits = index.search("CAFE", false, 10);
+        assertEquals(Arrays.asList("2", "1"), getUids(hits));
+        assertEquals("bob", hits.get(0).getChatId());
+        assertEquals(2000, hits.get(0).getTimestamp());
+
+        // Corrected message is excluded
+        assertEquals(Arrays.asList("4", "1"),
+                     getUids(index.search("lun", true, 10)));
+        assertEquals(Collections.<String>emptyList(),
+                     getUids(index.search("lun", false, 10)));
+        assertEquals(Arrays.asList("4"),
+                     getUids(index.search("lunch", true, 1)));
+
+        // Correction indexed before the corrected message
+        index.addMessage("6", "alice", 6000, "see you", "5");
+        index.addMessage("5", "alice", 5000, "see ya", null);
+        assertEquals(Arrays.asList("6"),
+                     getUids(index.search("see", false, 10)));
+    }
+
+    @SmallTest
+    public void testTrimMemory()
+    {
+        ChatHistoryIndex index = new ChatHistoryIndex();
+        index.addMessage("1", "alice", 1000, "lunch at noon", null);
+        index.addMessage("2", "alice", 2000, "see you", null);
+
+        assertTrue(index.trimMemory(
+            ComponentCallbacks2.TRIM_MEMORY_BACKGROUND) > 0);
+        assertEquals(0, index.getMessageCount());
+        assertTrue(index.search("lunch", false, 10).isEmpty());
+        assertFalse(index.isBackfillComplete());
+
+        // Messages are indexed again after the trim
+        index.addMessage("1", "alice", 1000, "lunch at noon", null);
+        assertEquals(Arrays.asList("1"),
+                     getUids(index.search("lunch", false, 10)));
+
+        // Nothing to release in empty index
+        index.clear();
+        assertEquals(0, index.trimMemory(
+            ComponentCallbacks2.TRIM_MEMORY_BACKGROUND));
+    }
+
+    @Benchmark
+    @LargeTest
+    public void testQueryReplay()
+    {
+        List<Message> messages = createMessages(100000, 200, 100000);
+
+        long start = System.nanoTime();
+        ChatHistoryIndex index = createIndex(messages);
+        long indexTime = System.nanoTime() - start;
+
+        logger.info("Indexed " + index.getMessageCount() + " messages in "
+            + indexTime / 1000000 + " ms");
+
+        // Warm up
+        for(String query : QUERIES)
+        {
+            index.search(query, true, MAX_RESULTS);
+        }
+
+        for(String query : QUERIES)
+        {
+            for(boolean prefix : new boolean[] { true, false })
+            {
+                start = System.nanoTime();
+                List<ChatHistoryIndex.Hit> hits
+                    = index.search(query, prefix, MAX_RESULTS);
+                long queryTime = System.nanoTime() - start;
+
+                logger.info("\"" + query + (prefix ? "*" : "") + "\": "
+                    + hits.size() + " hits in " + queryTime / 1000 + " us");
+            }
+        }
+    }
+
+    /**
+     * The message to be indexed.
+     */
+    private static class Message
+    {
+        final String uid;
+
+        final String chatId;
+
+        final long timestamp;
+
+        final String text;
+
+        final String correctedUID;
+
+        Message(String uid, String chatId, long timestamp, String text,
+                String correctedUID)
+        {
+            this.uid = uid;
+            this.chatId = chatId;
+            this.timestamp = timestamp;
+            this.text = text;
+            this.correctedUID = correctedUID;
+        }
+    }
+}
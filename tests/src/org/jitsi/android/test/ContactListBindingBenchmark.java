@@ -0,0 +1,465 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.test;
+
+import android.content.*;
+import android.os.*;
+import android.test.*;
+import android.test.suitebuilder.annotation.*;
+import android.view.*;
+import android.widget.*;
+
+import net.java.sip.communicator.service.protocol.event.*;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.android.gui.*;
+import org.jitsi.android.gui.contactlist.*;
+import org.jitsi.android.gui.contactlist.model.*;
+import org.jitsi.service.osgi.*;
+
+import java.util.*;
+
+/**
+ * Binds rows of <tt>MetaContactListAdapter</tt> backed by synthetic contact
+ * lists of 1k to 20k contacts. Scrolls through the list and replays presence
+ * bursts, recording bind time and allocations per row, frame time and UI
+ * thread time per presence event. Requires OSGi framework of the application,
+ * which is started if it's not running, as contact renderers use the resources
+ * service.
+ *
+ * @author Pawel Domas
+ */
+@Benchmark
+public class ContactListBindingBenchmark
+    extends InstrumentationTestCase
+{
+    /**
+     * The logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(ContactListBindingBenchmark.class);
+
+    /**
+     * Width of the list view.
+     */
+    private static final int WIDTH = 480;
+
+    /**
+     * Height of the list view.
+     */
+    private static final int HEIGHT = 800;
+
+    /**
+     * The number of rows the list is moved by in each scroll frame.
+     */
+    private static final int SCROLL_STEP = 3;
+
+    /**
+     * The maximal number of scroll frames.
+     */
+    private static final int MAX_SCROLL_FRAMES = 500;
+
+    /**
+     * How long to wait for OSGi framework to start in milliseconds.
+     */
+    private static final long OSGI_START_TIMEOUT = 60000;
+
+    /**
+     * The list view under test.
+     */
+    private ExpandableListView listView;
+
+    /**
+     * The adapter under test.
+     */
+    private InstrumentedAdapter adapter;
+
+    @Override
+    protected void setUp()
+        throws Exception
+    {
+        super.setUp();
+
+        Context context = getInstrumentation().getTargetContext();
+
+        if(AndroidGUIActivator.bundleContext == null)
+        {
+            context.startService(new Intent(context, OSGiService.class));
+
+            long timeout = SystemClock.uptimeMillis() + OSGI_START_TIMEOUT;
+            while (AndroidGUIActivator.bundleContext == null
+                && SystemClock.uptimeMillis() < timeout)
+            {
+                Thread.sleep(100);
+            }
+        }
+        assertNotNull("OSGi not started", AndroidGUIActivator.bundleContext);
+
+        Debug.startAllocCounting();
+    }
+
+    @Override
+    protected void tearDown()
+        throws Exception
+    {
+        Debug.stopAllocCounting();
+
+        super.tearDown();
+    }
+
+    /**
+     * Creates the list view and the adapter with given synthetic model and
+     * lays out the first screen. Must be called on the UI thread.
+     *
+     * @param contactList the synthetic contact list.
+     */
+    private void createList(SyntheticContactList contactList)
+    {
+        listView = new ExpandableListView(
+            getInstrumentation().getTargetContext());
+
+        adapter = new InstrumentedAdapter(new BenchmarkFragment(listView));
+        adapter.initModelData(contactList.getService());
+
+        listView.setAdapter(adapter);
+        adapter.expandAllGroups();
+
+        layout();
+    }
+
+    /**
+     * Releases the adapter. Must be called on the UI thread.
+     */
+    private void disposeList()
+    {
+        listView.setAdapter((ExpandableListAdapter) null);
+        adapter.dispose();
+
+        adapter = null;
+        listView = null;
+    }
+
+    /**
+     * Measures and lays out the list view, which binds all visible rows.
+     */
+    private void layout()
+    {
+        listView.measure(
+            View.MeasureSpec.makeMeasureSpec(WIDTH, View.MeasureSpec.EXACTLY),
+            View.MeasureSpec.makeMeasureSpec(
+                HEIGHT, View.MeasureSpec.EXACTLY));
+        listView.layout(0, 0, WIDTH, HEIGHT);
+    }
+
+    /**
+     * Runs given action on the UI thread and waits for it to finish.
+     *
+     * @param action the action to run.
+     */
+    private void runOnUiThread(Runnable action)
+    {
+        getInstrumentation().runOnMainSync(action);
+    }
+
+    /**
+     * Returns CPU time used by the UI thread so far.
+     *
+     * @return CPU time in milliseconds used by the UI thread so far.
+     */
+    private long getUiThreadTime()
+    {
+        final long[] time = new long[1];
+        runOnUiThread(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                time[0] = SystemClock.currentThreadTimeMillis();
+            }
+        });
+        return time[0];
+    }
+
+    /**
+     * Waits until the <tt>ModelUpdateQueue</tt> of the adapter has applied all
+     * pending events.
+     *
+     * @throws InterruptedException if interrupted while waiting.
+     */
+    private void waitForUpdates()
+        throws InterruptedException
+    {
+        ModelUpdateQueue queue = adapter.getUpdateQueue();
+        long batchCount;
+        do
+        {
+            batchCount = queue.getBatchCount();
+            Thread.sleep(100);
+            getInstrumentation().waitForIdleSync();
+        }
+        while (batchCount != queue.getBatchCount());
+    }
+
+    @LargeTest
+    public void testScrollBinding()
+    {
+        int[] sizes = ContactListModelBenchmark.ROSTER_SIZES;
+        long[] rowBindTimes = new long[sizes.length];
+        long[] rowAllocations = new long[sizes.length];
+
+        for(int i = 0; i < sizes.length; i++)
+        {
+            final SyntheticContactList contactList
+                = new SyntheticContactList(
+                    sizes[i], ContactListModelBenchmark.GROUP_COUNT,
+                    sizes[i]);
+            final long[] frameTimes = new long[2];
+
+            runOnUiThread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    createList(contactList);
+
+                    // Measures only rows bound while scrolling
+                    adapter.resetCounters();
+
+                    int frames = 0;
+                    int rowCount = listView.getCount();
+                    for(int position = 0;
+                        position < rowCount && frames < MAX_SCROLL_FRAMES;
+                        position += SCROLL_STEP, frames++)
+                    {
+                        long start = System.nanoTime();
+
+                        listView.setSelection(position);
+                        layout();
+
+                        long frameTime = System.nanoTime() - start;
+                        frameTimes[0] += frameTime;
+                        frameTimes[1] = Math.max(frameTimes[1], frameTime);
+                    }
+                    frameTimes[0] /= Math.max(frames, 1);
+                }
+            });
+
+            rowBindTimes[i] = adapter.getRecycledBindTime();
+            rowAllocations[i] = adapter.getRecycledBindAllocations();
+
+            logger.info(sizes[i] + " contacts, scroll: "
+                + adapter.bindCount + " rows bound, "
+                + adapter.inflateCount + " inflated, per recycled row: "
+                + rowBindTimes[i] / 1000 + " us, "
+                + rowAllocations[i] + " allocations, average frame: "
+                + frameTimes[0] / 1000 + " us, worst frame: "
+                + frameTimes[1] / 1000 + " us");
+
+            assertTrue(adapter.bindCount > 0);
+
+            runOnUiThread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    disposeList();
+                }
+            });
+        }
+
+        int last = sizes.length - 1;
+
+        // Binding a row must not depend on the roster size
+        ContactListModelBenchmark.assertConstantTime("Bind", rowBindTimes);
+        assertTrue(rowAllocations[last] <= 2 * rowAllocations[0] + 10);
+    }
+
+    @LargeTest
+    public void testPresenceBurst()
+        throws InterruptedException
+    {
+        for(int size : ContactListModelBenchmark.ROSTER_SIZES)
+        {
+            final SyntheticContactList contactList
+                = new SyntheticContactList(
+                    size, ContactListModelBenchmark.GROUP_COUNT, size);
+
+            runOnUiThread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    createList(contactList);
+                }
+            });
+            waitForUpdates();
+
+            List<ContactPresenceStatusChangeEvent> burst
+                = contactList.createPresenceBurst(
+                    ContactListModelBenchmark.BURST_SIZE, size);
+
+            ModelUpdateQueue queue = adapter.getUpdateQueue();
+            long refreshCount = queue.getRefreshCount();
+            long uiThreadTime = getUiThreadTime();
+            adapter.resetCounters();
+
+            // Presence events arrive on protocol threads
+            long start = System.nanoTime();
+            for(ContactPresenceStatusChangeEvent event : burst)
+            {
+                adapter.contactPresenceStatusChanged(event);
+            }
+            long postTime = System.nanoTime() - start;
+
+            waitForUpdates();
+
+            uiThreadTime = getUiThreadTime() - uiThreadTime;
+            refreshCount = queue.getRefreshCount() - refreshCount;
+
+            logger.info(size + " contacts, presence: "
+                + ContactListModelBenchmark.BURST_SIZE + " events posted in "
+                + postTime / 1000000 + " ms, UI refreshes: " + refreshCount
+                + ", UI thread time: " + uiThreadTime + " ms, per event: "
+                + uiThreadTime * 1000 / ContactListModelBenchmark.BURST_SIZE
+                + " us, rows rebound: " + adapter.bindCount
+                + ", " + queue.getStatistics());
+
+            runOnUiThread(new Runnable()
+            {
+                @Override
+                public void run()
+                {
+                    disposeList();
+                }
+            });
+
+            // The burst must be coalesced into few UI refreshes
+            assertTrue(refreshCount * 10
+                           < ContactListModelBenchmark.BURST_SIZE);
+        }
+    }
+
+    /**
+     * <tt>ContactListFragment</tt> which is not attached to any activity and
+     * only provides the list view to the adapter.
+     */
+    private static class BenchmarkFragment
+        extends ContactListFragment
+    {
+        BenchmarkFragment(ExpandableListView listView)
+        {
+            this.contactListView = listView;
+        }
+    }
+
+    /**
+     * <tt>MetaContactListAdapter</tt> which measures time and allocations
+     * spent on binding contact rows. Counters are accessed on the UI thread.
+     */
+    private static class InstrumentedAdapter
+        extends MetaContactListAdapter
+    {
+        /**
+         * The number of bound rows.
+         */
+        int bindCount;
+
+        /**
+         * The number of rows bound to new views.
+         */
+        int inflateCount;
+
+        /**
+         * Total time spent on binding recycled views in nanoseconds.
+         */
+        long recycledBindTime;
+
+        /**
+         * Total number of objects allocated when binding recycled views.
+         */
+        long recycledBindAllocations;
+
+        InstrumentedAdapter(ContactListFragment fragment)
+        {
+            super(fragment);
+        }
+
+        @Override
+        public View getChildView(int groupPosition, int childPosition,
+                                 boolean isLastChild, View convertView,
+                                 ViewGroup parent)
+        {
+            long allocations = Debug.getThreadAllocCount();
+            long start = System.nanoTime();
+
+            View view = super.getChildView(
+                groupPosition, childPosition, isLastChild, convertView,
+                parent);
+
+            long time = System.nanoTime() - start;
+            allocations = Debug.getThreadAllocCount() - allocations;
+
+            bindCount++;
+            if(convertView == null)
+            {
+                inflateCount++;
+            }
+            else
+            {
+                recycledBindTime += time;
+                recycledBindAllocations += allocations;
+            }
+            return view;
+        }
+
+        /**
+         * Resets all counters.
+         */
+        void resetCounters()
+        {
+            bindCount = 0;
+            inflateCount = 0;
+            recycledBindTime = 0;
+            recycledBindAllocations = 0;
+        }
+
+        /**
+         * Returns average time of binding recycled view.
+         *
+         * @return average time of binding recycled view in nanoseconds.
+         */
+        long getRecycledBindTime()
+        {
+            int recycled = bindCount - inflateCount;
+            return recycled > 0 ? recycledBindTime / recycled : 0;
+        }
+
+        /**
+         * Returns average number of objects allocated when binding recycled
+         * view.
+         *
+         * @return average number of objects allocated when binding recycled
+         *         view.
+         */
+        long getRecycledBindAllocations()
+        {
+            int recycled = bindCount - inflateCount;
+            return recycled > 0 ? recycledBindAllocations / recycled : 0;
+        }
+    }
+}
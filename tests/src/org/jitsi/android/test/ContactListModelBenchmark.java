@@ -0,0 +1,260 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.test;
+
+import android.test.suitebuilder.annotation.*;
+
+import junit.framework.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.event.*;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.android.gui.contactlist.model.*;
+
+import java.util.*;
+
+/**
+ * Replays searches, scrolling and presence bursts against the contact list
+ * model of 1k to 20k synthetic contacts. View binding is measured by
+ * <tt>ContactListBindingBenchmark</tt>. Times are logged, only their growth
+ * with the roster size is checked.
+ *
+ * @author Pawel Domas
+ */
+@Benchmark
+public class ContactListModelBenchmark
+    extends TestCase
+{
+    /**
+     * The logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(ContactListModelBenchmark.class);
+
+    /**
+     * Roster sizes to test.
+     */
+    static final int[] ROSTER_SIZES = { 1000, 5000, 10000, 20000 };
+
+    /**
+     * The number of groups the contacts are spread over.
+     */
+    static final int GROUP_COUNT = 10;
+
+    /**
+     * The number of presence changes in a burst.
+     */
+    static final int BURST_SIZE = 5000;
+
+    /**
+     * How many times the time per row or event may grow from the smallest to
+     * the largest roster. Only changes of complexity are detected, timing
+     * noise is tolerated.
+     */
+    static final int MAX_SLOWDOWN = 10;
+
+    /**
+     * Queries typed by the user, one character at a time.
+     */
+    private static final String[] QUERIES
+        = { "j", "jo", "jor", "jorg", "jorg m", "jorg mu", "jorg mul",
+            "e", "em", "emi", "emil", "emile", "emile d", "zoe", "12", "123",
+            "example", "lukasz.4", "garcia", "obrien", "chloe 99" };
+
+    /**
+     * Creates the contact lists of the adapter for given model, the same way
+     * <tt>MetaContactListAdapter</tt> does.
+     *
+     * @param contactList the synthetic contact list.
+     *
+     * @return sorted contact list of each group.
+     */
+    private static List<IndexedList<MetaContact>> createGroupLists(
+        SyntheticContactList contactList)
+    {
+        List<IndexedList<MetaContact>> groupLists
+            = new ArrayList<IndexedList<MetaContact>>();
+        for(MetaContactGroup group : contactList.getGroups())
+        {
+            IndexedList<MetaContact> groupList
+                = new IndexedList<MetaContact>(
+                    true, group.countChildContacts());
+
+            Iterator<MetaContact> childContacts = group.getChildContacts();
+            while (childContacts.hasNext())
+            {
+                groupList.add(childContacts.next());
+            }
+            groupLists.add(groupList);
+        }
+        return groupLists;
+    }
+
+    /**
+     * Checks that the time per operation doesn't grow with the roster size.
+     *
+     * @param operation the name of the operation.
+     * @param times the times per operation for {@link #ROSTER_SIZES}.
+     */
+    static void assertConstantTime(String operation, long[] times)
+    {
+        // Very short times are dominated by noise
+        long base = Math.max(times[0], 1000);
+        for(int i = 1; i < times.length; i++)
+        {
+            assertTrue(
+                operation + ", " + ROSTER_SIZES[i] + " contacts: " + times[i]
+                    + " ns, " + ROSTER_SIZES[0] + " contacts: " + times[0]
+                    + " ns",
+                times[i] < MAX_SLOWDOWN * base);
+        }
+    }
+
+    @LargeTest
+    public void testSearchReplay()
+    {
+        for(int size : ROSTER_SIZES)
+        {
+            SyntheticContactList contactList
+                = new SyntheticContactList(size, GROUP_COUNT, size);
+
+            ContactSearchIndex index = new ContactSearchIndex();
+            long start = System.nanoTime();
+            index.start(contactList.getService());
+            long buildTime = System.nanoTime() - start;
+
+            assertEquals(size, index.getContactCount());
+
+            // Warm up
+            for(String query : QUERIES)
+            {
+                index.search(query);
+            }
+
+            long worst = 0;
+            long total = 0;
+            for(String query : QUERIES)
+            {
+                start = System.nanoTime();
+                index.search(query);
+                long time = System.nanoTime() - start;
+
+                total += time;
+                worst = Math.max(worst, time);
+            }
+            long average = total / QUERIES.length;
+
+            logger.info(size + " contacts, search: index built in "
+                + buildTime / 1000000 + " ms, average lookup: "
+                + average / 1000 + " us, worst: " + worst / 1000 + " us");
+
+            index.stop();
+            assertEquals(0, contactList.getListenerCount());
+        }
+    }
+
+    @LargeTest
+    public void testScrollReplay()
+    {
+        long[] rowTimes = new long[ROSTER_SIZES.length];
+        for(int s = 0; s < ROSTER_SIZES.length; s++)
+        {
+            int size = ROSTER_SIZES[s];
+            SyntheticContactList contactList
+                = new SyntheticContactList(size, GROUP_COUNT, size);
+
+            long start = System.nanoTime();
+            List<IndexedList<MetaContact>> groupLists
+                = createGroupLists(contactList);
+            long buildTime = System.nanoTime() - start;
+
+            // Scrolls the whole list, binding a row resolves the child and
+            // then it's position when the row is updated
+            int rows = 0;
+            start = System.nanoTime();
+            for(IndexedList<MetaContact> groupList : groupLists)
+            {
+                for(int i = 0; i < groupList.size(); i++)
+                {
+                    MetaContact child = groupList.get(i);
+                    assertEquals(i, groupList.indexOf(child));
+                    rows++;
+                }
+            }
+            long scrollTime = System.nanoTime() - start;
+            long rowTime = scrollTime / rows;
+            rowTimes[s] = rowTime;
+
+            logger.info(size + " contacts, scroll: lists built in "
+                + buildTime / 1000000 + " ms, " + rows + " rows in "
+                + scrollTime / 1000000 + " ms, per row: " + rowTime + " ns");
+
+            assertEquals(size, rows);
+        }
+        assertConstantTime("Scroll", rowTimes);
+    }
+
+    @LargeTest
+    public void testPresenceBurstReplay()
+    {
+        long[] eventTimes = new long[ROSTER_SIZES.length];
+        for(int s = 0; s < ROSTER_SIZES.length; s++)
+        {
+            int size = ROSTER_SIZES[s];
+            SyntheticContactList contactList
+                = new SyntheticContactList(size, GROUP_COUNT, size);
+            MetaContactListService service = contactList.getService();
+
+            List<IndexedList<MetaContact>> groupLists
+                = createGroupLists(contactList);
+            List<MetaContactGroup> groups = contactList.getGroups();
+
+            List<ContactPresenceStatusChangeEvent> burst
+                = contactList.createPresenceBurst(BURST_SIZE, size);
+
+            // Each event is resolved to the row of the contact, equal
+            // row updates are applied once per frame
+            Set<MetaContact> updatedRows = new HashSet<MetaContact>();
+            long start = System.nanoTime();
+            for(ContactPresenceStatusChangeEvent event : burst)
+            {
+                MetaContact metaContact
+                    = service.findMetaContactByContact(
+                        event.getSourceContact());
+                MetaContactGroup group
+                    = service.findParentMetaContactGroup(metaContact);
+                int groupIndex = groups.indexOf(group);
+
+                assertTrue(
+                    groupLists.get(groupIndex).indexOf(metaContact) >= 0);
+
+                updatedRows.add(metaContact);
+            }
+            long burstTime = System.nanoTime() - start;
+            long eventTime = burstTime / BURST_SIZE;
+            eventTimes[s] = eventTime;
+
+            logger.info(size + " contacts, presence: " + BURST_SIZE
+                + " events resolved in " + burstTime / 1000000
+                + " ms, per event: " + eventTime + " ns, distinct rows: "
+                + updatedRows.size());
+        }
+        assertConstantTime("Presence", eventTimes);
+    }
+}
@@ -0,0 +1,155 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.test;
+
+import android.test.suitebuilder.annotation.*;
+
+import junit.framework.*;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.protocol.*;
+
+import org.jitsi.android.gui.contactlist.model.*;
+import org.jitsi.android.gui.util.*;
+
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Checks that <tt>ContactSearchIndex</tt> finds the same contacts as
+ * the substring search over all contacts that it replaces.
+ *
+ * @author Pawel Domas
+ */
+public class ContactSearchIndexTest
+    extends TestCase
+{
+    /**
+     * Queries typed by the user, one character at a time.
+     */
+    private static final String[] QUERIES
+        = { "j", "jo", "jor", "jorg", "jorg m", "jorg mu", "jorg mul",
+            "e", "em", "emi", "emil", "emile", "emile d", "zoe", "12", "123",
+            "example", "lukasz.4", "garcia", "obrien", "o'brien", "ohn",
+            "ller", "chloe 99", "@" };
+
+    /**
+     * Indexes given contacts.
+     *
+     * @param contacts the contacts to index.
+     *
+     * @return the index.
+     */
+    private static ContactSearchIndex createIndex(List<MetaContact> contacts)
+    {
+        ContactSearchIndex index = new ContactSearchIndex();
+        for(MetaContact contact : contacts)
+        {
+            index.addContact(contact);
+        }
+        return index;
+    }
+
+    /**
+     * Checks if display name of given <tt>metaContact</tt> or display name or
+     * address of one of its protocol contacts contains <tt>query</tt>
+     * ignoring case, the way contact list was filtered without the index.
+     *
+     * @param metaContact the contact to check.
+     * @param query the query string.
+     *
+     * @return <tt>true</tt> if given <tt>metaContact</tt> is matching
+     *         the query.
+     */
+    private static boolean scanMatches(MetaContact metaContact, String query)
+    {
+        Matcher matcher
+            = Pattern.compile(query, Pattern.CASE_INSENSITIVE | Pattern.LITERAL)
+                .matcher("");
+
+        if(matcher.reset(metaContact.getDisplayName()).find())
+            return true;
+
+        Iterator<Contact> contacts = metaContact.getContacts();
+        while(contacts.hasNext())
+        {
+            Contact contact = contacts.next();
+            if(matcher.reset(contact.getDisplayName()).find()
+                || matcher.reset(contact.getAddress()).find())
+            {
+                return true;
+            }
+        }
+        return false;
+    }
+
+    @SmallTest
+    public void testResultsMatchFullScan()
+    {
+        List<MetaContact> contacts
+            = new SyntheticContactList(1000, 0, 1).getContacts();
+        ContactSearchIndex index = createIndex(contacts);
+
+        assertEquals(1000, index.getContactCount());
+
+        for(String query : QUERIES)
+        {
+            String foldedQuery = SearchTextUtil.fold(query);
+            Set<MetaContact> result = index.search(query);
+
+            for(MetaContact contact : contacts)
+            {
+                // Contacts are also matched regardless of diacritical marks
+                if(scanMatches(contact, query))
+                    assertTrue(query, result.contains(contact));
+
+                assertEquals(query,
+                             index.isMatching(contact, foldedQuery),
+                             result.contains(contact));
+            }
+        }
+    }
+
+    @SmallTest
+    public void testSubstringsAndFolding()
+    {
+        MetaContact contact = SyntheticContactList.createMetaContact(
+            "uid", "Jörg Müller",
+            SyntheticContactList.createContact(
+                "Joerg.Mueller@Example.com", "Jörg"));
+
+        ContactSearchIndex index = new ContactSearchIndex();
+        index.addContact(contact);
+
+        assertTrue(index.search("jorg").contains(contact));
+        assertTrue(index.search("MÜL").contains(contact));
+        assertTrue(index.search("org").contains(contact));
+        assertTrue(index.search("g m").contains(contact));
+        assertTrue(index.search("joerg.mue").contains(contact));
+        assertTrue(index.search("@example").contains(contact));
+        assertTrue(index.search("r").contains(contact));
+        assertFalse(index.search("example mull").contains(contact));
+        assertFalse(index.search("mullerx").contains(contact));
+        assertNull(index.search(""));
+
+        index.removeContact(contact);
+        assertTrue(index.search("jorg").isEmpty());
+        assertTrue(index.search("j").isEmpty());
+        assertEquals(0, index.getContactCount());
+    }
+}
@@ -0,0 +1,110 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.test;
+
+import android.test.suitebuilder.annotation.*;
+
+import junit.framework.*;
+
+import org.jitsi.android.gui.contactlist.model.*;
+
+import java.util.*;
+
+/**
+ * Checks that positions reported by <tt>IndexedList</tt> stay valid while
+ * the list is modified, both in sorted and insertion order.
+ *
+ * @author Pawel Domas
+ */
+public class IndexedListTest
+    extends TestCase
+{
+    /**
+     * Creates shuffled list of synthetic contact names.
+     *
+     * @param count the number of names.
+     *
+     * @return shuffled list of synthetic contact names.
+     */
+    private static List<String> createRoster(int count)
+    {
+        List<String> roster = new ArrayList<String>(count);
+        for(int i = 0; i < count; i++)
+        {
+            roster.add("contact" + i + "@example.com");
+        }
+        Collections.shuffle(roster, new Random(count));
+        return roster;
+    }
+
+    @SmallTest
+    public void testIndexAfterModifications()
+    {
+        IndexedList<String> list = new IndexedList<String>(true);
+        List<String> roster = createRoster(100);
+        for(String contact : roster)
+        {
+            assertTrue(list.add(contact));
+        }
+        assertFalse(list.add(roster.get(0)));
+        assertEquals(roster.size(), list.size());
+
+        for(int i = 0; i < roster.size(); i += 3)
+        {
+            assertTrue(list.remove(roster.get(i)));
+            assertFalse(list.contains(roster.get(i)));
+        }
+
+        String previous = null;
+        for(int i = 0; i < list.size(); i++)
+        {
+            String contact = list.get(i);
+            assertEquals(i, list.indexOf(contact));
+            if(previous != null)
+                assertTrue(previous.compareTo(contact) < 0);
+            previous = contact;
+        }
+    }
+
+    @SmallTest
+    public void testInsertionOrder()
+    {
+        IndexedList<String> list = new IndexedList<String>(false);
+        List<String> roster = createRoster(100);
+        for(String contact : roster)
+        {
+            assertTrue(list.add(contact));
+        }
+        assertEquals(roster, list);
+
+        // Lookups after removal from the middle see shifted positions
+        list.remove(50);
+        assertEquals(-1, list.indexOf(roster.get(50)));
+        assertEquals(50, list.indexOf(roster.get(51)));
+        assertEquals(98, list.indexOf(roster.get(99)));
+
+        // Appending doesn't affect preceding positions
+        assertTrue(list.add(roster.get(50)));
+        assertEquals(99, list.indexOf(roster.get(50)));
+        assertEquals(0, list.indexOf(roster.get(0)));
+
+        list.clear();
+        assertEquals(0, list.size());
+        assertFalse(list.contains(roster.get(0)));
+    }
+}
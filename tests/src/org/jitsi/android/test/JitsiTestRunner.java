@@ -0,0 +1,69 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.test;
+
+import android.os.*;
+import android.test.*;
+
+/**
+ * Instrumentation test runner which leaves the tests annotated with
+ * {@link Benchmark} out, unless started with <tt>-e benchmarks true</tt> or
+ * with its own annotation filter.
+ *
+ * @author Pawel Domas
+ */
+public class JitsiTestRunner
+    extends InstrumentationTestRunner
+{
+    /**
+     * The argument which includes benchmarks in the run.
+     */
+    private static final String ARGUMENT_BENCHMARKS = "benchmarks";
+
+    /**
+     * The <tt>InstrumentationTestRunner</tt> argument which restricts the run
+     * to tests with given annotation.
+     */
+    private static final String ARGUMENT_ANNOTATION = "annotation";
+
+    /**
+     * The <tt>InstrumentationTestRunner</tt> argument which excludes tests
+     * with given annotation from the run.
+     */
+    private static final String ARGUMENT_NOT_ANNOTATION = "notAnnotation";
+
+    /**
+     * {@inheritDoc}
+     */
+    @Override
+    public void onCreate(Bundle arguments)
+    {
+        if(arguments == null)
+            arguments = new Bundle();
+
+        if(!Boolean.parseBoolean(arguments.getString(ARGUMENT_BENCHMARKS))
+            && arguments.getString(ARGUMENT_ANNOTATION) == null
+            && arguments.getString(ARGUMENT_NOT_ANNOTATION) == null)
+        {
+            arguments.putString(
+                ARGUMENT_NOT_ANNOTATION, Benchmark.class.getName());
+        }
+
+        super.onCreate(arguments);
+    }
+}
@@ -0,0 +1,534 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.test;
+
+import android.content.*;
+import android.test.*;
+import android.test.suitebuilder.annotation.*;
+import android.view.*;
+import android.widget.*;
+
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.android.gui.chat.*;
+import org.jitsi.android.gui.util.*;
+
+import java.util.*;
+
+/**
+ * Checks that <tt>MessageRowList</tt>, which holds the rows of the chat list
+ * adapter, applies corrections (XEP-0308) to the same rows as the ones found
+ * by scanning the rows, including the rows prepended from the history, and
+ * that <tt>ViewUtil.refreshRow</tt> binds only the visible row. Also replays
+ * streams of corrections against long conversations to measure them.
+ *
+ * @author Pawel Domas
+ */
+public class MessageRowListTest
+    extends InstrumentationTestCase
+{
+    /**
+     * The logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(MessageRowListTest.class);
+
+    /**
+     * Creates synthetic conversation between two contacts. Contacts take
+     * turns in bursts of consecutive messages.
+     *
+     * @param size the number of messages.
+     * @param random the random generator.
+     *
+     * @return synthetic messages ordered by date.
+     */
+    private static List<TestMessage> createConversation(int size,
+                                                        Random random)
+    {
+        List<TestMessage> conversation = new ArrayList<TestMessage>(size);
+        long time = 0;
+        String contact = "alice";
+        for(int i = 0; i < size; i++)
+        {
+            if(random.nextInt(4) == 0)
+            {
+                contact = contact.equals("alice") ? "bob" : "alice";
+            }
+            // Most messages follow within a minute and are merged
+            time += random.nextInt(8) == 0 ? 120000 : 5000;
+
+            conversation.add(new TestMessage(
+                contact, time, "msg" + i, "message " + i, null));
+        }
+        return conversation;
+    }
+
+    /**
+     * Creates the stream of corrections of random messages of given
+     * conversation. Messages may be corrected more than once.
+     *
+     * @param conversation the conversation.
+     * @param count the number of corrections.
+     * @param random the random generator.
+     *
+     * @return the stream of corrections.
+     */
+    private static List<TestMessage> createCorrections(
+        List<TestMessage> conversation, int count, Random random)
+    {
+        // The UID of the latest version of each message
+        String[] uids = new String[conversation.size()];
+        for(int i = 0; i < uids.length; i++)
+        {
+            uids[i] = conversation.get(i).getMessageUID();
+        }
+
+        List<TestMessage> corrections = new ArrayList<TestMessage>(count);
+        for(int i = 0; i < count; i++)
+        {
+            int target = random.nextInt(conversation.size());
+            TestMessage original = conversation.get(target);
+            String uid = "corr" + i;
+
+            corrections.add(new TestMessage(
+                original.getContactName(), original.getDate().getTime(), uid,
+                "corrected " + target + "/" + i, uids[target]));
+
+            uids[target] = uid;
+        }
+        return corrections;
+    }
+
+    /**
+     * Creates the rows of given conversation. The second half of the rows is
+     * added message by message and the first half is prepended as merged
+     * rows, like when older messages are loaded from the history.
+     *
+     * @param conversation the conversation.
+     *
+     * @return the rows of given conversation.
+     */
+    private static RowList createRows(List<TestMessage> conversation)
+    {
+        RowList history = new RowList();
+        int[] rowIdxs = new int[conversation.size()];
+        for(int i = 0; i < rowIdxs.length; i++)
+        {
+            rowIdxs[i] = history.addMessage(conversation.get(i), null);
+        }
+        int split = history.size() / 2;
+
+        RowList rows = new RowList();
+        for(int i = 0; i < rowIdxs.length; i++)
+        {
+            if(rowIdxs[i] >= split)
+                rows.addMessage(conversation.get(i), null);
+        }
+
+        List<Row> historyRows = new ArrayList<Row>(split);
+        for(int i = 0; i < split; i++)
+        {
+            historyRows.add(history.get(i));
+        }
+        rows.prepend(historyRows);
+
+        return rows;
+    }
+
+    @MediumTest
+    public void testSameRowsAsScan()
+    {
+        Random random = new Random(1);
+        List<TestMessage> conversation = createConversation(1000, random);
+        List<TestMessage> corrections
+            = createCorrections(conversation, 500, random);
+
+        // Consecutive messages merged and corrections found by scanning
+        // the rows from the last one
+        List<Row> scannedRows = new ArrayList<Row>();
+        for(ChatMessage msg : conversation)
+        {
+            Row last = scannedRows.isEmpty()
+                ? null : scannedRows.get(scannedRows.size() - 1);
+            if(last == null || !last.msg.isConsecutiveMessage(msg))
+                scannedRows.add(new Row(msg));
+            else
+                last.msg = last.msg.mergeMessage(msg);
+        }
+        int[] correctedIdxs = new int[corrections.size()];
+        for(int c = 0; c < corrections.size(); c++)
+        {
+            ChatMessage correction = corrections.get(c);
+            String uid = correction.getCorrectedMessageUID();
+            correctedIdxs[c] = -1;
+            for(int i = scannedRows.size() - 1; i >= 0; i--)
+            {
+                Row row = scannedRows.get(i);
+                if(MessageUidIndex.getUids(row.msg).contains(uid))
+                {
+                    row.msg = row.msg.mergeMessage(correction);
+                    correctedIdxs[c] = i;
+                    break;
+                }
+            }
+            assertTrue(uid, correctedIdxs[c] >= 0);
+        }
+
+        // Rows of the adapter
+        RowList rows = createRows(conversation);
+        assertEquals(scannedRows.size(), rows.size());
+        for(int c = 0; c < corrections.size(); c++)
+        {
+            ChatMessage correction = corrections.get(c);
+            String uid = correction.getCorrectedMessageUID();
+            assertEquals(uid, correctedIdxs[c], rows.indexOf(uid));
+            assertEquals(uid, correctedIdxs[c],
+                         rows.getLastMessageIdx(correction));
+
+            assertEquals(uid, correctedIdxs[c],
+                         rows.addMessage(correction, null));
+            assertEquals(-1, rows.indexOf(uid));
+            assertEquals(correctedIdxs[c],
+                         rows.indexOf(correction.getMessageUID()));
+        }
+
+        assertEquals(scannedRows.size(), rows.size());
+        for(int i = 0; i < scannedRows.size(); i++)
+        {
+            assertEquals(scannedRows.get(i).msg.getMessage(),
+                         rows.get(i).msg.getMessage());
+        }
+    }
+
+    @SmallTest
+    public void testAddMessage()
+    {
+        RowList rows = new RowList();
+        assertEquals(-1, rows.getLastMessageIdx(
+            new TestMessage("alice", 0, "1", "a", null)));
+
+        assertEquals(0, rows.addMessage(
+            new TestMessage("alice", 0, "1", "a", null), null));
+        assertEquals(0, rows.addMessage(
+            new TestMessage("alice", 1000, "2", "b", null), null));
+        assertEquals(0, rows.addMessage(
+            new TestMessage("alice", 2000, "3", "c", null), null));
+        assertEquals(1, rows.size());
+        assertEquals("a <br/>b <br/>c", rows.get(0).msg.getMessage());
+
+        // Not consecutive
+        assertEquals(1, rows.addMessage(
+            new TestMessage("bob", 3000, "4", "d", null), null));
+        assertEquals(2, rows.size());
+
+        // Corrections of the row above the last one
+        assertEquals(0, rows.addMessage(
+            new TestMessage("alice", 1000, "5", "B", "2"), null));
+        assertEquals("a <br/>B <br/>c", rows.get(0).msg.getMessage());
+        assertEquals(0, rows.addMessage(
+            new TestMessage("alice", 1000, "6", "BB", "5"), null));
+        assertEquals("a <br/>BB <br/>c", rows.get(0).msg.getMessage());
+        assertEquals(0, rows.addMessage(
+            new TestMessage("alice", 2000, "7", "C", "3"), null));
+        assertEquals("a <br/>BB <br/>C", rows.get(0).msg.getMessage());
+        assertEquals(2, rows.size());
+
+        // Correction of unknown message is handled by the last row
+        TestMessage unknown = new TestMessage("alice", 4000, "8", "e", "0");
+        assertEquals(1, rows.getLastMessageIdx(unknown));
+        assertEquals(2, rows.addMessage(unknown, null));
+
+        rows.clear();
+        assertEquals(0, rows.size());
+        assertEquals(-1, rows.indexOf("1"));
+    }
+
+    @SmallTest
+    public void testRefreshRow()
+    {
+        getInstrumentation().runOnMainSync(new Runnable()
+        {
+            @Override
+            public void run()
+            {
+                checkRefreshRow();
+            }
+        });
+    }
+
+    /**
+     * Lays out a list with a header and checks which rows are bound again by
+     * <tt>ViewUtil.refreshRow</tt>. Must be called on the UI thread.
+     */
+    private void checkRefreshRow()
+    {
+        Context context = getInstrumentation().getTargetContext();
+        List<String> items = new ArrayList<String>();
+        for(int i = 0; i < 100; i++)
+        {
+            items.add("row " + i);
+        }
+
+        ListView listView = new ListView(context);
+        listView.addHeaderView(new TextView(context));
+        CountingAdapter adapter = new CountingAdapter(context, items);
+        listView.setAdapter(adapter);
+
+        listView.measure(
+            View.MeasureSpec.makeMeasureSpec(480, View.MeasureSpec.EXACTLY),
+            View.MeasureSpec.makeMeasureSpec(800, View.MeasureSpec.EXACTLY));
+        listView.layout(0, 0, 480, 800);
+        assertTrue(listView.getLastVisiblePosition() < items.size());
+
+        // Visible row is bound in place
+        items.set(2, "changed");
+        adapter.getViewCount = 0;
+        assertTrue(ViewUtil.refreshRow(listView, 2));
+        assertEquals(1, adapter.getViewCount);
+        TextView row = (TextView) listView.getChildAt(
+            2 + listView.getHeaderViewsCount()
+                - listView.getFirstVisiblePosition());
+        assertEquals("changed", row.getText().toString());
+
+        // Row out of the screen is not bound
+        adapter.getViewCount = 0;
+        assertTrue(ViewUtil.refreshRow(listView, items.size() - 1));
+        assertEquals(0, adapter.getViewCount);
+
+        // Replaced view requires refreshing the whole list
+        adapter.replaceViews = true;
+        assertFalse(ViewUtil.refreshRow(listView, 2));
+    }
+
+    @Benchmark
+    @LargeTest
+    public void testCorrectionReplay()
+    {
+        int correctionCount = 2000;
+
+        for(int size : new int[] { 1000, 5000, 20000 })
+        {
+            Random random = new Random(size);
+            List<TestMessage> conversation = createConversation(size, random);
+            List<TestMessage> corrections
+                = createCorrections(conversation, correctionCount, random);
+            RowList rows = createRows(conversation);
+            int rowCount = rows.size();
+
+            long start = System.nanoTime();
+            for(ChatMessage correction : corrections)
+            {
+                rows.addMessage(correction, null);
+            }
+            long correctionTime
+                = (System.nanoTime() - start) / correctionCount;
+
+            assertEquals(rowCount, rows.size());
+
+            logger.info(size + " messages in " + rowCount + " rows, "
+                + correctionCount + " corrections, per correction: "
+                + correctionTime + " ns");
+        }
+    }
+
+    /**
+     * The row of the chat list.
+     */
+    private static class Row
+    {
+        /**
+         * Displayed message.
+         */
+        ChatMessage msg;
+
+        Row(ChatMessage msg)
+        {
+            this.msg = msg;
+        }
+    }
+
+    /**
+     * <tt>MessageRowList</tt> of {@link Row}s, which merges the messages
+     * without rendering them.
+     */
+    private static class RowList
+        extends MessageRowList<Row, Object>
+    {
+        @Override
+        protected Row createRow(ChatMessage msg, Object body)
+        {
+            return new Row(msg);
+        }
+
+        @Override
+        protected ChatMessage getMessage(Row row)
+        {
+            return row.msg;
+        }
+
+        @Override
+        protected void merge(Row row, ChatMessage next, Object nextBody)
+        {
+            row.msg = row.msg.mergeMessage(next);
+        }
+    }
+
+    /**
+     * <tt>ArrayAdapter</tt> which counts the views it binds and may create
+     * new view for each row.
+     */
+    private static class CountingAdapter
+        extends ArrayAdapter<String>
+    {
+        /**
+         * The number of <tt>getView</tt> calls.
+         */
+        int getViewCount;
+
+        /**
+         * Whether to ignore the views to convert.
+         */
+        boolean replaceViews;
+
+        CountingAdapter(Context context, List<String> items)
+        {
+            super(context, android.R.layout.simple_list_item_1, items);
+        }
+
+        @Override
+        public View getView(int position, View convertView, ViewGroup parent)
+        {
+            getViewCount++;
+            return super.getView(
+                position, replaceViews ? null : convertView, parent);
+        }
+    }
+
+    /**
+     * <tt>ChatMessage</tt> which merges messages the same way as
+     * <tt>ChatMessageImpl</tt>, without processing the content.
+     */
+    private static class TestMessage
+        implements ChatMessage
+    {
+        private final String contactName;
+
+        private final Date date;
+
+        private final String messageUID;
+
+        private final String message;
+
+        private final String correctedMessageUID;
+
+        TestMessage(String contactName, long time, String messageUID,
+                    String message, String correctedMessageUID)
+        {
+            this.contactName = contactName;
+            this.date = new Date(time);
+            this.messageUID = messageUID;
+            this.message = message;
+            this.correctedMessageUID = correctedMessageUID;
+        }
+
+        @Override
+        public String getContactName()
+        {
+            return contactName;
+        }
+
+        @Override
+        public String getContactDisplayName()
+        {
+            return contactName;
+        }
+
+        @Override
+        public Date getDate()
+        {
+            return date;
+        }
+
+        @Override
+        public int getMessageType()
+        {
+            return INCOMING_MESSAGE;
+        }
+
+        @Override
+        public String getMessage()
+        {
+            return message;
+        }
+
+        @Override
+        public String getContentType()
+        {
+            return "text/plain";
+        }
+
+        @Override
+        public String getMessageUID()
+        {
+            return messageUID;
+        }
+
+        @Override
+        public String getCorrectedMessageUID()
+        {
+            return correctedMessageUID;
+        }
+
+        @Override
+        public boolean isConsecutiveMessage(ChatMessage nextMsg)
+        {
+            return messageUID.equals(nextMsg.getCorrectedMessageUID())
+                || contactName.equals(nextMsg.getContactName())
+                && nextMsg.getMessageType() == getMessageType()
+                && nextMsg.getDate().getTime() - date.getTime() < 60000;
+        }
+
+        @Override
+        public ChatMessage mergeMessage(ChatMessage consecutiveMessage)
+        {
+            if(messageUID.equals(consecutiveMessage.getCorrectedMessageUID()))
+            {
+                return consecutiveMessage;
+            }
+            return new MergedMessage(this).mergeMessage(consecutiveMessage);
+        }
+
+        @Override
+        public String getUidForCorrection()
+        {
+            return messageUID;
+        }
+
+        @Override
+        public String getContentForCorrection()
+        {
+            return message;
+        }
+
+        @Override
+        public String getContentForClipboard()
+        {
+            return message;
+        }
+    }
+}
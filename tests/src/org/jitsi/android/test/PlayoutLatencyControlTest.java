@@ -0,0 +1,108 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.test;
+
+import android.test.suitebuilder.annotation.*;
+
+import junit.framework.*;
+
+import org.jitsi.impl.neomedia.jmfext.media.renderer.audio.*;
+
+/**
+ * Checks how <tt>PlayoutLatencyControl</tt> adapts the target latency to
+ * playback glitches.
+ *
+ * @author Pawel Domas
+ */
+public class PlayoutLatencyControlTest
+    extends TestCase
+{
+    @SmallTest
+    public void testClampInitialLatency()
+    {
+        assertEquals(PlayoutLatencyControl.MIN_LATENCY,
+                     new PlayoutLatencyControl(0).getTargetLatency());
+        assertEquals(PlayoutLatencyControl.MAX_LATENCY,
+                     new PlayoutLatencyControl(1000).getTargetLatency());
+        assertEquals(60, new PlayoutLatencyControl(60).getTargetLatency());
+    }
+
+    @SmallTest
+    public void testGrow()
+    {
+        PlayoutLatencyControl control
+            = new PlayoutLatencyControl(PlayoutLatencyControl.MIN_LATENCY);
+
+        // Grows by at least 20 ms
+        control.glitch(0);
+        assertEquals(60, control.getTargetLatency());
+
+        // Then by half
+        control.glitch(10);
+        assertEquals(90, control.getTargetLatency());
+        control.glitch(20);
+        assertEquals(135, control.getTargetLatency());
+        control.glitch(30);
+        assertEquals(202, control.getTargetLatency());
+
+        // Up to the maximum
+        control.glitch(40);
+        assertEquals(PlayoutLatencyControl.MAX_LATENCY,
+                     control.getTargetLatency());
+        control.glitch(50);
+        assertEquals(PlayoutLatencyControl.MAX_LATENCY,
+                     control.getTargetLatency());
+        assertEquals(6, control.getGlitchCount());
+    }
+
+    @SmallTest
+    public void testShrink()
+    {
+        PlayoutLatencyControl control = new PlayoutLatencyControl(100);
+
+        // The first update only starts the stable period
+        assertEquals(100, control.update(100000));
+        assertEquals(100, control.update(104999));
+        assertEquals(90, control.update(105000));
+        assertEquals(90, control.update(109999));
+        assertEquals(80, control.update(110000));
+
+        // A glitch restarts the stable period
+        control.glitch(112000);
+        assertEquals(120, control.getTargetLatency());
+        assertEquals(120, control.update(116999));
+        assertEquals(110, control.update(117000));
+    }
+
+    @SmallTest
+    public void testShrinkToMinimum()
+    {
+        PlayoutLatencyControl control = new PlayoutLatencyControl(60);
+        long now = 0;
+
+        control.update(now);
+        for(int i = 0; i < 10; i++)
+        {
+            now += 5000;
+            control.update(now);
+        }
+        assertEquals(PlayoutLatencyControl.MIN_LATENCY,
+                     control.getTargetLatency());
+        assertEquals(0, control.getGlitchCount());
+    }
+}
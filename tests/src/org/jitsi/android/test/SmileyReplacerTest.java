@@ -0,0 +1,351 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.test;
+
+import android.test.suitebuilder.annotation.*;
+
+import junit.framework.*;
+
+import net.java.sip.communicator.service.replacement.*;
+import net.java.sip.communicator.service.replacement.smilies.*;
+import net.java.sip.communicator.util.*;
+
+import org.jitsi.android.gui.chat.*;
+
+import java.util.*;
+import java.util.regex.*;
+
+/**
+ * Checks that <tt>SmileyReplacer</tt> produces the same output as
+ * the replacement done previously by <tt>ChatMessageImpl</tt>, which compiled
+ * the pattern of each source for every message, and replays a corpus of
+ * synthetic messages to measure the replacement.
+ *
+ * @author Pawel Domas
+ */
+public class SmileyReplacerTest
+    extends TestCase
+{
+    /**
+     * The logger.
+     */
+    private static final Logger logger
+        = Logger.getLogger(SmileyReplacerTest.class);
+
+    /**
+     * Smiley strings of a pack similar to the default one, grouped by
+     * the image.
+     */
+    private static final String[][] PACK
+        = {
+            { ":-)", ":)", "(smile)" }, { ":-(", ":(", "(sad)" },
+            { ":-D", ":D", "(laugh)" }, { ";-)", ";)", "(wink)" },
+            { ":-P", ":P", "(tongue)" }, { ":'(", "(cry)" },
+            { ">:(", "(angry)" }, { "(inlove)", "<3" },
+            { "(devil)", ">:)" }, { "(angel)", "O:)" }, { "(yes)", "(y)" },
+            { "(flower)", "(f)" }, { "(beer)" }, { "(cake)" }, { "(coffee)" }
+        };
+
+    /**
+     * Plain words the messages are made of, some of them look like parts of
+     * smileys.
+     */
+    private static final String[] WORDS
+        = { "hi", "how", "are", "you", "see", "the", "meeting", "at", "10",
+            "call", "me", "later", "ok", "http://jitsi.org", "<b>bold</b>",
+            "a:b", "(note)", "x;y", "8", "done" };
+
+    /**
+     * Creates the corpus of synthetic chat messages. Most messages are short,
+     * some of them are long and roughly a half contains smileys.
+     *
+     * @param size the number of messages.
+     * @param seed the seed of random generator.
+     *
+     * @return the corpus of synthetic chat messages.
+     */
+    private static List<String> createCorpus(int size, long seed)
+    {
+        Random random = new Random(seed);
+        List<String> corpus = new ArrayList<String>(size);
+
+        for(int i = 0; i < size; i++)
+        {
+            int words = random.nextInt(10) == 0
+                ? 50 + random.nextInt(150) : 1 + random.nextInt(15);
+            boolean withSmileys = random.nextBoolean();
+
+            StringBuilder msg = new StringBuilder();
+            for(int w = 0; w < words; w++)
+            {
+                if(w > 0)
+                    msg.append(' ');
+
+                if(withSmileys && random.nextInt(6) == 0)
+                {
+                    String[] smiley = PACK[random.nextInt(PACK.length)];
+                    msg.append(smiley[random.nextInt(smiley.length)]);
+                }
+                else
+                {
+                    msg.append(WORDS[random.nextInt(WORDS.length)]);
+                }
+            }
+            corpus.add(msg.toString());
+        }
+        return corpus;
+    }
+
+    /**
+     * Replaces smileys the way <tt>ChatMessageImpl</tt> did before
+     * <tt>SmileyReplacer</tt> was introduced.
+     *
+     * @param content the message content.
+     * @param sources the replacement sources.
+     *
+     * @return message content with smileys replaced.
+     */
+    private static String replaceBySource(String content,
+                                          List<ReplacementService> sources)
+    {
+        for (ReplacementService source : sources)
+        {
+            if(!(source instanceof SmiliesReplacementService))
+                continue;
+
+            Pattern p = Pattern.compile(
+                source.getPattern(),
+                Pattern.CASE_INSENSITIVE | Pattern.DOTALL);
+            Matcher m = p.matcher(content);
+
+            StringBuilder msgBuff = new StringBuilder();
+            int startPos = 0;
+
+            while (m.find())
+            {
+                msgBuff.append(content.substring(startPos, m.start()));
+                startPos = m.end();
+
+                String group = m.group();
+                String temp = source.getReplacement(group);
+
+                if(!temp.equals(group))
+                {
+                    msgBuff.append("<IMG SRC=\"");
+                    msgBuff.append(temp);
+                    msgBuff.append("\" BORDER=\"0\" ALT=\"");
+                    msgBuff.append(group);
+                    msgBuff.append("\"></IMG>");
+                }
+                else
+                {
+                    msgBuff.append(group);
+                }
+            }
+
+            msgBuff.append(content.substring(startPos));
+
+            content = msgBuff.toString();
+        }
+        return content;
+    }
+
+    @SmallTest
+    public void testSameOutput()
+    {
+        List<ReplacementService> sources
+            = Collections.<ReplacementService>singletonList(
+                new PackService("smiley", PACK));
+        SmileyReplacer replacer = new SmileyReplacer(sources);
+
+        int replaced = 0;
+        for(String msg : createCorpus(1000, 1))
+        {
+            String expected = replaceBySource(msg, sources);
+            String actual = replacer.replace(msg);
+
+            assertEquals(expected, actual);
+            if(!expected.equals(msg))
+                replaced++;
+            else
+                assertSame(msg, actual);
+        }
+        assertTrue(replaced > 0);
+    }
+
+    @SmallTest
+    public void testMultipleSources()
+    {
+        List<ReplacementService> sources = new ArrayList<ReplacementService>();
+        sources.add(
+            new PackService("first", new String[][] { { ":-)", ":)" } }));
+        sources.add(new NotSmileyService());
+        sources.add(new PackService(
+            "second", new String[][] { { "(beer)" }, { "(cake)" } }));
+
+        SmileyReplacer replacer = new SmileyReplacer(sources);
+
+        assertEquals(
+            "a <IMG SRC=\"first/0\" BORDER=\"0\" ALT=\":)\"></IMG> b"
+                + " <IMG SRC=\"second/1\" BORDER=\"0\" ALT=\"(CAKE)\"></IMG>"
+                + " (pizza) http://jitsi.org",
+            replacer.replace("a :) b (CAKE) (pizza) http://jitsi.org"));
+
+        String plain = "no smileys here";
+        assertSame(plain, replacer.replace(plain));
+    }
+
+    @Benchmark
+    @LargeTest
+    public void testReplay()
+    {
+        int corpusSize = 5000;
+        int rounds = 5;
+
+        SmileyReplacer replacer
+            = new SmileyReplacer(
+                Collections.<ReplacementService>singletonList(
+                    new PackService("smiley", PACK)));
+        List<String> corpus = createCorpus(corpusSize, 2);
+
+        int chars = 0;
+        for(String msg : corpus)
+        {
+            chars += msg.length();
+            // Warm up
+            replacer.replace(msg);
+        }
+
+        long start = System.nanoTime();
+        for(int i = 0; i < rounds; i++)
+        {
+            for(String msg : corpus)
+            {
+                replacer.replace(msg);
+            }
+        }
+        long messageTime = (System.nanoTime() - start) / rounds / corpusSize;
+
+        logger.info(corpusSize + " messages, " + chars + " chars, smileys"
+            + " replaced in " + messageTime + " ns per message");
+    }
+
+    /**
+     * <tt>SmiliesReplacementService</tt> which replaces strings of given pack
+     * with the image path of the form <tt>sourceName/index</tt>. The pattern
+     * is built the same way as in the smiley replacement bundle.
+     */
+    private static class PackService
+        implements SmiliesReplacementService
+    {
+        /**
+         * The name of the source.
+         */
+        private final String sourceName;
+
+        /**
+         * The pattern matching all smiley strings.
+         */
+        private final String pattern;
+
+        /**
+         * Image paths by lower case smiley string.
+         */
+        private final Map<String, String> images
+            = new HashMap<String, String>();
+
+        /**
+         * Creates new instance of <tt>PackService</tt>.
+         *
+         * @param sourceName the name of the source.
+         * @param smileys smiley strings grouped by the image.
+         */
+        PackService(String sourceName, String[][] smileys)
+        {
+            this.sourceName = sourceName;
+
+            StringBuilder regexp = new StringBuilder("(?<!(alt='|alt=\"))(");
+            for(int i = 0; i < smileys.length; i++)
+            {
+                for(String smiley : smileys[i])
+                {
+                    images.put(smiley.toLowerCase(), sourceName + "/" + i);
+                    regexp.append(Pattern.quote(smiley)).append('|');
+                }
+            }
+            regexp.setCharAt(regexp.length() - 1, ')');
+
+            this.pattern = regexp.toString();
+        }
+
+        @Override
+        public Collection<Smiley> getSmiliesPack()
+        {
+            return Collections.emptyList();
+        }
+
+        @Override
+        public void reloadSmiliesPack()
+        {
+        }
+
+        @Override
+        public String getReplacement(String sourceString)
+        {
+            String image = images.get(sourceString.toLowerCase());
+            return image != null ? image : sourceString;
+        }
+
+        @Override
+        public String getSourceName()
+        {
+            return sourceName;
+        }
+
+        @Override
+        public String getPattern()
+        {
+            return pattern;
+        }
+    }
+
+    /**
+     * Replacement source which is not a smiley source and must be ignored.
+     */
+    private static class NotSmileyService
+        implements ReplacementService
+    {
+        @Override
+        public String getReplacement(String sourceString)
+        {
+            return "http://example.com/image.png";
+        }
+
+        @Override
+        public String getSourceName()
+        {
+            return "notSmiley";
+        }
+
+        @Override
+        public String getPattern()
+        {
+            return "http://\\S+";
+        }
+    }
+}
@@ -0,0 +1,454 @@
+/*
+ * Jitsi, the OpenSource Java VoIP and Instant Messaging client.
+ *
+ * Copyright @ 2015 Atlassian Pty Ltd
+ *
+ * Licensed under the Apache License, Version 2.0 (the "License");
+ * you may not use this file except in compliance with the License.
+ * You may obtain a copy of the License at
+ *
+ *     http://www.apache.org/licenses/LICENSE-2.0
+ *
+ * Unless required by applicable law or agreed to in writing, software
+ * distributed under the License is distributed on an "AS IS" BASIS,
+ * WITHOUT WARRANTIES OR CONDITIONS OF ANY KIND, either express or implied.
+ * See the License for the specific language governing permissions and
+ * limitations under the License.
+ */
+package org.jitsi.android.test;
+
+import net.java.sip.communicator.service.contactlist.*;
+import net.java.sip.communicator.service.contactlist.event.*;
+import net.java.sip.communicator.service.protocol.*;
+import net.java.sip.communicator.service.protocol.event.*;
+
+import java.lang.reflect.*;
+import java.util.*;
+
+/**
+ * Synthetic <tt>MetaContactListService</tt> model used by contact list tests
+ * and benchmarks. Contacts are spread over the given number of groups placed
+ * under the root group. The model is immutable, only presence status of
+ * the contacts can be changed with {@link #createPresenceBurst(int, long)}.
+ * <br/>
+ * Groups, contacts and the service are dynamic proxies, so that only
+ * the methods used by the contact list return real values and all the others
+ * return default values.
+ *
+ * @author Pawel Domas
+ */
+public class SyntheticContactList
+{
+    /**
+     * Sample first names used to generate display names.
+     */
+    private static final String[] FIRST_NAMES
+        = { "Anna", "Jörg", "José", "Łukasz", "Marie", "Émile", "John",
+            "Zoë", "Paweł", "Yana", "Chloé", "Damian" };
+
+    /**
+     * Sample last names used to generate display names.
+     */
+    private static final String[] LAST_NAMES
+        = { "Doe", "Müller", "García", "Kowalski", "Dubois", "Smith",
+            "Stamcheva", "Novák", "O'Brien", "Øster" };
+
+    /**
+     * Presence statuses of the contacts, synthetic contacts are offline when
+     * created.
+     */
+    private static final PresenceStatus[] STATUSES
+        = { new SyntheticStatus(0, "Offline"),
+            new SyntheticStatus(PresenceStatus.AWAY_THRESHOLD + 1, "Away"),
+            new SyntheticStatus(PresenceStatus.AVAILABLE_THRESHOLD, "Online") };
+
+    /**
+     * The protocol provider of all synthetic contacts.
+     */
+    private static final ProtocolProviderService PROVIDER
+        = createProxy(ProtocolProviderService.class, "Synthetic");
+
+    /**
+     * The root group.
+     */
+    private final MetaContactGroup root;
+
+    /**
+     * All groups including the root.
+     */
+    private final List<MetaContactGroup> groups
+        = new ArrayList<MetaContactGroup>();
+
+    /**
+     * All <tt>MetaContact</tt>s of the model.
+     */
+    private final List<MetaContact> contacts;
+
+    /**
+     * Maps protocol contacts to their <tt>MetaContact</tt>s.
+     */
+    private final Map<Contact, MetaContact> metaContacts
+        = new HashMap<Contact, MetaContact>();
+
+    /**
+     * Maps <tt>MetaContact</tt>s to their parent groups.
+     */
+    private final Map<MetaContact, MetaContactGroup> parents
+        = new HashMap<MetaContact, MetaContactGroup>();
+
+    /**
+     * Contact list listeners registered with the service.
+     */
+    private final List<MetaContactListListener> listeners
+        = new ArrayList<MetaContactListListener>();
+
+    /**
+     * The <tt>MetaContactListService</tt> backed by this model.
+     */
+    private final MetaContactListService service;
+
+    /**
+     * Creates synthetic contact list with <tt>contactCount</tt> contacts
+     * spread over <tt>groupCount</tt> groups, or placed in the root group if
+     * there are no groups. The model is the same for given <tt>seed</tt>.
+     *
+     * @param contactCount the number of contacts.
+     * @param groupCount the number of groups placed under the root group.
+     * @param seed the seed of the random generator.
+     */
+    public SyntheticContactList(int contactCount, int groupCount, long seed)
+    {
+        Random random = new Random(seed);
+        contacts = new ArrayList<MetaContact>(contactCount);
+        for(int i = 0; i < contactCount; i++)
+        {
+            String first = FIRST_NAMES[random.nextInt(FIRST_NAMES.length)];
+            String last = LAST_NAMES[random.nextInt(LAST_NAMES.length)];
+            String displayName = first + " " + last + " " + i;
+            String address = first.toLowerCase() + "." + i + "@example.com";
+
+            contacts.add(createMetaContact(
+                "meta" + i, displayName,
+                createContact(address, displayName)));
+        }
+
+        List<List<MetaContact>> groupContacts
+            = new ArrayList<List<MetaContact>>();
+        for(int i = 0; i <= groupCount; i++)
+        {
+            groupContacts.add(new ArrayList<MetaContact>());
+        }
+        for(int i = 0; i < contacts.size(); i++)
+        {
+            groupContacts.get(groupCount > 0 ? i % groupCount + 1 : 0)
+                .add(contacts.get(i));
+        }
+
+        List<MetaContactGroup> subgroups = new ArrayList<MetaContactGroup>();
+        for(int i = 1; i <= groupCount; i++)
+        {
+            subgroups.add(
+                createGroup("Group " + i, groupContacts.get(i),
+                            Collections.<MetaContactGroup>emptyList()));
+        }
+        root = createGroup("Root", groupContacts.get(0), subgroups);
+
+        groups.add(root);
+        groups.addAll(subgroups);
+
+        for(int i = 0; i <= groupCount; i++)
+        {
+            for(MetaContact metaContact : groupContacts.get(i))
+            {
+                parents.put(metaContact, groups.get(i));
+                metaContacts.put(metaContact.getDefaultContact(), metaContact);
+            }
+        }
+
+        service = createService();
+    }
+
+    /**
+     * Returns the <tt>MetaContactListService</tt> backed by this model.
+     *
+     * @return the <tt>MetaContactListService</tt> backed by this model.
+     */
+    public MetaContactListService getService()
+    {
+        return service;
+    }
+
+    /**
+     * Returns all <tt>MetaContact</tt>s of this model.
+     *
+     * @return all <tt>MetaContact</tt>s of this model.
+     */
+    public List<MetaContact> getContacts()
+    {
+        return Collections.unmodifiableList(contacts);
+    }
+
+    /**
+     * Returns all groups of this model including the root group.
+     *
+     * @return all groups of this model including the root group.
+     */
+    public List<MetaContactGroup> getGroups()
+    {
+        return Collections.unmodifiableList(groups);
+    }
+
+    /**
+     * Returns the number of listeners registered with the service.
+     *
+     * @return the number of listeners registered with the service.
+     */
+    public synchronized int getListenerCount()
+    {
+        return listeners.size();
+    }
+
+    /**
+     * Changes presence status of <tt>count</tt> random contacts and returns
+     * the events describing the changes. Events are meant to be replayed to
+     * <tt>ContactPresenceStatusListener</tt>s under test. A contact may change
+     * more than once in a burst, as it happens when the server pushes
+     * presence of the whole roster after login.
+     *
+     * @param count the number of status changes.
+     * @param seed the seed of the random generator.
+     *
+     * @return the list of presence events in order of the changes.
+     */
+    public List<ContactPresenceStatusChangeEvent> createPresenceBurst(
+        int count, long seed)
+    {
+        Random random = new Random(seed);
+        List<ContactPresenceStatusChangeEvent> events
+            = new ArrayList<ContactPresenceStatusChangeEvent>(count);
+        for(int i = 0; i < count; i++)
+        {
+            Contact contact = contacts.get(random.nextInt(contacts.size()))
+                .getDefaultContact();
+            PresenceStatus newStatus
+                = STATUSES[random.nextInt(STATUSES.length)];
+
+            ProxyHandler handler
+                = (ProxyHandler) Proxy.getInvocationHandler(contact);
+            PresenceStatus oldStatus
+                = (PresenceStatus) handler.values.put(
+                    "getPresenceStatus", newStatus);
+
+            events.add(
+                new ContactPresenceStatusChangeEvent(
+                    contact, PROVIDER, null, oldStatus, newStatus));
+        }
+        return events;
+    }
+
+    /**
+     * Creates synthetic <tt>MetaContact</tt>.
+     *
+     * @param uid the meta UID of the contact.
+     * @param displayName the display name of the contact.
+     * @param protoContact the protocol contact.
+     *
+     * @return synthetic <tt>MetaContact</tt> instance.
+     */
+    public static MetaContact createMetaContact(String uid,
+                                                String displayName,
+                                                Contact protoContact)
+    {
+        return createProxy(
+            MetaContact.class, displayName,
+            "getMetaUID", uid,
+            "getDisplayName", displayName,
+            "getContacts", Collections.singletonList(protoContact),
+            "getContactCount", 1,
+            "getDefaultContact", protoContact);
+    }
+
+    /**
+     * Creates synthetic protocol <tt>Contact</tt>, which is offline.
+     *
+     * @param address the address of the contact.
+     * @param displayName the display name of the contact.
+     *
+     * @return synthetic <tt>Contact</tt> instance.
+     */
+    public static Contact createContact(String address, String displayName)
+    {
+        return createProxy(
+            Contact.class, displayName,
+            "getAddress", address,
+            "getDisplayName", displayName,
+            "getPresenceStatus", STATUSES[0],
+            "getProtocolProvider", PROVIDER);
+    }
+
+    /**
+     * Creates synthetic <tt>MetaContactGroup</tt>.
+     *
+     * @param name the name of the group.
+     * @param childContacts child contacts of the group.
+     * @param subgroups subgroups of the group.
+     *
+     * @return synthetic <tt>MetaContactGroup</tt> instance.
+     */
+    private static MetaContactGroup createGroup(
+        String name,
+        List<MetaContact> childContacts,
+        List<MetaContactGroup> subgroups)
+    {
+        return createProxy(
+            MetaContactGroup.class, name,
+            "getGroupName", name,
+            "getMetaUID", name,
+            "getChildContacts", childContacts,
+            "countChildContacts", childContacts.size(),
+            "getSubgroups", subgroups,
+            "countSubgroups", subgroups.size());
+    }
+
+    /**
+     * Creates the <tt>MetaContactListService</tt> backed by this model.
+     *
+     * @return the <tt>MetaContactListService</tt> backed by this model.
+     */
+    private MetaContactListService createService()
+    {
+        return (MetaContactListService) Proxy.newProxyInstance(
+            MetaContactListService.class.getClassLoader(),
+            new Class<?>[]{ MetaContactListService.class },
+            new ProxyHandler("SyntheticContactList(" + contacts.size() + ")")
+            {
+                @Override
+                public Object invoke(Object proxy, Method method,
+                                     Object[] args)
+                {
+                    String name = method.getName();
+                    if(name.equals("getRoot"))
+                    {
+                        return root;
+                    }
+                    else if(name.equals("findMetaContactByContact"))
+                    {
+                        return metaContacts.get(args[0]);
+                    }
+                    else if(name.equals("findParentMetaContactGroup"))
+                    {
+                        return parents.get(args[0]);
+                    }
+                    else if(name.equals("addMetaContactListListener"))
+                    {
+                        synchronized (SyntheticContactList.this)
+                        {
+                            listeners.add((MetaContactListListener) args[0]);
+                        }
+                        return null;
+                    }
+                    else if(name.equals("removeMetaContactListListener"))
+                    {
+                        synchronized (SyntheticContactList.this)
+                        {
+                            listeners.remove(args[0]);
+                        }
+                        return null;
+                    }
+                    return super.invoke(proxy, method, args);
+                }
+            });
+    }
+
+    /**
+     * Creates the proxy which returns given values.
+     *
+     * @param type the interface of the proxy.
+     * @param name the name returned by <tt>toString</tt> and used by
+     *             <tt>compareTo</tt>.
+     * @param values method names followed by their return values.
+     *
+     * @return the proxy instance.
+     */
+    private static <T> T createProxy(Class<T> type, String name,
+                                     Object... values)
+    {
+        ProxyHandler handler = new ProxyHandler(name);
+        for(int i = 0; i < values.length; i += 2)
+        {
+            handler.values.put((String) values[i], values[i + 1]);
+        }
+        return type.cast(
+            Proxy.newProxyInstance(
+                type.getClassLoader(), new Class<?>[]{ type }, handler));
+    }
+
+    /**
+     * Returns the values of proxy methods by their names and default values
+     * for all other methods. Lists are returned as iterators, if the method
+     * returns <tt>Iterator</tt>.
+     */
+    private static class ProxyHandler
+        implements InvocationHandler
+    {
+        /**
+         * The name returned by <tt>toString</tt>.
+         */
+        private final String name;
+
+        /**
+         * Return values by method names.
+         */
+        final Map<String, Object> values
+            = Collections.synchronizedMap(new HashMap<String, Object>());
+
+        ProxyHandler(String name)
+        {
+            this.name = name;
+        }
+
+        public Object invoke(Object proxy, Method method, Object[] args)
+        {
+            String methodName = method.getName();
+            Class<?> type = method.getReturnType();
+
+            Object value = values.get(methodName);
+            if(value != null)
+            {
+                return type == Iterator.class
+                    ? ((List<?>) value).iterator() : value;
+            }
+            else if(methodName.equals("toString"))
+                return name;
+            else if(methodName.equals("equals"))
+                return proxy == args[0];
+            else if(methodName.equals("hashCode"))
+                return System.identityHashCode(proxy);
+            else if(methodName.equals("compareTo"))
+                return name.compareToIgnoreCase(args[0].toString());
+            else if(type == boolean.class)
+                return false;
+            else if(type == int.class)
+                return 0;
+            else if(type == long.class)
+                return 0L;
+            else if(type == Iterator.class)
+                return Collections.emptyList().iterator();
+            else if(type == List.class)
+                return Collections.emptyList();
+            return null;
+        }
+    }
+
+    /**
+     * Presence status of synthetic contacts.
+     */
+    private static class SyntheticStatus
+        extends PresenceStatus
+    {
+        SyntheticStatus(int status, String statusName)
+        {
+            super(status, statusName);
+        }
+    }
+}